@@ -0,0 +1,27 @@
+package data;
+
+/**
+ * Character-class checks shared by the identifier value classes.
+ * They replace {@code String.matches}, which compiles a new regular expression on every call.
+ */
+final class CodeFormat {
+
+    private CodeFormat() {
+    }
+
+    /**
+     * @return true if the code has exactly the given length and only contains ASCII letters and digits.
+     */
+    static boolean isAlphanumeric(String code, int length) {
+        if (code.length() != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            char c = code.charAt(i);
+            if (!((c >= '0' && c <= '9') || (c >= 'A' && c <= 'Z') || (c >= 'a' && c <= 'z'))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
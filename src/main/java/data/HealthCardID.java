@@ -6,6 +6,9 @@ package data;
  */
 final public class HealthCardID {
 
+    // Canonical instances handed out by of(String)
+    private static final WeakInternPool<HealthCardID> POOL = new WeakInternPool<>();
+
     // The internal ID string
     private final String personalID;
 
@@ -21,12 +24,30 @@ final public class HealthCardID {
             throw new NullValueException("El CIP no puede ser nulo.");
         }
         // Validates that the code consists exactly of 16 alphanumeric characters
-        if (!code.matches("^[a-zA-Z0-9]{16}$")) {
+        if (!CodeFormat.isAlphanumeric(code, 16)) {
             throw new InvalidFormatException("El CIP debe tener 16 caracteres alfanuméricos.");
         }
         this.personalID = code;
     }
 
+    /**
+     * Returns the canonical HealthCardID for a code, creating it only the first time.
+     * Repeated CIPs share the same instance, so comparing them is usually a reference check.
+     *
+     * @param code The string representation of the CIP.
+     * @return The shared instance for the code.
+     * @throws NullValueException If the provided code is null.
+     * @throws InvalidFormatException If the code does not match the required pattern (16 alphanumeric characters).
+     */
+    public static HealthCardID of(String code) throws NullValueException, InvalidFormatException {
+        HealthCardID pooled = code == null ? null : POOL.get(code);
+        if (pooled != null) {
+            return pooled;
+        }
+        HealthCardID created = new HealthCardID(code);
+        return POOL.intern(created.personalID, created);
+    }
+
     public String getPersonalID() {
         return personalID;
     }
@@ -1,15 +1,27 @@
 package data;
 
-import java.util.Objects;
-
 /**
  * Represents a Universal Product Code (UPC) for a medicinal product.
+ * Since a UPC is always made of 12 decimal digits, the code is also kept packed
+ * into a single {@code long}, which is used for comparisons and hashing.
  */
 public final class ProductID {
 
+    // Canonical instances handed out by of(String)
+    private static final WeakInternPool<ProductID> POOL = new WeakInternPool<>();
+
+    // Number of digits of every product code
+    private static final int CODE_LENGTH = 12;
+
+    // Highest code that can be represented (999999999999)
+    private static final long MAX_PACKED_CODE = 999_999_999_999L;
+
     // The internal code string
     private final String code;
 
+    // The same code as a number
+    private final long packedCode;
+
     /**
      * Constructs a new ProductID.
      *
@@ -21,32 +33,104 @@ public final class ProductID {
         if (code == null) {
             throw new NullValueException("El código de producto no puede ser nulo.");
         }
-        // Validates that the code consists exactly of 12 numerical digits
-        if (!code.matches("^\\d{12}$")) {
+        // Validates that the code consists exactly of 12 numerical digits while packing it
+        long packed = packCode(code, 0, code.length());
+        if (packed < 0) {
             throw new InvalidFormatException("El ProductID debe contener exactamente 12 dígitos.");
         }
         this.code = code;
+        this.packedCode = packed;
+    }
+
+    private ProductID(String code, long packedCode) {
+        this.code = code;
+        this.packedCode = packedCode;
+    }
+
+    /**
+     * Returns the canonical ProductID for a code, creating it only the first time.
+     *
+     * @param code The string representation of the product code.
+     * @return The shared instance for the code.
+     * @throws NullValueException If the provided code is null.
+     * @throws InvalidFormatException If the code does not match the required pattern (12 digits).
+     */
+    public static ProductID of(String code) throws NullValueException, InvalidFormatException {
+        ProductID pooled = code == null ? null : POOL.get(code);
+        if (pooled != null) {
+            return pooled;
+        }
+        ProductID created = new ProductID(code);
+        return POOL.intern(created.code, created);
+    }
+
+    /**
+     * Rebuilds a ProductID from its packed form.
+     *
+     * @param packedCode A value previously returned by {@link #getPackedCode()}.
+     * @return The equivalent ProductID.
+     * @throws IllegalArgumentException If the value does not correspond to a 12-digit code.
+     */
+    public static ProductID fromPackedCode(long packedCode) {
+        if (packedCode < 0 || packedCode > MAX_PACKED_CODE) {
+            throw new IllegalArgumentException("El código empaquetado no corresponde a un ProductID: " + packedCode);
+        }
+        char[] digits = new char[CODE_LENGTH];
+        long rest = packedCode;
+        for (int i = CODE_LENGTH - 1; i >= 0; i--) {
+            digits[i] = (char) ('0' + rest % 10);
+            rest /= 10;
+        }
+        return new ProductID(new String(digits), packedCode);
+    }
+
+    /**
+     * Validates and packs a product code without creating any object.
+     *
+     * @param s    The text containing the code.
+     * @param from The index of the first character of the code.
+     * @param to   The index after the last character of the code.
+     * @return The packed code, or -1 if the characters are not exactly 12 decimal digits.
+     */
+    public static long packCode(CharSequence s, int from, int to) {
+        if (to - from != CODE_LENGTH) {
+            return -1;
+        }
+        long packed = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            packed = packed * 10 + (c - '0');
+        }
+        return packed;
     }
 
     public String getCode() {
         return code;
     }
 
+    /** @return The code as a number; codes with leading zeros are kept without them. */
+    public long getPackedCode() {
+        return packedCode;
+    }
+
     @Override
     public boolean equals(Object o) {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         ProductID productID = (ProductID) o;
-        return code.equals(productID.code);
+        return packedCode == productID.packedCode;
     }
 
     @Override
     public int hashCode() {
-        return Objects.hash(code);
+        return Long.hashCode(packedCode);
     }
 
     @Override
     public String toString() {
         return "ProductID{" + "code='" + code + '\'' + '}';
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,68 @@
+package data;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Pool of canonical instances of an identifier class, indexed by their code.
+ * Entries are weak: an instance stays in the pool only while some other object references it,
+ * so the pool never keeps identifiers alive by itself.
+ * <p>
+ * The pool is split into stripes chosen by the hash of the code, each one with its own lock,
+ * so threads interning different codes rarely wait for each other.
+ *
+ * @param <T> The identifier class.
+ */
+final class WeakInternPool<T> {
+
+    // Number of stripes; a power of two so the stripe is taken from the low bits of the hash
+    private static final int STRIPES = 64;
+
+    // Keyed by the code held by the pooled instance, so the entry lives as long as the instance
+    private final Map<String, WeakReference<T>>[] stripes;
+
+    @SuppressWarnings("unchecked")
+    WeakInternPool() {
+        stripes = (Map<String, WeakReference<T>>[]) new Map<?, ?>[STRIPES];
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new WeakHashMap<>();
+        }
+    }
+
+    /** @return The pooled instance for the code, or null if there is none. */
+    T get(String code) {
+        Map<String, WeakReference<T>> pool = stripeOf(code);
+        synchronized (pool) {
+            WeakReference<T> ref = pool.get(code);
+            return ref == null ? null : ref.get();
+        }
+    }
+
+    /**
+     * Registers a new instance unless another thread pooled one for the same code first.
+     *
+     * @param code     The code held by the instance.
+     * @param instance The newly created instance.
+     * @return The canonical instance for the code.
+     */
+    T intern(String code, T instance) {
+        Map<String, WeakReference<T>> pool = stripeOf(code);
+        synchronized (pool) {
+            WeakReference<T> ref = pool.get(code);
+            T existing = ref == null ? null : ref.get();
+            if (existing != null) {
+                return existing;
+            }
+            // Removing first makes the new instance's own code the weak key of the entry
+            pool.remove(code);
+            pool.put(code, new WeakReference<>(instance));
+            return instance;
+        }
+    }
+
+    private Map<String, WeakReference<T>> stripeOf(String code) {
+        int h = code.hashCode();
+        return stripes[(h ^ (h >>> 16)) & (STRIPES - 1)];
+    }
+}
@@ -1,13 +1,14 @@
 package data;
 
-import java.util.Objects;
-
 /**
  * Represents the unique electronic prescription code.
  * This is a Value Object that encapsulates the prescription identifier string.
  */
 public final class ePrescripCode {
 
+    // Canonical instances handed out by of(String)
+    private static final WeakInternPool<ePrescripCode> POOL = new WeakInternPool<>();
+
     // The internal code string
     private final String code;
 
@@ -23,12 +24,29 @@ public final class ePrescripCode {
             throw new NullValueException("El código de prescripción no puede ser nulo.");
         }
         // Validates that the code consists exactly of 10 alphanumeric characters
-        if (!code.matches("^[a-zA-Z0-9]{10}$")) {
+        if (!CodeFormat.isAlphanumeric(code, 10)) {
             throw new InvalidFormatException("El ePrescripCode debe tener 10 caracteres alfanuméricos.");
         }
         this.code = code;
     }
 
+    /**
+     * Returns the canonical ePrescripCode for a code, creating it only the first time.
+     *
+     * @param code The string representation of the prescription code.
+     * @return The shared instance for the code.
+     * @throws NullValueException If the provided code is null.
+     * @throws InvalidFormatException If the code does not match the required pattern (10 alphanumeric characters).
+     */
+    public static ePrescripCode of(String code) throws NullValueException, InvalidFormatException {
+        ePrescripCode pooled = code == null ? null : POOL.get(code);
+        if (pooled != null) {
+            return pooled;
+        }
+        ePrescripCode created = new ePrescripCode(code);
+        return POOL.intern(created.code, created);
+    }
+
     public String getCode() {
         return code;
     }
@@ -43,7 +61,7 @@ public final class ePrescripCode {
 
     @Override
     public int hashCode() {
-        return Objects.hash(code);
+        return code.hashCode();
     }
 
     @Override
@@ -0,0 +1,309 @@
+package medicalconsultation;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Dictionary of phrases and words shared by the compacted medical histories (see
+ * {@link MedicalHistory#compact}). Clinical annotations repeat the same standard phrases and words,
+ * so each history stores its annotations as codes of this dictionary instead of their text.
+ * <p>
+ * An annotation equal to a known phrase is stored as a single code. Any other annotation is split
+ * into words, each one together with the spaces and punctuation after it, and each word is stored as
+ * its code. A word is added to the dictionary once it has been seen a number of times (twice by
+ * default); until then, and once the dictionary is full, it is stored as literal text, so words used
+ * only once, such as measurements, do not take the room of the recurring ones. Codes are variable-length
+ * integers, so the most frequent words, which are the first ones admitted, take a single byte.
+ * <p>
+ * Entries are never removed, so the codes stored in a history remain valid. The dictionary is thread-safe:
+ * annotations made of known words are encoded under the read lock, and the write lock is only taken
+ * to add words.
+ */
+public class AnnotationDictionary {
+
+    // Code written before a word that is stored as text
+    private static final int LITERAL = 0;
+
+    private final int maxEntries;
+    private final int admissionThreshold;
+    // Times each word not yet in the dictionary has been seen
+    private final ConcurrentMap<String, Integer> candidates = new ConcurrentHashMap<>();
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final Map<String, Integer> codes = new HashMap<>();
+    // Entry of each code; the entry of code 0 is unused
+    private String[] entries = new String[256];
+    private int size = 1;
+    private long entryChars;
+
+    /**
+     * Creates a dictionary of up to a million entries.
+     */
+    public AnnotationDictionary() {
+        this(1 << 20);
+    }
+
+    /**
+     * Creates a dictionary that adds the words seen twice.
+     *
+     * @param maxEntries The maximum number of phrases and words in the dictionary.
+     */
+    public AnnotationDictionary(int maxEntries) {
+        this(maxEntries, 2);
+    }
+
+    /**
+     * @param maxEntries         The maximum number of phrases and words in the dictionary.
+     * @param admissionThreshold The number of times a word must be seen before it is added.
+     */
+    public AnnotationDictionary(int maxEntries, int admissionThreshold) {
+        if (maxEntries <= 0 || admissionThreshold <= 0) {
+            throw new IllegalArgumentException("El tamaño del diccionario y el umbral de admisión deben ser positivos.");
+        }
+        this.maxEntries = maxEntries;
+        this.admissionThreshold = admissionThreshold;
+    }
+
+    /**
+     * Adds standard phrases, so annotations equal to one of them are stored as a single code.
+     * Phrases added first get the shortest codes.
+     *
+     * @param phrases The phrases, most frequent first.
+     */
+    public void addPhrases(Collection<String> phrases) {
+        lock.writeLock().lock();
+        try {
+            for (String phrase : phrases) {
+                if (phrase != null && !phrase.isEmpty()) {
+                    codeOf(phrase);
+                }
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** @return The number of phrases and words in the dictionary. */
+    public int getEntryCount() {
+        lock.readLock().lock();
+        try {
+            return size - 1;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * @return An estimate of the heap used by the dictionary, in bytes, assuming compressed references.
+     */
+    public long getMemoryFootprint() {
+        lock.readLock().lock();
+        try {
+            // Per entry: the string and its array in both tables, the hash map node and the boxed code
+            return 16L + 4L * entries.length + 96L * (size - 1) + entryChars + 96L * candidates.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- Encoding ---
+
+    /**
+     * @return The codes of the annotation.
+     */
+    byte[] encode(String annotation) {
+        Encoder encoder = new Encoder(annotation.length() / 4 + 2);
+        lock.readLock().lock();
+        try {
+            Integer phrase = codes.get(annotation);
+            if (phrase != null) {
+                encoder.writeVarInt(phrase);
+                return encoder.toByteArray();
+            }
+            if (writeWords(annotation, encoder, false)) {
+                return encoder.toByteArray();
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        // Some word has been seen often enough to be added
+        encoder.length = 0;
+        lock.writeLock().lock();
+        try {
+            writeWords(annotation, encoder, true);
+            return encoder.toByteArray();
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * @return The annotation stored in the given range of codes.
+     */
+    String decode(byte[] data, int from, int to) {
+        StringBuilder sb = new StringBuilder(2 * (to - from) + 16);
+        int[] offset = {from};
+        lock.readLock().lock();
+        try {
+            while (offset[0] < to) {
+                int code = readVarInt(data, offset);
+                if (code == LITERAL) {
+                    int length = readVarInt(data, offset);
+                    sb.append(new String(data, offset[0], length, StandardCharsets.UTF_8));
+                    offset[0] += length;
+                } else {
+                    sb.append(entries[code]);
+                }
+            }
+        } finally {
+            lock.readLock().unlock();
+        }
+        return sb.toString();
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Writes the code of each word of the annotation, or its text if the word is not in the dictionary.
+     * The first pass, under the read lock, counts the words that are not in the dictionary; the second
+     * one, under the write lock, adds those that have reached the admission threshold.
+     *
+     * @param admit Whether the words that reached the threshold are added. Requires the write lock.
+     * @return false if some word must be added and admit is false; the codes written are then incomplete.
+     */
+    private boolean writeWords(String annotation, Encoder encoder, boolean admit) {
+        boolean complete = true;
+        int start = 0;
+        while (start < annotation.length()) {
+            int end = wordEnd(annotation, start);
+            String word = annotation.substring(start, end);
+            Integer known = codes.get(word);
+            int code = LITERAL;
+            if (known != null) {
+                code = known;
+            } else if (size <= maxEntries) {
+                if (admit) {
+                    if (candidates.getOrDefault(word, 0) >= admissionThreshold) {
+                        candidates.remove(word);
+                        code = codeOf(word);
+                    }
+                } else if (countSighting(word) >= admissionThreshold) {
+                    complete = false;
+                }
+            }
+            encoder.writeVarInt(code);
+            if (code == LITERAL) {
+                byte[] text = word.getBytes(StandardCharsets.UTF_8);
+                encoder.writeVarInt(text.length);
+                encoder.write(text);
+            }
+            start = end;
+        }
+        return complete;
+    }
+
+    /**
+     * Counts one more sighting of a word that is not in the dictionary. The candidates are forgotten
+     * if there are as many as the dictionary can hold, so words seen once cannot fill the memory.
+     *
+     * @return The times the word has been seen.
+     */
+    private int countSighting(String word) {
+        if (candidates.size() >= maxEntries) {
+            candidates.clear();
+        }
+        return candidates.merge(word, 1, Integer::sum);
+    }
+
+    /**
+     * Returns the code of an entry, adding it if there is room. Must be called holding the write lock.
+     *
+     * @return The code, or {@link #LITERAL} if the entry is not known and the dictionary is full.
+     */
+    private int codeOf(String entry) {
+        Integer code = codes.get(entry);
+        if (code != null) {
+            return code;
+        }
+        if (size > maxEntries) {
+            return LITERAL;
+        }
+        if (size == entries.length) {
+            entries = Arrays.copyOf(entries, size * 2);
+        }
+        entries[size] = entry;
+        codes.put(entry, size);
+        entryChars += entry.length();
+        return size++;
+    }
+
+    /**
+     * @return The end of the word starting at the given position: its letters and digits, followed by
+     * the spaces and punctuation before the next word.
+     */
+    private static int wordEnd(String text, int start) {
+        int i = start;
+        while (i < text.length() && Character.isLetterOrDigit(text.charAt(i))) {
+            i++;
+        }
+        while (i < text.length() && !Character.isLetterOrDigit(text.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    private static int readVarInt(byte[] data, int[] offset) {
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[offset[0]++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    /**
+     * Growable byte array receiving the codes of an annotation.
+     */
+    private static final class Encoder {
+        byte[] data;
+        int length;
+
+        Encoder(int capacity) {
+            this.data = new byte[capacity];
+        }
+
+        void writeVarInt(int value) {
+            ensureCapacity(5);
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void write(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, data, length, bytes.length);
+            length += bytes.length;
+        }
+
+        byte[] toByteArray() {
+            return Arrays.copyOf(data, length);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + extra));
+            }
+        }
+    }
+}
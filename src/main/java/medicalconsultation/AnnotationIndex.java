@@ -0,0 +1,506 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Inverted index over the annotations of medical histories, for searches within a patient and across
+ * patients (clinical audits). Histories attached with {@link MedicalHistory#setAnnotationIndex} are
+ * indexed at once, and every annotation added to them afterwards is indexed as it arrives.
+ * <p>
+ * Annotations are split into words, compared without case or accents. For every word the index keeps
+ * a posting list in a byte array: for each annotation containing it, the gap from the previous
+ * annotation, the number of occurrences and the gaps between their positions, all as variable-length
+ * integers, so frequent words take about a byte per occurrence. Words are kept in sorted order,
+ * which answers prefix queries with a range of the dictionary.
+ * <p>
+ * Replacing the history of a patient marks its previous annotations as removed; they are skipped
+ * by the queries but their postings are kept until removed annotations make up half of the index,
+ * when the posting lists are rewritten without them. The index is thread-safe; queries run concurrently.
+ */
+public class AnnotationIndex {
+
+    // Smallest index that is compacted, so small indexes are not rewritten on every replacement
+    private static final int MIN_COMPACTION_DOCS = 1024;
+
+    /**
+     * An annotation found by a query.
+     *
+     * @param cip        The patient.
+     * @param annotation The position of the annotation in the history of the patient (0 is the oldest).
+     */
+    public record Hit(HealthCardID cip, int annotation) {
+    }
+
+    /**
+     * Growable array of ints.
+     */
+    private static final class IntList {
+        int[] values = new int[4];
+        int size;
+
+        void add(int value) {
+            if (size == values.length) {
+                values = Arrays.copyOf(values, size * 2);
+            }
+            values[size++] = value;
+        }
+    }
+
+    /**
+     * Posting list of a word.
+     */
+    private static final class Postings {
+        byte[] data = new byte[16];
+        int length;
+        int lastDoc = -1;
+
+        void writeVarInt(int value) {
+            if (length + 5 > data.length) {
+                data = Arrays.copyOf(data, Math.max(data.length * 2, length + 5));
+            }
+            while ((value & ~0x7F) != 0) {
+                data[length++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            data[length++] = (byte) value;
+        }
+
+        void add(int doc, int[] positions, int count) {
+            writeVarInt(doc - lastDoc);
+            writeVarInt(count);
+            int previous = 0;
+            for (int i = 0; i < count; i++) {
+                writeVarInt(positions[i] - previous);
+                previous = positions[i];
+            }
+            lastDoc = doc;
+        }
+    }
+
+    /**
+     * Reads a posting list, one annotation at a time.
+     */
+    private static final class Cursor {
+        final byte[] data;
+        final int limit;
+        int offset;
+        int doc = -1;
+        int freq;
+        // Offset of the positions of the current annotation, or -1 once they have been read or skipped
+        int positionsOffset = -1;
+
+        Cursor(Postings postings) {
+            this.data = postings.data;
+            this.limit = postings.length;
+        }
+
+        /** @return Whether there is another annotation; if so, it becomes the current one. */
+        boolean next() {
+            if (positionsOffset >= 0) {
+                for (int i = 0; i < freq; i++) {
+                    readVarInt();
+                }
+            }
+            if (offset >= limit) {
+                doc = Integer.MAX_VALUE;
+                return false;
+            }
+            doc += readVarInt();
+            freq = readVarInt();
+            positionsOffset = offset;
+            return true;
+        }
+
+        /** Moves to the first annotation at or after the given one. */
+        boolean advance(int target) {
+            while (doc < target) {
+                if (!next()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int[] positions() {
+            int[] positions = new int[freq];
+            offset = positionsOffset;
+            int position = 0;
+            for (int i = 0; i < freq; i++) {
+                position += readVarInt();
+                positions[i] = position;
+            }
+            positionsOffset = -1;
+            return positions;
+        }
+
+        private int readVarInt() {
+            int value = 0;
+            int shift = 0;
+            byte b;
+            do {
+                b = data[offset++];
+                value |= (b & 0x7F) << shift;
+                shift += 7;
+            } while (b < 0);
+            return value;
+        }
+    }
+
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<String, Postings> dictionary = new TreeMap<>();
+
+    // Patient and position of each indexed annotation, by annotation number
+    private final List<HealthCardID> patients = new ArrayList<>();
+    private final Map<HealthCardID, Integer> patientNumbers = new HashMap<>();
+    private int[] docPatient = new int[1024];
+    private int[] docPosition = new int[1024];
+    private int docCount;
+
+    // Annotations of replaced histories
+    private final BitSet removed = new BitSet();
+    private int removedCount;
+
+    // Annotation numbers of each patient, to remove them when the history is replaced
+    private final List<IntList> patientDocs = new ArrayList<>();
+
+    /**
+     * Indexes the whole history of a patient, replacing the annotations indexed for it before.
+     */
+    public void replace(HealthCardID cip, List<String> annotations) {
+        lock.writeLock().lock();
+        try {
+            int patient = patientNumber(cip);
+            IntList docs = patientDocs.get(patient);
+            for (int i = 0; i < docs.size; i++) {
+                removed.set(docs.values[i]);
+            }
+            removedCount += docs.size;
+            docs.size = 0;
+            for (int i = 0; i < annotations.size(); i++) {
+                addDocument(patient, i, annotations.get(i));
+            }
+            if (docCount >= MIN_COMPACTION_DOCS && removedCount * 2L > docCount) {
+                compact();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Indexes an annotation added to the history of a patient.
+     *
+     * @param position The position of the annotation in the history.
+     */
+    public void add(HealthCardID cip, int position, String annotation) {
+        lock.writeLock().lock();
+        try {
+            addDocument(patientNumber(cip), position, annotation);
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // --- Queries ---
+
+    /** @return The annotations, of any patient, that contain the word. */
+    public List<Hit> findTerm(String term) {
+        return findTerm(term, null);
+    }
+
+    /**
+     * Finds a word. A term that is split into several words, such as "T.A.", is searched as a phrase.
+     *
+     * @param cip The patient, or null for every patient.
+     * @return The annotations that contain the word, in the order they were indexed.
+     */
+    public List<Hit> findTerm(String term, HealthCardID cip) {
+        return findPhrase(tokenize(term), cip);
+    }
+
+    /** @return The annotations, of any patient, that contain the words consecutively. */
+    public List<Hit> findPhrase(String phrase) {
+        return findPhrase(phrase, null);
+    }
+
+    /**
+     * @param cip The patient, or null for every patient.
+     * @return The annotations that contain the words consecutively, in the order they were indexed.
+     */
+    public List<Hit> findPhrase(String phrase, HealthCardID cip) {
+        return findPhrase(tokenize(phrase), cip);
+    }
+
+    /** @return The annotations, of any patient, with a word that starts with the prefix. */
+    public List<Hit> findPrefix(String prefix) {
+        return findPrefix(prefix, null);
+    }
+
+    /**
+     * @param cip The patient, or null for every patient.
+     * @return The annotations with a word that starts with the prefix, in the order they were indexed.
+     */
+    public List<Hit> findPrefix(String prefix, HealthCardID cip) {
+        List<String> words = tokenize(prefix);
+        if (words.size() != 1) {
+            return List.of();
+        }
+        String start = words.get(0);
+        lock.readLock().lock();
+        try {
+            int patient = patientFilter(cip);
+            if (patient == -2) {
+                return List.of();
+            }
+            BitSet docs = new BitSet(docCount);
+            NavigableMap<String, Postings> range = dictionary.subMap(start, true, start + Character.MAX_VALUE, false);
+            for (Postings postings : range.values()) {
+                Cursor cursor = new Cursor(postings);
+                while (cursor.next()) {
+                    docs.set(cursor.doc);
+                }
+            }
+            List<Hit> hits = new ArrayList<>();
+            for (int doc = docs.nextSetBit(0); doc >= 0; doc = docs.nextSetBit(doc + 1)) {
+                addHit(hits, doc, patient);
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return The number of distinct words indexed. */
+    public int getTermCount() {
+        lock.readLock().lock();
+        try {
+            return dictionary.size();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** @return The bytes taken by the posting lists. */
+    public long getPostingBytes() {
+        lock.readLock().lock();
+        try {
+            long bytes = 0;
+            for (Postings postings : dictionary.values()) {
+                bytes += postings.length;
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // --- Internal helpers ---
+
+    private List<Hit> findPhrase(List<String> words, HealthCardID cip) {
+        if (words.isEmpty()) {
+            return List.of();
+        }
+        lock.readLock().lock();
+        try {
+            int patient = patientFilter(cip);
+            if (patient == -2) {
+                return List.of();
+            }
+            Cursor[] cursors = new Cursor[words.size()];
+            for (int i = 0; i < cursors.length; i++) {
+                Postings postings = dictionary.get(words.get(i));
+                if (postings == null) {
+                    return List.of();
+                }
+                cursors[i] = new Cursor(postings);
+            }
+            List<Hit> hits = new ArrayList<>();
+            // Walks the annotations containing every word, in order
+            int doc = 0;
+            while (alignAt(cursors, doc)) {
+                doc = cursors[0].doc;
+                if (cursors.length == 1 || containsPhrase(cursors)) {
+                    addHit(hits, doc, patient);
+                }
+                doc++;
+            }
+            return hits;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Moves every cursor to the first annotation, at or after the given one, that contains every word.
+     */
+    private static boolean alignAt(Cursor[] cursors, int from) {
+        int target = from;
+        while (true) {
+            boolean aligned = true;
+            for (Cursor cursor : cursors) {
+                if (!cursor.advance(target)) {
+                    return false;
+                }
+                if (cursor.doc > target) {
+                    target = cursor.doc;
+                    aligned = false;
+                }
+            }
+            if (aligned) {
+                return true;
+            }
+        }
+    }
+
+    private static boolean containsPhrase(Cursor[] cursors) {
+        int[][] positions = new int[cursors.length][];
+        for (int i = 0; i < cursors.length; i++) {
+            positions[i] = cursors[i].positions();
+        }
+        for (int start : positions[0]) {
+            boolean found = true;
+            for (int i = 1; i < positions.length && found; i++) {
+                found = Arrays.binarySearch(positions[i], start + i) >= 0;
+            }
+            if (found) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void addHit(List<Hit> hits, int doc, int patient) {
+        if (!removed.get(doc) && (patient < 0 || docPatient[doc] == patient)) {
+            hits.add(new Hit(patients.get(docPatient[doc]), docPosition[doc]));
+        }
+    }
+
+    /** @return The number of the patient, -1 for every patient, or -2 if the patient is not indexed. */
+    private int patientFilter(HealthCardID cip) {
+        if (cip == null) {
+            return -1;
+        }
+        Integer patient = patientNumbers.get(cip);
+        return patient == null ? -2 : patient;
+    }
+
+    private int patientNumber(HealthCardID cip) {
+        Integer patient = patientNumbers.get(cip);
+        if (patient == null) {
+            patient = patients.size();
+            patients.add(cip);
+            patientDocs.add(new IntList());
+            patientNumbers.put(cip, patient);
+        }
+        return patient;
+    }
+
+    private void addDocument(int patient, int position, String annotation) {
+        int doc = docCount++;
+        if (doc == docPatient.length) {
+            docPatient = Arrays.copyOf(docPatient, doc * 2);
+            docPosition = Arrays.copyOf(docPosition, doc * 2);
+        }
+        docPatient[doc] = patient;
+        docPosition[doc] = position;
+        patientDocs.get(patient).add(doc);
+
+        // Positions of each word in the annotation
+        Map<String, IntList> occurrences = new HashMap<>();
+        List<String> words = tokenize(annotation);
+        for (int i = 0; i < words.size(); i++) {
+            occurrences.computeIfAbsent(words.get(i), word -> new IntList()).add(i);
+        }
+        for (Map.Entry<String, IntList> entry : occurrences.entrySet()) {
+            IntList positions = entry.getValue();
+            dictionary.computeIfAbsent(entry.getKey(), word -> new Postings()).add(doc, positions.values, positions.size);
+        }
+    }
+
+    /**
+     * Rewrites the posting lists without the removed annotations, renumbering the rest in the same
+     * order, and forgets the words that only appeared in removed annotations. Must be called holding
+     * the write lock.
+     */
+    private void compact() {
+        int[] renumbered = new int[docCount];
+        int live = 0;
+        for (int doc = 0; doc < docCount; doc++) {
+            if (removed.get(doc)) {
+                renumbered[doc] = -1;
+            } else {
+                renumbered[doc] = live;
+                docPatient[live] = docPatient[doc];
+                docPosition[live] = docPosition[doc];
+                live++;
+            }
+        }
+        Iterator<Map.Entry<String, Postings>> entries = dictionary.entrySet().iterator();
+        while (entries.hasNext()) {
+            Map.Entry<String, Postings> entry = entries.next();
+            Postings kept = new Postings();
+            Cursor cursor = new Cursor(entry.getValue());
+            while (cursor.next()) {
+                int doc = renumbered[cursor.doc];
+                if (doc >= 0) {
+                    int[] positions = cursor.positions();
+                    kept.add(doc, positions, positions.length);
+                }
+            }
+            if (kept.length == 0) {
+                entries.remove();
+            } else {
+                kept.data = Arrays.copyOf(kept.data, kept.length);
+                entry.setValue(kept);
+            }
+        }
+        // Only the annotations still indexed are listed for their patients
+        for (IntList docs : patientDocs) {
+            for (int i = 0; i < docs.size; i++) {
+                docs.values[i] = renumbered[docs.values[i]];
+            }
+        }
+        docCount = live;
+        removed.clear();
+        removedCount = 0;
+    }
+
+    /**
+     * Splits a text into words made of letters and digits, in lower case and without accents.
+     */
+    static List<String> tokenize(String text) {
+        List<String> words = new ArrayList<>();
+        if (text == null) {
+            return words;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFD);
+        StringBuilder word = new StringBuilder();
+        for (int i = 0; i < normalized.length(); i++) {
+            char c = normalized.charAt(i);
+            if (Character.isLetterOrDigit(c)) {
+                word.append(c);
+            } else if (Character.getType(c) != Character.NON_SPACING_MARK && !word.isEmpty()) {
+                words.add(word.toString().toLowerCase(Locale.ROOT));
+                word.setLength(0);
+            }
+        }
+        if (!word.isEmpty()) {
+            words.add(word.toString().toLowerCase(Locale.ROOT));
+        }
+        return words;
+    }
+}
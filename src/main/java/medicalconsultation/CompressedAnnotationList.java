@@ -0,0 +1,122 @@
+package medicalconsultation;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * Annotations of a compacted medical history, stored as codes of an {@link AnnotationDictionary}.
+ * The codes of all the annotations are kept one after the other in a single byte array, with the
+ * offset where each annotation ends; annotations are decoded each time they are read.
+ */
+class CompressedAnnotationList extends AbstractList<String> implements RandomAccess {
+
+    private final AnnotationDictionary dictionary;
+    private byte[] data;
+    private int length;
+    // End of the codes of each annotation in data
+    private int[] ends;
+    private int size;
+
+    CompressedAnnotationList(AnnotationDictionary dictionary, Collection<String> annotations) {
+        this.dictionary = dictionary;
+        this.data = new byte[Math.max(16, annotations.size() * 8)];
+        this.ends = new int[Math.max(4, annotations.size())];
+        addAll(annotations);
+    }
+
+    CompressedAnnotationList(CompressedAnnotationList other) {
+        this.dictionary = other.dictionary;
+        this.data = Arrays.copyOf(other.data, other.length);
+        this.length = other.length;
+        this.ends = Arrays.copyOf(other.ends, other.size);
+        this.size = other.size;
+    }
+
+    @Override
+    public String get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        return dictionary.decode(data, start(index), ends[index]);
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public void add(int index, String annotation) {
+        addAll(index, List.of(annotation));
+    }
+
+    /**
+     * Inserts the annotations with a single move of the codes after them, so older annotations
+     * loaded in one step do not shift the rest of the history once per annotation.
+     */
+    @Override
+    public boolean addAll(int index, Collection<? extends String> annotations) {
+        if (index < 0 || index > size) {
+            throw new IndexOutOfBoundsException(index);
+        }
+        if (annotations.isEmpty()) {
+            return false;
+        }
+        byte[][] encoded = new byte[annotations.size()][];
+        int bytes = 0;
+        int i = 0;
+        for (String annotation : annotations) {
+            encoded[i] = dictionary.encode(annotation);
+            bytes += encoded[i++].length;
+        }
+        int at = start(index);
+        if (length + bytes > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, length + bytes));
+        }
+        if (size + encoded.length > ends.length) {
+            ends = Arrays.copyOf(ends, Math.max(ends.length * 2, size + encoded.length));
+        }
+        System.arraycopy(data, at, data, at + bytes, length - at);
+        System.arraycopy(ends, index, ends, index + encoded.length, size - index);
+        for (int j = index + encoded.length; j < size + encoded.length; j++) {
+            ends[j] += bytes;
+        }
+        int end = at;
+        for (int j = 0; j < encoded.length; j++) {
+            System.arraycopy(encoded[j], 0, data, end, encoded[j].length);
+            end += encoded[j].length;
+            ends[index + j] = end;
+        }
+        length += bytes;
+        size += encoded.length;
+        modCount++;
+        return true;
+    }
+
+    @Override
+    public boolean addAll(Collection<? extends String> annotations) {
+        return addAll(size, annotations);
+    }
+
+    /**
+     * Releases the unused capacity of the arrays.
+     */
+    void trimToSize() {
+        data = Arrays.copyOf(data, length);
+        ends = Arrays.copyOf(ends, size);
+    }
+
+    /**
+     * @return An estimate of the heap used by the list, in bytes, not counting the shared dictionary.
+     */
+    long getMemoryFootprint() {
+        return 32L + 16L + data.length + 16L + 4L * ends.length;
+    }
+
+    private int start(int index) {
+        return index == 0 ? 0 : ends[index - 1];
+    }
+}
@@ -0,0 +1,12 @@
+package medicalconsultation;
+
+// Un mismo lote de sugerencias añade y elimina el mismo producto
+public class ConflictingSuggestionsException extends Exception {
+    public ConflictingSuggestionsException() {
+        super("Las sugerencias son contradictorias: un mismo producto se añade y se elimina en el mismo lote.");
+    }
+
+    public ConflictingSuggestionsException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,163 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import services.AnyCurrentPrescriptionException;
+import services.DecisionMakingAI;
+import services.HealthNationalService;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Hosts many concurrent consultations in the same process.
+ * Each session is an independent {@link ConsultationTerminal} with its own patient, documents
+ * and state machine, so sessions never share mutable state; only the external services are shared.
+ * Sessions are registered in a concurrent map and identified by the number returned by
+ * {@link #openSession(HealthCardID, String)}, which can be driven from any (virtual) thread.
+ * Each terminal must be driven by one thread at a time.
+ * <p>
+ * Sessions should be closed with {@link #closeSession(long)} once the prescription has been sent.
+ * Sessions abandoned without closing are discarded after they have not been used for the idle timeout,
+ * so they do not hold their patient's history forever.
+ */
+public class ConsultationSessionManager {
+
+    private final HealthNationalService hns;
+    private final DecisionMakingAI decisionAI;
+
+    private final long idleNanos;
+    private final LongSupplier clock;
+
+    private final ConcurrentMap<Long, Session> sessions = new ConcurrentHashMap<>();
+    private final AtomicLong nextSessionId = new AtomicLong(1);
+    // Time of the next search for idle sessions
+    private final AtomicLong nextSweep;
+
+    /**
+     * Creates a manager that discards sessions after 30 minutes without use.
+     *
+     * @param hns        The SNS service shared by every session. It must be thread-safe.
+     * @param decisionAI The decision support AI shared by every session. It must be thread-safe.
+     */
+    public ConsultationSessionManager(HealthNationalService hns, DecisionMakingAI decisionAI) {
+        this(hns, decisionAI, Duration.ofMinutes(30));
+    }
+
+    /**
+     * @param hns         The SNS service shared by every session. It must be thread-safe.
+     * @param decisionAI  The decision support AI shared by every session. It must be thread-safe.
+     * @param idleTimeout How long a session can go without being used before it is discarded.
+     */
+    public ConsultationSessionManager(HealthNationalService hns, DecisionMakingAI decisionAI, Duration idleTimeout) {
+        this(hns, decisionAI, idleTimeout, System::nanoTime);
+    }
+
+    ConsultationSessionManager(HealthNationalService hns, DecisionMakingAI decisionAI, Duration idleTimeout,
+                               LongSupplier clock) {
+        if (idleTimeout.isNegative() || idleTimeout.isZero()) {
+            throw new IllegalArgumentException("El tiempo máximo de inactividad debe ser positivo.");
+        }
+        this.hns = hns;
+        this.decisionAI = decisionAI;
+        this.idleNanos = idleTimeout.toNanos();
+        this.clock = clock;
+        this.nextSweep = new AtomicLong(clock.getAsLong() + idleNanos);
+    }
+
+    /**
+     * Opens a new consultation and starts the revision of the patient.
+     *
+     * @param cip     Patient's health card ID.
+     * @param illness The specific illness being supervised.
+     * @return The identifier of the new session.
+     */
+    public long openSession(HealthCardID cip, String illness)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+            ProceduralException, IncorrectParametersException {
+        ConsultationTerminal terminal = new ConsultationTerminal();
+        terminal.setHns(hns);
+        terminal.setDecisionAI(decisionAI);
+        terminal.initRevision(cip, illness);
+
+        long now = clock.getAsLong();
+        discardIdleSessions(now);
+        long sessionId = nextSessionId.getAndIncrement();
+        sessions.put(sessionId, new Session(terminal, now));
+        return sessionId;
+    }
+
+    /**
+     * Retrieves the terminal of an open session, to continue the consultation.
+     *
+     * @param sessionId The identifier returned when the session was opened.
+     * @return The terminal of the session.
+     * @throws ProceduralException If the session does not exist, has been closed or was discarded
+     *                             for being idle.
+     */
+    public ConsultationTerminal getSession(long sessionId) throws ProceduralException {
+        Session session = sessions.get(sessionId);
+        if (session == null) {
+            throw new ProceduralException("La sesión indicada no existe o ya ha sido cerrada.");
+        }
+        long now = clock.getAsLong();
+        if (session.isIdle(now, idleNanos)) {
+            sessions.remove(sessionId, session);
+            throw new ProceduralException("La sesión indicada ha caducado por inactividad.");
+        }
+        session.lastUse = now;
+        return session.terminal;
+    }
+
+    /**
+     * Closes a session and releases its data.
+     *
+     * @param sessionId The identifier of the session.
+     * @throws ProceduralException If the session does not exist or was already closed.
+     */
+    public void closeSession(long sessionId) throws ProceduralException {
+        if (sessions.remove(sessionId) == null) {
+            throw new ProceduralException("La sesión indicada no existe o ya ha sido cerrada.");
+        }
+    }
+
+    /** @return The number of sessions currently open. */
+    public int getOpenSessions() {
+        return sessions.size();
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Discards the sessions that have been idle for too long. The sessions are only searched once
+     * per idle timeout, so opening a session does not walk the whole map every time.
+     */
+    private void discardIdleSessions(long now) {
+        long sweep = nextSweep.get();
+        if (now - sweep < 0 || !nextSweep.compareAndSet(sweep, now + idleNanos)) {
+            return;
+        }
+        sessions.values().removeIf(session -> session.isIdle(now, idleNanos));
+    }
+
+    /**
+     * An open consultation and the last time it was used.
+     */
+    private static final class Session {
+        final ConsultationTerminal terminal;
+        volatile long lastUse;
+
+        Session(ConsultationTerminal terminal, long lastUse) {
+            this.terminal = terminal;
+            this.lastUse = lastUse;
+        }
+
+        boolean isIdle(long now, long idleNanos) {
+            return now - lastUse >= idleNanos;
+        }
+    }
+}
@@ -6,37 +6,69 @@ import services.*;
 import java.net.ConnectException;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
 
 /**
  * Controller class acting as a Facade (GRASP Pattern) for the "Supervise Treatment" use case.
  * It serves as the entry point for system events, coordinating interactions between
  * domain entities and external services like the SNS and Decision-Making AI.
+ * A terminal is not thread-safe: the events of a consultation must be sent by one thread at a time.
  */
 public class ConsultationTerminal {
     // --- External Service Dependencies (Injected) ---
     private HealthNationalService hns;
     private DecisionMakingAI decisionAI;
 
+    // Optional builder that adds a summary of the medical history to the prompts
+    private HistoryContextBuilder contextBuilder;
+
+    // Default executor for the parallel remote calls: one virtual thread per call
+    private static final Executor DEFAULT_REMOTE_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Executor used to issue the remote calls of initRevisionAsync in parallel
+    private Executor remoteExecutor = DEFAULT_REMOTE_EXECUTOR;
+
+    // Number of latest annotations downloaded when a revision starts; 0 downloads the whole history
+    private int historyPageSize;
+
     // --- Current Session State Data ---
     private HealthCardID currentCIP;
     private String currentIllness;
     private MedicalHistory currentHistory;
     private MedicalPrescription currentPrescription;
 
+    // Last answer of the AI, and its suggestions when it was received as a stream
+    private String lastAIAnswer;
+    private CompletableFuture<List<Suggestion>> streamedSuggestions;
+
     /**
      * Internal state machine to enforce the correct order of operations
      * as defined in the system sequence diagram (DSS).
      */
     private enum SessionState {
         IDLE,               // Initial state
+        REVISION_LOADING,   // History and prescription being downloaded
         REVISION_STARTED,   // History and prescription loaded
         PRESCRIPTION_EDIT,  // Modification phase active
         PRESCRIPTION_END,   // Ending date established
         SIGNED,             // Digital signature applied
+        SENDING,            // Being transmitted to the SNS
         COMPLETED           // Process finished
     }
 
-    private SessionState state = SessionState.IDLE;
+    /**
+     * Current state of the session. Transitions are applied with compare-and-set, so when
+     * two events race on the same session only one of them can move it forward.
+     * The state does not guard the session data: a terminal serves a single consultation and
+     * its events must come from one thread at a time (see {@link ConsultationSessionManager}).
+     */
+    private final AtomicReference<SessionState> state = new AtomicReference<>(SessionState.IDLE);
 
     public ConsultationTerminal() {
     }
@@ -51,6 +83,28 @@ public class ConsultationTerminal {
         this.decisionAI = decisionAI;
     }
 
+    /**
+     * Enables (or, with null, disables) sending a summary of the medical history with every prompt.
+     */
+    public void setContextBuilder(HistoryContextBuilder contextBuilder) {
+        this.contextBuilder = contextBuilder;
+    }
+
+    public void setRemoteExecutor(Executor remoteExecutor) {
+        this.remoteExecutor = remoteExecutor;
+    }
+
+    /**
+     * Makes revisions download only the latest annotations of the history; older ones are
+     * downloaded if they are needed. With 0 (the default), the whole history is downloaded.
+     */
+    public void setHistoryPageSize(int historyPageSize) {
+        if (historyPageSize < 0) {
+            throw new IllegalArgumentException("El tamaño de página del historial no puede ser negativo.");
+        }
+        this.historyPageSize = historyPageSize;
+    }
+
     // --- Use Case Input Events ---
 
     /**
@@ -63,18 +117,69 @@ public class ConsultationTerminal {
     public void initRevision(HealthCardID cip, String illness)
             throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException, ProceduralException, IncorrectParametersException {
 
-        if (state != SessionState.IDLE && state != SessionState.COMPLETED) {
-            throw new ProceduralException("Debe finalizar la sesión anterior antes de iniciar una nueva.");
+        SessionState previous = beginRevision();
+        boolean started = false;
+        try {
+            this.currentCIP = cip;
+            this.currentIllness = illness;
+
+            // Interaction with remote services (SNS)
+            this.currentHistory = downloadHistory(cip);
+            // Annotations added from now on are the only ones sent back
+            currentHistory.markSynchronized(currentHistory.getVersion());
+            this.currentPrescription = hns.getMedicalPrescription(cip, illness);
+            started = true;
+        } finally {
+            // If a download failed the terminal is released again
+            state.set(started ? SessionState.REVISION_STARTED : previous);
         }
+    }
 
-        this.currentCIP = cip;
-        this.currentIllness = illness;
-
-        // Interaction with remote services (SNS)
-        this.currentHistory = hns.getMedicalHistory(cip);
-        this.currentPrescription = hns.getMedicalPrescription(cip, illness);
+    /**
+     * Asynchronous variant of {@link #initRevision(HealthCardID, String)}.
+     * The medical history and the prescription are requested from the SNS in parallel,
+     * and the revision only starts once both downloads have completed.
+     * If either call fails, the returned future completes exceptionally with a
+     * {@link CompletionException} whose cause is the original exception
+     * (ConnectException, HealthCardIDException, AnyCurrentPrescriptionException or
+     * IncorrectParametersException), and the terminal stays ready for a new revision.
+     * * @param cip Patient's health card ID.
+     * @param illness The specific illness being supervised.
+     * @return A future completed when the revision has started.
+     * @throws ProceduralException If a revision is already in progress.
+     */
+    public CompletableFuture<Void> initRevisionAsync(HealthCardID cip, String illness) throws ProceduralException {
+        SessionState previous = beginRevision();
+
+        CompletableFuture<MedicalHistory> history = CompletableFuture.supplyAsync(() -> {
+            try {
+                return downloadHistory(cip);
+            } catch (ConnectException | HealthCardIDException | IncorrectParametersException e) {
+                throw new CompletionException(e);
+            }
+        }, remoteExecutor);
 
-        this.state = SessionState.REVISION_STARTED;
+        CompletableFuture<MedicalPrescription> prescription = CompletableFuture.supplyAsync(() -> {
+            try {
+                return hns.getMedicalPrescription(cip, illness);
+            } catch (ConnectException | HealthCardIDException | AnyCurrentPrescriptionException e) {
+                throw new CompletionException(e);
+            }
+        }, remoteExecutor);
+
+        return history.thenAcceptBoth(prescription, (hce, presc) -> {
+            this.currentCIP = cip;
+            this.currentIllness = illness;
+            hce.markSynchronized(hce.getVersion());
+            this.currentHistory = hce;
+            this.currentPrescription = presc;
+            state.set(SessionState.REVISION_STARTED);
+        }).whenComplete((ignored, error) -> {
+            if (error != null) {
+                // The revision could not be opened: the terminal is released again
+                state.set(previous);
+            }
+        });
     }
 
     /**
@@ -82,7 +187,7 @@ public class ConsultationTerminal {
      * Must be called after initRevision.
      */
     public void enterMedicalAssessmentInHistory(String assess) throws ProceduralException {
-        if (state != SessionState.REVISION_STARTED) {
+        if (state.get() != SessionState.REVISION_STARTED) {
             throw new ProceduralException("No se ha iniciado la revisión correctamente.");
         }
         currentHistory.addMedicalHistoryAnnotations(assess);
@@ -93,7 +198,7 @@ public class ConsultationTerminal {
      * If no prescription exists, a new instance is created.
      */
     public void initMedicalPrescriptionEdition() throws ProceduralException {
-        if (state != SessionState.REVISION_STARTED) {
+        if (state.get() != SessionState.REVISION_STARTED) {
             throw new ProceduralException("Debe iniciar la revisión antes de editar la prescripción.");
         }
 
@@ -101,8 +206,12 @@ public class ConsultationTerminal {
             // Logic to initialize a new prescription if one doesn't exist
             this.currentPrescription = new MedicalPrescription(currentCIP, 0, currentIllness);
         }
+        // Answers given in a previous edition must not be applied to this one
+        this.lastAIAnswer = null;
+        this.streamedSuggestions = null;
 
-        this.state = SessionState.PRESCRIPTION_EDIT;
+        transition(SessionState.REVISION_STARTED, SessionState.PRESCRIPTION_EDIT,
+                "La edición del tratamiento requiere haber iniciado la revisión.");
     }
 
     /**
@@ -113,20 +222,35 @@ public class ConsultationTerminal {
     public void enterMedicineWithGuidelines(ProductID prodID, String[] instruc)
             throws ProductAlreadyInPrescriptionException, IncorrectTakingGuidelinesException, ProceduralException {
 
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("La sesión no está en modo edición de prescripción.");
         }
 
         createMedPrescriptionLine(prodID, instruc);
     }
 
+    /**
+     * Adds a new medication line from an already structured guideline, without parsing it.
+     * * @param prodID The product code (UPC).
+     * @param guideline The administration guideline of the product.
+     */
+    public void enterMedicineWithGuidelines(ProductID prodID, TakingGuideline guideline)
+            throws ProductAlreadyInPrescriptionException, IncorrectTakingGuidelinesException, ProceduralException {
+
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
+            throw new ProceduralException("La sesión no está en modo edición de prescripción.");
+        }
+
+        createMedPrescriptionLine(prodID, guideline);
+    }
+
     /**
      * Modifies the dose of an existing medication line in the current prescription.
      */
     public void modifyDoseInLine(ProductID prodID, float newDose)
             throws ProductNotInPrescriptionException, ProceduralException {
 
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("La sesión no está en modo edición de prescripción.");
         }
 
@@ -137,7 +261,7 @@ public class ConsultationTerminal {
      * Removes a specific medication line from the current prescription.
      */
     public void removeLine(ProductID prodID) throws ProductNotInPrescriptionException, ProceduralException {
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("La sesión no está en modo edición de prescripción.");
         }
 
@@ -148,7 +272,7 @@ public class ConsultationTerminal {
      * Establishes the treatment ending date. Transitions the state to allow signing.
      */
     public void enterTreatmentEndingDate(Date date) throws IncorrectEndingDateException, ProceduralException {
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("Debe estar editando la prescripción para establecer la fecha de fin.");
         }
 
@@ -157,14 +281,15 @@ public class ConsultationTerminal {
         }
 
         setPrescDateAndEndDate(date);
-        this.state = SessionState.PRESCRIPTION_END;
+        transition(SessionState.PRESCRIPTION_EDIT, SessionState.PRESCRIPTION_END,
+                "La edición del tratamiento no está en curso.");
     }
 
     /**
      * Concludes the editing phase. Validates that the ending date was previously set.
      */
     public void finishMedicalPrescriptionEdition() throws ProceduralException {
-        if (state != SessionState.PRESCRIPTION_END) {
+        if (state.get() != SessionState.PRESCRIPTION_END) {
             throw new ProceduralException("Debe establecer la fecha de fin antes de finalizar la edición.");
         }
         // State transition could occur here depending on final UI requirements
@@ -174,37 +299,46 @@ public class ConsultationTerminal {
      * Incorporates the doctor's electronic signature into the prescription.
      */
     public void stampeeSignature() throws eSignatureException, ProceduralException, NullValueException {
-        if (state != SessionState.PRESCRIPTION_END) {
+        if (state.get() != SessionState.PRESCRIPTION_END) {
             throw new ProceduralException("La prescripción no está lista para ser firmada.");
         }
 
         // Simulating the retrieval of a digital signature
         DigitalSignature signature = new DigitalSignature(new byte[]{1, 2, 3});
         currentPrescription.setEsign(signature);
-        this.state = SessionState.SIGNED;
+        transition(SessionState.PRESCRIPTION_END, SessionState.SIGNED,
+                "La prescripción debe estar finalizada antes de firmarse.");
     }
 
     /**
      * Transmits the updated history and signed prescription to the HNS for registration.
+     * If the HNS supports history deltas, only the annotations added during the consultation are
+     * sent with the prescription; otherwise the whole history is sent.
      * * @return The validated MedicalPrescription updated with the HNS-generated treatment code.
+     * @throws HistoryVersionConflictException If the history was changed from another terminal
+     *                                         during the consultation; nothing is stored.
      */
     public MedicalPrescription sendHistoryAndPrescription()
             throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
-            NotCompletedMedicalPrescription, ProceduralException {
+            NotCompletedMedicalPrescription, HistoryVersionConflictException, ProceduralException {
 
-        if (state != SessionState.SIGNED) {
+        // Claims the session so the same prescription cannot be transmitted twice concurrently
+        if (!state.compareAndSet(SessionState.SIGNED, SessionState.SENDING)) {
             throw new ProceduralException("La prescripción debe estar firmada antes de enviarse al SNS.");
         }
 
-        MedicalPrescription result = hns.sendHistoryAndPrescription(
-                currentCIP,
-                currentHistory,
-                currentIllness,
-                currentPrescription
-        );
-
-        this.state = SessionState.IDLE; // Reset session after successful transmission
-        return result;
+        boolean sent = false;
+        try {
+            // Only the new annotations travel when the SNS has a delta endpoint
+            MedicalPrescription result = hns.supportsHistoryDeltas()
+                    ? hns.sendHistoryDeltaAndPrescription(HistoryDelta.of(currentHistory), currentIllness, currentPrescription)
+                    : hns.sendHistoryAndPrescription(currentCIP, currentHistory, currentIllness, currentPrescription);
+            sent = true;
+            return result;
+        } finally {
+            // Reset session after successful transmission; otherwise it can be sent again
+            state.set(sent ? SessionState.IDLE : SessionState.SIGNED);
+        }
     }
 
     // --- AI Integration Events ---
@@ -213,7 +347,7 @@ public class ConsultationTerminal {
      * Invokes the Decision Support AI to help adjust the treatment.
      */
     public void callDecisionMakingAI() throws AIException, ProceduralException {
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("La IA solo puede invocarse durante la edición del tratamiento.");
         }
         decisionAI.initDecisionMakingAI();
@@ -221,64 +355,158 @@ public class ConsultationTerminal {
 
     /**
      * Submits a prompt to the AI and receives textual suggestions.
+     * If a context builder is set, a summary of the medical history is added to the prompt.
      */
-    public void askAIForSuggest(String prompt) throws BadPromptException, ProceduralException {
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+    public void askAIForSuggest(String prompt) throws BadPromptException, AIException, ProceduralException {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("Debe estar en modo edición para dialogar con la IA.");
         }
-        decisionAI.getSuggestions(prompt);
+        lastAIAnswer = decisionAI.getSuggestions(withContext(prompt), currentPrescription);
+        streamedSuggestions = null;
+    }
+
+    /**
+     * Submits a prompt to the AI and receives its suggestions while the answer is being generated.
+     * Each suggestion is checked against the answer format and handed to the listener as soon as
+     * it is complete, so it can be shown before the AI has finished. Once the returned future is
+     * completed, {@link #extractGuidelinesFromSugg()} applies the received suggestions.
+     * If the AI does not support streaming, the whole answer is requested and parsed at once.
+     *
+     * @param prompt       The question for the AI.
+     * @param onSuggestion Receives every suggestion; it may be called from another thread.
+     * @return A future completed with every suggestion of the answer, or with the error that stopped it
+     * (a parsing error, or a refusal of a streaming AI).
+     */
+    public CompletableFuture<List<Suggestion>> askAIForSuggestStreaming(String prompt, Consumer<Suggestion> onSuggestion)
+            throws BadPromptException, AIException, ProceduralException {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
+            throw new ProceduralException("Debe estar en modo edición para dialogar con la IA.");
+        }
+        IncrementalSuggestionParser parser = new IncrementalSuggestionParser(onSuggestion);
+        if (decisionAI instanceof StreamingDecisionMakingAI streamingAI) {
+            streamingAI.streamSuggestions(withContext(prompt)).subscribe(parser);
+        } else {
+            String answer = decisionAI.getSuggestions(withContext(prompt), currentPrescription);
+            parser.onSubscribe(new NoOpSubscription());
+            if (answer == null) {
+                parser.onError(new NullValueException("La respuesta de la IA no puede ser nula."));
+            } else {
+                parser.onNext(answer);
+                parser.onComplete();
+            }
+        }
+        lastAIAnswer = null;
+        streamedSuggestions = parser.getResult();
+        return streamedSuggestions;
     }
 
     /**
      * Requests the AI to parse its response into a structured list of suggestions
      * (Insert, Modify, Delete) and applies them to the current prescription.
+     * The suggestions are applied atomically: if one of them cannot be applied,
+     * none is, and the prescription keeps its previous content. Each answer is applied only once.
      */
     public void extractGuidelinesFromSugg()
             throws ProceduralException, ProductAlreadyInPrescriptionException,
-            ProductNotInPrescriptionException, IncorrectTakingGuidelinesException, InvalidFormatException, NullValueException {
+            ProductNotInPrescriptionException, IncorrectTakingGuidelinesException, InvalidFormatException, NullValueException,
+            ConflictingSuggestionsException {
 
-        if (state != SessionState.PRESCRIPTION_EDIT) {
+        if (state.get() != SessionState.PRESCRIPTION_EDIT) {
             throw new ProceduralException("La extracción de pautas requiere estar en modo edición.");
         }
 
-        // In a real scenario, this would use the last AI response
-        String lastAiResponse = "AI_RESPONSE_PLACEHOLDER";
-        List<Suggestion> suggestions = decisionAI.parseSuggest(lastAiResponse);
-
-        for (Suggestion sugg : suggestions) {
-            switch (sugg.getType()) {
-                case ADDITION:
-                    TakingGuideline tg = sugg.getTakingGuideline();
-                    String[] instructions = new String[]{
-                            tg.getdMoment().toString(),
-                            String.valueOf(tg.getDuration()),
-                            String.valueOf(tg.getPosology().getDose()),
-                            String.valueOf(tg.getPosology().getFreq()),
-                            tg.getPosology().getFreqUnit().toString(),
-                            tg.getInstructions()
-                    };
-                    this.enterMedicineWithGuidelines(sugg.getProductID(), instructions);
-                    break;
-
-                case MODIFICATION:
-                    float newDose = sugg.getTakingGuideline().getPosology().getDose();
-                    this.modifyDoseInLine(sugg.getProductID(), newDose);
-                    break;
-
-                case ELIMINATION:
-                    this.removeLine(sugg.getProductID());
-                    break;
-            }
+        if (lastAIAnswer == null && streamedSuggestions == null) {
+            throw new ProceduralException("No hay ninguna respuesta de la IA pendiente de aplicar.");
+        }
+        List<Suggestion> suggestions;
+        if (streamedSuggestions != null) {
+            suggestions = awaitStreamedSuggestions();
+        } else {
+            suggestions = decisionAI.parseSuggest(lastAIAnswer);
         }
+
+        currentPrescription.applySuggestions(suggestions);
+        // The answer has been used: extracting again must not apply it twice
+        lastAIAnswer = null;
+        streamedSuggestions = null;
     }
 
     // --- Internal Operations ---
 
+    private MedicalHistory downloadHistory(HealthCardID cip)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return historyPageSize > 0 ? hns.getLatestMedicalHistory(cip, historyPageSize) : hns.getMedicalHistory(cip);
+    }
+
+    private String withContext(String prompt) {
+        return contextBuilder == null || prompt == null ? prompt : contextBuilder.buildPrompt(prompt, currentHistory);
+    }
+
+    /**
+     * Returns the suggestions received by {@link #askAIForSuggestStreaming}, rethrowing
+     * the error that interrupted the answer, if any.
+     */
+    private List<Suggestion> awaitStreamedSuggestions()
+            throws ProceduralException, InvalidFormatException, NullValueException {
+        if (!streamedSuggestions.isDone()) {
+            throw new ProceduralException("La IA todavía no ha terminado de generar las sugerencias.");
+        }
+        try {
+            return streamedSuggestions.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof InvalidFormatException ife) {
+                throw ife;
+            }
+            if (e.getCause() instanceof NullValueException nve) {
+                throw nve;
+            }
+            throw new ProceduralException("La respuesta de la IA se interrumpió: " + e.getCause().getMessage());
+        }
+    }
+
+    /** Subscription for answers that are already complete, which need no flow control. */
+    private static final class NoOpSubscription implements Flow.Subscription {
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+        }
+    }
+
+    /**
+     * Claims the terminal for a new revision.
+     * * @return The state the terminal must return to if the revision cannot be opened.
+     */
+    private SessionState beginRevision() throws ProceduralException {
+        SessionState current = state.get();
+        if ((current != SessionState.IDLE && current != SessionState.COMPLETED)
+                || !state.compareAndSet(current, SessionState.REVISION_LOADING)) {
+            throw new ProceduralException("Debe finalizar la sesión anterior antes de iniciar una nueva.");
+        }
+        return current;
+    }
+
+    /**
+     * Moves the session forward, failing if a concurrent event already changed its state.
+     */
+    private void transition(SessionState expected, SessionState next, String message) throws ProceduralException {
+        if (!state.compareAndSet(expected, next)) {
+            throw new ProceduralException(message);
+        }
+    }
+
     private void createMedPrescriptionLine(ProductID prodID, String[] instruc)
             throws ProductAlreadyInPrescriptionException, IncorrectTakingGuidelinesException {
         currentPrescription.addLine(prodID, instruc);
     }
 
+    private void createMedPrescriptionLine(ProductID prodID, TakingGuideline guideline)
+            throws ProductAlreadyInPrescriptionException, IncorrectTakingGuidelinesException {
+        currentPrescription.addLine(prodID, guideline);
+    }
+
     private void setPrescDateAndEndDate(Date date) {
         currentPrescription.setPrescDate(new Date()); // Current date
         currentPrescription.setEndDate(date);
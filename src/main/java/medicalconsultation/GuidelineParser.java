@@ -0,0 +1,157 @@
+package medicalconsultation;
+
+import java.util.Arrays;
+
+/**
+ * Parses the textual representation of a {@link TakingGuideline}.
+ * Invalid input is reported by the return value (null or NaN) instead of exceptions,
+ * and enum constants are resolved with precomputed tables, so the common case of
+ * well-formed instructions neither throws nor creates intermediate objects.
+ * All methods work on a character range, so they can be applied to a larger text.
+ */
+public final class GuidelineParser {
+
+    // Enum constants grouped by the length of their names
+    private static final dayMoment[][] MOMENTS_BY_LENGTH = byNameLength(dayMoment.values(), new dayMoment[0][]);
+    private static final FqUnit[][] UNITS_BY_LENGTH = byNameLength(FqUnit.values(), new FqUnit[0][]);
+
+    // Powers of ten that are exactly representable as floats
+    private static final float[] POW10 = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f, 1e9f, 1e10f};
+
+    // Largest integer below which every value is exactly representable as a float (2^24)
+    private static final long MAX_EXACT_FLOAT_INT = 1L << 24;
+
+    private GuidelineParser() {
+    }
+
+    /**
+     * Builds a guideline from the instruction array used by the prescription edition:
+     * [moment, duration, dose, frequency, unit, instructions].
+     *
+     * @param instruc The instruction array.
+     * @return The guideline, or null if the array is incomplete or contains invalid values.
+     */
+    public static TakingGuideline parse(String[] instruc) {
+        if (instruc == null || instruc.length < 6 || instruc[0] == null || instruc[1] == null
+                || instruc[2] == null || instruc[3] == null || instruc[4] == null) {
+            return null;
+        }
+        dayMoment moment = parseDayMoment(instruc[0], 0, instruc[0].length());
+        float duration = parseFloat(instruc[1], 0, instruc[1].length());
+        float dose = parseFloat(instruc[2], 0, instruc[2].length());
+        float freq = parseFloat(instruc[3], 0, instruc[3].length());
+        FqUnit unit = parseFqUnit(instruc[4], 0, instruc[4].length());
+        if (moment == null || unit == null || Float.isNaN(duration) || Float.isNaN(dose) || Float.isNaN(freq)) {
+            return null;
+        }
+        return new TakingGuideline(moment, duration, dose, freq, unit, instruc[5]);
+    }
+
+    /** @return The moment whose name is in the range, or null if there is none. */
+    public static dayMoment parseDayMoment(CharSequence s, int from, int to) {
+        return lookup(MOMENTS_BY_LENGTH, s, from, to);
+    }
+
+    /** @return The unit whose name is in the range, or null if there is none. */
+    public static FqUnit parseFqUnit(CharSequence s, int from, int to) {
+        return lookup(UNITS_BY_LENGTH, s, from, to);
+    }
+
+    /**
+     * Parses a decimal number such as "8", "-0.5" or "30.25".
+     * Other notations accepted by {@link Float#parseFloat(String)} (exponents, many digits...)
+     * are delegated to it.
+     *
+     * @return The parsed value, or NaN if the range is not a finite number.
+     */
+    public static float parseFloat(CharSequence s, int from, int to) {
+        int i = from;
+        boolean negative = false;
+        if (i < to && (s.charAt(i) == '-' || s.charAt(i) == '+')) {
+            negative = s.charAt(i) == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int decimals = 0;
+        boolean point = false;
+        for (; i < to; i++) {
+            char c = s.charAt(i);
+            if (c >= '0' && c <= '9') {
+                if (++digits > 18) {
+                    return parseFloatSlow(s, from, to);
+                }
+                mantissa = mantissa * 10 + (c - '0');
+                if (point) {
+                    decimals++;
+                }
+            } else if (c == '.' && !point) {
+                point = true;
+            } else {
+                return parseFloatSlow(s, from, to);
+            }
+        }
+        if (digits == 0) {
+            return Float.NaN;
+        }
+        // Both operands are exact floats, so the division is correctly rounded
+        if (mantissa < MAX_EXACT_FLOAT_INT && decimals < POW10.length) {
+            float value = mantissa / POW10[decimals];
+            return negative ? -value : value;
+        }
+        return parseFloatSlow(s, from, to);
+    }
+
+    // --- Internal helpers ---
+
+    private static float parseFloatSlow(CharSequence s, int from, int to) {
+        try {
+            float value = Float.parseFloat(s.subSequence(from, to).toString());
+            return Float.isInfinite(value) ? Float.NaN : value;
+        } catch (NumberFormatException e) {
+            return Float.NaN;
+        }
+    }
+
+    private static <E extends Enum<E>> E lookup(E[][] byLength, CharSequence s, int from, int to) {
+        int length = to - from;
+        if (length <= 0 || length >= byLength.length) {
+            return null;
+        }
+        for (E candidate : byLength[length]) {
+            String name = candidate.name();
+            int i = 0;
+            while (i < length && name.charAt(i) == s.charAt(from + i)) {
+                i++;
+            }
+            if (i == length) {
+                return candidate;
+            }
+        }
+        return null;
+    }
+
+    private static <E extends Enum<E>> E[][] byNameLength(E[] constants, E[][] empty) {
+        int maxLength = 0;
+        for (E constant : constants) {
+            maxLength = Math.max(maxLength, constant.name().length());
+        }
+        E[][] table = Arrays.copyOf(empty, maxLength + 1);
+        for (int length = 0; length <= maxLength; length++) {
+            int count = 0;
+            for (E constant : constants) {
+                if (constant.name().length() == length) {
+                    count++;
+                }
+            }
+            table[length] = Arrays.copyOf(constants, count);
+            int next = 0;
+            for (E constant : constants) {
+                if (constant.name().length() == length) {
+                    table[length][next++] = constant;
+                }
+            }
+        }
+        return table;
+    }
+}
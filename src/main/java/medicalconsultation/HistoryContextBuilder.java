@@ -0,0 +1,219 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Builds the clinical context added to the prompts sent to the decision support AI.
+ * Instead of the whole {@link MedicalHistory}, the prompt receives a summary with the distinct lines
+ * of the history, most recent first, cut to a maximum size (measured in characters, as an
+ * approximation of the tokens accepted by the AI).
+ * <p>
+ * A summary is kept for each patient, so building the context again only processes the annotations
+ * added since the previous build. It only keeps the lines that can still fit in the maximum size,
+ * so it does not grow with the history. If the history no longer extends the one summarized (for example,
+ * it was downloaded again with different content), the summary is rebuilt from its latest annotations,
+ * reading older ones only until the maximum size is filled, so a history downloaded by pages does not
+ * have to load its older pages.
+ * The builder is thread-safe and can be shared by several terminals.
+ */
+public class HistoryContextBuilder {
+
+    private static final String CONTEXT_HEADER = "\n\nHistorial clínico (más reciente primero):";
+
+    // Latest annotations read first when a summary is rebuilt; doubled until they fill the summary
+    private static final int INITIAL_TAIL = 32;
+
+    /**
+     * Summary of the history of one patient.
+     */
+    private static final class Summary {
+        // Number of annotations already processed, and the last of them
+        int processed;
+        String lastAnnotation;
+
+        // Distinct lines, ordered by their most recent occurrence (the latest at the end)
+        final LinkedHashMap<String, Boolean> lines = new LinkedHashMap<>();
+    }
+
+    private final int maxChars;
+    private final Map<HealthCardID, Summary> summaries;
+
+    /**
+     * @param maxChars    The maximum size of the prompts produced, in characters.
+     * @param maxPatients The number of patients whose summary is kept; the least recently used are dropped.
+     */
+    public HistoryContextBuilder(int maxChars, int maxPatients) {
+        if (maxChars <= 0 || maxPatients <= 0) {
+            throw new IllegalArgumentException("El tamaño máximo y el número de pacientes deben ser positivos.");
+        }
+        this.maxChars = maxChars;
+        this.summaries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<HealthCardID, Summary> eldest) {
+                return size() > maxPatients;
+            }
+        };
+    }
+
+    /**
+     * Adds the summary of the history to a prompt, without exceeding the maximum size.
+     * The most recent lines are included first; older lines are left out once the size is reached.
+     * A prompt that is already too long is returned unchanged.
+     *
+     * @param prompt  The question written by the doctor.
+     * @param history The medical history of the patient.
+     * @return The prompt followed by the clinical context.
+     */
+    public String buildPrompt(String prompt, MedicalHistory history) {
+        int budget = maxChars - prompt.length() - CONTEXT_HEADER.length();
+        if (history == null || budget <= 0) {
+            return prompt;
+        }
+        Summary summary = summaryOf(history);
+
+        StringBuilder sb = new StringBuilder(prompt.length() + CONTEXT_HEADER.length() + budget);
+        sb.append(prompt).append(CONTEXT_HEADER);
+        int headerEnd = sb.length();
+        synchronized (summary) {
+            for (String line : summary.lines.sequencedKeySet().reversed()) {
+                if (sb.length() - headerEnd + 1 + line.length() > budget) {
+                    break;
+                }
+                sb.append('\n').append(line);
+            }
+        }
+        return sb.length() == headerEnd ? prompt : sb.toString();
+    }
+
+    /**
+     * Forgets the summary of a patient.
+     */
+    public void invalidate(HealthCardID cip) {
+        synchronized (summaries) {
+            summaries.remove(cip);
+        }
+    }
+
+    /** @return The number of annotations of the patient already summarized. */
+    int getProcessedAnnotations(HealthCardID cip) {
+        Summary summary;
+        synchronized (summaries) {
+            summary = summaries.get(cip);
+        }
+        if (summary == null) {
+            return 0;
+        }
+        synchronized (summary) {
+            return summary.processed;
+        }
+    }
+
+    /** @return The number of lines kept in the summary of the patient. */
+    int getSummarizedLines(HealthCardID cip) {
+        Summary summary;
+        synchronized (summaries) {
+            summary = summaries.get(cip);
+        }
+        if (summary == null) {
+            return 0;
+        }
+        synchronized (summary) {
+            return summary.lines.size();
+        }
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Returns the summary of the patient, updated with the annotations added since the last build.
+     */
+    private Summary summaryOf(MedicalHistory history) {
+        Summary summary;
+        synchronized (summaries) {
+            summary = summaries.computeIfAbsent(history.getCip(), cip -> new Summary());
+        }
+        synchronized (summary) {
+            int count = history.getAnnotationCount();
+            List<String> added = null;
+            if (summary.processed > 0 && count >= summary.processed) {
+                // The last summarized annotation followed by the new ones
+                List<String> latest = history.getLatestAnnotations(count - summary.processed + 1);
+                if (latest.get(0).equals(summary.lastAnnotation)) {
+                    added = latest.subList(1, latest.size());
+                }
+            }
+            if (added == null) {
+                // This is not a continuation of the summarized history
+                rebuild(summary, history, count);
+            } else {
+                added.forEach(annotation -> addLines(summary, annotation));
+                trim(summary);
+            }
+            summary.processed = count;
+            summary.lastAnnotation = count == 0 ? null : history.getLatestAnnotations(1).get(0);
+        }
+        return summary;
+    }
+
+    /**
+     * Summarizes the latest annotations of the history, reading more of them until the summary is full
+     * or the whole history has been read.
+     */
+    private void rebuild(Summary summary, MedicalHistory history, int count) {
+        for (int n = Math.min(count, INITIAL_TAIL); ; n = Math.min(count, n * 2)) {
+            summary.lines.clear();
+            for (String annotation : history.getLatestAnnotations(n)) {
+                addLines(summary, annotation);
+            }
+            // Once lines are dropped, older annotations could only add lines older than those
+            if (trim(summary) || n == count) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Drops the oldest lines that no prompt can include: those after the first line that does not fit
+     * in the maximum size together with the newer ones, even with an empty question.
+     *
+     * @return Whether any line was dropped.
+     */
+    private boolean trim(Summary summary) {
+        int capacity = maxChars - CONTEXT_HEADER.length();
+        int used = 0;
+        int fitting = 0;
+        for (String line : summary.lines.sequencedKeySet().reversed()) {
+            used += 1 + line.length();
+            if (used > capacity) {
+                break;
+            }
+            fitting++;
+        }
+        boolean trimmed = summary.lines.size() > fitting;
+        while (summary.lines.size() > fitting) {
+            summary.lines.pollFirstEntry();
+        }
+        return trimmed;
+    }
+
+    private static void addLines(Summary summary, String annotation) {
+        int start = 0;
+        while (start <= annotation.length()) {
+            int end = annotation.indexOf('\n', start);
+            if (end < 0) {
+                end = annotation.length();
+            }
+            String line = annotation.substring(start, end).strip();
+            if (!line.isEmpty()) {
+                // Moving a repeated line to the end keeps it at the position of its latest occurrence
+                summary.lines.remove(line);
+                summary.lines.put(line, Boolean.TRUE);
+            }
+            start = end + 1;
+        }
+    }
+}
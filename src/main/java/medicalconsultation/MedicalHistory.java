@@ -1,23 +1,79 @@
 package medicalconsultation;
 
 import data.HealthCardID;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Represents the medical history of a patient within the system.
  * It manages the patient's identification, the assigned doctor, and the cumulative history of annotations.
+ * Annotations are kept as an append-only list of segments; the full history text is only
+ * built when {@link #getHistory()} is requested, and then cached until the next annotation.
+ * {@link #getHistoryText()} reads the same text directly from the annotations, without building it.
+ * <p>
+ * The history also remembers the version assigned by the SNS and how many of its annotations were
+ * already there when it was downloaded, so only the annotations added afterwards need to be sent back.
+ * <p>
+ * A history can be created with only its latest annotations; the older ones are then requested from
+ * an {@link AnnotationLoader} the first time they are needed. New annotations can be added without
+ * loading them.
+ * <p>
+ * Histories kept in memory for a long time can be compacted with {@link #compact}: their annotations
+ * are then stored as codes of a dictionary shared by many histories, and decoded when they are read.
  */
 public class MedicalHistory {
 
+    /**
+     * Source of the older annotations of a history that have not been loaded yet.
+     */
+    @FunctionalInterface
+    public interface AnnotationLoader {
+        /**
+         * @param from The position of the first annotation (0 is the oldest).
+         * @param to   The position after the last annotation.
+         * @return The annotations in that range, oldest first.
+         * @throws IOException If the annotations cannot be obtained.
+         */
+        List<String> load(int from, int to) throws IOException;
+    }
+
     // The unique Health Card ID of the patient
     private HealthCardID cip;
 
     // The membership number of the assigned family doctor
     private int membShipNumb;
 
-    // A string containing the diverse annotations in the patient's history
+    // The loaded annotations in the patient's history (the latest ones), in the order they were added
+    private List<String> annotations;
+
+    // Number of older annotations not loaded yet, and where to load them from
+    private int unloaded;
+    private AnnotationLoader olderLoader;
+
+    // Length of the history text, including the line breaks between annotations
+    private int length;
+
+    // Hash of the history text, kept equal to getHistory().hashCode() on every append
+    private int historyHash;
+
+    // Cached history text, or null if it has to be rebuilt from the annotations (always, once compacted)
     private String history;
 
+    // Version of the history in the SNS when it was last synchronized (0 if unknown)
+    private long version;
+
+    // Number of annotations already known by the SNS
+    private int syncedAnnotations;
+
+    // Index that receives the annotations added to this history, if any
+    private AnnotationIndex annotationIndex;
+
     /**
      * Constructs a new MedicalHistory instance.
      *
@@ -37,24 +93,80 @@ public class MedicalHistory {
 
         this.cip = cip;
         this.membShipNumb = memberShipNum;
-        // Initialize the history as an empty string to avoid null pointer exceptions later
+        // Initialize the history as empty to avoid null pointer exceptions later
+        this.annotations = new ArrayList<>();
         this.history = "";
     }
 
+    /**
+     * Constructs a history of which only the latest annotations are loaded.
+     *
+     * @param cip           The HealthCardID of the patient.
+     * @param memberShipNum The membership number of the doctor.
+     * @param latest        The latest annotations, oldest first.
+     * @param olderCount    The number of annotations before them.
+     * @param historyLength The length of the whole history text.
+     * @param historyHash   The hash of the whole history text, as returned by {@link #getHistoryHash()}.
+     * @param olderLoader   Where the older annotations are loaded from when they are needed.
+     * @throws IncorrectParametersException If the CIP is null or the membership number is negative.
+     */
+    public MedicalHistory(HealthCardID cip, int memberShipNum, List<String> latest, int olderCount,
+                          int historyLength, int historyHash, AnnotationLoader olderLoader)
+            throws IncorrectParametersException {
+        this(cip, memberShipNum);
+        this.annotations.addAll(latest);
+        this.unloaded = olderCount;
+        this.olderLoader = olderLoader;
+        this.length = historyLength;
+        this.historyHash = historyHash;
+        this.history = olderCount == 0 && latest.isEmpty() ? "" : null;
+    }
+
+    /**
+     * Creates an independent copy of another MedicalHistory.
+     * Later annotations added to either instance do not affect the other one,
+     * and the copy is not attached to the annotation index of the original.
+     *
+     * @param other The history to be copied.
+     */
+    public MedicalHistory(MedicalHistory other) {
+        this.cip = other.cip;
+        this.membShipNumb = other.membShipNumb;
+        this.annotations = other.annotations instanceof CompressedAnnotationList compressed
+                ? new CompressedAnnotationList(compressed) : new ArrayList<>(other.annotations);
+        this.unloaded = other.unloaded;
+        this.olderLoader = other.olderLoader;
+        this.length = other.length;
+        this.historyHash = other.historyHash;
+        this.history = other.history;
+        this.version = other.version;
+        this.syncedAnnotations = other.syncedAnnotations;
+    }
+
     /**
      * Adds a new annotation to the patient's medical history.
      * It automatically handles line breaks between different annotations.
+     * The cost of this operation depends only on the size of the new annotation.
      *
      * @param annot The annotation string to be added.
      */
     public void addMedicalHistoryAnnotations(String annot) {
         // Only proceed if the annotation is not null and not empty
         if (annot != null && !annot.isEmpty()) {
-            // If there is already content in the history, append a new line before the new annotation
-            if (!this.history.isEmpty()) {
-                this.history += "\n";
+            // If there is already content in the history, a line break precedes the new annotation
+            if (getAnnotationCount() > 0) {
+                historyHash = 31 * historyHash + '\n';
+                length++;
+            }
+            // Extends the hash as String.hashCode() would over the concatenated text
+            historyHash = historyHash * pow31(annot.length()) + annot.hashCode();
+            length += annot.length();
+            annotations.add(annot);
+            // The cached text is now stale
+            history = null;
+            if (annotationIndex != null) {
+                annotationIndex.add(cip, getAnnotationCount() - 1, annot);
             }
-            this.history += annot;
         }
     }
 
@@ -67,6 +179,51 @@ public class MedicalHistory {
         this.membShipNumb = mshN;
     }
 
+    /**
+     * Indexes the annotations of this history, replacing those indexed for the patient before,
+     * and keeps the index updated with the annotations added from now on.
+     * Older annotations not loaded yet are loaded first.
+     *
+     * @param index The index, or null to stop updating the current one.
+     */
+    public void setAnnotationIndex(AnnotationIndex index) {
+        if (index != null) {
+            index.replace(cip, getAnnotations());
+        }
+        this.annotationIndex = index;
+    }
+
+    /**
+     * Stores the annotations of this history as codes of the given dictionary, which is usually
+     * shared by all the histories of a cache. Annotations added or loaded later are stored the same way.
+     * The history text is no longer cached: {@link #getHistory()} decodes it on every call.
+     * Compacting a history that is already compact has no effect.
+     *
+     * @param dictionary The dictionary of phrases and words.
+     */
+    public void compact(AnnotationDictionary dictionary) {
+        if (isCompact()) {
+            return;
+        }
+        CompressedAnnotationList compressed = new CompressedAnnotationList(dictionary, annotations);
+        compressed.trimToSize();
+        annotations = compressed;
+        if (getAnnotationCount() > 0) {
+            history = null;
+        }
+    }
+
+    /**
+     * Records that the history, as it is now, matches the given version stored in the SNS.
+     * Annotations added from now on are the ones returned by {@link #getAnnotationsSinceSync()}.
+     *
+     * @param version The version of the history in the SNS.
+     */
+    public void markSynchronized(long version) {
+        this.version = version;
+        this.syncedAnnotations = getAnnotationCount();
+    }
+
     // --- Getters ---
 
     public HealthCardID getCip() {
@@ -77,8 +234,210 @@ public class MedicalHistory {
         return membShipNumb;
     }
 
+    /**
+     * Returns the whole history as a single text, with one annotation per line.
+     * The text is built on the first call after an annotation is added, or on every call once compacted.
+     *
+     * @return The history text.
+     * @throws UncheckedIOException If older annotations had to be loaded and could not be.
+     */
     public String getHistory() {
-        return history;
+        if (history != null) {
+            return history;
+        }
+        loadOlder(unloaded);
+        StringBuilder sb = new StringBuilder(length);
+        appendHistory(sb);
+        String text = sb.toString();
+        if (!isCompact()) {
+            history = text;
+        }
+        return text;
+    }
+
+    /**
+     * Provides the history text as a sequence of characters read from the annotations, so it can be
+     * scanned without building the whole text. The view holds the annotations there were when it was
+     * created; annotations added later are not part of it.
+     *
+     * @return The same characters as {@link #getHistory()}.
+     * @throws UncheckedIOException If older annotations had to be loaded and could not be.
+     */
+    public CharSequence getHistoryText() {
+        if (history != null) {
+            return history;
+        }
+        loadOlder(unloaded);
+        return new HistoryText(annotations.toArray(new String[0]), length);
+    }
+
+    /**
+     * Provides read-only access to the individual annotations without building the history text.
+     *
+     * @return An unmodifiable view of the annotations, oldest first.
+     * @throws UncheckedIOException If older annotations had to be loaded and could not be.
+     */
+    public List<String> getAnnotations() {
+        loadOlder(unloaded);
+        return Collections.unmodifiableList(annotations);
+    }
+
+    /**
+     * Provides the latest annotations, loading only the older ones needed to reach that number.
+     *
+     * @param n The maximum number of annotations.
+     * @return The last n annotations, oldest first, in an unmodifiable list.
+     * @throws UncheckedIOException If older annotations had to be loaded and could not be.
+     */
+    public List<String> getLatestAnnotations(int n) {
+        int wanted = Math.min(n, getAnnotationCount());
+        loadOlder(wanted - annotations.size());
+        return List.copyOf(annotations.subList(annotations.size() - wanted, annotations.size()));
+    }
+
+    /** @return The number of annotations, loaded or not. */
+    public int getAnnotationCount() {
+        return unloaded + annotations.size();
+    }
+
+    /**
+     * @return The annotations added since the last synchronization, oldest first, in an unmodifiable list.
+     */
+    public List<String> getAnnotationsSinceSync() {
+        return getLatestAnnotations(getAnnotationCount() - syncedAnnotations);
+    }
+
+    /** @return Whether the annotations are stored as codes of a dictionary. */
+    public boolean isCompact() {
+        return annotations instanceof CompressedAnnotationList;
+    }
+
+    /** @return The number of annotations already known by the SNS. */
+    public int getSyncedAnnotationCount() {
+        return syncedAnnotations;
+    }
+
+    /** @return The version of the history in the SNS when it was last synchronized. */
+    public long getVersion() {
+        return version;
+    }
+
+    /** @return The length of the history text returned by {@link #getHistory()}. */
+    public int getHistoryLength() {
+        return length;
+    }
+
+    /** @return The hash of the history text, equal to {@code getHistory().hashCode()} without building it. */
+    public int getHistoryHash() {
+        return historyHash;
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Loads at least the given number of older annotations, if there are that many.
+     * Each load takes at least as many annotations as are already loaded, so loading the
+     * whole history in steps costs time proportional to its size.
+     */
+    private void loadOlder(int count) {
+        if (count <= 0 || unloaded == 0) {
+            return;
+        }
+        int amount = Math.min(unloaded, Math.max(count, annotations.size()));
+        List<String> older;
+        try {
+            older = olderLoader.load(unloaded - amount, unloaded);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (older.size() != amount) {
+            throw new UncheckedIOException(new IOException("No se han recibido todas las anotaciones del historial."));
+        }
+        annotations.addAll(0, older);
+        unloaded -= amount;
+        if (unloaded == 0) {
+            olderLoader = null;
+        }
+    }
+
+    private void appendHistory(StringBuilder sb) {
+        for (int i = 0; i < annotations.size(); i++) {
+            if (i > 0) {
+                sb.append('\n');
+            }
+            sb.append(annotations.get(i));
+        }
+    }
+
+    // Computes 31^n with int overflow, matching the arithmetic of String.hashCode()
+    private static int pow31(int n) {
+        int result = 1;
+        int base = 31;
+        while (n > 0) {
+            if ((n & 1) != 0) {
+                result *= base;
+            }
+            base *= base;
+            n >>= 1;
+        }
+        return result;
+    }
+
+    /**
+     * Read-only view of the history text over its annotations, which are joined by line breaks.
+     */
+    private static final class HistoryText implements CharSequence {
+        private final String[] parts;
+        // End (exclusive) of each annotation in the text; the line break after it is at that position
+        private final int[] ends;
+        private final int length;
+
+        HistoryText(String[] parts, int length) {
+            this.parts = parts;
+            this.length = length;
+            this.ends = new int[parts.length];
+            int end = -1;
+            for (int i = 0; i < parts.length; i++) {
+                end += 1 + parts[i].length();
+                ends[i] = end;
+            }
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException(index);
+            }
+            int part = Arrays.binarySearch(ends, index);
+            if (part >= 0) {
+                return '\n';
+            }
+            part = -part - 1;
+            int start = part == 0 ? 0 : ends[part - 1] + 1;
+            return parts[part].charAt(index - start);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            if (start < 0 || end > length || start > end) {
+                throw new IndexOutOfBoundsException("Rango no válido: " + start + "-" + end);
+            }
+            StringBuilder sb = new StringBuilder(end - start);
+            for (int i = start; i < end; i++) {
+                sb.append(charAt(i));
+            }
+            return sb.toString();
+        }
+
+        @Override
+        public String toString() {
+            return String.join("\n", parts);
+        }
     }
 
     // --- Overrides for object comparison and representation ---
@@ -88,24 +447,45 @@ public class MedicalHistory {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         MedicalHistory that = (MedicalHistory) o;
-        // Compare all relevant fields for equality
-        return membShipNumb == that.membShipNumb &&
-                Objects.equals(cip, that.cip) &&
-                Objects.equals(history, that.history);
+        // Compare the cheap fields first; the history text only when length and hash match
+        if (membShipNumb != that.membShipNumb || !Objects.equals(cip, that.cip)
+                || length != that.length || historyHash != that.historyHash) {
+            return false;
+        }
+        if (unloaded > 0 || that.unloaded > 0) {
+            // Loading the older annotations would need remote calls that may fail: the length and hash
+            // of the whole text stand for them, and only the annotations loaded in both are compared
+            if (getAnnotationCount() != that.getAnnotationCount()) {
+                return false;
+            }
+            int tail = Math.min(annotations.size(), that.annotations.size());
+            return annotations.subList(annotations.size() - tail, annotations.size())
+                    .equals(that.annotations.subList(that.annotations.size() - tail, that.annotations.size()));
+        }
+        // Same annotations imply the same text; otherwise the texts themselves are compared
+        return annotations.equals(that.annotations) || getHistory().equals(that.getHistory());
     }
 
     @Override
     public int hashCode() {
-        // Generate a hash code based on the core fields
-        return Objects.hash(cip, membShipNumb, history);
+        // Same value as Objects.hash(cip, membShipNumb, getHistory())
+        return 31 * Objects.hash(cip, membShipNumb) + historyHash;
     }
 
     @Override
     public String toString() {
-        return "MedicalHistory{" +
-                "cip=" + cip +
-                ", doctorNum=" + membShipNumb +
-                ", history='" + history + '\'' +
-                '}';
+        StringBuilder sb = new StringBuilder(length + 64);
+        sb.append("MedicalHistory{")
+                .append("cip=").append(cip)
+                .append(", doctorNum=").append(membShipNumb);
+        if (unloaded > 0) {
+            // The text is not loaded just to be shown
+            return sb.append(", annotations=").append(getAnnotationCount())
+                    .append(", notLoaded=").append(unloaded)
+                    .append(", length=").append(length).append('}').toString();
+        }
+        sb.append(", history='");
+        appendHistory(sb);
+        return sb.append('\'').append('}').toString();
     }
-}
\ No newline at end of file
+}
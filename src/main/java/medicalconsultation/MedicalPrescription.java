@@ -4,10 +4,16 @@ import data.DigitalSignature;
 import data.HealthCardID;
 import data.ProductID;
 import data.ePrescripCode;
+import services.Suggestion;
 
+import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Represents a medical prescription for a specific patient and illness.
@@ -37,8 +43,8 @@ public class MedicalPrescription {
     // The digital signature of the doctor (stamped at the end of the process)
     private DigitalSignature esign;
 
-    // A map holding the medication lines, keyed by the ProductID
-    private final Map<ProductID, TakingGuideline> prescriptionLines;
+    // A map holding the medication lines, keyed by the packed code of the ProductID
+    private final ProductLineMap prescriptionLines;
 
     /**
      * Initializes a new MedicalPrescription.
@@ -51,11 +57,30 @@ public class MedicalPrescription {
         this.cip = cip;
         this.membShipNumb = membShipNumb;
         this.illness = illness;
-        this.prescriptionLines = new HashMap<>();
+        this.prescriptionLines = new ProductLineMap();
         // Sets the current date as the prescription creation date
         this.prescDate = new Date();
     }
 
+    /**
+     * Creates a deep copy of another MedicalPrescription.
+     * Medication lines and dates are copied, so modifying the copy never alters the original.
+     *
+     * @param other The prescription to be copied.
+     */
+    public MedicalPrescription(MedicalPrescription other) {
+        this.cip = other.cip;
+        this.membShipNumb = other.membShipNumb;
+        this.illness = other.illness;
+        this.prescCode = other.prescCode;
+        this.prescDate = other.prescDate == null ? null : new Date(other.prescDate.getTime());
+        this.endDate = other.endDate == null ? null : new Date(other.endDate.getTime());
+        this.esign = other.esign;
+        this.prescriptionLines = new ProductLineMap();
+        other.prescriptionLines.forEach((guideline, code) ->
+                this.prescriptionLines.put(code, new TakingGuideline(guideline)));
+    }
+
     /**
      * Adds a new medication line to the prescription.
      * Parses the instruction array to create a TakingGuideline object.
@@ -70,38 +95,55 @@ public class MedicalPrescription {
      * [5]: Specific instructions (String)
      * @throws ProductAlreadyInPrescriptionException If the product is already in the prescription list.
      * @throws IncorrectTakingGuidelinesException    If the instruction array is null, incomplete, or contains invalid formats.
+     * @see GuidelineParser#parse(String[])
      */
     public void addLine(ProductID prodID, String[] instruc)
             throws ProductAlreadyInPrescriptionException, IncorrectTakingGuidelinesException {
 
         // Check if the product is already part of the prescription
-        if (prescriptionLines.containsKey(prodID)) {
+        if (prescriptionLines.containsKey(prodID.getPackedCode())) {
             throw new ProductAlreadyInPrescriptionException();
         }
 
-        // Validate that the instruction array has enough elements to build a guideline
-        if (instruc == null || instruc.length < 6) {
+        // Parse the string array to create the domain object; null means incomplete or invalid data
+        TakingGuideline guideline = GuidelineParser.parse(instruc);
+        if (guideline == null) {
             throw new IncorrectTakingGuidelinesException();
         }
 
-        try {
-            // Parse the string array to create the domain object
-            TakingGuideline guideline = new TakingGuideline(
-                    dayMoment.valueOf(instruc[0]),      // Enum parsing
-                    Float.parseFloat(instruc[1]),       // Duration parsing
-                    Float.parseFloat(instruc[2]),       // Dose parsing
-                    Float.parseFloat(instruc[3]),       // Frequency parsing
-                    FqUnit.valueOf(instruc[4]),         // Unit Enum parsing
-                    instruc[5]                          // Instructions text
-            );
-
-            // Add the valid guideline to the map
-            prescriptionLines.put(prodID, guideline);
-
-        } catch (IllegalArgumentException | NullPointerException e) {
-            // Catch parsing errors (e.g., invalid number format or invalid enum name)
+        // Add the valid guideline to the map
+        prescriptionLines.put(prodID.getPackedCode(), guideline);
+    }
+
+    /**
+     * Adds a new medication line from an already structured guideline, without any parsing.
+     * The prescription keeps its own copy of the guideline.
+     *
+     * @param prodID    The unique identifier of the medicinal product.
+     * @param guideline The administration guideline of the product.
+     * @throws ProductAlreadyInPrescriptionException If the product is already in the prescription list.
+     * @throws IncorrectTakingGuidelinesException    If the guideline is null, incomplete, or contains non-finite values.
+     */
+    public void addLine(ProductID prodID, TakingGuideline guideline)
+            throws ProductAlreadyInPrescriptionException, IncorrectTakingGuidelinesException {
+
+        if (prescriptionLines.containsKey(prodID.getPackedCode())) {
+            throw new ProductAlreadyInPrescriptionException();
+        }
+        if (!isComplete(guideline)) {
             throw new IncorrectTakingGuidelinesException();
         }
+        prescriptionLines.put(prodID.getPackedCode(), new TakingGuideline(guideline));
+    }
+
+    // Checks that a guideline has every value a medication line needs
+    private static boolean isComplete(TakingGuideline guideline) {
+        if (guideline == null || guideline.getdMoment() == null || guideline.getPosology() == null) {
+            return false;
+        }
+        Posology posology = guideline.getPosology();
+        return posology.getFreqUnit() != null && Float.isFinite(guideline.getDuration())
+                && Float.isFinite(posology.getDose()) && Float.isFinite(posology.getFreq());
     }
 
     /**
@@ -114,7 +156,7 @@ public class MedicalPrescription {
     public void modifyDoseInLine(ProductID prodID, float newDose)
             throws ProductNotInPrescriptionException {
 
-        TakingGuideline line = prescriptionLines.get(prodID);
+        TakingGuideline line = prescriptionLines.get(prodID.getPackedCode());
 
         // Validation: Ensure the product exists before modifying
         if (line == null) {
@@ -133,10 +175,87 @@ public class MedicalPrescription {
      */
     public void removeLine(ProductID prodID) throws ProductNotInPrescriptionException {
         // Validation: Ensure the product exists before removing
-        if (!prescriptionLines.containsKey(prodID)) {
+        if (prescriptionLines.remove(prodID.getPackedCode()) == null) {
             throw new ProductNotInPrescriptionException();
         }
-        prescriptionLines.remove(prodID);
+    }
+
+    /**
+     * Applies a batch of AI suggestions as a single operation: either every suggestion is
+     * applied or, if any of them cannot be, the prescription is left untouched.
+     * The whole batch is validated first, in one pass, taking into account the effect of the
+     * earlier suggestions of the batch (e.g. a product added by the batch can then be modified).
+     *
+     * @param suggestions The suggestions, in the order they must be applied.
+     * @throws ProductAlreadyInPrescriptionException If an addition targets a product already prescribed.
+     * @throws ProductNotInPrescriptionException     If a modification or elimination targets a product not prescribed.
+     * @throws IncorrectTakingGuidelinesException    If a suggestion lacks the data it needs.
+     * @throws ConflictingSuggestionsException       If the batch adds and then eliminates the same product.
+     */
+    public void applySuggestions(List<Suggestion> suggestions)
+            throws ProductAlreadyInPrescriptionException, ProductNotInPrescriptionException,
+            IncorrectTakingGuidelinesException, ConflictingSuggestionsException {
+
+        // Validation pass: presence of the products touched by the batch, as the batch goes on
+        Map<ProductID, Boolean> present = new HashMap<>();
+        Set<ProductID> added = new HashSet<>();
+        for (Suggestion sugg : suggestions) {
+            ProductID prodID = sugg.getProductID();
+            if (prodID == null || sugg.getType() == null) {
+                throw new IncorrectTakingGuidelinesException("La sugerencia no indica el producto o la acción a realizar.");
+            }
+            boolean inPrescription = present.containsKey(prodID)
+                    ? present.get(prodID) : prescriptionLines.containsKey(prodID.getPackedCode());
+
+            switch (sugg.getType()) {
+                case ADDITION:
+                    if (inPrescription) {
+                        throw new ProductAlreadyInPrescriptionException();
+                    }
+                    if (!isComplete(sugg.getTakingGuideline())) {
+                        throw new IncorrectTakingGuidelinesException();
+                    }
+                    present.put(prodID, true);
+                    added.add(prodID);
+                    break;
+
+                case MODIFICATION:
+                    if (!inPrescription) {
+                        throw new ProductNotInPrescriptionException();
+                    }
+                    TakingGuideline tg = sugg.getTakingGuideline();
+                    if (tg == null || tg.getPosology() == null || !Float.isFinite(tg.getPosology().getDose())) {
+                        throw new IncorrectTakingGuidelinesException();
+                    }
+                    break;
+
+                case ELIMINATION:
+                    if (!inPrescription) {
+                        throw new ProductNotInPrescriptionException();
+                    }
+                    if (added.contains(prodID)) {
+                        throw new ConflictingSuggestionsException();
+                    }
+                    present.put(prodID, false);
+                    break;
+            }
+        }
+
+        // Commit pass: every suggestion is known to be applicable
+        for (Suggestion sugg : suggestions) {
+            long code = sugg.getProductID().getPackedCode();
+            switch (sugg.getType()) {
+                case ADDITION:
+                    prescriptionLines.put(code, new TakingGuideline(sugg.getTakingGuideline()));
+                    break;
+                case MODIFICATION:
+                    prescriptionLines.get(code).getPosology().setDose(sugg.getTakingGuideline().getPosology().getDose());
+                    break;
+                case ELIMINATION:
+                    prescriptionLines.remove(code);
+                    break;
+            }
+        }
     }
 
     // --- Setters ---
@@ -170,4 +289,68 @@ public class MedicalPrescription {
     public Date getPrescDate() {
         return prescDate;
     }
+
+    public int getMembShipNumb() {
+        return membShipNumb;
+    }
+
+    public ePrescripCode getPrescCode() {
+        return prescCode;
+    }
+
+    public Date getEndDate() {
+        return endDate;
+    }
+
+    public DigitalSignature getEsign() {
+        return esign;
+    }
+
+    /**
+     * Provides read-only access to the medication lines of the prescription.
+     *
+     * @return An unmodifiable snapshot of the lines, keyed by ProductID.
+     */
+    public Map<ProductID, TakingGuideline> getPrescriptionLines() {
+        Map<ProductID, TakingGuideline> lines = new LinkedHashMap<>();
+        prescriptionLines.forEach((guideline, code) -> lines.put(ProductID.fromPackedCode(code), guideline));
+        return Collections.unmodifiableMap(lines);
+    }
+
+    /** @return The number of medication lines in the prescription. */
+    public int getLineCount() {
+        return prescriptionLines.size();
+    }
+
+    /**
+     * Computes a compact summary of the illness and the medication lines of the prescription.
+     * Two prescriptions with the same illness and the same lines (in any order) have the same
+     * fingerprint; any change in a line changes it with very high probability.
+     * Dates, codes and signatures are not taken into account.
+     *
+     * @return A 64-bit fingerprint of the clinical content of the prescription.
+     */
+    public long fingerprint() {
+        // Lines are combined with a sum, so the result does not depend on their order
+        long[] sum = {0};
+        prescriptionLines.forEach((guideline, code) -> sum[0] += mix(code * 31 + lineHash(guideline)));
+        return mix(sum[0] + (illness == null ? 0 : illness.hashCode()));
+    }
+
+    private static long lineHash(TakingGuideline guideline) {
+        Posology posology = guideline.getPosology();
+        long h = guideline.getdMoment() == null ? -1 : guideline.getdMoment().ordinal();
+        h = h * 31 + Float.floatToIntBits(guideline.getDuration());
+        h = h * 31 + Float.floatToIntBits(posology.getDose());
+        h = h * 31 + Float.floatToIntBits(posology.getFreq());
+        h = h * 31 + (posology.getFreqUnit() == null ? -1 : posology.getFreqUnit().ordinal());
+        return h * 31 + (guideline.getInstructions() == null ? 0 : guideline.getInstructions().hashCode());
+    }
+
+    // Bit mixer of SplitMix64, so that similar lines give unrelated values
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
 }
\ No newline at end of file
@@ -29,6 +29,14 @@ public class Posology {
         this.freqUnit = u;
     }
 
+    /**
+     * Creates a copy of another Posology instance.
+     * * @param other The posology to be copied.
+     */
+    public Posology(Posology other) {
+        this(other.dose, other.freq, other.freqUnit);
+    }
+
     /** @return The current dose amount. */
     public float getDose() {
         return dose;
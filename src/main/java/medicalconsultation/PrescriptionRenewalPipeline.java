@@ -0,0 +1,176 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import services.HealthNationalService;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+
+/**
+ * Renews chronic treatments in bulk, without a doctor driving each consultation.
+ * Every renewal goes through its own {@link ConsultationTerminal}, following the same steps and state
+ * rules as an interactive consultation: the revision is opened (downloading the history and the
+ * prescription in parallel), the prescription keeps its lines and receives the new ending date,
+ * and it is signed and sent to the SNS.
+ * <p>
+ * Renewals run on virtual threads, with a bounded number of them in progress at the same time.
+ * The outcome of each patient is reported as soon as it is known, and a failure only affects its patient.
+ */
+public class PrescriptionRenewalPipeline {
+
+    /**
+     * A treatment to be renewed.
+     */
+    public static final class Request {
+        private final HealthCardID cip;
+        private final String illness;
+        private final Date newEndDate;
+
+        public Request(HealthCardID cip, String illness, Date newEndDate) {
+            this.cip = cip;
+            this.illness = illness;
+            this.newEndDate = newEndDate;
+        }
+
+        public HealthCardID getCip() {
+            return cip;
+        }
+
+        public String getIllness() {
+            return illness;
+        }
+
+        public Date getNewEndDate() {
+            return newEndDate;
+        }
+
+        @Override
+        public String toString() {
+            return "Request{cip=" + cip + ", illness='" + illness + "', newEndDate=" + newEndDate + '}';
+        }
+    }
+
+    /**
+     * The outcome of a renewal: the prescription returned by the SNS, or the error that stopped it.
+     */
+    public static final class Result {
+        private final Request request;
+        private final MedicalPrescription prescription;
+        private final Exception error;
+
+        private Result(Request request, MedicalPrescription prescription, Exception error) {
+            this.request = request;
+            this.prescription = prescription;
+            this.error = error;
+        }
+
+        public Request getRequest() {
+            return request;
+        }
+
+        public boolean isSuccessful() {
+            return error == null;
+        }
+
+        /** @return The renewed prescription, or null if the renewal failed. */
+        public MedicalPrescription getPrescription() {
+            return prescription;
+        }
+
+        /** @return The error that stopped the renewal, or null if it succeeded. */
+        public Exception getError() {
+            return error;
+        }
+    }
+
+    private final HealthNationalService hns;
+    private final int maxConcurrentRenewals;
+
+    /**
+     * @param hns                   The SNS service. It must be thread-safe.
+     * @param maxConcurrentRenewals The maximum number of renewals in progress at the same time.
+     */
+    public PrescriptionRenewalPipeline(HealthNationalService hns, int maxConcurrentRenewals) {
+        if (maxConcurrentRenewals <= 0) {
+            throw new IllegalArgumentException("El número de renovaciones simultáneas debe ser positivo.");
+        }
+        this.hns = hns;
+        this.maxConcurrentRenewals = maxConcurrentRenewals;
+    }
+
+    /**
+     * Renews every requested treatment and waits until all of them have finished.
+     *
+     * @param requests The treatments to be renewed.
+     * @param progress Receives each result as soon as it is known; it may be called from several threads.
+     * @return The results, in the order of the requests.
+     * @throws InterruptedException If the thread is interrupted while renewals are being started. The renewals
+     *                              in progress are interrupted, and the remaining ones are not started; a renewal
+     *                              interrupted while waiting for the SNS is reported as failed.
+     */
+    public List<Result> renew(List<Request> requests, Consumer<Result> progress) throws InterruptedException {
+        Result[] results = new Result[requests.size()];
+        Semaphore slots = new Semaphore(maxConcurrentRenewals);
+
+        try (ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor()) {
+            try {
+                for (int i = 0; i < requests.size(); i++) {
+                    // Waiting here keeps the number of started renewals bounded
+                    slots.acquire();
+                    int index = i;
+                    workers.execute(() -> {
+                        try {
+                            Result result = renew(requests.get(index));
+                            results[index] = result;
+                            progress.accept(result);
+                        } finally {
+                            slots.release();
+                        }
+                    });
+                }
+            } catch (InterruptedException e) {
+                // Otherwise closing the executor would wait for every renewal already started
+                workers.shutdownNow();
+                throw e;
+            }
+        }
+        // Closing the executor waits for every renewal, so all results are visible here
+        List<Result> ordered = new ArrayList<>(results.length);
+        Collections.addAll(ordered, results);
+        return ordered;
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Drives a terminal through the renewal of one treatment.
+     */
+    private Result renew(Request request) {
+        ConsultationTerminal terminal = new ConsultationTerminal();
+        terminal.setHns(hns);
+        try {
+            try {
+                terminal.initRevisionAsync(request.getCip(), request.getIllness()).get();
+            } catch (ExecutionException e) {
+                throw e.getCause() instanceof Exception cause ? cause : e;
+            }
+            terminal.initMedicalPrescriptionEdition();
+            terminal.enterTreatmentEndingDate(request.getNewEndDate());
+            terminal.finishMedicalPrescriptionEdition();
+            terminal.stampeeSignature();
+            return new Result(request, terminal.sendHistoryAndPrescription(), null);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return new Result(request, null, e);
+        } catch (Exception e) {
+            return new Result(request, null, e);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package medicalconsultation;
+
+import java.util.function.ObjLongConsumer;
+
+/**
+ * Open-addressing hash map from a packed {@link data.ProductID} code to its {@link TakingGuideline}.
+ * Keys are stored as primitive longs in a flat array, so lookups, insertions and removals
+ * do not allocate. Collisions are resolved with linear probing, and removals shift the
+ * following entries back so no tombstones are needed.
+ */
+final class ProductLineMap {
+
+    // Multiplier used to spread the packed codes over the table (golden ratio)
+    private static final long HASH_MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    private long[] keys;
+    // A null value marks an empty slot
+    private TakingGuideline[] values;
+    private int mask;
+    private int size;
+
+    ProductLineMap() {
+        allocate(16);
+    }
+
+    /** @return The guideline of the product, or null if the product has no line. */
+    TakingGuideline get(long key) {
+        int slot = find(key);
+        return slot < 0 ? null : values[slot];
+    }
+
+    boolean containsKey(long key) {
+        return find(key) >= 0;
+    }
+
+    /**
+     * Associates a guideline to a product, replacing any previous one.
+     *
+     * @return The previous guideline of the product, or null if it had none.
+     */
+    TakingGuideline put(long key, TakingGuideline value) {
+        int slot = slot(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                TakingGuideline previous = values[slot];
+                values[slot] = value;
+                return previous;
+            }
+            slot = (slot + 1) & mask;
+        }
+        keys[slot] = key;
+        values[slot] = value;
+        // Keeps the load factor at 3/4 at most
+        if (++size > (values.length >> 2) * 3) {
+            resize();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the line of a product.
+     *
+     * @return The removed guideline, or null if the product had no line.
+     */
+    TakingGuideline remove(long key) {
+        int hole = find(key);
+        if (hole < 0) {
+            return null;
+        }
+        TakingGuideline removed = values[hole];
+        values[hole] = null;
+        size--;
+
+        // Moves back the entries whose probe sequence crossed the freed slot
+        int next = (hole + 1) & mask;
+        while (values[next] != null) {
+            int home = slot(keys[next]);
+            boolean reachable = hole <= next ? (home > hole && home <= next) : (home > hole || home <= next);
+            if (!reachable) {
+                keys[hole] = keys[next];
+                values[hole] = values[next];
+                values[next] = null;
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        return removed;
+    }
+
+    int size() {
+        return size;
+    }
+
+    /**
+     * Visits every line of the map, in no particular order.
+     */
+    void forEach(ObjLongConsumer<TakingGuideline> action) {
+        for (int i = 0; i < values.length; i++) {
+            if (values[i] != null) {
+                action.accept(values[i], keys[i]);
+            }
+        }
+    }
+
+    // --- Internal helpers ---
+
+    private int slot(long key) {
+        long h = key * HASH_MULTIPLIER;
+        return (int) (h ^ (h >>> 32)) & mask;
+    }
+
+    private int find(long key) {
+        int slot = slot(key);
+        while (values[slot] != null) {
+            if (keys[slot] == key) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new TakingGuideline[capacity];
+        mask = capacity - 1;
+    }
+
+    private void resize() {
+        long[] oldKeys = keys;
+        TakingGuideline[] oldValues = values;
+        allocate(oldValues.length * 2);
+        size = 0;
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldKeys[i], oldValues[i]);
+            }
+        }
+    }
+}
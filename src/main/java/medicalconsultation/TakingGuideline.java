@@ -36,6 +36,17 @@ public class TakingGuideline {
         this.instructions = i;
     }
 
+    /**
+     * Creates a deep copy of another TakingGuideline, including its {@link Posology}.
+     * * @param other The guideline to be copied.
+     */
+    public TakingGuideline(TakingGuideline other) {
+        this.dMoment = other.dMoment;
+        this.duration = other.duration;
+        this.posology = new Posology(other.posology);
+        this.instructions = other.instructions;
+    }
+
     /** @return The current day moment for the administration. */
     public dayMoment getdMoment() { return dMoment; }
 
@@ -0,0 +1,186 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import medicalconsultation.IncorrectParametersException;
+
+import java.net.ConnectException;
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loads the data of the patients in the agenda of a doctor before they arrive.
+ * A fixed lead time before each appointment, the medical history and the prescription of the
+ * patient are downloaded into a {@link CachingHealthNationalService}, so the revision opened in
+ * the terminal is served from the cache. The time to live of the cache must be longer than
+ * the lead time, or the prefetched documents expire before the visit.
+ * <p>
+ * Only a limited number of downloads run at the same time, so the SNS is not overloaded when many
+ * appointments are close together. When the agenda changes, the prefetches of the appointments
+ * that were removed or moved are cancelled.
+ */
+public class AppointmentPrefetcher implements AutoCloseable {
+
+    /**
+     * An appointment of the agenda.
+     *
+     * @param cip     The patient.
+     * @param illness The illness to be supervised.
+     * @param time    The start of the visit.
+     */
+    public record Appointment(HealthCardID cip, String illness, Instant time) {
+    }
+
+    private final CachingHealthNationalService cache;
+    private final Duration leadTime;
+    private final Semaphore slots;
+    private final Clock clock;
+    private final ScheduledExecutorService timer;
+    private final ExecutorService workers = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Appointments of the agenda, with their scheduled, running or finished prefetch; guarded by this
+    private final Map<Appointment, Future<?>> tasks = new HashMap<>();
+
+    private final AtomicLong prefetched = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+
+    /**
+     * @param cache                   The cache used by the terminals of the doctor.
+     * @param leadTime                How long before each appointment its data is downloaded.
+     * @param maxConcurrentPrefetches The maximum number of patients downloaded at the same time.
+     */
+    public AppointmentPrefetcher(CachingHealthNationalService cache, Duration leadTime, int maxConcurrentPrefetches) {
+        this(cache, leadTime, maxConcurrentPrefetches, Clock.systemUTC());
+    }
+
+    AppointmentPrefetcher(CachingHealthNationalService cache, Duration leadTime, int maxConcurrentPrefetches, Clock clock) {
+        if (leadTime.isNegative() || maxConcurrentPrefetches <= 0) {
+            throw new IllegalArgumentException("La antelación no puede ser negativa y el número de descargas debe ser positivo.");
+        }
+        this.cache = cache;
+        this.leadTime = leadTime;
+        this.slots = new Semaphore(maxConcurrentPrefetches);
+        this.clock = clock;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "appointment-prefetch-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Replaces the agenda. Appointments already known keep their prefetch; new ones are scheduled,
+     * and the prefetches of appointments no longer in the agenda are cancelled.
+     * Appointments whose lead time has already started are prefetched at once; past ones are ignored.
+     *
+     * @param appointments The appointments of the day.
+     */
+    public synchronized void setAgenda(Collection<Appointment> appointments) {
+        Set<Appointment> agenda = new HashSet<>(appointments);
+        for (Appointment removed : Set.copyOf(tasks.keySet())) {
+            if (!agenda.contains(removed)) {
+                cancel(removed);
+            }
+        }
+        Instant now = clock.instant();
+        for (Appointment appointment : agenda) {
+            if (tasks.containsKey(appointment) || !appointment.time().isAfter(now)) {
+                continue;
+            }
+            long delayNanos = Math.max(0, Duration.between(now, appointment.time().minus(leadTime)).toNanos());
+            // start() needs the lock held here, so it always finds the appointment registered
+            tasks.put(appointment, timer.schedule(() -> start(appointment), delayNanos, TimeUnit.NANOSECONDS));
+        }
+    }
+
+    /**
+     * Cancels every pending prefetch and stops the scheduler.
+     */
+    @Override
+    public synchronized void close() {
+        for (Appointment appointment : Set.copyOf(tasks.keySet())) {
+            cancel(appointment);
+        }
+        timer.shutdownNow();
+        workers.shutdownNow();
+    }
+
+    // --- Metrics ---
+
+    /** @return The number of appointments whose data was downloaded. */
+    public long getPrefetched() {
+        return prefetched.get();
+    }
+
+    /** @return The number of prefetches that failed; the revision will download the data itself. */
+    public long getFailed() {
+        return failed.get();
+    }
+
+    /** @return The number of prefetches cancelled before they finished, because the agenda changed. */
+    public long getCancelled() {
+        return cancelled.get();
+    }
+
+    /** @return The number of revisions served from prefetched data. */
+    public long getServedFromPrefetch() {
+        return cache.getPrefetchHits();
+    }
+
+    /** @return The fraction of the prefetched appointments whose revision used the prefetched data. */
+    public double getPrefetchHitRatio() {
+        long total = prefetched.get();
+        return total == 0 ? 0 : (double) cache.getPrefetchHits() / total;
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Hands the prefetch over to a worker when the lead time starts, unless it was cancelled meanwhile.
+     */
+    private synchronized void start(Appointment appointment) {
+        tasks.computeIfPresent(appointment, (a, scheduled) -> workers.submit(() -> prefetch(a)));
+    }
+
+    private void prefetch(Appointment appointment) {
+        try {
+            slots.acquire();
+        } catch (InterruptedException e) {
+            // Cancelled while waiting for a free slot
+            return;
+        }
+        try {
+            cache.prefetch(appointment.cip(), appointment.illness());
+            prefetched.incrementAndGet();
+        } catch (ConnectException | HealthCardIDException | IncorrectParametersException
+                 | AnyCurrentPrescriptionException e) {
+            if (!Thread.currentThread().isInterrupted()) {
+                failed.incrementAndGet();
+            }
+        } finally {
+            slots.release();
+        }
+    }
+
+    /** Must be called while holding the lock. */
+    private void cancel(Appointment appointment) {
+        Future<?> task = tasks.remove(appointment);
+        if (task != null && task.cancel(true)) {
+            cancelled.incrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Decorator of a {@link HealthNationalService} that groups the submissions of concurrent sessions.
+ * Submissions are collected for a short window, or until the batch is full, and then sent in a single
+ * request to the batch endpoint of the SNS. Each caller still waits for, and receives, the result of its
+ * own submission, including the errors that reject only that item.
+ * Downloads, history pages and registrations are forwarded unchanged.
+ * <p>
+ * History deltas are supported if the wrapped service supports them: they join the batch like whole
+ * histories, and the SNS checks the version of each one on its own.
+ */
+public class BatchingHealthNationalService implements HealthNationalService, AutoCloseable {
+
+    // Default executor for the batch requests: one virtual thread per request
+    private static final Executor DEFAULT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Submission waiting in the current batch, with the result its caller is waiting for
+    private record Pending(Submission submission, CompletableFuture<SubmissionResult> result) {
+    }
+
+    private final HealthNationalService hns;
+    private final int maxBatchSize;
+    private final long windowNanos;
+    private final ScheduledExecutorService timer;
+    private final Executor executor;
+
+    // Current batch and the timer that will send it; guarded by the lock
+    private final Object lock = new Object();
+    private List<Pending> batch = new ArrayList<>();
+    private ScheduledFuture<?> windowTimer;
+    private boolean closed;
+
+    /**
+     * @param hns          The service that actually contacts the SNS.
+     * @param maxBatchSize The number of submissions that triggers sending the batch at once.
+     * @param window       The maximum time a submission waits for others to join its batch.
+     */
+    public BatchingHealthNationalService(HealthNationalService hns, int maxBatchSize, Duration window) {
+        this(hns, maxBatchSize, window, DEFAULT_EXECUTOR);
+    }
+
+    BatchingHealthNationalService(HealthNationalService hns, int maxBatchSize, Duration window, Executor executor) {
+        if (maxBatchSize <= 0 || window.isNegative() || window.isZero()) {
+            throw new IllegalArgumentException("El tamaño del lote y la ventana de espera deben ser positivos.");
+        }
+        this.hns = hns;
+        this.maxBatchSize = maxBatchSize;
+        this.windowNanos = window.toNanos();
+        this.executor = executor;
+        this.timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "hns-batch-timer");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @Override
+    public MedicalHistory getMedicalHistory(HealthCardID cip)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return hns.getMedicalHistory(cip);
+    }
+
+    @Override
+    public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException {
+        return hns.getMedicalPrescription(cip, illness);
+    }
+
+    @Override
+    public HistoryPage getMedicalHistoryPage(HealthCardID cip, int before, int maxAnnotations)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return hns.getMedicalHistoryPage(cip, before, maxAnnotations);
+    }
+
+    /**
+     * Adds the submission to the current batch and waits until the SNS has processed it.
+     */
+    @Override
+    public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException, NotCompletedMedicalPrescription {
+        try {
+            return submit(new Submission(cip, hce, illness, mPresc));
+        } catch (HistoryVersionConflictException e) {
+            // Only deltas are checked against a version
+            throw new IllegalStateException("Error inesperado del SNS: " + e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean supportsHistoryDeltas() {
+        return hns.supportsHistoryDeltas();
+    }
+
+    /**
+     * Adds the delta to the current batch and waits until the SNS has processed it.
+     * Without a delta endpoint, the wrapped service sends the whole history on its own.
+     */
+    @Override
+    public MedicalPrescription sendHistoryDeltaAndPrescription(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+            NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        if (!hns.supportsHistoryDeltas()) {
+            return hns.sendHistoryDeltaAndPrescription(delta, illness, mPresc);
+        }
+        return submit(new Submission(delta, illness, mPresc));
+    }
+
+    @Override
+    public MedicalPrescription generateTreatmCodeAndRegister(MedicalPrescription ePresc) throws ConnectException {
+        return hns.generateTreatmCodeAndRegister(ePresc);
+    }
+
+    @Override
+    public Stream<SubmissionResult> generateTreatmCodesAndRegister(Collection<MedicalPrescription> prescriptions) {
+        return hns.generateTreatmCodesAndRegister(prescriptions);
+    }
+
+    @Override
+    public List<SubmissionResult> sendHistoriesAndPrescriptions(List<Submission> submissions) throws ConnectException {
+        return hns.sendHistoriesAndPrescriptions(submissions);
+    }
+
+    /**
+     * Sends the submissions still waiting and stops accepting new ones.
+     */
+    @Override
+    public void close() {
+        List<Pending> remaining;
+        synchronized (lock) {
+            closed = true;
+            remaining = takeBatch();
+        }
+        if (!remaining.isEmpty()) {
+            dispatch(remaining);
+        }
+        timer.shutdown();
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Adds a submission to the current batch and waits for its own result.
+     */
+    private MedicalPrescription submit(Submission submission)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+            NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        Pending pending = new Pending(submission, new CompletableFuture<>());
+        List<Pending> full = null;
+        synchronized (lock) {
+            if (closed) {
+                throw new IllegalStateException("El servicio de envío por lotes está cerrado.");
+            }
+            batch.add(pending);
+            if (batch.size() >= maxBatchSize) {
+                full = takeBatch();
+            } else if (batch.size() == 1) {
+                windowTimer = timer.schedule(this::flush, windowNanos, TimeUnit.NANOSECONDS);
+            }
+        }
+        if (full != null) {
+            dispatch(full);
+        }
+
+        // The submission is already on its way, so the wait is not interruptible
+        SubmissionResult result = pending.result().join();
+        if (result.isSuccessful()) {
+            return result.getPrescription();
+        }
+        Exception error = result.getError();
+        if (error instanceof ConnectException e) throw e;
+        if (error instanceof HealthCardIDException e) throw e;
+        if (error instanceof AnyCurrentPrescriptionException e) throw e;
+        if (error instanceof NotCompletedMedicalPrescription e) throw e;
+        if (error instanceof HistoryVersionConflictException e) throw e;
+        if (error instanceof RuntimeException e) throw e;
+        throw new IllegalStateException("Error inesperado del SNS: " + error.getMessage(), error);
+    }
+
+    /** Sends the current batch when its window has elapsed. */
+    private void flush() {
+        List<Pending> due;
+        synchronized (lock) {
+            due = takeBatch();
+        }
+        if (!due.isEmpty()) {
+            dispatch(due);
+        }
+    }
+
+    /** Detaches the current batch; must be called while holding the lock. */
+    private List<Pending> takeBatch() {
+        List<Pending> taken = batch;
+        batch = new ArrayList<>();
+        if (windowTimer != null) {
+            windowTimer.cancel(false);
+            windowTimer = null;
+        }
+        return taken;
+    }
+
+    private void dispatch(List<Pending> items) {
+        executor.execute(() -> {
+            List<Submission> submissions = new ArrayList<>(items.size());
+            for (Pending p : items) {
+                submissions.add(p.submission());
+            }
+            try {
+                List<SubmissionResult> results = hns.sendHistoriesAndPrescriptions(submissions);
+                for (int i = 0; i < items.size(); i++) {
+                    items.get(i).result().complete(i < results.size() ? results.get(i)
+                            : SubmissionResult.failure(i, new ConnectException("El SNS no ha respondido a este envío.")));
+                }
+            } catch (ConnectException | RuntimeException e) {
+                // The whole request failed: every caller receives the same error
+                for (int i = 0; i < items.size(); i++) {
+                    items.get(i).result().complete(SubmissionResult.failure(i, e));
+                }
+            }
+        });
+    }
+}
@@ -0,0 +1,148 @@
+package services;
+
+import data.InvalidFormatException;
+import data.NullValueException;
+import medicalconsultation.MedicalPrescription;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Cache placed in front of a {@link DecisionMakingAI} (Decorator pattern).
+ * Doctors often ask nearly the same question about the same treatment; the answer is reused
+ * when the normalized prompt, the illness and the fingerprint of the prescription lines match,
+ * so the model is only queried again once the entry expires or the prescription changes.
+ * Parsed suggestions are cached as well, so a repeated answer is not parsed again.
+ */
+public class CachingDecisionMakingAI implements DecisionMakingAI {
+
+    // Key of a cached answer: the same prompt may get different answers for different treatments
+    private record AnswerKey(String prompt, String illness, long fingerprint) {
+    }
+
+    private final DecisionMakingAI ai;
+    private final LongSupplier clock;
+    private final ExpiringLruCache<AnswerKey, String> answers;
+    private final ExpiringLruCache<String, List<Suggestion>> parsed;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong missNanos = new AtomicLong();
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    /**
+     * Creates a cache in front of the given AI.
+     *
+     * @param ai         The AI that actually generates the answers.
+     * @param maxEntries The maximum number of answers (and of parsed answers) kept.
+     * @param timeToLive How long an answer may be reused.
+     */
+    public CachingDecisionMakingAI(DecisionMakingAI ai, int maxEntries, Duration timeToLive) {
+        this(ai, maxEntries, timeToLive, System::nanoTime);
+    }
+
+    CachingDecisionMakingAI(DecisionMakingAI ai, int maxEntries, Duration timeToLive, LongSupplier clock) {
+        this.ai = ai;
+        this.clock = clock;
+        this.answers = new ExpiringLruCache<>(maxEntries, timeToLive.toNanos(), clock);
+        this.parsed = new ExpiringLruCache<>(maxEntries, timeToLive.toNanos(), clock);
+    }
+
+    @Override
+    public void initDecisionMakingAI() throws AIException {
+        ai.initDecisionMakingAI();
+    }
+
+    @Override
+    public String getSuggestions(String prompt) throws BadPromptException, AIException {
+        return getSuggestions(prompt, null);
+    }
+
+    @Override
+    public String getSuggestions(String prompt, MedicalPrescription context) throws BadPromptException, AIException {
+        if (prompt == null) {
+            return ai.getSuggestions(prompt, context);
+        }
+        AnswerKey key = context == null
+                ? new AnswerKey(normalizePrompt(prompt), null, 0)
+                : new AnswerKey(normalizePrompt(prompt), context.getIllness(), context.fingerprint());
+        String cached = answers.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            long missed = misses.get();
+            if (missed > 0) {
+                // Each hit saves, on average, what a query to the model costs
+                savedNanos.addAndGet(missNanos.get() / missed);
+            }
+            return cached;
+        }
+        long start = clock.getAsLong();
+        String answer = ai.getSuggestions(prompt, context);
+        missNanos.addAndGet(clock.getAsLong() - start);
+        misses.incrementAndGet();
+        if (answer != null) {
+            answers.put(key, answer);
+        }
+        return answer;
+    }
+
+    @Override
+    public List<Suggestion> parseSuggest(String aiAnswer) throws InvalidFormatException, NullValueException {
+        if (aiAnswer == null) {
+            return ai.parseSuggest(aiAnswer);
+        }
+        List<Suggestion> cached = parsed.get(aiAnswer);
+        if (cached != null) {
+            return cached;
+        }
+        List<Suggestion> suggestions = Collections.unmodifiableList(ai.parseSuggest(aiAnswer));
+        parsed.put(aiAnswer, suggestions);
+        return suggestions;
+    }
+
+    // --- Metrics ---
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /** @return The fraction of questions answered from the cache, or 0 if there were none. */
+    public double getHitRatio() {
+        long h = hits.get();
+        long total = h + misses.get();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    /** @return The model time avoided by the cache, estimated with the average time of a query. */
+    public Duration getSavedLatency() {
+        return Duration.ofNanos(savedNanos.get());
+    }
+
+    /**
+     * Reduces the prompts that only differ in letter case or spacing to the same text.
+     */
+    static String normalizePrompt(String prompt) {
+        StringBuilder normalized = new StringBuilder(prompt.length());
+        boolean space = false;
+        for (int i = 0; i < prompt.length(); i++) {
+            char c = prompt.charAt(i);
+            if (Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+            } else {
+                if (space) {
+                    normalized.append(' ');
+                    space = false;
+                }
+                normalized.append(Character.toLowerCase(c));
+            }
+        }
+        return normalized.toString();
+    }
+}
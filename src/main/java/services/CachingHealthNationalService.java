@@ -0,0 +1,310 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Read-through cache placed in front of a {@link HealthNationalService} (Decorator pattern).
+ * Medical histories and prescriptions downloaded from the SNS are kept for a limited time and
+ * a limited number of patients, so follow-up visits do not download the same documents again.
+ * Cached documents are never handed out directly: every caller receives its own copy, and the
+ * cached data of a patient is invalidated whenever new data is sent for that patient.
+ * A download that was in progress when its patient was invalidated is returned to its caller but not
+ * cached, since it may predate the data just sent.
+ * <p>
+ * Documents can also be loaded ahead of the visit with {@link #prefetch(HealthCardID, String)};
+ * the cache then keeps track of how many revisions were served from prefetched data.
+ */
+public class CachingHealthNationalService implements HealthNationalService {
+
+    // Key of a cached prescription: one patient may have prescriptions for several illnesses
+    private record PrescriptionKey(HealthCardID cip, String illness) {
+    }
+
+    private final HealthNationalService hns;
+    private final ExpiringLruCache<HealthCardID, MedicalHistory> histories;
+    private final ExpiringLruCache<PrescriptionKey, MedicalPrescription> prescriptions;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    // Number of stripes of the invalidation generations
+    private static final int GENERATION_STRIPES = 256;
+
+    // Invalidations of the patients of each stripe; each one guarded by the lock of its stripe,
+    // like every put of a download of the stripe
+    private final long[] generations = new long[GENERATION_STRIPES];
+    private final Object[] stripeLocks = new Object[GENERATION_STRIPES];
+
+    // Keys of the cached prescriptions of each patient, so a patient is invalidated without scanning the cache
+    private final Map<HealthCardID, Set<PrescriptionKey>> prescriptionKeys = new ConcurrentHashMap<>();
+
+    // Prescriptions prefetched, still cached and not yet requested by a revision
+    private final Set<PrescriptionKey> prefetched = ConcurrentHashMap.newKeySet();
+    private final AtomicLong prefetchHits = new AtomicLong();
+
+    /**
+     * Creates a cache in front of the given service.
+     *
+     * @param hns         The service that actually contacts the SNS.
+     * @param maxEntries  The maximum number of histories (and of prescriptions) kept.
+     * @param timeToLive  How long a downloaded document may be served from the cache.
+     */
+    public CachingHealthNationalService(HealthNationalService hns, int maxEntries, Duration timeToLive) {
+        this(hns, maxEntries, timeToLive, System::nanoTime);
+    }
+
+    CachingHealthNationalService(HealthNationalService hns, int maxEntries, Duration timeToLive, LongSupplier clock) {
+        this.hns = hns;
+        this.histories = new ExpiringLruCache<>(maxEntries, timeToLive.toNanos(), clock);
+        this.prescriptions = new ExpiringLruCache<>(maxEntries, timeToLive.toNanos(), clock, this::forget);
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            stripeLocks[i] = new Object();
+        }
+    }
+
+    @Override
+    public MedicalHistory getMedicalHistory(HealthCardID cip)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        MedicalHistory cached = histories.get(cip);
+        if (cached != null) {
+            hits.incrementAndGet();
+            return new MedicalHistory(cached);
+        }
+        misses.incrementAndGet();
+        long generation = generationOf(cip);
+        MedicalHistory downloaded = hns.getMedicalHistory(cip);
+        if (downloaded != null) {
+            cacheDownload(cip, generation, () -> histories.put(cip, new MedicalHistory(downloaded)));
+        }
+        return downloaded;
+    }
+
+    /**
+     * Pages are downloaded directly: they are small, and a page of a stale cached history
+     * would not match the version the service reports for it.
+     */
+    @Override
+    public HistoryPage getMedicalHistoryPage(HealthCardID cip, int before, int maxAnnotations)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return hns.getMedicalHistoryPage(cip, before, maxAnnotations);
+    }
+
+    @Override
+    public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException {
+        PrescriptionKey key = new PrescriptionKey(cip, illness);
+        MedicalPrescription cached = prescriptions.get(key);
+        if (cached != null) {
+            hits.incrementAndGet();
+            if (prefetched.remove(key)) {
+                prefetchHits.incrementAndGet();
+            }
+            return new MedicalPrescription(cached);
+        }
+        misses.incrementAndGet();
+        // A prefetched prescription that has already expired or been evicted was not useful
+        prefetched.remove(key);
+        long generation = generationOf(cip);
+        MedicalPrescription downloaded = hns.getMedicalPrescription(cip, illness);
+        if (downloaded != null) {
+            cacheDownload(cip, generation, () -> cachePrescription(key, downloaded));
+        }
+        return downloaded;
+    }
+
+    @Override
+    public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException, NotCompletedMedicalPrescription {
+        try {
+            return hns.sendHistoryAndPrescription(cip, hce, illness, mPresc);
+        } finally {
+            // Even a failed submission may have reached the SNS, so the cached copy is no longer trusted
+            invalidate(cip);
+        }
+    }
+
+    @Override
+    public MedicalPrescription sendHistoryAndPrescriptionOnce(String submissionId, HealthCardID cip, MedicalHistory hce,
+                                                              String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException, NotCompletedMedicalPrescription {
+        try {
+            return hns.sendHistoryAndPrescriptionOnce(submissionId, cip, hce, illness, mPresc);
+        } finally {
+            invalidate(cip);
+        }
+    }
+
+    @Override
+    public boolean supportsHistoryDeltas() {
+        return hns.supportsHistoryDeltas();
+    }
+
+    @Override
+    public MedicalPrescription sendHistoryDeltaAndPrescription(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+            NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        try {
+            return hns.sendHistoryDeltaAndPrescription(delta, illness, mPresc);
+        } finally {
+            invalidate(delta.getCip());
+        }
+    }
+
+    @Override
+    public MedicalPrescription generateTreatmCodeAndRegister(MedicalPrescription ePresc) throws ConnectException {
+        try {
+            return hns.generateTreatmCodeAndRegister(ePresc);
+        } finally {
+            invalidate(ePresc.getCip());
+        }
+    }
+
+    /**
+     * Loads the history and the prescription of a patient into the cache before they are requested.
+     * Documents already cached are not downloaded again, and the hit and miss counters are not affected.
+     *
+     * @param cip     The patient expected to visit.
+     * @param illness The illness to be supervised in the visit.
+     */
+    public void prefetch(HealthCardID cip, String illness) throws ConnectException, HealthCardIDException,
+            IncorrectParametersException, AnyCurrentPrescriptionException {
+        long generation = generationOf(cip);
+        if (histories.get(cip) == null) {
+            MedicalHistory downloaded = hns.getMedicalHistory(cip);
+            if (downloaded != null) {
+                cacheDownload(cip, generation, () -> histories.put(cip, new MedicalHistory(downloaded)));
+            }
+        }
+        PrescriptionKey key = new PrescriptionKey(cip, illness);
+        if (prescriptions.get(key) == null) {
+            MedicalPrescription downloaded = hns.getMedicalPrescription(cip, illness);
+            if (downloaded == null) {
+                return;
+            }
+            cacheDownload(cip, generation, () -> {
+                cachePrescription(key, downloaded);
+                prefetched.add(key);
+            });
+        } else {
+            prefetched.add(key);
+        }
+    }
+
+    /**
+     * Discards every cached document of a patient. Only the entries of the patient are visited,
+     * and only downloads of patients of the same stripe wait for it.
+     *
+     * @param cip The patient whose history and prescriptions must be downloaded again.
+     */
+    public void invalidate(HealthCardID cip) {
+        int stripe = stripeOf(cip);
+        synchronized (stripeLocks[stripe]) {
+            generations[stripe]++;
+            histories.remove(cip);
+            Set<PrescriptionKey> keys = prescriptionKeys.remove(cip);
+            if (keys != null) {
+                for (PrescriptionKey key : keys) {
+                    prescriptions.remove(key);
+                    prefetched.remove(key);
+                }
+            }
+        }
+    }
+
+    // --- Internal helpers ---
+
+    private static int stripeOf(HealthCardID cip) {
+        return Math.floorMod(cip.hashCode(), GENERATION_STRIPES);
+    }
+
+    /** @return The invalidation generation of the patient, read before downloading its data. */
+    private long generationOf(HealthCardID cip) {
+        int stripe = stripeOf(cip);
+        synchronized (stripeLocks[stripe]) {
+            return generations[stripe];
+        }
+    }
+
+    /**
+     * Caches a download unless its patient (or another of its stripe) was invalidated since it started.
+     */
+    private void cacheDownload(HealthCardID cip, long generation, Runnable put) {
+        int stripe = stripeOf(cip);
+        synchronized (stripeLocks[stripe]) {
+            if (generations[stripe] == generation) {
+                put.run();
+            }
+        }
+    }
+
+    /**
+     * Caches a prescription, indexing its key by patient first so an eviction right after the put
+     * removes it from the index as well.
+     */
+    private void cachePrescription(PrescriptionKey key, MedicalPrescription downloaded) {
+        prescriptionKeys.compute(key.cip(), (cip, keys) -> {
+            Set<PrescriptionKey> updated = keys == null ? new HashSet<>() : keys;
+            updated.add(key);
+            return updated;
+        });
+        prescriptions.put(key, new MedicalPrescription(downloaded));
+    }
+
+    /**
+     * Forgets a prescription the cache has dropped by itself (evicted or expired).
+     */
+    private void forget(PrescriptionKey key) {
+        prefetched.remove(key);
+        prescriptionKeys.computeIfPresent(key.cip(), (cip, keys) -> {
+            keys.remove(key);
+            return keys.isEmpty() ? null : keys;
+        });
+    }
+
+    /** @return The number of patients with prescriptions in the cache index. */
+    int getIndexedPatientCount() {
+        return prescriptionKeys.size();
+    }
+
+    // --- Metrics ---
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * A revision counts as served from prefetched data when the prescription it requests
+     * was prefetched and is still in the cache.
+     *
+     * @return The number of revisions served from prefetched data.
+     */
+    public long getPrefetchHits() {
+        return prefetchHits.get();
+    }
+
+    /** @return The number of prefetched prescriptions still waiting for their revision. */
+    int getPendingPrefetchCount() {
+        return prefetched.size();
+    }
+
+    public long getEvictions() {
+        return histories.getEvictions() + prescriptions.getEvictions();
+    }
+}
@@ -0,0 +1,101 @@
+package services;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Circuit breaker protecting the calls to a remote service.
+ * After a number of consecutive failures the circuit opens and calls are refused without
+ * contacting the service. Once the open period has elapsed a single probe call is allowed
+ * (half-open): if it succeeds the circuit closes again, otherwise it stays open for another period.
+ * <p>
+ * Every change of state starts a new generation. Each call is tagged with the generation in which it
+ * was allowed, and its outcome is ignored if the circuit has changed since then: a slow call started
+ * before the circuit opened must not close it while the probe is in progress, nor reopen it later.
+ * All operations are synchronized.
+ */
+final class CircuitBreaker {
+
+    // Returned by tryAcquire when the call is refused
+    static final long REFUSED = -1;
+
+    enum State {
+        CLOSED,     // Calls flow normally
+        OPEN,       // Calls are refused
+        HALF_OPEN   // One probe call is in progress
+    }
+
+    private final int failureThreshold;
+    private final long openNanos;
+    private final LongSupplier clock;
+
+    private State state = State.CLOSED;
+    private int consecutiveFailures;
+    private long openedAt;
+    private long generation;
+
+    /**
+     * @param failureThreshold The number of consecutive failures that opens the circuit.
+     * @param openNanos        How long the circuit stays open before a probe is allowed, in nanoseconds.
+     * @param clock            The time source, in nanoseconds (System::nanoTime in production).
+     */
+    CircuitBreaker(int failureThreshold, long openNanos, LongSupplier clock) {
+        if (failureThreshold <= 0 || openNanos <= 0) {
+            throw new IllegalArgumentException("El umbral de fallos y el periodo de apertura deben ser positivos.");
+        }
+        this.failureThreshold = failureThreshold;
+        this.openNanos = openNanos;
+        this.clock = clock;
+    }
+
+    /**
+     * Asks for permission to make a call. Every granted call must be followed by
+     * {@link #onSuccess(long)} or {@link #onFailure(long)} with the returned generation.
+     *
+     * @return The generation of the call, or {@link #REFUSED} if the call may not be made.
+     */
+    synchronized long tryAcquire() {
+        switch (state) {
+            case CLOSED:
+                return generation;
+            case OPEN:
+                if (clock.getAsLong() - openedAt >= openNanos) {
+                    moveTo(State.HALF_OPEN);
+                    return generation;
+                }
+                return REFUSED;
+            default:
+                // Only the probe is allowed while half-open
+                return REFUSED;
+        }
+    }
+
+    synchronized void onSuccess(long callGeneration) {
+        if (callGeneration != generation) {
+            return;
+        }
+        consecutiveFailures = 0;
+        if (state != State.CLOSED) {
+            moveTo(State.CLOSED);
+        }
+    }
+
+    synchronized void onFailure(long callGeneration) {
+        if (callGeneration != generation) {
+            return;
+        }
+        consecutiveFailures++;
+        if (state == State.HALF_OPEN || consecutiveFailures >= failureThreshold) {
+            moveTo(State.OPEN);
+            openedAt = clock.getAsLong();
+        }
+    }
+
+    synchronized State getState() {
+        return state;
+    }
+
+    private void moveTo(State next) {
+        state = next;
+        generation++;
+    }
+}
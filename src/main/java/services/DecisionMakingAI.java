@@ -2,12 +2,26 @@ package services;
 
 import data.InvalidFormatException;
 import data.NullValueException;
+import medicalconsultation.MedicalPrescription;
 
 import java.util.List;
 
 public interface DecisionMakingAI {
     void initDecisionMakingAI() throws AIException;
-    String getSuggestions(String prompt) throws BadPromptException;
-    List<Suggestion> parseSuggest (String aiAnswer) throws InvalidFormatException, NullValueException;
-}
+    String getSuggestions(String prompt) throws BadPromptException, AIException;
+
+    /**
+     * Converts an answer into suggestions. By default answers are read in the {@link SuggestionFormat}.
+     */
+    default List<Suggestion> parseSuggest (String aiAnswer) throws InvalidFormatException, NullValueException {
+        return SuggestionFormat.parse(aiAnswer);
+    }
 
+    /**
+     * Asks for suggestions about the prescription being edited.
+     * By default the context is ignored; implementations may use it to refine or reuse answers.
+     */
+    default String getSuggestions(String prompt, MedicalPrescription context) throws BadPromptException, AIException {
+        return getSuggestions(prompt);
+    }
+}
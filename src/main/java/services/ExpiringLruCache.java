@@ -0,0 +1,104 @@
+package services;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+
+/**
+ * Small size-bounded cache with least-recently-used eviction and a time-to-live per entry.
+ * It is shared by the caching decorators of this package; all operations are synchronized.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+final class ExpiringLruCache<K, V> {
+
+    // Stored value together with the instant (in clock nanoseconds) at which it expires
+    private static final class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private final int maxSize;
+    private final long ttlNanos;
+    private final LongSupplier clock;
+    private final LinkedHashMap<K, Entry<V>> entries;
+    private final Consumer<K> onDrop;
+    private long evictions;
+
+    /**
+     * @param maxSize  The maximum number of entries kept.
+     * @param ttlNanos The time to live of every entry, in nanoseconds.
+     * @param clock    The time source, in nanoseconds (System::nanoTime in production).
+     */
+    ExpiringLruCache(int maxSize, long ttlNanos, LongSupplier clock) {
+        this(maxSize, ttlNanos, clock, key -> {
+        });
+    }
+
+    /**
+     * @param onDrop Receives the key of every entry the cache drops by itself, because it was evicted
+     *               or found expired; it is called while holding the lock of the cache.
+     */
+    ExpiringLruCache(int maxSize, long ttlNanos, LongSupplier clock, Consumer<K> onDrop) {
+        if (maxSize <= 0 || ttlNanos <= 0) {
+            throw new IllegalArgumentException("El tamaño y la caducidad de la caché deben ser positivos.");
+        }
+        this.maxSize = maxSize;
+        this.ttlNanos = ttlNanos;
+        this.clock = clock;
+        this.onDrop = onDrop;
+        // Access order makes the iteration start at the least recently used entry
+        this.entries = new LinkedHashMap<>(16, 0.75f, true);
+    }
+
+    /** @return The cached value, or null if it is absent or has expired. */
+    synchronized V get(K key) {
+        Entry<V> entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (clock.getAsLong() - entry.expiresAt >= 0) {
+            entries.remove(key);
+            onDrop.accept(key);
+            return null;
+        }
+        return entry.value;
+    }
+
+    synchronized void put(K key, V value) {
+        entries.put(key, new Entry<>(value, clock.getAsLong() + ttlNanos));
+        Iterator<Map.Entry<K, Entry<V>>> eldest = entries.entrySet().iterator();
+        while (entries.size() > maxSize) {
+            K evicted = eldest.next().getKey();
+            eldest.remove();
+            evictions++;
+            onDrop.accept(evicted);
+        }
+    }
+
+    synchronized void remove(K key) {
+        entries.remove(key);
+    }
+
+    synchronized void removeIf(Predicate<K> condition) {
+        entries.keySet().removeIf(condition);
+    }
+
+    synchronized int size() {
+        return entries.size();
+    }
+
+    /** @return The number of entries dropped to respect the size bound. */
+    synchronized long getEvictions() {
+        return evictions;
+    }
+}
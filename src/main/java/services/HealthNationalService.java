@@ -7,6 +7,11 @@ import medicalconsultation.MedicalHistory;
 import medicalconsultation.MedicalPrescription;
 
 import java.net.ConnectException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
 
 public interface HealthNationalService {
     MedicalHistory getMedicalHistory (HealthCardID cip)
@@ -20,4 +25,119 @@ public interface HealthNationalService {
 
     MedicalPrescription generateTreatmCodeAndRegister (MedicalPrescription ePresc)
             throws ConnectException;
-}
\ No newline at end of file
+
+    /**
+     * Sends the history and the prescription under an identifier chosen by the client, unique for each
+     * submission. A service that remembers the identifiers it has stored returns the earlier result when
+     * the same identifier arrives again, so a submission retried after its answer was lost is stored once.
+     * By default the identifier is ignored and the submission sent as usual.
+     *
+     * @param submissionId The identifier of the submission.
+     */
+    default MedicalPrescription sendHistoryAndPrescriptionOnce (String submissionId, HealthCardID cip, MedicalHistory hce,
+                                                                String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException, NotCompletedMedicalPrescription {
+        return sendHistoryAndPrescription(cip, hce, illness, mPresc);
+    }
+
+    /**
+     * Downloads a page of the medical history of a patient, with the data of the whole history.
+     * By default the whole history is downloaded and the page taken from it; services with a paged
+     * endpoint transmit only the page.
+     *
+     * @param before         The position after the last annotation of the page, or {@link HistoryPage#LATEST}.
+     * @param maxAnnotations The maximum number of annotations of the page.
+     */
+    default HistoryPage getMedicalHistoryPage (HealthCardID cip, int before, int maxAnnotations)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return HistoryPage.of(getMedicalHistory(cip), before, maxAnnotations);
+    }
+
+    /**
+     * Downloads only the latest annotations of the medical history of a patient. The older ones are
+     * downloaded when the returned history needs them; if that fails, the history throws an
+     * {@link java.io.UncheckedIOException}. New annotations can be added without downloading them.
+     *
+     * @param pageSize The number of latest annotations downloaded at once.
+     */
+    default MedicalHistory getLatestMedicalHistory (HealthCardID cip, int pageSize)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return getMedicalHistoryPage(cip, HistoryPage.LATEST, pageSize).toLazyHistory(this);
+    }
+
+    /**
+     * @return Whether the SNS has a delta endpoint. Without it, {@link #sendHistoryDeltaAndPrescription}
+     * downloads and sends the whole history, so clients that already hold it should send it with
+     * {@link #sendHistoryAndPrescription} instead.
+     */
+    default boolean supportsHistoryDeltas () {
+        return false;
+    }
+
+    /**
+     * Sends the changes made to a medical history during a consultation, with the signed prescription.
+     * The SNS checks the version of the history and stores the changes in the same operation, so if the
+     * history has been changed since it was downloaded (for example, from another terminal), nothing is
+     * stored and the terminal must download it again.
+     * By default, for services without a delta endpoint, the whole history is downloaded, the delta applied
+     * to it and the result sent with {@link #sendHistoryAndPrescription}; the version is then checked against
+     * the downloaded history, not in the same operation that stores it.
+     *
+     * @throws HistoryVersionConflictException If the history does not match the base of the delta.
+     */
+    default MedicalPrescription sendHistoryDeltaAndPrescription (HistoryDelta delta, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+            NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        MedicalHistory current;
+        try {
+            current = getMedicalHistory(delta.getCip());
+        } catch (IncorrectParametersException e) {
+            throw new HealthCardIDException(e.getMessage());
+        }
+        return sendHistoryAndPrescription(delta.getCip(), delta.applyTo(current), illness, mPresc);
+    }
+
+    /**
+     * Sends several histories and prescriptions to the SNS.
+     * Each item succeeds or fails on its own; the results keep the order of the submissions.
+     * Items that carry a {@link HistoryDelta} are sent as {@link #sendHistoryDeltaAndPrescription} would.
+     * By default the items are sent one by one; services with a batch endpoint send them in a single request.
+     *
+     * @throws ConnectException If the SNS cannot be reached for the batch as a whole.
+     */
+    default List<SubmissionResult> sendHistoriesAndPrescriptions (List<Submission> submissions)
+            throws ConnectException {
+        List<SubmissionResult> results = new ArrayList<>(submissions.size());
+        for (int i = 0; i < submissions.size(); i++) {
+            Submission s = submissions.get(i);
+            try {
+                results.add(SubmissionResult.success(i, s.getDelta() == null
+                        ? sendHistoryAndPrescription(s.getCip(), s.getHistory(), s.getIllness(), s.getPrescription())
+                        : sendHistoryDeltaAndPrescription(s.getDelta(), s.getIllness(), s.getPrescription())));
+            } catch (ConnectException | HealthCardIDException | AnyCurrentPrescriptionException
+                     | NotCompletedMedicalPrescription | HistoryVersionConflictException e) {
+                results.add(SubmissionResult.failure(i, e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Generates the treatment codes of several prescriptions and registers them.
+     * The results are produced lazily, in the order of the collection, as the stream is consumed,
+     * so registering a large collection does not keep every result in memory.
+     * An item that cannot be registered is reported in its result without stopping the rest.
+     * By default the prescriptions are registered one by one.
+     */
+    default Stream<SubmissionResult> generateTreatmCodesAndRegister (Collection<MedicalPrescription> prescriptions) {
+        AtomicInteger index = new AtomicInteger();
+        return prescriptions.stream().sequential().map(presc -> {
+            int i = index.getAndIncrement();
+            try {
+                return SubmissionResult.success(i, generateTreatmCodeAndRegister(presc));
+            } catch (ConnectException e) {
+                return SubmissionResult.failure(i, e);
+            }
+        });
+    }
+}
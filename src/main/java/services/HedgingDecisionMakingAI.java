@@ -0,0 +1,360 @@
+package services;
+
+import data.InvalidFormatException;
+import data.NullValueException;
+import data.ProductID;
+import medicalconsultation.MedicalPrescription;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Composite {@link DecisionMakingAI} that distributes each prompt among several backends.
+ * <ul>
+ *     <li>In {@link Mode#FIRST} mode the prompt is sent to the first (primary) backend. If it has not
+ *     answered after the configured percentile of its recent latencies, the prompt is also sent to the
+ *     next backend, and so on; the first valid answer is used. A backend that fails is hedged at once.</li>
+ *     <li>In {@link Mode#MERGE} mode the prompt is sent to every backend and their suggestions are merged.
+ *     Suggestions of the same type for the same product are only kept once, preferring the earliest
+ *     backend of the list. Backends that have not answered by the merge deadline are left out.</li>
+ * </ul>
+ * Once the answer has been chosen, the calls still in progress are cancelled by interrupting them,
+ * so slow backends do not keep working on prompts nobody is waiting for.
+ * Since each backend may use its own answer format, the answers are always returned
+ * in the {@link SuggestionFormat}.
+ */
+public class HedgingDecisionMakingAI implements DecisionMakingAI {
+
+    public enum Mode {
+        FIRST,  // First valid answer, hedging slow backends
+        MERGE   // Union of the answers of every backend
+    }
+
+    // Default executor for the remote calls: one virtual thread per call
+    private static final Executor DEFAULT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    // Latencies of the primary backend used to compute the hedging delay
+    private static final int WINDOW_CAPACITY = 256;
+    private static final int WINDOW_MIN_SAMPLES = 20;
+
+    // Time waited for the answers of every backend in MERGE mode, unless another one is configured
+    private static final Duration DEFAULT_MERGE_TIMEOUT = Duration.ofSeconds(30);
+
+    // Outcome of the call to one backend: either its parsed suggestions or the error
+    private record Outcome(int backend, List<Suggestion> suggestions, Exception error) {
+    }
+
+    // Identity of a suggestion when merging answers
+    private record SuggestionKey(Suggestion.SuggType type, ProductID productID) {
+    }
+
+    private final List<DecisionMakingAI> backends;
+    private final Mode mode;
+    private final double hedgePercentile;
+    private final long initialHedgeNanos;
+    private final long mergeTimeoutNanos;
+    private final Executor executor;
+    private final LatencyWindow primaryLatencies = new LatencyWindow(WINDOW_CAPACITY, WINDOW_MIN_SAMPLES);
+
+    /**
+     * Creates a composite that waits up to 30 seconds for the answers to merge.
+     *
+     * @param backends           The backends, the primary first.
+     * @param mode               How the answers of the backends are combined.
+     * @param hedgePercentile    The percentile (0-100) of the primary latency after which the next backend is asked.
+     * @param initialHedgeDelay  The hedging delay used until enough latencies have been observed.
+     */
+    public HedgingDecisionMakingAI(List<DecisionMakingAI> backends, Mode mode, double hedgePercentile,
+                                   Duration initialHedgeDelay) {
+        this(backends, mode, hedgePercentile, initialHedgeDelay, DEFAULT_MERGE_TIMEOUT);
+    }
+
+    /**
+     * @param backends           The backends, the primary first.
+     * @param mode               How the answers of the backends are combined.
+     * @param hedgePercentile    The percentile (0-100) of the primary latency after which the next backend is asked.
+     * @param initialHedgeDelay  The hedging delay used until enough latencies have been observed.
+     * @param mergeTimeout       How long the answers are awaited in MERGE mode.
+     */
+    public HedgingDecisionMakingAI(List<DecisionMakingAI> backends, Mode mode, double hedgePercentile,
+                                   Duration initialHedgeDelay, Duration mergeTimeout) {
+        this(backends, mode, hedgePercentile, initialHedgeDelay, mergeTimeout, DEFAULT_EXECUTOR);
+    }
+
+    HedgingDecisionMakingAI(List<DecisionMakingAI> backends, Mode mode, double hedgePercentile,
+                            Duration initialHedgeDelay, Duration mergeTimeout, Executor executor) {
+        if (backends.isEmpty() || hedgePercentile <= 0 || hedgePercentile > 100) {
+            throw new IllegalArgumentException("Se necesita al menos una IA y un percentil entre 0 y 100.");
+        }
+        if (mergeTimeout.isNegative() || mergeTimeout.isZero()) {
+            throw new IllegalArgumentException("El tiempo de espera de las respuestas debe ser positivo.");
+        }
+        this.backends = List.copyOf(backends);
+        this.mode = mode;
+        this.hedgePercentile = hedgePercentile;
+        this.initialHedgeNanos = initialHedgeDelay.toNanos();
+        this.mergeTimeoutNanos = mergeTimeout.toNanos();
+        this.executor = executor;
+    }
+
+    /**
+     * Initializes every backend. It only fails if none of them could be initialized.
+     */
+    @Override
+    public void initDecisionMakingAI() throws AIException {
+        AIException firstError = null;
+        for (DecisionMakingAI backend : backends) {
+            try {
+                backend.initDecisionMakingAI();
+            } catch (AIException e) {
+                if (firstError == null) {
+                    firstError = e;
+                }
+                continue;
+            }
+            firstError = null;
+            break;
+        }
+        if (firstError != null) {
+            throw firstError;
+        }
+    }
+
+    @Override
+    public String getSuggestions(String prompt) throws BadPromptException, AIException {
+        return getSuggestions(prompt, null);
+    }
+
+    @Override
+    public String getSuggestions(String prompt, MedicalPrescription context) throws BadPromptException, AIException {
+        List<Suggestion> suggestions = mode == Mode.MERGE ? merge(prompt, context) : first(prompt, context);
+        return SuggestionFormat.format(suggestions);
+    }
+
+    /** @return The delay after which the next backend is asked, in nanoseconds. */
+    long getHedgeDelayNanos() {
+        long observed = primaryLatencies.percentile(hedgePercentile);
+        return observed < 0 ? initialHedgeNanos : observed;
+    }
+
+    // --- Internal helpers ---
+
+    private List<Suggestion> first(String prompt, MedicalPrescription context)
+            throws BadPromptException, AIException {
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        long hedgeDelay = getHedgeDelayNanos();
+        int launched = 0;
+        int failed = 0;
+        List<Exception> errors = new ArrayList<>();
+        List<BackendCall> calls = new ArrayList<>();
+
+        calls.add(launch(launched++, prompt, context, outcomes));
+        try {
+            while (true) {
+                Outcome outcome = launched < backends.size()
+                        ? outcomes.poll(hedgeDelay, TimeUnit.NANOSECONDS)
+                        : outcomes.take();
+                if (outcome == null) {
+                    // The backends asked so far are too slow: hedge to the next one
+                    calls.add(launch(launched++, prompt, context, outcomes));
+                } else if (outcome.error() == null) {
+                    return outcome.suggestions();
+                } else {
+                    errors.add(outcome.error());
+                    failed++;
+                    if (failed == backends.size()) {
+                        throw failure(errors);
+                    }
+                    if (failed == launched) {
+                        calls.add(launch(launched++, prompt, context, outcomes));
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AIException("La consulta a la IA ha sido interrumpida.");
+        } finally {
+            cancel(calls);
+        }
+    }
+
+    private List<Suggestion> merge(String prompt, MedicalPrescription context)
+            throws BadPromptException, AIException {
+        BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<>();
+        List<BackendCall> calls = new ArrayList<>(backends.size());
+        for (int i = 0; i < backends.size(); i++) {
+            calls.add(launch(i, prompt, context, outcomes));
+        }
+
+        List<List<Suggestion>> answers = new ArrayList<>(backends.size());
+        for (int i = 0; i < backends.size(); i++) {
+            answers.add(null);
+        }
+        List<Exception> errors = new ArrayList<>();
+        int answered = 0;
+        long deadline = System.nanoTime() + mergeTimeoutNanos;
+        try {
+            for (int i = 0; i < backends.size(); i++) {
+                Outcome outcome = outcomes.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                if (outcome == null) {
+                    // The rest of the backends are too slow: merge what has arrived
+                    break;
+                }
+                if (outcome.error() == null) {
+                    answers.set(outcome.backend(), outcome.suggestions());
+                    answered++;
+                } else {
+                    errors.add(outcome.error());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AIException("La consulta a la IA ha sido interrumpida.");
+        } finally {
+            cancel(calls);
+        }
+        if (answered == 0) {
+            if (errors.isEmpty()) {
+                throw new AIException("Ninguna IA ha respondido en el tiempo previsto.");
+            }
+            throw failure(errors);
+        }
+
+        // Backends are visited in priority order, so the first one to suggest something keeps it
+        Map<SuggestionKey, Suggestion> merged = new LinkedHashMap<>();
+        for (List<Suggestion> answer : answers) {
+            if (answer != null) {
+                for (Suggestion sugg : answer) {
+                    merged.putIfAbsent(new SuggestionKey(sugg.getType(), sugg.getProductID()), sugg);
+                }
+            }
+        }
+        return new ArrayList<>(merged.values());
+    }
+
+    /**
+     * Asks one backend in the background. Its answer is only considered valid if it can be parsed.
+     *
+     * @return The call, to cancel it if its answer is no longer needed.
+     */
+    private BackendCall launch(int index, String prompt, MedicalPrescription context, BlockingQueue<Outcome> outcomes) {
+        DecisionMakingAI backend = backends.get(index);
+        BackendCall call = new BackendCall();
+        executor.execute(() -> {
+            if (!call.start()) {
+                return;
+            }
+            try {
+                String answer = backend.getSuggestions(prompt, context);
+                List<Suggestion> suggestions = backend.parseSuggest(answer);
+                long latency = call.answered();
+                if (index == 0 && latency >= 0) {
+                    primaryLatencies.record(latency);
+                }
+                outcomes.add(new Outcome(index, suggestions, null));
+            } catch (InvalidFormatException | NullValueException e) {
+                outcomes.add(new Outcome(index, null,
+                        new AIException("La IA ha devuelto una respuesta no válida: " + e.getMessage())));
+            } catch (Exception e) {
+                outcomes.add(new Outcome(index, null, e));
+            } finally {
+                call.end();
+            }
+        });
+        return call;
+    }
+
+    /**
+     * Cancels the calls still in progress. A primary that lost has not answered yet, so the time it
+     * has been running is recorded as its latency: it is only a lower bound, but leaving it out would
+     * make the window forget precisely the slow calls that hedging exists for.
+     *
+     * @param calls The calls, in the order of their backends.
+     */
+    private void cancel(List<BackendCall> calls) {
+        long primaryElapsed = calls.get(0).cancel();
+        if (primaryElapsed >= 0) {
+            primaryLatencies.record(primaryElapsed);
+        }
+        for (int i = 1; i < calls.size(); i++) {
+            calls.get(i).cancel();
+        }
+    }
+
+    /**
+     * Chooses the error reported when no backend could answer: a bad prompt if every backend
+     * rejected it, or a problem of availability otherwise.
+     */
+    private static AIException failure(List<Exception> errors) throws BadPromptException {
+        for (Exception e : errors) {
+            if (e instanceof AIException aie) {
+                return aie;
+            }
+            if (!(e instanceof BadPromptException)) {
+                return new AIException("Ninguna IA ha podido responder: " + e.getMessage());
+            }
+        }
+        throw (BadPromptException) errors.get(0);
+    }
+
+    /**
+     * A call to a backend that can be cancelled by interrupting the thread running it.
+     * The interrupt is only delivered while the call is running, so it never reaches
+     * a later task of the executor.
+     */
+    private static final class BackendCall {
+        private Thread runner;
+        private long startNanos;
+        private boolean cancelled;
+        // Whether the latency of the call has already been taken, by its answer or by its cancellation
+        private boolean measured;
+
+        /** @return false if the call was cancelled before it started. */
+        synchronized boolean start() {
+            if (cancelled) {
+                return false;
+            }
+            runner = Thread.currentThread();
+            startNanos = System.nanoTime();
+            return true;
+        }
+
+        /** @return The latency of the call, or -1 if it was cancelled first. */
+        synchronized long answered() {
+            if (measured) {
+                return -1;
+            }
+            measured = true;
+            return System.nanoTime() - startNanos;
+        }
+
+        synchronized void end() {
+            runner = null;
+            measured = true;
+            // Clears an interrupt sent by cancel after the backend had already answered
+            Thread.interrupted();
+        }
+
+        /** @return The time the call had been running, or -1 if it was not running or had already answered. */
+        synchronized long cancel() {
+            cancelled = true;
+            if (runner == null) {
+                return -1;
+            }
+            runner.interrupt();
+            if (measured) {
+                return -1;
+            }
+            measured = true;
+            return System.nanoTime() - startNanos;
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package services;
+
+import data.HealthCardID;
+import medicalconsultation.MedicalHistory;
+
+import java.util.List;
+
+/**
+ * The changes made to a medical history during a consultation: the annotations added since it was
+ * downloaded and the current doctor, together with the version and the number of annotations of the
+ * history they apply to. Sending the delta instead of the whole history keeps the submission small
+ * however long the history of the patient is.
+ */
+public final class HistoryDelta {
+
+    private final HealthCardID cip;
+    private final int membShipNumb;
+    private final long baseVersion;
+    private final int baseAnnotationCount;
+    private final List<String> annotations;
+
+    public HistoryDelta(HealthCardID cip, int membShipNumb, long baseVersion, int baseAnnotationCount, List<String> annotations) {
+        this.cip = cip;
+        this.membShipNumb = membShipNumb;
+        this.baseVersion = baseVersion;
+        this.baseAnnotationCount = baseAnnotationCount;
+        this.annotations = List.copyOf(annotations);
+    }
+
+    /**
+     * @param history A history downloaded from the SNS and possibly extended since then.
+     * @return The changes made to the history since it was last synchronized.
+     */
+    public static HistoryDelta of(MedicalHistory history) {
+        return new HistoryDelta(history.getCip(), history.getMembShipNumb(), history.getVersion(),
+                history.getSyncedAnnotationCount(), history.getAnnotationsSinceSync());
+    }
+
+    /**
+     * Checks that the delta was made on the given state of the history.
+     *
+     * @param version         The current version of the history.
+     * @param annotationCount The current number of annotations of the history.
+     * @throws HistoryVersionConflictException If the history has changed since the delta's base was downloaded.
+     */
+    public void checkBase(long version, int annotationCount) throws HistoryVersionConflictException {
+        if (version != baseVersion || annotationCount != baseAnnotationCount) {
+            throw new HistoryVersionConflictException();
+        }
+    }
+
+    /**
+     * Applies the delta to a copy of the current history.
+     *
+     * @param current The history stored in the SNS.
+     * @return The updated history.
+     * @throws HistoryVersionConflictException If the history has changed since the delta's base was downloaded.
+     */
+    public MedicalHistory applyTo(MedicalHistory current) throws HistoryVersionConflictException {
+        checkBase(current.getVersion(), current.getAnnotationCount());
+        MedicalHistory updated = new MedicalHistory(current);
+        updated.setNewDoctor(membShipNumb);
+        for (String annotation : annotations) {
+            updated.addMedicalHistoryAnnotations(annotation);
+        }
+        return updated;
+    }
+
+    public HealthCardID getCip() {
+        return cip;
+    }
+
+    public int getMembShipNumb() {
+        return membShipNumb;
+    }
+
+    public long getBaseVersion() {
+        return baseVersion;
+    }
+
+    public int getBaseAnnotationCount() {
+        return baseAnnotationCount;
+    }
+
+    /** @return The annotations added during the consultation, oldest first. */
+    public List<String> getAnnotations() {
+        return annotations;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryDelta{" +
+                "cip=" + cip +
+                ", baseVersion=" + baseVersion +
+                ", annotations=" + annotations.size() +
+                '}';
+    }
+}
@@ -0,0 +1,138 @@
+package services;
+
+import data.HealthCardID;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+
+import java.util.List;
+
+/**
+ * A page of consecutive annotations of a medical history, together with the data of the whole
+ * history needed to work with it without downloading the rest: the doctor, the version, the number
+ * of annotations and the length and hash of the history text.
+ * <p>
+ * Annotations are numbered from 0, the oldest. Pages are requested by the position after their last
+ * annotation, starting with {@link #LATEST}; the next older page ends at {@link #getOlderCursor()}.
+ */
+public final class HistoryPage {
+
+    /** Cursor of the latest page of a history. */
+    public static final int LATEST = Integer.MAX_VALUE;
+
+    private final HealthCardID cip;
+    private final int membShipNumb;
+    private final long version;
+    private final int totalAnnotations;
+    private final int historyLength;
+    private final int historyHash;
+    private final int firstIndex;
+    private final List<String> annotations;
+
+    public HistoryPage(HealthCardID cip, int membShipNumb, long version, int totalAnnotations,
+                       int historyLength, int historyHash, int firstIndex, List<String> annotations) {
+        this.cip = cip;
+        this.membShipNumb = membShipNumb;
+        this.version = version;
+        this.totalAnnotations = totalAnnotations;
+        this.historyLength = historyLength;
+        this.historyHash = historyHash;
+        this.firstIndex = firstIndex;
+        this.annotations = List.copyOf(annotations);
+    }
+
+    /**
+     * Takes a page out of a whole history.
+     *
+     * @param history        The history.
+     * @param before         The position after the last annotation of the page, or {@link #LATEST}.
+     * @param maxAnnotations The maximum number of annotations of the page.
+     * @return The page.
+     */
+    public static HistoryPage of(MedicalHistory history, int before, int maxAnnotations) {
+        if (maxAnnotations <= 0) {
+            throw new IllegalArgumentException("El tamaño de página debe ser positivo.");
+        }
+        List<String> all = history.getAnnotations();
+        int end = Math.min(Math.max(before, 0), all.size());
+        int start = Math.max(0, end - maxAnnotations);
+        return new HistoryPage(history.getCip(), history.getMembShipNumb(), history.getVersion(), all.size(),
+                history.getHistoryLength(), history.getHistoryHash(), start, all.subList(start, end));
+    }
+
+    /**
+     * Builds a history with the annotations of this page, which must be the latest one;
+     * the older annotations are downloaded from the service when they are needed.
+     *
+     * @param hns The service the page was downloaded from.
+     * @return The history, synchronized with the version of the page.
+     */
+    public MedicalHistory toLazyHistory(HealthNationalService hns) {
+        if (firstIndex + annotations.size() != totalAnnotations) {
+            throw new IllegalStateException("Solo se puede construir el historial a partir de la última página.");
+        }
+        MedicalHistory history;
+        try {
+            history = new MedicalHistory(cip, membShipNumb, annotations, firstIndex, historyLength, historyHash,
+                    new PagedAnnotationLoader(hns, cip, version));
+        } catch (IncorrectParametersException e) {
+            throw new IllegalStateException("Página de historial incorrecta: " + e.getMessage(), e);
+        }
+        history.markSynchronized(version);
+        return history;
+    }
+
+    public HealthCardID getCip() {
+        return cip;
+    }
+
+    public int getMembShipNumb() {
+        return membShipNumb;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    /** @return The number of annotations of the whole history. */
+    public int getTotalAnnotations() {
+        return totalAnnotations;
+    }
+
+    /** @return The length of the text of the whole history. */
+    public int getHistoryLength() {
+        return historyLength;
+    }
+
+    /** @return The hash of the text of the whole history, as {@link MedicalHistory#getHistoryHash()} returns it. */
+    public int getHistoryHash() {
+        return historyHash;
+    }
+
+    /** @return The position of the first annotation of the page. */
+    public int getFirstIndex() {
+        return firstIndex;
+    }
+
+    /** @return The annotations of the page, oldest first. */
+    public List<String> getAnnotations() {
+        return annotations;
+    }
+
+    public boolean hasOlder() {
+        return firstIndex > 0;
+    }
+
+    /** @return The cursor of the next older page. */
+    public int getOlderCursor() {
+        return firstIndex;
+    }
+
+    @Override
+    public String toString() {
+        return "HistoryPage{" +
+                "cip=" + cip +
+                ", version=" + version +
+                ", annotations=" + firstIndex + ".." + (firstIndex + annotations.size()) + "/" + totalAnnotations +
+                '}';
+    }
+}
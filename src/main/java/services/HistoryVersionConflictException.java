@@ -0,0 +1,11 @@
+package services;
+
+public class HistoryVersionConflictException extends Exception {
+    public HistoryVersionConflictException() {
+        super("El historial clínico ha sido modificado desde otro terminal después de descargarlo.");
+    }
+
+    public HistoryVersionConflictException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,124 @@
+package services;
+
+import data.InvalidFormatException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.function.Consumer;
+
+/**
+ * Parses an AI answer while it is still being received.
+ * Chunks of text can arrive split at any point; every time a line of the
+ * {@link SuggestionFormat} is complete, its suggestion is parsed and handed to the listener,
+ * so the terminal can show and check it before the whole answer has been generated.
+ * <p>
+ * The parser can be fed directly with {@link #feed(CharSequence)} and {@link #finish()}, or
+ * subscribed to the publisher of a {@link StreamingDecisionMakingAI}; in the latter case the
+ * outcome is available through {@link #getResult()}.
+ */
+public class IncrementalSuggestionParser implements Flow.Subscriber<String> {
+
+    private final Consumer<Suggestion> listener;
+    private final List<Suggestion> suggestions = new ArrayList<>();
+    private final StringBuilder pending = new StringBuilder();
+    private final CompletableFuture<List<Suggestion>> result = new CompletableFuture<>();
+    private Flow.Subscription subscription;
+
+    /**
+     * @param listener Receives every suggestion as soon as its line is complete. When subscribed to a
+     *                 publisher, an exception thrown by the listener stops the answer and fails the result.
+     */
+    public IncrementalSuggestionParser(Consumer<Suggestion> listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Adds a new chunk of the answer and parses the lines it completes.
+     *
+     * @param chunk The next piece of the answer.
+     * @throws InvalidFormatException If a completed line does not follow the format.
+     */
+    public void feed(CharSequence chunk) throws InvalidFormatException {
+        int start = 0;
+        for (int i = 0; i < chunk.length(); i++) {
+            if (chunk.charAt(i) == '\n') {
+                if (pending.length() == 0) {
+                    // The whole line is inside the chunk: no need to copy it
+                    emit(SuggestionFormat.parseLine(chunk, start, i));
+                } else {
+                    pending.append(chunk, start, i);
+                    emit(SuggestionFormat.parseLine(pending, 0, pending.length()));
+                    pending.setLength(0);
+                }
+                start = i + 1;
+            }
+        }
+        pending.append(chunk, start, chunk.length());
+    }
+
+    /**
+     * Parses the last line of the answer, if it did not end with a line break.
+     *
+     * @return Every suggestion of the answer, in order.
+     * @throws InvalidFormatException If the last line does not follow the format.
+     */
+    public List<Suggestion> finish() throws InvalidFormatException {
+        emit(SuggestionFormat.parseLine(pending, 0, pending.length()));
+        pending.setLength(0);
+        return Collections.unmodifiableList(suggestions);
+    }
+
+    /** @return A future completed with every suggestion once the publisher has finished. */
+    public CompletableFuture<List<Suggestion>> getResult() {
+        return result;
+    }
+
+    // --- Flow.Subscriber ---
+
+    @Override
+    public void onSubscribe(Flow.Subscription subscription) {
+        this.subscription = subscription;
+        subscription.request(Long.MAX_VALUE);
+    }
+
+    @Override
+    public void onNext(String chunk) {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            feed(chunk);
+        } catch (InvalidFormatException | RuntimeException e) {
+            // The answer is unusable, or the listener failed: stop receiving it
+            subscription.cancel();
+            result.completeExceptionally(e);
+        }
+    }
+
+    @Override
+    public void onError(Throwable error) {
+        result.completeExceptionally(error);
+    }
+
+    @Override
+    public void onComplete() {
+        if (result.isDone()) {
+            return;
+        }
+        try {
+            result.complete(finish());
+        } catch (InvalidFormatException | RuntimeException e) {
+            result.completeExceptionally(e);
+        }
+    }
+
+    private void emit(Suggestion sugg) {
+        if (sugg != null) {
+            suggestions.add(sugg);
+            listener.accept(sugg);
+        }
+    }
+}
@@ -0,0 +1,50 @@
+package services;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the latencies of the most recent calls to a service and computes their percentiles.
+ * Older samples are overwritten once the window is full. All operations are synchronized.
+ */
+final class LatencyWindow {
+
+    private final long[] samples;
+    private final int minSamples;
+    private int count;
+    private int next;
+
+    /**
+     * @param capacity   The number of recent samples kept.
+     * @param minSamples The number of samples needed before percentiles are reported.
+     */
+    LatencyWindow(int capacity, int minSamples) {
+        if (capacity <= 0 || minSamples <= 0 || minSamples > capacity) {
+            throw new IllegalArgumentException("La ventana de latencias debe poder contener las muestras mínimas.");
+        }
+        this.samples = new long[capacity];
+        this.minSamples = minSamples;
+    }
+
+    synchronized void record(long nanos) {
+        samples[next] = nanos;
+        next = (next + 1) % samples.length;
+        if (count < samples.length) {
+            count++;
+        }
+    }
+
+    /**
+     * @param percentile The percentile, between 0 and 100.
+     * @return The latency below which that percentage of the recent calls finished,
+     * or -1 if there are not enough samples yet.
+     */
+    synchronized long percentile(double percentile) {
+        if (count < minSamples) {
+            return -1;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int rank = (int) Math.ceil(percentile / 100 * count) - 1;
+        return sorted[Math.max(0, Math.min(count - 1, rank))];
+    }
+}
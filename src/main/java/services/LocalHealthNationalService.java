@@ -0,0 +1,470 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import data.InvalidFormatException;
+import data.NullValueException;
+import data.ePrescripCode;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * In-memory stand-in for the SNS, used for local development and load measurements.
+ * Patients and their current prescriptions are registered beforehand; every request waits
+ * a fixed round-trip time, and a batch request waits it only once for all its items
+ * (bulk registrations, once per chunk).
+ * Documents are copied on the way in and out, as if they travelled through the network.
+ * Histories are kept in memory, or in a {@link MappedHistoryStore} if one is set; storage
+ * failures are reported as {@link UncheckedIOException}. Every stored change of a history gives it
+ * a new version, which is checked when a delta is sent.
+ */
+public class LocalHealthNationalService implements HealthNationalService {
+
+    // Number of prescriptions registered by each request of a bulk registration
+    static final int BULK_CHUNK = 1024;
+
+    // Number of submission identifiers remembered to detect repeated submissions
+    static final int REMEMBERED_SUBMISSIONS = 10_000;
+
+    // Treatment codes numbered by this node when there is no code allocator: "L" and 9 digits, so they
+    // keep the 10 characters of an ePrescripCode up to the largest number that fits the digits
+    private static final String LOCAL_CODE_FORMAT = "L%09d";
+    private static final long MAX_LOCAL_CODE = 999_999_999L;
+
+    // Key of a prescription: one patient may have prescriptions for several illnesses
+    private record PrescriptionKey(HealthCardID cip, String illness) {
+    }
+
+    private final long roundTripNanos;
+    private final Map<HealthCardID, MedicalHistory> histories = new ConcurrentHashMap<>();
+    private final Map<PrescriptionKey, MedicalPrescription> prescriptions = new ConcurrentHashMap<>();
+
+    // Current version of each history; changes to the histories are made while holding this map
+    private final Map<HealthCardID, Long> versions = new ConcurrentHashMap<>();
+
+    // Results of the latest identified submissions, to answer a repeated submission without storing it again
+    private final Map<String, MedicalPrescription> acceptedSubmissions = new LinkedHashMap<>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, MedicalPrescription> eldest) {
+            return size() > REMEMBERED_SUBMISSIONS;
+        }
+    };
+
+    private final AtomicLong roundTrips = new AtomicLong();
+    private final AtomicLong nextCode = new AtomicLong();
+
+    // Generator of the treatment codes; without it, codes are numbered from "L000000001" to "L999999999"
+    private volatile PrescripCodeAllocator codeAllocator;
+
+    // Persistent storage of the histories; without it, they are only kept in memory
+    private volatile MappedHistoryStore historyStore;
+
+    /**
+     * @param roundTrip The time every request takes.
+     */
+    public LocalHealthNationalService(Duration roundTrip) {
+        this.roundTripNanos = roundTrip.toNanos();
+    }
+
+    /**
+     * Sets the generator of the treatment codes assigned by this node.
+     */
+    public void setCodeAllocator(PrescripCodeAllocator codeAllocator) {
+        this.codeAllocator = codeAllocator;
+    }
+
+    /**
+     * Sets the store where the histories are kept. Histories registered before are not moved to it.
+     */
+    public void setHistoryStore(MappedHistoryStore historyStore) {
+        this.historyStore = historyStore;
+    }
+
+    // --- Test data ---
+
+    /**
+     * Registers a patient with the given medical history.
+     */
+    public void registerPatient(MedicalHistory history) {
+        keepHistory(history);
+    }
+
+    /**
+     * Registers the current prescription of a registered patient for its illness.
+     */
+    public void registerPrescription(MedicalPrescription prescription) {
+        prescriptions.put(new PrescriptionKey(prescription.getCip(), prescription.getIllness()),
+                new MedicalPrescription(prescription));
+    }
+
+    // --- HealthNationalService ---
+
+    @Override
+    public MedicalHistory getMedicalHistory(HealthCardID cip) throws ConnectException, HealthCardIDException {
+        roundTrip();
+        checkPatient(cip);
+        MedicalHistory history;
+        synchronized (versions) {
+            history = loadHistory(cip);
+            history.markSynchronized(versions.getOrDefault(cip, 0L));
+        }
+        return history;
+    }
+
+    @Override
+    public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException {
+        roundTrip();
+        checkPatient(cip);
+        MedicalPrescription prescription = prescriptions.get(new PrescriptionKey(cip, illness));
+        if (prescription == null) {
+            throw new AnyCurrentPrescriptionException();
+        }
+        return new MedicalPrescription(prescription);
+    }
+
+    @Override
+    public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, NotCompletedMedicalPrescription {
+        roundTrip();
+        return store(cip, hce, illness, mPresc);
+    }
+
+    /**
+     * Identified submission: a submission whose identifier was already stored is not stored again,
+     * and receives the result of the first one.
+     */
+    @Override
+    public MedicalPrescription sendHistoryAndPrescriptionOnce(String submissionId, HealthCardID cip, MedicalHistory hce,
+                                                              String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, NotCompletedMedicalPrescription {
+        roundTrip();
+        synchronized (acceptedSubmissions) {
+            MedicalPrescription earlier = acceptedSubmissions.get(submissionId);
+            if (earlier == null) {
+                earlier = store(cip, hce, illness, mPresc);
+                acceptedSubmissions.put(submissionId, earlier);
+            }
+            return new MedicalPrescription(earlier);
+        }
+    }
+
+    @Override
+    public MedicalPrescription generateTreatmCodeAndRegister(MedicalPrescription ePresc) throws ConnectException {
+        roundTrip();
+        return register(ePresc);
+    }
+
+    /**
+     * Paged endpoint: only the annotations of the page are copied into the response.
+     */
+    @Override
+    public HistoryPage getMedicalHistoryPage(HealthCardID cip, int before, int maxAnnotations)
+            throws ConnectException, HealthCardIDException {
+        roundTrip();
+        checkPatient(cip);
+        synchronized (versions) {
+            MappedHistoryStore store = historyStore;
+            HistoryPage page;
+            if (store == null) {
+                page = HistoryPage.of(histories.get(cip), before, maxAnnotations);
+            } else {
+                try {
+                    // Only the annotations of the page are read from the segment files
+                    page = store.readPage(cip, before, maxAnnotations);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            return new HistoryPage(cip, page.getMembShipNumb(), versions.getOrDefault(cip, 0L),
+                    page.getTotalAnnotations(), page.getHistoryLength(), page.getHistoryHash(),
+                    page.getFirstIndex(), page.getAnnotations());
+        }
+    }
+
+    @Override
+    public boolean supportsHistoryDeltas() {
+        return true;
+    }
+
+    /**
+     * Delta endpoint: only the annotations added during the consultation are received and appended.
+     */
+    @Override
+    public MedicalPrescription sendHistoryDeltaAndPrescription(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        roundTrip();
+        return storeDelta(delta, illness, mPresc);
+    }
+
+    /**
+     * Batch endpoint: the whole batch takes a single round trip.
+     */
+    @Override
+    public List<SubmissionResult> sendHistoriesAndPrescriptions(List<Submission> submissions) throws ConnectException {
+        roundTrip();
+        List<SubmissionResult> results = new ArrayList<>(submissions.size());
+        for (int i = 0; i < submissions.size(); i++) {
+            Submission s = submissions.get(i);
+            try {
+                results.add(SubmissionResult.success(i, s.getDelta() == null
+                        ? store(s.getCip(), s.getHistory(), s.getIllness(), s.getPrescription())
+                        : storeDelta(s.getDelta(), s.getIllness(), s.getPrescription())));
+            } catch (HealthCardIDException | NotCompletedMedicalPrescription | HistoryVersionConflictException e) {
+                results.add(SubmissionResult.failure(i, e));
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Bulk endpoint: prescriptions are registered in chunks, each taking a single round trip and
+     * reserving its block of treatment codes at once. Only the results of the current chunk are kept.
+     * Prescriptions of unknown patients, or without lines, end date or signature, are reported as failures.
+     */
+    @Override
+    public Stream<SubmissionResult> generateTreatmCodesAndRegister(Collection<MedicalPrescription> prescriptions) {
+        Iterator<MedicalPrescription> source = prescriptions.iterator();
+        Iterator<SubmissionResult> results = new Iterator<>() {
+            private final List<SubmissionResult> chunk = new ArrayList<>(BULK_CHUNK);
+            private int position;
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                if (position == chunk.size()) {
+                    chunk.clear();
+                    position = 0;
+                    if (source.hasNext()) {
+                        registerChunk(source, chunk, index);
+                        index += chunk.size();
+                    }
+                }
+                return position < chunk.size();
+            }
+
+            @Override
+            public SubmissionResult next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return chunk.get(position++);
+            }
+        };
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(results,
+                Spliterator.ORDERED | Spliterator.NONNULL), false);
+    }
+
+    // --- Monitoring ---
+
+    /** @return The number of requests received, counting a batch as one. */
+    public long getRoundTrips() {
+        return roundTrips.get();
+    }
+
+    // --- Internal helpers ---
+
+    private void checkPatient(HealthCardID cip) throws HealthCardIDException {
+        MappedHistoryStore store = historyStore;
+        boolean known;
+        try {
+            known = cip != null && (store == null ? histories.containsKey(cip) : store.contains(cip));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        if (!known) {
+            throw new HealthCardIDException();
+        }
+    }
+
+    private MedicalHistory loadHistory(HealthCardID cip) throws HealthCardIDException {
+        MappedHistoryStore store = historyStore;
+        if (store == null) {
+            return new MedicalHistory(histories.get(cip));
+        }
+        try {
+            return store.load(cip);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void keepHistory(MedicalHistory history) {
+        synchronized (versions) {
+            MappedHistoryStore store = historyStore;
+            if (store == null) {
+                histories.put(history.getCip(), new MedicalHistory(history));
+            } else {
+                try {
+                    // Only the annotations added since the stored history are written
+                    store.store(history);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            versions.merge(history.getCip(), 1L, Long::sum);
+        }
+    }
+
+    private static void checkCompleted(MedicalPrescription mPresc) throws NotCompletedMedicalPrescription {
+        if (mPresc == null || mPresc.getLineCount() == 0 || mPresc.getEndDate() == null || mPresc.getEsign() == null) {
+            throw new NotCompletedMedicalPrescription();
+        }
+    }
+
+    /**
+     * Validates and keeps the history and the prescription, which gets its treatment code.
+     */
+    private MedicalPrescription store(HealthCardID cip, MedicalHistory hce, String illness, MedicalPrescription mPresc)
+            throws HealthCardIDException, NotCompletedMedicalPrescription {
+        checkPatient(cip);
+        checkCompleted(mPresc);
+        if (hce != null) {
+            keepHistory(hce);
+        }
+        return registerCurrent(cip, illness, mPresc);
+    }
+
+    /**
+     * Checks the base of the delta, appends its annotations and registers the prescription.
+     */
+    private MedicalPrescription storeDelta(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+            throws HealthCardIDException, NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        HealthCardID cip = delta.getCip();
+        checkPatient(cip);
+        checkCompleted(mPresc);
+        synchronized (versions) {
+            MappedHistoryStore store = historyStore;
+            try {
+                if (store == null) {
+                    MedicalHistory current = new MedicalHistory(histories.get(cip));
+                    current.markSynchronized(versions.getOrDefault(cip, 0L));
+                    histories.put(cip, delta.applyTo(current));
+                } else {
+                    delta.checkBase(versions.getOrDefault(cip, 0L), store.getAnnotationCount(cip));
+                    store.setDoctor(cip, delta.getMembShipNumb());
+                    for (String annotation : delta.getAnnotations()) {
+                        store.append(cip, annotation);
+                    }
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+            versions.merge(cip, 1L, Long::sum);
+        }
+        return registerCurrent(cip, illness, mPresc);
+    }
+
+    /**
+     * Registers a prescription as the current one of the patient for the illness.
+     */
+    private MedicalPrescription registerCurrent(HealthCardID cip, String illness, MedicalPrescription mPresc) {
+        MedicalPrescription registered = register(mPresc);
+        prescriptions.put(new PrescriptionKey(cip, illness), new MedicalPrescription(registered));
+        return registered;
+    }
+
+    private MedicalPrescription register(MedicalPrescription ePresc) {
+        return register(ePresc, reserveCodes(1));
+    }
+
+    private MedicalPrescription register(MedicalPrescription ePresc, long number) {
+        MedicalPrescription registered = new MedicalPrescription(ePresc);
+        PrescripCodeAllocator allocator = codeAllocator;
+        if (allocator != null) {
+            registered.setPrescCode(allocator.codeOf(number));
+            return registered;
+        }
+        try {
+            registered.setPrescCode(new ePrescripCode(String.format(LOCAL_CODE_FORMAT, number)));
+        } catch (NullValueException | InvalidFormatException e) {
+            throw new IllegalStateException("Código de prescripción generado incorrecto.", e);
+        }
+        return registered;
+    }
+
+    /**
+     * @return The first number of a block of consecutive treatment code numbers.
+     * @throws IllegalStateException If there is no code allocator and the local numbers have run out.
+     */
+    private long reserveCodes(int count) {
+        PrescripCodeAllocator allocator = codeAllocator;
+        if (allocator != null) {
+            return allocator.reserve(count);
+        }
+        long first = nextCode.getAndAdd(count) + 1;
+        if (first + count - 1 > MAX_LOCAL_CODE) {
+            throw new IllegalStateException("Se han agotado los códigos de prescripción locales: "
+                    + "se necesita un generador de códigos.");
+        }
+        return first;
+    }
+
+    /**
+     * Registers the next chunk of a bulk registration in a single round trip.
+     */
+    private void registerChunk(Iterator<MedicalPrescription> source, List<SubmissionResult> chunk, int firstIndex) {
+        List<MedicalPrescription> requested = new ArrayList<>(BULK_CHUNK);
+        while (requested.size() < BULK_CHUNK && source.hasNext()) {
+            requested.add(source.next());
+        }
+        try {
+            roundTrip();
+        } catch (ConnectException e) {
+            for (int i = 0; i < requested.size(); i++) {
+                chunk.add(SubmissionResult.failure(firstIndex + i, e));
+            }
+            return;
+        }
+        // Invalid items are reported first, so codes are only reserved for the valid ones
+        Exception[] errors = new Exception[requested.size()];
+        int valid = 0;
+        for (int i = 0; i < requested.size(); i++) {
+            MedicalPrescription presc = requested.get(i);
+            try {
+                checkCompleted(presc);
+                checkPatient(presc.getCip());
+                valid++;
+            } catch (HealthCardIDException | NotCompletedMedicalPrescription e) {
+                errors[i] = e;
+            }
+        }
+        // The whole block of codes is reserved with a single atomic operation
+        long next = valid > 0 ? reserveCodes(valid) : 0;
+        for (int i = 0; i < requested.size(); i++) {
+            chunk.add(errors[i] != null
+                    ? SubmissionResult.failure(firstIndex + i, errors[i])
+                    : SubmissionResult.success(firstIndex + i, register(requested.get(i), next++)));
+        }
+    }
+
+    private void roundTrip() throws ConnectException {
+        roundTrips.incrementAndGet();
+        if (roundTripNanos > 0) {
+            try {
+                Thread.sleep(Duration.ofNanos(roundTripNanos));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ConnectException("La conexión con el SNS ha sido interrumpida.");
+            }
+        }
+    }
+}
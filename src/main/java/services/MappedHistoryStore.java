@@ -0,0 +1,748 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Local persistence of medical histories in append-only, memory-mapped segment files.
+ * <p>
+ * Each patient has a directory, named after the CIP, with numbered segment files. A segment starts
+ * with a header (magic number and state) followed by records: the length of the record, its type
+ * (annotation, doctor change or reset of the history), the payload and the CRC32 of type and payload.
+ * The rest of a segment is zero-filled, and a zero length marks the end of its records. When a record
+ * does not fit in the current segment, a new segment is started.
+ * <ul>
+ *     <li>Appending an annotation writes a single record at the tail of the last segment; the length is
+ *     written last, so a record interrupted by a crash reads as the end of the log.</li>
+ *     <li>The position of every live annotation is kept in memory, so the last annotations are read
+ *     directly from the mapped files, without copying them ({@link #viewLastAnnotations}).</li>
+ *     <li>When a patient is opened, the records are checked from the beginning; the first damaged or
+ *     incomplete record, and everything after it, is discarded.</li>
+ *     <li>A history that is not a continuation of the stored one is written after a reset record.
+ *     {@link #compact} rewrites the live records of a patient into new segments and deletes the old ones,
+ *     reclaiming the space of reset histories, superseded doctor changes and partially used segments.</li>
+ * </ul>
+ * Records are durable once {@link #force()} returns, or once the operating system writes the mapped
+ * pages back. All operations are thread-safe.
+ * <p>
+ * Every open patient maps its segments, and the number of mappings of a process is limited by the
+ * operating system, so only a bounded number of patients is kept open; the least recently used one is
+ * closed when another is opened. Java has no way to unmap a buffer explicitly: the segments of a closed
+ * patient are unmapped by the garbage collector once no view returned by {@link #viewLastAnnotations}
+ * refers to them.
+ */
+public class MappedHistoryStore implements AutoCloseable {
+
+    private static final int MAGIC = 0x48434531;
+    private static final int HEADER_SIZE = 8;
+    private static final String SEGMENT_SUFFIX = ".seg";
+
+    // States of a segment, stored in its header
+    private static final int STATE_NORMAL = 0;
+    private static final int STATE_COMPACTING = 1;
+    private static final int STATE_COMPACTED = 2;
+
+    // Types of record
+    private static final byte ANNOTATION = 1;
+    private static final byte DOCTOR = 2;
+    private static final byte RESET = 3;
+
+    // Length (4 bytes), type (1 byte) and CRC32 (4 bytes) around the payload
+    private static final int RECORD_OVERHEAD = 9;
+
+    /** Default size of a segment file. */
+    public static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+
+    /** Default maximum number of patients open at the same time. */
+    public static final int DEFAULT_MAX_OPEN_PATIENTS = 1024;
+
+    private final Path directory;
+    private final int segmentSize;
+    private final int maxOpenPatients;
+
+    // Open logs, least recently used first; guarded by itself
+    private final LinkedHashMap<HealthCardID, PatientLog> logs = new LinkedHashMap<>(16, 0.75f, true);
+    private boolean closed;
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist, with up to
+     * {@link #DEFAULT_MAX_OPEN_PATIENTS} patients open at the same time.
+     *
+     * @param directory   The directory of the store.
+     * @param segmentSize The size of each segment file, in bytes. Annotations larger than a segment
+     *                    get a segment of their own.
+     * @throws IOException If the directory cannot be created.
+     */
+    public MappedHistoryStore(Path directory, int segmentSize) throws IOException {
+        this(directory, segmentSize, DEFAULT_MAX_OPEN_PATIENTS);
+    }
+
+    /**
+     * Opens the store in the given directory, creating it if it does not exist.
+     * Patients are opened, and their files recovered, when they are first used.
+     *
+     * @param directory       The directory of the store.
+     * @param segmentSize     The size of each segment file, in bytes. Annotations larger than a segment
+     *                        get a segment of their own.
+     * @param maxOpenPatients The maximum number of patients with their segments mapped at the same time.
+     * @throws IOException If the directory cannot be created.
+     */
+    public MappedHistoryStore(Path directory, int segmentSize, int maxOpenPatients) throws IOException {
+        if (segmentSize <= HEADER_SIZE + RECORD_OVERHEAD) {
+            throw new IllegalArgumentException("El tamaño de segmento es demasiado pequeño.");
+        }
+        if (maxOpenPatients <= 0) {
+            throw new IllegalArgumentException("El número de pacientes abiertos debe ser positivo.");
+        }
+        this.directory = Files.createDirectories(directory);
+        this.segmentSize = segmentSize;
+        this.maxOpenPatients = maxOpenPatients;
+    }
+
+    /**
+     * Stores a medical history. If it extends the stored history of the patient, only the new
+     * annotations are appended; otherwise the stored history is replaced.
+     *
+     * @param history The history to be stored.
+     * @throws IOException If the segment files cannot be written.
+     */
+    public void store(MedicalHistory history) throws IOException {
+        while (true) {
+            PatientLog log = logOf(history.getCip(), true);
+            synchronized (log) {
+                if (log.closed) {
+                    continue;
+                }
+                if (log.doctor != history.getMembShipNumb()) {
+                    log.append(DOCTOR, ByteBuffer.allocate(Integer.BYTES).putInt(history.getMembShipNumb()).array());
+                    log.doctor = history.getMembShipNumb();
+                }
+                List<String> annotations = history.getAnnotations();
+                int stored = log.count;
+                boolean continuation = stored <= annotations.size()
+                        && (stored == 0 || log.annotation(stored - 1).equals(annotations.get(stored - 1)));
+                if (!continuation) {
+                    log.append(RESET, new byte[0]);
+                    log.count = 0;
+                    log.textLength = 0;
+                    log.textHash = 0;
+                    stored = 0;
+                }
+                for (int i = stored; i < annotations.size(); i++) {
+                    log.appendAnnotation(annotations.get(i));
+                }
+                return;
+            }
+        }
+    }
+
+    /**
+     * Appends an annotation to the stored history of a patient.
+     *
+     * @throws HealthCardIDException If the patient has no stored history.
+     * @throws IOException           If the segment files cannot be written.
+     */
+    public void append(HealthCardID cip, String annotation) throws HealthCardIDException, IOException {
+        if (annotation == null || annotation.isEmpty()) {
+            return;
+        }
+        withExistingLog(cip, log -> {
+            log.appendAnnotation(annotation);
+            return null;
+        });
+    }
+
+    /**
+     * Changes the doctor of the stored history of a patient; nothing is written if it does not change.
+     *
+     * @throws HealthCardIDException If the patient has no stored history.
+     * @throws IOException           If the segment files cannot be written.
+     */
+    public void setDoctor(HealthCardID cip, int membShipNumb) throws HealthCardIDException, IOException {
+        withExistingLog(cip, log -> {
+            if (log.doctor != membShipNumb) {
+                log.append(DOCTOR, ByteBuffer.allocate(Integer.BYTES).putInt(membShipNumb).array());
+                log.doctor = membShipNumb;
+            }
+            return null;
+        });
+    }
+
+    /**
+     * @return Whether a history is stored for the patient.
+     * @throws IOException If the files of the patient cannot be opened.
+     */
+    public boolean contains(HealthCardID cip) throws IOException {
+        while (true) {
+            PatientLog log = logOf(cip, false);
+            if (log == null) {
+                return false;
+            }
+            synchronized (log) {
+                if (!log.closed) {
+                    return log.doctor >= 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The stored history of the patient.
+     * @throws HealthCardIDException If the patient has no stored history.
+     * @throws IOException           If the files of the patient cannot be opened.
+     */
+    public MedicalHistory load(HealthCardID cip) throws HealthCardIDException, IOException {
+        return withExistingLog(cip, log -> {
+            MedicalHistory history;
+            try {
+                history = new MedicalHistory(cip, log.doctor);
+            } catch (IncorrectParametersException e) {
+                throw new IOException("El historial almacenado está dañado.", e);
+            }
+            for (int i = 0; i < log.count; i++) {
+                history.addMedicalHistoryAnnotations(log.annotation(i));
+            }
+            return history;
+        });
+    }
+
+    /** @return The number of annotations stored for the patient. */
+    public int getAnnotationCount(HealthCardID cip) throws HealthCardIDException, IOException {
+        return withExistingLog(cip, log -> log.count);
+    }
+
+    /**
+     * @param n The maximum number of annotations.
+     * @return The last annotations of the patient, oldest first.
+     */
+    public List<String> readLastAnnotations(HealthCardID cip, int n) throws HealthCardIDException, IOException {
+        return withExistingLog(cip, log -> {
+            List<String> last = new ArrayList<>(Math.min(n, log.count));
+            for (int i = Math.max(0, log.count - n); i < log.count; i++) {
+                last.add(log.annotation(i));
+            }
+            return last;
+        });
+    }
+
+    /**
+     * Reads a page of the stored history of a patient, decoding only the annotations of the page.
+     * The length and hash of the whole history text are kept up to date as annotations are appended;
+     * after the patient is opened, they are computed the first time a page is read.
+     *
+     * @param before         The position after the last annotation of the page, or {@link HistoryPage#LATEST}.
+     * @param maxAnnotations The maximum number of annotations of the page.
+     * @return The page, with version 0: the store does not keep versions.
+     * @throws HealthCardIDException If the patient has no stored history.
+     * @throws IOException           If the files of the patient cannot be opened.
+     */
+    public HistoryPage readPage(HealthCardID cip, int before, int maxAnnotations)
+            throws HealthCardIDException, IOException {
+        if (maxAnnotations <= 0) {
+            throw new IllegalArgumentException("El tamaño de página debe ser positivo.");
+        }
+        return withExistingLog(cip, log -> {
+            if (log.doctor < 0) {
+                throw new IOException("El historial almacenado está dañado.");
+            }
+            int end = Math.min(Math.max(before, 0), log.count);
+            int start = Math.max(0, end - maxAnnotations);
+            List<String> annotations = new ArrayList<>(end - start);
+            for (int i = start; i < end; i++) {
+                annotations.add(log.annotation(i));
+            }
+            log.measureText();
+            return new HistoryPage(cip, log.doctor, 0, log.count, log.textLength, log.textHash, start, annotations);
+        });
+    }
+
+    /**
+     * Gives access to the last annotations of the patient without copying them: each buffer is a
+     * read-only view of the UTF-8 bytes of an annotation in the mapped segment files.
+     * The views stay valid even after new annotations, a compaction, or the patient or the store being
+     * closed: a view keeps its segment mapped until the view itself is no longer used.
+     *
+     * @param n The maximum number of annotations.
+     * @return The views of the last annotations, oldest first.
+     */
+    public List<ByteBuffer> viewLastAnnotations(HealthCardID cip, int n) throws HealthCardIDException, IOException {
+        return withExistingLog(cip, log -> {
+            List<ByteBuffer> last = new ArrayList<>(Math.min(n, log.count));
+            for (int i = Math.max(0, log.count - n); i < log.count; i++) {
+                last.add(log.view(i));
+            }
+            return last;
+        });
+    }
+
+    /**
+     * Rewrites the live records of a patient into new segments and deletes the old ones.
+     * If the process stops during a compaction, the old segments are still used when the patient is opened again.
+     * Where a mapped file cannot be deleted (Windows), the old segments are left on disk and deleted
+     * the next time the patient is opened.
+     *
+     * @return The number of bytes of segment files reclaimed (negative if the files grew).
+     * @throws HealthCardIDException If the patient has no stored history.
+     * @throws IOException           If the new segments cannot be written.
+     */
+    public long compact(HealthCardID cip) throws HealthCardIDException, IOException {
+        return withExistingLog(cip, log -> {
+            long before = log.size();
+            List<Segment> old = log.segments;
+            PatientLog compacted = new PatientLog(log.dir, this);
+            compacted.nextNumber = log.nextNumber;
+            compacted.nextState = STATE_COMPACTING;
+            compacted.append(DOCTOR, ByteBuffer.allocate(Integer.BYTES).putInt(log.doctor).array());
+            compacted.doctor = log.doctor;
+            for (int i = 0; i < log.count; i++) {
+                compacted.appendAnnotation(log.view(i));
+            }
+            compacted.force();
+            // The new segments replace the old ones only once they are complete on disk
+            MappedByteBuffer first = compacted.segments.get(0).buffer();
+            first.putInt(Integer.BYTES, STATE_COMPACTED);
+            first.force();
+            log.adopt(compacted);
+            // The store no longer refers to the old mappings; recovery ignores the files if they remain
+            for (Segment segment : old) {
+                deleteSegment(segment.file());
+            }
+            return before - log.size();
+        });
+    }
+
+    /**
+     * Writes every mapped segment back to disk.
+     */
+    public void force() {
+        for (PatientLog log : openLogs()) {
+            synchronized (log) {
+                log.force();
+            }
+        }
+    }
+
+    /**
+     * Writes everything back to disk and closes the store.
+     */
+    @Override
+    public void close() {
+        synchronized (logs) {
+            closed = true;
+            for (PatientLog log : logs.values()) {
+                synchronized (log) {
+                    log.close();
+                }
+            }
+            logs.clear();
+        }
+    }
+
+    /** @return The number of patients with their segments mapped. */
+    int getOpenPatientCount() {
+        synchronized (logs) {
+            return logs.size();
+        }
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * An operation on the open log of a patient, run while holding its lock.
+     */
+    @FunctionalInterface
+    private interface LogOperation<T> {
+        T apply(PatientLog log) throws HealthCardIDException, IOException;
+    }
+
+    /**
+     * Runs an operation on the log of a patient with a stored history. If the log is closed
+     * to make room for other patients before the operation starts, the patient is opened again.
+     */
+    private <T> T withExistingLog(HealthCardID cip, LogOperation<T> operation) throws HealthCardIDException, IOException {
+        while (true) {
+            PatientLog log = logOf(cip, false);
+            if (log == null) {
+                break;
+            }
+            synchronized (log) {
+                if (log.closed) {
+                    continue;
+                }
+                if (log.doctor < 0) {
+                    break;
+                }
+                return operation.apply(log);
+            }
+        }
+        throw new HealthCardIDException("No hay ningún historial almacenado para el CIP " + cip + ".");
+    }
+
+    /**
+     * Returns the open log of the patient, opening (and recovering) it the first time.
+     * When too many patients are open, the least recently used one is closed.
+     *
+     * @param create Whether the log is created if the patient has no files.
+     * @return The log, or null if the patient has no files and create is false.
+     */
+    private PatientLog logOf(HealthCardID cip, boolean create) throws IOException {
+        synchronized (logs) {
+            if (closed) {
+                throw new IllegalStateException("El almacén de historiales está cerrado.");
+            }
+            PatientLog log = logs.get(cip);
+            if (log == null) {
+                Path dir = directory.resolve(cip.getPersonalID());
+                if (!Files.isDirectory(dir)) {
+                    if (!create) {
+                        return null;
+                    }
+                    Files.createDirectories(dir);
+                }
+                log = new PatientLog(dir, this);
+                log.recover();
+                logs.put(cip, log);
+                if (logs.size() > maxOpenPatients) {
+                    Iterator<PatientLog> eldest = logs.values().iterator();
+                    PatientLog evicted = eldest.next();
+                    eldest.remove();
+                    // Closed before the patient can be opened again, so two logs never share its files
+                    synchronized (evicted) {
+                        evicted.close();
+                    }
+                }
+            }
+            return log;
+        }
+    }
+
+    private List<PatientLog> openLogs() {
+        synchronized (logs) {
+            return new ArrayList<>(logs.values());
+        }
+    }
+
+    /**
+     * Deletes a segment file that is no longer used. Windows does not delete a file while it is mapped,
+     * and Java only unmaps a buffer once it is garbage collected, so a failure is ignored: the file is
+     * discarded by the recovery the next time the patient is opened.
+     */
+    private static void deleteSegment(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            // Still mapped; recovery deletes it later
+        }
+    }
+
+    private static int crc(ByteBuffer buffer, int offset, int length) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, length));
+        return (int) crc.getValue();
+    }
+
+    /**
+     * A segment file and its mapping.
+     */
+    private record Segment(int number, Path file, MappedByteBuffer buffer) {
+    }
+
+    /**
+     * The segments of a patient and the position of its live annotations. Guarded by its own lock.
+     */
+    private static final class PatientLog {
+        final Path dir;
+        final MappedHistoryStore store;
+
+        // Set when the log is closed; its operations must reopen the patient
+        boolean closed;
+
+        List<Segment> segments = new ArrayList<>();
+        // Offset of the end of the records in the last segment
+        int tail;
+        int nextNumber;
+        int nextState = STATE_NORMAL;
+
+        // Current doctor, or -1 if no doctor record has been stored
+        int doctor = -1;
+
+        // Position of each live annotation: index of the segment (high half) and offset of the record (low half)
+        long[] index = new long[16];
+        int count;
+
+        // Length and hash of the history text, as MedicalHistory computes them; -1 if not measured since opening
+        int textLength;
+        int textHash;
+
+        PatientLog(Path dir, MappedHistoryStore store) {
+            this.dir = dir;
+            this.store = store;
+        }
+
+        String annotation(int i) {
+            return StandardCharsets.UTF_8.decode(view(i)).toString();
+        }
+
+        ByteBuffer view(int i) {
+            MappedByteBuffer buffer = segments.get((int) (index[i] >>> 32)).buffer();
+            int offset = (int) index[i];
+            int length = buffer.getInt(offset);
+            return buffer.slice(offset + Integer.BYTES + 1, length - 1).asReadOnlyBuffer();
+        }
+
+        void appendAnnotation(String annotation) throws IOException {
+            appendAnnotation(ByteBuffer.wrap(annotation.getBytes(StandardCharsets.UTF_8)));
+            if (textLength >= 0) {
+                extendText(annotation, count > 1);
+            }
+        }
+
+        /**
+         * Computes the length and hash of the history text, if they are not known yet.
+         */
+        void measureText() {
+            if (textLength >= 0) {
+                return;
+            }
+            textLength = 0;
+            textHash = 0;
+            for (int i = 0; i < count; i++) {
+                extendText(annotation(i), i > 0);
+            }
+        }
+
+        /**
+         * Extends the length and hash of the history text with an annotation, as String.hashCode() would.
+         */
+        private void extendText(String annotation, boolean afterAnother) {
+            int hash = textHash;
+            if (afterAnother) {
+                hash = 31 * hash + '\n';
+                textLength++;
+            }
+            for (int i = 0; i < annotation.length(); i++) {
+                hash = 31 * hash + annotation.charAt(i);
+            }
+            textHash = hash;
+            textLength += annotation.length();
+        }
+
+        void appendAnnotation(ByteBuffer payload) throws IOException {
+            long position = append(ANNOTATION, payload);
+            if (count == index.length) {
+                index = Arrays.copyOf(index, count * 2);
+            }
+            index[count++] = position;
+        }
+
+        long append(byte type, byte[] payload) throws IOException {
+            return append(type, ByteBuffer.wrap(payload));
+        }
+
+        /**
+         * Writes a record at the tail, starting a new segment if it does not fit.
+         *
+         * @return The position of the record.
+         */
+        long append(byte type, ByteBuffer payload) throws IOException {
+            int payloadLength = payload.remaining();
+            int recordSize = RECORD_OVERHEAD + payloadLength;
+            if (segments.isEmpty() || tail + recordSize > last().buffer().capacity()) {
+                addSegment(Math.max(store.segmentSize, HEADER_SIZE + recordSize));
+            }
+            MappedByteBuffer buffer = last().buffer();
+            int offset = tail;
+            buffer.put(offset + Integer.BYTES, type);
+            buffer.put(offset + Integer.BYTES + 1, payload, payload.position(), payloadLength);
+            buffer.putInt(offset + Integer.BYTES + 1 + payloadLength, crc(buffer, offset + Integer.BYTES, 1 + payloadLength));
+            // The length is written last: until then, the record reads as the end of the log
+            buffer.putInt(offset, 1 + payloadLength);
+            tail = offset + recordSize;
+            return ((long) (segments.size() - 1) << 32) | offset;
+        }
+
+        private Segment last() {
+            return segments.get(segments.size() - 1);
+        }
+
+        private void addSegment(int capacity) throws IOException {
+            int number = nextNumber++;
+            Path file = dir.resolve(String.format("%08d%s", number, SEGMENT_SUFFIX));
+            MappedByteBuffer buffer;
+            try (FileChannel channel = FileChannel.open(file,
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            }
+            buffer.putInt(Integer.BYTES, segments.isEmpty() ? nextState : STATE_NORMAL);
+            buffer.putInt(0, MAGIC);
+            segments.add(new Segment(number, file, buffer));
+            tail = HEADER_SIZE;
+        }
+
+        /**
+         * Opens the existing segments and rebuilds the state from their records, discarding
+         * incomplete compactions and everything from the first damaged record on.
+         * Headers are read before mapping, so discarded segments are deleted without being mapped.
+         */
+        void recover() throws IOException {
+            textLength = -1;
+            List<Path> files;
+            try (Stream<Path> listing = Files.list(dir)) {
+                files = listing.filter(p -> p.getFileName().toString().endsWith(SEGMENT_SUFFIX)).sorted().toList();
+            }
+            // Numbers are never reused, even if a discarded segment could not be deleted
+            nextNumber = files.isEmpty() ? 0 : segmentNumber(files.get(files.size() - 1)) + 1;
+            List<Path> live = new ArrayList<>(files.size());
+            for (int i = 0; i < files.size(); i++) {
+                Path file = files.get(i);
+                int state = readState(file);
+                if (state < 0 || state == STATE_COMPACTING) {
+                    // A segment being created or an unfinished compaction: it and later segments are not used
+                    deleteAll(files.subList(i, files.size()));
+                    break;
+                }
+                if (state == STATE_COMPACTED) {
+                    // A finished compaction replaces every previous segment
+                    deleteAll(live);
+                    live.clear();
+                }
+                live.add(file);
+            }
+
+            segments = new ArrayList<>(live.size());
+            for (int i = 0; i < live.size(); i++) {
+                Path file = live.get(i);
+                MappedByteBuffer buffer;
+                try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                    buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+                }
+                segments.add(new Segment(segmentNumber(file), file, buffer));
+                if (!replay(segments.get(i))) {
+                    deleteAll(live.subList(i + 1, live.size()));
+                    break;
+                }
+            }
+        }
+
+        /**
+         * @return The state in the header of a segment, or -1 if it has no valid header.
+         */
+        private static int readState(Path file) throws IOException {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                if (channel.size() < HEADER_SIZE + RECORD_OVERHEAD) {
+                    return -1;
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                while (header.hasRemaining()) {
+                    if (channel.read(header, header.position()) < 0) {
+                        return -1;
+                    }
+                }
+                return header.getInt(0) == MAGIC ? header.getInt(Integer.BYTES) : -1;
+            }
+        }
+
+        private static int segmentNumber(Path file) {
+            return Integer.parseInt(file.getFileName().toString().replace(SEGMENT_SUFFIX, ""));
+        }
+
+        /**
+         * Applies the records of a segment, leaving the tail after its last valid record.
+         *
+         * @return Whether the segment ended cleanly; false if a damaged record was found and discarded.
+         */
+        private boolean replay(Segment segment) {
+            MappedByteBuffer buffer = segment.buffer();
+            int segmentIndex = segments.size() - 1;
+            int offset = HEADER_SIZE;
+            while (offset + RECORD_OVERHEAD <= buffer.capacity()) {
+                int length = buffer.getInt(offset);
+                if (length == 0) {
+                    break;
+                }
+                if (length < 0 || offset + RECORD_OVERHEAD - 1 + length > buffer.capacity()
+                        || crc(buffer, offset + Integer.BYTES, length) != buffer.getInt(offset + Integer.BYTES + length)) {
+                    // Torn or damaged record: the rest of the segment is cleared so it can be written again
+                    for (int i = offset; i < buffer.capacity(); i++) {
+                        buffer.put(i, (byte) 0);
+                    }
+                    tail = offset;
+                    return false;
+                }
+                byte type = buffer.get(offset + Integer.BYTES);
+                if (type == ANNOTATION) {
+                    if (count == index.length) {
+                        index = Arrays.copyOf(index, count * 2);
+                    }
+                    index[count++] = ((long) segmentIndex << 32) | offset;
+                } else if (type == DOCTOR) {
+                    doctor = buffer.getInt(offset + Integer.BYTES + 1);
+                } else if (type == RESET) {
+                    count = 0;
+                }
+                offset += RECORD_OVERHEAD - 1 + length;
+            }
+            tail = offset;
+            return true;
+        }
+
+        /** @return The total size of the segment files. */
+        long size() {
+            long size = 0;
+            for (Segment segment : segments) {
+                size += segment.buffer().capacity();
+            }
+            return size;
+        }
+
+        void force() {
+            for (Segment segment : segments) {
+                segment.buffer().force();
+            }
+        }
+
+        /**
+         * Writes the segments back to disk and drops the mappings, so the garbage collector can release them.
+         */
+        void close() {
+            force();
+            segments = List.of();
+            index = new long[0];
+            count = 0;
+            closed = true;
+        }
+
+        void adopt(PatientLog other) {
+            segments = other.segments;
+            tail = other.tail;
+            nextNumber = other.nextNumber;
+            doctor = other.doctor;
+            index = other.index;
+            count = other.count;
+        }
+
+        private static void deleteAll(List<Path> files) {
+            for (Path file : files) {
+                deleteSegment(file);
+            }
+        }
+    }
+}
@@ -0,0 +1,486 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+
+import java.io.IOException;
+import java.net.ConnectException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind outbox placed in front of a {@link HealthNationalService} (Decorator pattern).
+ * <p>
+ * {@link #sendHistoryAndPrescription} does not wait for the SNS: the submission is appended to a
+ * local log, forced to disk, and the call returns immediately with the signed prescription (still
+ * without the code the SNS assigns on registration). A single background sender delivers the
+ * logged submissions in order, retrying with exponential backoff while the SNS is unreachable.
+ * If the SNS supports history deltas, {@link #sendHistoryDeltaAndPrescription} logs only the changes
+ * of the history in the same way, and the SNS checks their version when they are delivered.
+ * <p>
+ * Delivery is at least once. Every submission gets a unique identifier, logged with it and sent to
+ * the SNS with {@link HealthNationalService#sendHistoryAndPrescriptionOnce}, and its delivery is
+ * recorded in the same log before the next one is sent. If the process stops after the SNS accepts
+ * a submission but before its delivery is recorded, or if the record cannot be written, the submission
+ * is sent again after a restart; an SNS that remembers the identifiers stores it only once. A delta
+ * sent again no longer matches the version of the history, so it is reported as rejected.
+ * <p>
+ * Submissions the SNS rejects (unknown patient, incomplete prescription...) are recorded as well
+ * and kept available through {@link #getRejected()}. So are those that keep failing with an
+ * unexpected error, so that they do not block the submissions after them. Rejections stay in the
+ * log, so they are still reported after a restart.
+ * <p>
+ * When the outbox is created, the log is replayed and every submission not yet delivered is queued
+ * again. A torn record at the end of the log, left by a crash during a write, is discarded; a damaged
+ * record followed by others is skipped and counted by {@link #getDamagedRecordCount()}, so a single
+ * bad sector does not discard every submission logged after it.
+ */
+public class OutboxHealthNationalService implements HealthNationalService, AutoCloseable {
+
+    // Record types of the log
+    private static final byte ENTRY = 1;
+    private static final byte DELIVERED = 2;
+    private static final byte REJECTED = 3;
+    private static final byte DELTA_ENTRY = 4;
+
+    // Flags at the start of the payload of a rejection rewritten by compaction, which carries its submission
+    private static final byte FULL_SUBMISSION = 0;
+    private static final byte DELTA_SUBMISSION = 1;
+
+    // Consecutive unexpected errors after which a submission is rejected
+    static final int MAX_UNEXPECTED_FAILURES = 10;
+
+    // Bytes of the submission identifier at the start of the payload of an entry
+    private static final int SUBMISSION_ID_SIZE = 16;
+
+    // A logged submission with its identifier
+    private record Outgoing(UUID submissionId, Submission submission) {
+    }
+
+    // Record layout: type (1), id (8), payload length (4), payload, CRC32 of all previous bytes (4)
+    private static final int HEADER_SIZE = 13;
+    private static final int CRC_SIZE = 4;
+
+    private final HealthNationalService hns;
+    private final FileChannel log;
+    private final long initialBackoffMillis;
+    private final long maxBackoffMillis;
+    private final ScheduledExecutorService sender;
+
+    // Submissions logged but not yet delivered, in submission order
+    private final ConcurrentSkipListMap<Long, Outgoing> pending = new ConcurrentSkipListMap<>();
+    private final List<Outgoing> rejected = new CopyOnWriteArrayList<>();
+    private long nextId;
+    private volatile boolean started;
+
+    // Records skipped on recovery because their checksum did not match
+    private int damagedRecords;
+
+    // Outcomes of delivered or rejected submissions that could not be logged yet; guarded by the log
+    private final Map<Long, Byte> unrecorded = new LinkedHashMap<>();
+
+    // Only accessed from the sender thread
+    private long backoffMillis;
+    private boolean retryScheduled;
+    private int unexpectedFailures;
+
+    /**
+     * Opens (or creates) the outbox log with default retry delays (0.5 s up to 1 min).
+     *
+     * @param hns     The service that actually contacts the SNS.
+     * @param logFile The local file where pending submissions are kept.
+     * @throws IOException If the log cannot be opened or contains an unreadable submission.
+     */
+    public OutboxHealthNationalService(HealthNationalService hns, Path logFile) throws IOException {
+        this(hns, logFile, Duration.ofMillis(500), Duration.ofMinutes(1));
+    }
+
+    /**
+     * Opens (or creates) the outbox log and recovers the submissions not yet delivered.
+     * Delivery starts when {@link #start()} is called.
+     *
+     * @param hns            The service that actually contacts the SNS.
+     * @param logFile        The local file where pending submissions are kept.
+     * @param initialBackoff The delay before the first retry when the SNS is unreachable.
+     * @param maxBackoff     The maximum delay between retries.
+     * @throws IOException If the log cannot be opened or contains an unreadable submission.
+     */
+    public OutboxHealthNationalService(HealthNationalService hns, Path logFile,
+                                       Duration initialBackoff, Duration maxBackoff) throws IOException {
+        this.hns = hns;
+        this.initialBackoffMillis = initialBackoff.toMillis();
+        this.maxBackoffMillis = maxBackoff.toMillis();
+        this.backoffMillis = initialBackoffMillis;
+        this.log = FileChannel.open(logFile, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.sender = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "hns-outbox-sender");
+            thread.setDaemon(true);
+            return thread;
+        });
+        recover();
+    }
+
+    /**
+     * Starts delivering the pending submissions, including those recovered from the log.
+     */
+    public void start() {
+        started = true;
+        trigger();
+    }
+
+    // --- HealthNationalService ---
+
+    @Override
+    public MedicalHistory getMedicalHistory(HealthCardID cip)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return hns.getMedicalHistory(cip);
+    }
+
+    @Override
+    public HistoryPage getMedicalHistoryPage(HealthCardID cip, int before, int maxAnnotations)
+            throws ConnectException, HealthCardIDException, IncorrectParametersException {
+        return hns.getMedicalHistoryPage(cip, before, maxAnnotations);
+    }
+
+    @Override
+    public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException {
+        return hns.getMedicalPrescription(cip, illness);
+    }
+
+    /**
+     * Logs the submission for background delivery and returns without contacting the SNS.
+     * If the local log cannot be written, the submission is sent directly instead.
+     *
+     * @return The submitted prescription, not yet registered by the SNS.
+     */
+    @Override
+    public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException, NotCompletedMedicalPrescription {
+        // The outbox keeps its own copies: the session may reuse its objects once it is released
+        if (!enqueue(new Submission(cip, new MedicalHistory(hce), illness, new MedicalPrescription(mPresc)))) {
+            // Without durable storage the outbox cannot take responsibility for the submission
+            return hns.sendHistoryAndPrescription(cip, hce, illness, mPresc);
+        }
+        return mPresc;
+    }
+
+    @Override
+    public boolean supportsHistoryDeltas() {
+        return hns.supportsHistoryDeltas();
+    }
+
+    /**
+     * Logs the changes of the history for background delivery and returns without contacting the SNS.
+     * The version of the history is only checked on delivery: if it changed meanwhile, the submission
+     * is rejected and reported by {@link #getRejected()}.
+     * If the local log cannot be written, the delta is sent directly instead.
+     *
+     * @return The submitted prescription, not yet registered by the SNS.
+     */
+    @Override
+    public MedicalPrescription sendHistoryDeltaAndPrescription(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+            throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+            NotCompletedMedicalPrescription, HistoryVersionConflictException {
+        if (!hns.supportsHistoryDeltas() || !enqueue(new Submission(delta, illness, new MedicalPrescription(mPresc)))) {
+            return hns.sendHistoryDeltaAndPrescription(delta, illness, mPresc);
+        }
+        return mPresc;
+    }
+
+    @Override
+    public MedicalPrescription generateTreatmCodeAndRegister(MedicalPrescription ePresc) throws ConnectException {
+        return hns.generateTreatmCodeAndRegister(ePresc);
+    }
+
+    @Override
+    public Stream<SubmissionResult> generateTreatmCodesAndRegister(Collection<MedicalPrescription> prescriptions) {
+        return hns.generateTreatmCodesAndRegister(prescriptions);
+    }
+
+    // --- Monitoring ---
+
+    /** @return The number of submissions waiting to be delivered. */
+    public int getPendingCount() {
+        return pending.size();
+    }
+
+    /**
+     * @return The number of submissions already delivered or rejected whose outcome could not be logged
+     * yet. If the process stops before it is logged, they are sent again after a restart.
+     */
+    public int getUnrecordedCount() {
+        synchronized (log) {
+            return unrecorded.size();
+        }
+    }
+
+    /** @return The submissions the SNS refused, including those recorded in the log before a restart. */
+    public List<Submission> getRejected() {
+        return rejected.stream().map(Outgoing::submission).toList();
+    }
+
+    /**
+     * @return The damaged records skipped when the log was replayed. A damaged submission is lost,
+     * and a damaged outcome makes its submission be sent again.
+     */
+    public int getDamagedRecordCount() {
+        return damagedRecords;
+    }
+
+    @Override
+    public void close() throws IOException {
+        sender.shutdownNow();
+        try {
+            sender.awaitTermination(5, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (log) {
+            log.close();
+        }
+    }
+
+    // --- Background delivery (sender thread) ---
+
+    /**
+     * Appends the submission to the log and schedules its delivery.
+     *
+     * @return Whether the submission was logged.
+     */
+    private boolean enqueue(Submission submission) {
+        try {
+            Outgoing outgoing = new Outgoing(UUID.randomUUID(), submission);
+            byte[] payload = encode(outgoing, 0);
+            synchronized (log) {
+                long id = nextId++;
+                append(submission.getDelta() == null ? ENTRY : DELTA_ENTRY, id, payload);
+                pending.put(id, outgoing);
+            }
+        } catch (IOException e) {
+            return false;
+        }
+        trigger();
+        return true;
+    }
+
+    private void trigger() {
+        if (!started || sender.isShutdown()) {
+            return;
+        }
+        sender.execute(() -> {
+            // A scheduled retry already owns the next attempt
+            if (!retryScheduled) {
+                drain();
+            }
+        });
+    }
+
+    private void retry() {
+        retryScheduled = false;
+        drain();
+    }
+
+    private void drain() {
+        Map.Entry<Long, Outgoing> next;
+        while ((next = pending.firstEntry()) != null) {
+            Submission s = next.getValue().submission();
+            try {
+                if (s.getDelta() == null) {
+                    hns.sendHistoryAndPrescriptionOnce(next.getValue().submissionId().toString(),
+                            s.getCip(), s.getHistory(), s.getIllness(), s.getPrescription());
+                } else {
+                    hns.sendHistoryDeltaAndPrescription(s.getDelta(), s.getIllness(), s.getPrescription());
+                }
+                acknowledge(next.getKey(), DELIVERED);
+                backoffMillis = initialBackoffMillis;
+                unexpectedFailures = 0;
+            } catch (HealthCardIDException | AnyCurrentPrescriptionException | NotCompletedMedicalPrescription
+                     | HistoryVersionConflictException e) {
+                // Permanent refusal: retrying would never succeed
+                reject(next.getKey(), next.getValue());
+            } catch (ConnectException | RuntimeException e) {
+                // An unexpected error may be transient, but a submission that always fails must not block the rest
+                if (e instanceof RuntimeException && ++unexpectedFailures >= MAX_UNEXPECTED_FAILURES) {
+                    reject(next.getKey(), next.getValue());
+                    continue;
+                }
+                retryScheduled = true;
+                sender.schedule(this::retry, backoffMillis, TimeUnit.MILLISECONDS);
+                backoffMillis = Math.min(backoffMillis * 2, maxBackoffMillis);
+                return;
+            }
+        }
+    }
+
+    private void reject(long id, Outgoing outgoing) {
+        rejected.add(outgoing);
+        acknowledge(id, REJECTED);
+        unexpectedFailures = 0;
+    }
+
+    private void acknowledge(long id, byte outcome) {
+        synchronized (log) {
+            // The submission has reached the SNS: it must not be sent again in this run
+            pending.remove(id);
+            unrecorded.put(id, outcome);
+            try {
+                // Compaction: once everything is delivered, the log can start over
+                if (pending.isEmpty()) {
+                    compact();
+                    unrecorded.clear();
+                    return;
+                }
+                // Outcomes that could not be logged before go first, in the order they happened
+                Iterator<Map.Entry<Long, Byte>> outcomes = unrecorded.entrySet().iterator();
+                while (outcomes.hasNext()) {
+                    Map.Entry<Long, Byte> next = outcomes.next();
+                    append(next.getValue(), next.getKey(), new byte[0]);
+                    outcomes.remove();
+                }
+            } catch (IOException e) {
+                // Kept in unrecorded and logged with the next outcome; until then a restart sends it again
+            }
+        }
+    }
+
+    // --- Log storage ---
+
+    private void append(byte type, long id, byte[] payload) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(HEADER_SIZE + payload.length + CRC_SIZE);
+        record.put(type).putLong(id).putInt(payload.length).put(payload);
+        CRC32 crc = new CRC32();
+        crc.update(record.array(), 0, record.position());
+        record.putInt((int) crc.getValue());
+        record.flip();
+
+        long position = log.size();
+        while (record.hasRemaining()) {
+            position += log.write(record, position);
+        }
+        log.force(true);
+    }
+
+    /**
+     * Starts the log over once nothing is pending, keeping only the rejections. Each one is rewritten
+     * as a single record that carries its submission, so they survive any later compaction.
+     */
+    private void compact() throws IOException {
+        log.truncate(0);
+        for (Outgoing outgoing : rejected) {
+            byte flag = outgoing.submission().getDelta() == null ? FULL_SUBMISSION : DELTA_SUBMISSION;
+            byte[] payload = encode(outgoing, 1);
+            payload[0] = flag;
+            append(REJECTED, nextId++, payload);
+        }
+        log.force(true);
+    }
+
+    private void recover() throws IOException {
+        long size = log.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position + HEADER_SIZE + CRC_SIZE <= size) {
+            header.clear();
+            readFully(header, position);
+            header.flip();
+            byte type = header.get();
+            long id = header.getLong();
+            int length = header.getInt();
+            if (length < 0 || position + HEADER_SIZE + length + CRC_SIZE > size) {
+                // A record that does not fit can only be the torn tail of the log
+                break;
+            }
+            long end = position + HEADER_SIZE + length + CRC_SIZE;
+
+            ByteBuffer body = ByteBuffer.allocate(length + CRC_SIZE);
+            readFully(body, position + HEADER_SIZE);
+            CRC32 crc = new CRC32();
+            crc.update(header.array(), 0, HEADER_SIZE);
+            crc.update(body.array(), 0, length);
+            if ((int) crc.getValue() != body.getInt(length)) {
+                if (end == size) {
+                    // The last record was being written when the process stopped
+                    break;
+                }
+                // Damaged in place: the records after it are still valid
+                damagedRecords++;
+                position = end;
+                continue;
+            }
+
+            if (type == ENTRY || type == DELTA_ENTRY) {
+                pending.put(id, decode(body, 0, length, type == DELTA_ENTRY));
+            } else if (type == REJECTED && length > 0) {
+                rejected.add(decode(body, 1, length, body.get(0) == DELTA_SUBMISSION));
+            } else {
+                Outgoing outgoing = pending.remove(id);
+                if (type == REJECTED && outgoing != null) {
+                    rejected.add(outgoing);
+                }
+            }
+            nextId = Math.max(nextId, id + 1);
+            position = end;
+        }
+
+        if (pending.isEmpty()) {
+            compact();
+        } else {
+            // Drop the torn tail of an interrupted write
+            log.truncate(position);
+            log.force(true);
+        }
+    }
+
+    /**
+     * Encodes a submission with its identifier as the payload of a record.
+     *
+     * @param offset Bytes reserved at the start of the payload.
+     */
+    private static byte[] encode(Outgoing outgoing, int offset) throws IOException {
+        byte[] encoded = SubmissionCodec.encode(outgoing.submission());
+        return ByteBuffer.allocate(offset + SUBMISSION_ID_SIZE + encoded.length)
+                .position(offset)
+                .putLong(outgoing.submissionId().getMostSignificantBits())
+                .putLong(outgoing.submissionId().getLeastSignificantBits())
+                .put(encoded)
+                .array();
+    }
+
+    private static Outgoing decode(ByteBuffer body, int offset, int length, boolean delta) throws IOException {
+        if (length < offset + SUBMISSION_ID_SIZE) {
+            throw new IOException("El envío almacenado está dañado: falta su identificador.");
+        }
+        UUID submissionId = new UUID(body.getLong(offset), body.getLong(offset + 8));
+        byte[] payload = new byte[length - offset - SUBMISSION_ID_SIZE];
+        System.arraycopy(body.array(), offset + SUBMISSION_ID_SIZE, payload, 0, payload.length);
+        return new Outgoing(submissionId, SubmissionCodec.decode(payload, delta));
+    }
+
+    private void readFully(ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (log.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Fin inesperado del registro de envíos.");
+            }
+        }
+    }
+}
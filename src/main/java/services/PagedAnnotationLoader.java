@@ -0,0 +1,56 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Loads the older annotations of a lazily downloaded history from the paged API of the SNS.
+ * Every page must belong to the version the history was downloaded at; if the history has been
+ * replaced in the meantime, the load fails instead of mixing both versions.
+ */
+class PagedAnnotationLoader implements MedicalHistory.AnnotationLoader {
+
+    private final HealthNationalService hns;
+    private final HealthCardID cip;
+    private final long version;
+
+    PagedAnnotationLoader(HealthNationalService hns, HealthCardID cip, long version) {
+        this.hns = hns;
+        this.cip = cip;
+        this.version = version;
+    }
+
+    @Override
+    public List<String> load(int from, int to) throws IOException {
+        // The service may return fewer annotations than requested; pages arrive newest first
+        List<List<String>> pages = new ArrayList<>();
+        int before = to;
+        while (before > from) {
+            HistoryPage page;
+            try {
+                page = hns.getMedicalHistoryPage(cip, before, before - from);
+            } catch (HealthCardIDException | IncorrectParametersException e) {
+                throw new IOException(e.getMessage(), e);
+            }
+            if (page.getVersion() != version || page.getAnnotations().isEmpty()) {
+                throw new IOException("El historial ha cambiado en el SNS mientras se descargaba.");
+            }
+            List<String> annotations = page.getAnnotations();
+            pages.add(annotations.subList(Math.max(0, from - page.getFirstIndex()), annotations.size()));
+            before = page.getFirstIndex();
+        }
+        Collections.reverse(pages);
+        List<String> loaded = new ArrayList<>(to - from);
+        for (List<String> page : pages) {
+            loaded.addAll(page);
+        }
+        return loaded;
+    }
+}
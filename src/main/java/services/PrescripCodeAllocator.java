@@ -0,0 +1,212 @@
+package services;
+
+import data.InvalidFormatException;
+import data.NullValueException;
+import data.ePrescripCode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * Generates the treatment codes ({@link ePrescripCode}) of a node of the SNS without coordinating
+ * with other nodes or with a database.
+ * <p>
+ * A code has 10 base-62 characters: 2 for the node identifier followed by 8 for a counter of the node.
+ * Codes never collide because:
+ * <ul>
+ *     <li>each node is deployed with its own identifier, so codes of different nodes differ in the prefix;</li>
+ *     <li>within a node, every counter value is handed out once, by an atomic increment;</li>
+ *     <li>the counter only advances inside a lease whose end is written to a local file (and forced to
+ *     disk) before any value of the lease is used. After a restart the counter resumes at the stored end,
+ *     so values handed out before the restart are never repeated, at the cost of skipping the unused
+ *     remainder of the last lease.</li>
+ * </ul>
+ * The file has two checksummed slots and each lease is written over the older one, so a write torn by
+ * a crash leaves the previous lease intact. That lease is still valid after the crash, because no value
+ * of the torn lease was used before the write completed.
+ * Allocating a code only costs an atomic increment; the file is written once per lease.
+ */
+public class PrescripCodeAllocator implements AutoCloseable {
+
+    private static final char[] DIGITS =
+            "0123456789ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz".toCharArray();
+    private static final int BASE = DIGITS.length;
+    private static final int PREFIX_LENGTH = 2;
+    private static final int COUNTER_LENGTH = 8;
+
+    /** Number of distinct node identifiers (62^2). */
+    public static final int MAX_NODES = BASE * BASE;
+
+    /** Number of codes available to each node (62^8). */
+    public static final long MAX_CODES_PER_NODE = (long) Math.pow(BASE, COUNTER_LENGTH);
+
+    // Stored lease: its end (8 bytes) followed by the CRC32 of those bytes (4 bytes)
+    private static final int LEASE_RECORD_SIZE = 12;
+    private static final int LEASE_SLOTS = 2;
+
+    private final char[] prefix;
+    private final int leaseSize;
+    private final FileChannel leaseFile;
+
+    // Next counter value to hand out
+    private final AtomicLong next;
+
+    // End (exclusive) of the counter values covered by the stored lease
+    private volatile long leaseEnd;
+
+    // Slot of the file written by the next lease: the one not holding the current lease
+    private int nextSlot;
+
+    /**
+     * Opens the allocator of a node, resuming after the last lease stored in the file.
+     *
+     * @param nodeId    The identifier of the node, unique in the deployment (0 to {@link #MAX_NODES} - 1).
+     * @param leaseFile The file where the leases of the node are stored; created if it does not exist.
+     * @param leaseSize The number of codes reserved each time the file is written.
+     * @throws IOException If the file cannot be read, or its content is damaged.
+     */
+    public PrescripCodeAllocator(int nodeId, Path leaseFile, int leaseSize) throws IOException {
+        if (nodeId < 0 || nodeId >= MAX_NODES) {
+            throw new IllegalArgumentException("El identificador de nodo debe estar entre 0 y " + (MAX_NODES - 1) + ".");
+        }
+        if (leaseSize <= 0) {
+            throw new IllegalArgumentException("El tamaño de la reserva de códigos debe ser positivo.");
+        }
+        this.prefix = new char[]{DIGITS[nodeId / BASE], DIGITS[nodeId % BASE]};
+        this.leaseSize = leaseSize;
+        this.leaseFile = FileChannel.open(leaseFile,
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            this.leaseEnd = readLease();
+        } catch (IOException e) {
+            this.leaseFile.close();
+            throw e;
+        }
+        this.next = new AtomicLong(leaseEnd);
+    }
+
+    /**
+     * @return A new treatment code, never returned before by any node.
+     * @throws IllegalStateException If the lease cannot be stored, or the node has no codes left.
+     */
+    public ePrescripCode allocate() {
+        return codeOf(reserve(1));
+    }
+
+    /**
+     * Reserves a block of consecutive counter values, to be turned into codes with {@link #codeOf(long)}.
+     *
+     * @param count The number of values.
+     * @return The first value of the block.
+     * @throws IllegalStateException If the lease cannot be stored, or the node has no codes left.
+     */
+    public long reserve(int count) {
+        if (count <= 0) {
+            throw new IllegalArgumentException("Se debe reservar al menos un código.");
+        }
+        long first = next.getAndAdd(count);
+        long end = first + count;
+        if (end > leaseEnd) {
+            extendLease(end);
+        }
+        return first;
+    }
+
+    /**
+     * @param counter A value obtained from {@link #reserve(int)}.
+     * @return The treatment code of that value.
+     */
+    public ePrescripCode codeOf(long counter) {
+        char[] code = new char[PREFIX_LENGTH + COUNTER_LENGTH];
+        code[0] = prefix[0];
+        code[1] = prefix[1];
+        long rest = counter;
+        for (int i = code.length - 1; i >= PREFIX_LENGTH; i--) {
+            code[i] = DIGITS[(int) (rest % BASE)];
+            rest /= BASE;
+        }
+        try {
+            return new ePrescripCode(new String(code));
+        } catch (NullValueException | InvalidFormatException e) {
+            throw new IllegalStateException("Código de prescripción generado incorrecto.", e);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        leaseFile.close();
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Stores a new lease covering the given end before any value below it is used.
+     * Only the threads that run past the current lease get here.
+     */
+    private synchronized void extendLease(long end) {
+        if (end <= leaseEnd) {
+            // Another thread has already extended the lease far enough
+            return;
+        }
+        if (end > MAX_CODES_PER_NODE) {
+            throw new IllegalStateException("Se han agotado los códigos de prescripción de este nodo.");
+        }
+        long newEnd = Math.min(MAX_CODES_PER_NODE, Math.max(end, leaseEnd + leaseSize));
+        try {
+            writeLease(newEnd);
+        } catch (IOException e) {
+            throw new IllegalStateException("No se ha podido guardar la reserva de códigos de prescripción.", e);
+        }
+        leaseEnd = newEnd;
+    }
+
+    /**
+     * Reads both slots and returns the latest valid lease. A slot that is missing or fails its
+     * checksum is ignored, as long as the other one is valid.
+     */
+    private long readLease() throws IOException {
+        if (leaseFile.size() == 0) {
+            return 0;
+        }
+        ByteBuffer slots = ByteBuffer.allocate(LEASE_SLOTS * LEASE_RECORD_SIZE);
+        while (slots.hasRemaining() && leaseFile.read(slots, slots.position()) >= 0) {
+            // Keep reading until both slots are read or the file ends
+        }
+        slots.flip();
+        long latest = -1;
+        for (int slot = 0; slot < LEASE_SLOTS && slots.remaining() >= LEASE_RECORD_SIZE; slot++) {
+            long end = slots.getLong();
+            int checksum = slots.getInt();
+            if ((int) crc(end) == checksum && end >= 0 && end <= MAX_CODES_PER_NODE && end > latest) {
+                latest = end;
+                nextSlot = (slot + 1) % LEASE_SLOTS;
+            }
+        }
+        if (latest < 0) {
+            throw new IOException("El fichero de reservas de códigos está dañado.");
+        }
+        return latest;
+    }
+
+    private void writeLease(long end) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(LEASE_RECORD_SIZE);
+        record.putLong(end).putInt((int) crc(end)).flip();
+        long offset = (long) nextSlot * LEASE_RECORD_SIZE;
+        while (record.hasRemaining()) {
+            leaseFile.write(record, offset + record.position());
+        }
+        leaseFile.force(true);
+        nextSlot = (nextSlot + 1) % LEASE_SLOTS;
+    }
+
+    private static long crc(long value) {
+        CRC32 crc = new CRC32();
+        crc.update(ByteBuffer.allocate(Long.BYTES).putLong(value).flip());
+        return crc.getValue();
+    }
+}
@@ -0,0 +1,399 @@
+package services;
+
+import data.InvalidFormatException;
+import data.NullValueException;
+import medicalconsultation.MedicalPrescription;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Resilience layer placed in front of a {@link DecisionMakingAI} (Decorator pattern).
+ * It keeps consultations responsive when the AI backend degrades:
+ * <ul>
+ *     <li>Every remote call has a deadline; a call that exceeds it fails with {@link AIException}.</li>
+ *     <li>A circuit breaker stops contacting the backend after consecutive failures, failing fast
+ *     until a probe call succeeds again.</li>
+ *     <li>A bulkhead limits the calls in progress, including those abandoned after their deadline,
+ *     so a slow backend cannot accumulate threads on the terminal server.</li>
+ * </ul>
+ * Parsing answers is a local operation and is delegated without any of these limits.
+ * <p>
+ * If the wrapped AI streams its answers, they are streamed through the same limits: the deadline
+ * applies to the wait for each chunk, and the call holds its slot until the stream ends.
+ * Otherwise the whole answer is requested and published as a single chunk.
+ */
+public class ResilientDecisionMakingAI implements StreamingDecisionMakingAI {
+
+    // Default executor for the remote calls: one virtual thread per call
+    private static final Executor DEFAULT_EXECUTOR = Executors.newVirtualThreadPerTaskExecutor();
+
+    private final DecisionMakingAI ai;
+    private final long timeoutNanos;
+    private final CircuitBreaker breaker;
+    private final Semaphore bulkhead;
+    private final Executor executor;
+
+    private final AtomicLong timeouts = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    /**
+     * Creates a resilience layer in front of the given AI.
+     *
+     * @param ai                 The AI that actually answers.
+     * @param callTimeout        The deadline of every remote call.
+     * @param failureThreshold   The number of consecutive failures that opens the circuit.
+     * @param openDuration       How long the circuit stays open before a probe call.
+     * @param maxConcurrentCalls The maximum number of remote calls in progress.
+     */
+    public ResilientDecisionMakingAI(DecisionMakingAI ai, Duration callTimeout, int failureThreshold,
+                                     Duration openDuration, int maxConcurrentCalls) {
+        this(ai, callTimeout, failureThreshold, openDuration, maxConcurrentCalls, System::nanoTime, DEFAULT_EXECUTOR);
+    }
+
+    ResilientDecisionMakingAI(DecisionMakingAI ai, Duration callTimeout, int failureThreshold, Duration openDuration,
+                              int maxConcurrentCalls, LongSupplier clock, Executor executor) {
+        if (callTimeout.isNegative() || callTimeout.isZero() || maxConcurrentCalls <= 0) {
+            throw new IllegalArgumentException("El tiempo límite y el número de llamadas simultáneas deben ser positivos.");
+        }
+        this.ai = ai;
+        this.timeoutNanos = callTimeout.toNanos();
+        this.breaker = new CircuitBreaker(failureThreshold, openDuration.toNanos(), clock);
+        this.bulkhead = new Semaphore(maxConcurrentCalls);
+        this.executor = executor;
+    }
+
+    @Override
+    public void initDecisionMakingAI() throws AIException {
+        try {
+            call(() -> {
+                ai.initDecisionMakingAI();
+                return null;
+            });
+        } catch (BadPromptException e) {
+            // Initialization does not use any prompt
+            throw new AIException(e.getMessage());
+        }
+    }
+
+    @Override
+    public String getSuggestions(String prompt) throws BadPromptException, AIException {
+        return call(() -> ai.getSuggestions(prompt));
+    }
+
+    @Override
+    public String getSuggestions(String prompt, MedicalPrescription context) throws BadPromptException, AIException {
+        return call(() -> ai.getSuggestions(prompt, context));
+    }
+
+    /**
+     * Streams the answer of the wrapped AI. The slot of the bulkhead is taken when the returned
+     * publisher is subscribed to, and held until its stream ends; a refused call is reported to the
+     * subscriber. The publisher accepts a single subscriber.
+     */
+    @Override
+    public Flow.Publisher<String> streamSuggestions(String prompt) throws BadPromptException, AIException {
+        if (!(ai instanceof StreamingDecisionMakingAI streamingAI)) {
+            String answer = getSuggestions(prompt);
+            return subscriber -> subscriber.onSubscribe(new WholeAnswer(subscriber, answer));
+        }
+        return new GuardedPublisher(streamingAI, prompt);
+    }
+
+    @Override
+    public List<Suggestion> parseSuggest(String aiAnswer) throws InvalidFormatException, NullValueException {
+        return ai.parseSuggest(aiAnswer);
+    }
+
+    // --- Metrics ---
+
+    /** @return The number of calls that exceeded their deadline. */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /** @return The number of calls refused by the open circuit or the bulkhead. */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    /** @return true if calls are currently being refused because the backend keeps failing. */
+    public boolean isCircuitOpen() {
+        return breaker.getState() != CircuitBreaker.State.CLOSED;
+    }
+
+    // --- Internal helpers ---
+
+    /**
+     * Takes a slot of the bulkhead and asks the circuit breaker for permission to call the backend.
+     *
+     * @return The generation of the circuit breaker in which the call starts.
+     */
+    private long admit() throws AIException {
+        if (!bulkhead.tryAcquire()) {
+            rejections.incrementAndGet();
+            throw new AIException("Se ha alcanzado el máximo de consultas simultáneas a la IA.");
+        }
+        long generation = breaker.tryAcquire();
+        if (generation == CircuitBreaker.REFUSED) {
+            bulkhead.release();
+            rejections.incrementAndGet();
+            throw new AIException("La IA no está disponible temporalmente. Inténtelo de nuevo más tarde.");
+        }
+        return generation;
+    }
+
+    private <T> T call(Callable<T> remoteCall) throws BadPromptException, AIException {
+        long generation = admit();
+
+        CompletableFuture<T> result = new CompletableFuture<>();
+        try {
+            executor.execute(() -> {
+                try {
+                    result.complete(remoteCall.call());
+                } catch (Throwable e) {
+                    result.completeExceptionally(e);
+                } finally {
+                    // The slot is only freed when the backend has really finished
+                    bulkhead.release();
+                }
+            });
+        } catch (RuntimeException e) {
+            bulkhead.release();
+            breaker.onFailure(generation);
+            throw new AIException("No se ha podido invocar la IA: " + e.getMessage());
+        }
+
+        try {
+            T value = result.get(timeoutNanos, TimeUnit.NANOSECONDS);
+            breaker.onSuccess(generation);
+            return value;
+        } catch (TimeoutException e) {
+            timeouts.incrementAndGet();
+            breaker.onFailure(generation);
+            throw new AIException("La IA no ha respondido en el tiempo previsto.");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            breaker.onFailure(generation);
+            throw new AIException("La consulta a la IA ha sido interrumpida.");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof BadPromptException bpe) {
+                // The backend answered: the problem is the prompt, not its availability
+                breaker.onSuccess(generation);
+                throw bpe;
+            }
+            breaker.onFailure(generation);
+            if (cause instanceof AIException aie) {
+                throw aie;
+            }
+            throw new AIException("Ha ocurrido un problema de funcionamiento en la invocación de la IA: "
+                    + cause.getMessage());
+        }
+    }
+
+    /**
+     * Publisher of a streamed answer that only contacts the backend once it is subscribed to,
+     * so a publisher that is never used does not keep a slot or a probe of the circuit breaker.
+     */
+    private final class GuardedPublisher implements Flow.Publisher<String> {
+        private final StreamingDecisionMakingAI streamingAI;
+        private final String prompt;
+        private final AtomicBoolean subscribed = new AtomicBoolean();
+
+        GuardedPublisher(StreamingDecisionMakingAI streamingAI, String prompt) {
+            this.streamingAI = streamingAI;
+            this.prompt = prompt;
+        }
+
+        @Override
+        public void subscribe(Flow.Subscriber<? super String> subscriber) {
+            if (!subscribed.compareAndSet(false, true)) {
+                // A second stream would release the slot of the first one again
+                refuse(subscriber, new IllegalStateException("La respuesta de la IA solo puede recibirse una vez."));
+                return;
+            }
+            long generation;
+            try {
+                generation = admit();
+            } catch (AIException e) {
+                refuse(subscriber, e);
+                return;
+            }
+            Flow.Publisher<String> publisher;
+            try {
+                publisher = streamingAI.streamSuggestions(prompt);
+            } catch (BadPromptException e) {
+                bulkhead.release();
+                breaker.onSuccess(generation);
+                refuse(subscriber, e);
+                return;
+            } catch (AIException | RuntimeException e) {
+                bulkhead.release();
+                breaker.onFailure(generation);
+                refuse(subscriber, e instanceof AIException ? e
+                        : new AIException("Ha ocurrido un problema de funcionamiento en la invocación de la IA: "
+                        + e.getMessage()));
+                return;
+            }
+            publisher.subscribe(new GuardedStream(subscriber, generation));
+        }
+
+        private void refuse(Flow.Subscriber<? super String> subscriber, Throwable error) {
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    // Nothing will be published
+                }
+
+                @Override
+                public void cancel() {
+                    // Nothing to stop
+                }
+            });
+            subscriber.onError(error);
+        }
+    }
+
+    /**
+     * Relays a stream of the backend, releasing its slot and reporting its outcome to the circuit
+     * breaker when it ends. The stream fails if no chunk arrives within the deadline.
+     */
+    private final class GuardedStream implements Flow.Subscriber<String>, Flow.Subscription {
+        private final Flow.Subscriber<? super String> downstream;
+        private final long generation;
+        private final AtomicBoolean finished = new AtomicBoolean();
+        private volatile Flow.Subscription upstream;
+        // Chunks received; only written by the publisher
+        private volatile long received;
+
+        GuardedStream(Flow.Subscriber<? super String> downstream, long generation) {
+            this.downstream = downstream;
+            this.generation = generation;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            upstream = subscription;
+            downstream.onSubscribe(this);
+            watch(0);
+        }
+
+        @Override
+        public void onNext(String chunk) {
+            if (!finished.get()) {
+                received++;
+                downstream.onNext(chunk);
+            }
+        }
+
+        @Override
+        public void onError(Throwable error) {
+            if (finish()) {
+                if (error instanceof BadPromptException) {
+                    breaker.onSuccess(generation);
+                } else {
+                    breaker.onFailure(generation);
+                }
+                downstream.onError(error);
+            }
+        }
+
+        @Override
+        public void onComplete() {
+            if (finish()) {
+                breaker.onSuccess(generation);
+                downstream.onComplete();
+            }
+        }
+
+        @Override
+        public void request(long n) {
+            upstream.request(n);
+        }
+
+        /**
+         * The consumer stopped reading: the backend was answering, so it counts as a success.
+         */
+        @Override
+        public void cancel() {
+            if (finish()) {
+                breaker.onSuccess(generation);
+            }
+            upstream.cancel();
+        }
+
+        /**
+         * Fails the stream if no chunk beyond the given number has arrived when the deadline expires.
+         */
+        private void watch(long seen) {
+            CompletableFuture.delayedExecutor(timeoutNanos, TimeUnit.NANOSECONDS, executor).execute(() -> {
+                long now = received;
+                if (finished.get()) {
+                    return;
+                }
+                if (now != seen) {
+                    watch(now);
+                } else if (finish()) {
+                    timeouts.incrementAndGet();
+                    breaker.onFailure(generation);
+                    upstream.cancel();
+                    downstream.onError(new AIException("La IA no ha respondido en el tiempo previsto."));
+                }
+            });
+        }
+
+        private boolean finish() {
+            if (!finished.compareAndSet(false, true)) {
+                return false;
+            }
+            bulkhead.release();
+            return true;
+        }
+    }
+
+    /**
+     * Subscription publishing an answer that was received whole as a single chunk.
+     */
+    private static final class WholeAnswer implements Flow.Subscription {
+        private final Flow.Subscriber<? super String> subscriber;
+        private final String answer;
+        private boolean done;
+
+        WholeAnswer(Flow.Subscriber<? super String> subscriber, String answer) {
+            this.subscriber = subscriber;
+            this.answer = answer;
+        }
+
+        @Override
+        public void request(long n) {
+            if (done || n <= 0) {
+                return;
+            }
+            done = true;
+            if (answer == null) {
+                subscriber.onError(new NullValueException("La respuesta de la IA no puede ser nula."));
+            } else {
+                subscriber.onNext(answer);
+                subscriber.onComplete();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            done = true;
+        }
+    }
+}
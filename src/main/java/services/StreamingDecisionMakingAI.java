@@ -0,0 +1,11 @@
+package services;
+
+import java.util.concurrent.Flow;
+
+/**
+ * Decision support AI able to deliver its answer progressively, while it is being generated.
+ * The published chunks, concatenated, form an answer in the {@link SuggestionFormat}.
+ */
+public interface StreamingDecisionMakingAI extends DecisionMakingAI {
+    Flow.Publisher<String> streamSuggestions(String prompt) throws BadPromptException, AIException;
+}
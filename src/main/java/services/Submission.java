@@ -0,0 +1,66 @@
+package services;
+
+import data.HealthCardID;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+
+/**
+ * Groups the data sent to the SNS at the end of a consultation:
+ * the patient, the updated medical history, the illness and the signed prescription.
+ * Instead of the whole history, a submission may carry only the changes made to it ({@link HistoryDelta}).
+ */
+public final class Submission {
+
+    private final HealthCardID cip;
+    private final MedicalHistory history;
+    private final String illness;
+    private final MedicalPrescription prescription;
+    private final HistoryDelta delta;
+
+    public Submission(HealthCardID cip, MedicalHistory history, String illness, MedicalPrescription prescription) {
+        this(cip, history, illness, prescription, null);
+    }
+
+    public Submission(HistoryDelta delta, String illness, MedicalPrescription prescription) {
+        this(delta.getCip(), null, illness, prescription, delta);
+    }
+
+    private Submission(HealthCardID cip, MedicalHistory history, String illness, MedicalPrescription prescription,
+                       HistoryDelta delta) {
+        this.cip = cip;
+        this.history = history;
+        this.illness = illness;
+        this.prescription = prescription;
+        this.delta = delta;
+    }
+
+    public HealthCardID getCip() {
+        return cip;
+    }
+
+    /** @return The whole history, or null if the submission only carries its changes. */
+    public MedicalHistory getHistory() {
+        return history;
+    }
+
+    /** @return The changes of the history, or null if the submission carries the whole history. */
+    public HistoryDelta getDelta() {
+        return delta;
+    }
+
+    public String getIllness() {
+        return illness;
+    }
+
+    public MedicalPrescription getPrescription() {
+        return prescription;
+    }
+
+    @Override
+    public String toString() {
+        return "Submission{" +
+                "cip=" + cip +
+                ", illness='" + illness + '\'' +
+                '}';
+    }
+}
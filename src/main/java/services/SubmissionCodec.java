@@ -0,0 +1,182 @@
+package services;
+
+import data.DigitalSignature;
+import data.HealthCardID;
+import data.InvalidFormatException;
+import data.NullValueException;
+import data.ProductID;
+import data.ePrescripCode;
+import medicalconsultation.GuidelineParser;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.IncorrectTakingGuidelinesException;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import medicalconsultation.ProductAlreadyInPrescriptionException;
+import medicalconsultation.TakingGuideline;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Binary encoding of a {@link Submission}, used to keep pending submissions in local storage.
+ * Strings are written as a length followed by their UTF-8 bytes (-1 for null),
+ * and dates as milliseconds since the epoch (-1 for null).
+ * A submission carrying a {@link HistoryDelta} stores the new annotations in place of the whole history,
+ * followed at the end by the version and the number of annotations the delta was made on.
+ */
+final class SubmissionCodec {
+
+    private SubmissionCodec() {
+    }
+
+    static byte[] encode(Submission submission) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+
+        writeString(out, submission.getCip().getPersonalID());
+        writeString(out, submission.getIllness());
+
+        HistoryDelta delta = submission.getDelta();
+        MedicalHistory history = submission.getHistory();
+        out.writeInt(delta == null ? history.getMembShipNumb() : delta.getMembShipNumb());
+        List<String> annotations = delta == null ? history.getAnnotations() : delta.getAnnotations();
+        out.writeInt(annotations.size());
+        for (String annotation : annotations) {
+            writeString(out, annotation);
+        }
+
+        MedicalPrescription presc = submission.getPrescription();
+        out.writeInt(presc.getMembShipNumb());
+        writeString(out, presc.getIllness());
+        writeDate(out, presc.getPrescDate());
+        writeDate(out, presc.getEndDate());
+        writeString(out, presc.getPrescCode() == null ? null : presc.getPrescCode().getCode());
+        if (presc.getEsign() == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] signature = presc.getEsign().getSignature();
+            out.writeInt(signature.length);
+            out.write(signature);
+        }
+
+        Map<ProductID, TakingGuideline> lines = presc.getPrescriptionLines();
+        out.writeInt(lines.size());
+        for (Map.Entry<ProductID, TakingGuideline> line : lines.entrySet()) {
+            TakingGuideline tg = line.getValue();
+            writeString(out, line.getKey().getCode());
+            writeString(out, tg.getdMoment().name());
+            out.writeFloat(tg.getDuration());
+            out.writeFloat(tg.getPosology().getDose());
+            out.writeFloat(tg.getPosology().getFreq());
+            writeString(out, tg.getPosology().getFreqUnit().name());
+            writeString(out, tg.getInstructions());
+        }
+
+        if (delta != null) {
+            out.writeLong(delta.getBaseVersion());
+            out.writeInt(delta.getBaseAnnotationCount());
+        }
+        out.flush();
+        return bytes.toByteArray();
+    }
+
+    /**
+     * @param delta Whether the submission was encoded with a {@link HistoryDelta}.
+     */
+    static Submission decode(byte[] payload, boolean delta) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            HealthCardID cip = new HealthCardID(readString(in));
+            String illness = readString(in);
+
+            int membShipNumb = in.readInt();
+            int count = in.readInt();
+            List<String> annotations = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                annotations.add(readString(in));
+            }
+
+            MedicalPrescription presc = new MedicalPrescription(cip, in.readInt(), readString(in));
+            presc.setPrescDate(readDate(in));
+            presc.setEndDate(readDate(in));
+            String code = readString(in);
+            if (code != null) {
+                presc.setPrescCode(new ePrescripCode(code));
+            }
+            int signatureLength = in.readInt();
+            if (signatureLength >= 0) {
+                byte[] signature = new byte[signatureLength];
+                in.readFully(signature);
+                presc.setEsign(new DigitalSignature(signature));
+            }
+
+            int lines = in.readInt();
+            for (int i = 0; i < lines; i++) {
+                ProductID prodID = new ProductID(readString(in));
+                String moment = readString(in);
+                float duration = in.readFloat();
+                float dose = in.readFloat();
+                float freq = in.readFloat();
+                String unit = readString(in);
+                presc.addLine(prodID, new TakingGuideline(
+                        moment == null ? null : GuidelineParser.parseDayMoment(moment, 0, moment.length()),
+                        duration, dose, freq,
+                        unit == null ? null : GuidelineParser.parseFqUnit(unit, 0, unit.length()),
+                        readString(in)));
+            }
+            if (delta) {
+                long baseVersion = in.readLong();
+                int baseAnnotationCount = in.readInt();
+                return new Submission(new HistoryDelta(cip, membShipNumb, baseVersion, baseAnnotationCount, annotations),
+                        illness, presc);
+            }
+            MedicalHistory history = new MedicalHistory(cip, membShipNumb);
+            for (String annotation : annotations) {
+                history.addMedicalHistoryAnnotations(annotation);
+            }
+            return new Submission(cip, history, illness, presc);
+        } catch (NullValueException | InvalidFormatException | IncorrectParametersException
+                 | ProductAlreadyInPrescriptionException | IncorrectTakingGuidelinesException e) {
+            throw new IOException("El envío almacenado está dañado: " + e.getMessage(), e);
+        }
+    }
+
+    // --- Internal helpers ---
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] utf8 = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(utf8.length);
+        out.write(utf8);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] utf8 = new byte[length];
+        in.readFully(utf8);
+        return new String(utf8, StandardCharsets.UTF_8);
+    }
+
+    private static void writeDate(DataOutputStream out, Date date) throws IOException {
+        out.writeLong(date == null ? -1L : date.getTime());
+    }
+
+    private static Date readDate(DataInputStream in) throws IOException {
+        long millis = in.readLong();
+        return millis < 0 ? null : new Date(millis);
+    }
+}
@@ -0,0 +1,63 @@
+package services;
+
+import medicalconsultation.MedicalPrescription;
+
+/**
+ * Outcome of one item of a batch sent to the SNS.
+ * A batch can succeed for some items and fail for others, so each item
+ * carries either the prescription returned by the SNS or the error that rejected it.
+ */
+public final class SubmissionResult {
+
+    private final int index;
+    private final MedicalPrescription prescription;
+    private final Exception error;
+
+    private SubmissionResult(int index, MedicalPrescription prescription, Exception error) {
+        this.index = index;
+        this.prescription = prescription;
+        this.error = error;
+    }
+
+    /**
+     * @param index        The position of the item in the batch.
+     * @param prescription The prescription returned by the SNS.
+     */
+    public static SubmissionResult success(int index, MedicalPrescription prescription) {
+        return new SubmissionResult(index, prescription, null);
+    }
+
+    /**
+     * @param index The position of the item in the batch.
+     * @param error The reason why the SNS rejected the item.
+     */
+    public static SubmissionResult failure(int index, Exception error) {
+        return new SubmissionResult(index, null, error);
+    }
+
+    public int getIndex() {
+        return index;
+    }
+
+    public boolean isSuccessful() {
+        return error == null;
+    }
+
+    /** @return The prescription returned by the SNS, or null if the item failed. */
+    public MedicalPrescription getPrescription() {
+        return prescription;
+    }
+
+    /** @return The error that rejected the item, or null if it succeeded. */
+    public Exception getError() {
+        return error;
+    }
+
+    @Override
+    public String toString() {
+        return "SubmissionResult{" +
+                "index=" + index +
+                (error == null ? ", prescription=" + prescription : ", error=" + error) +
+                '}';
+    }
+}
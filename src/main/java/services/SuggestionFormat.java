@@ -0,0 +1,198 @@
+package services;
+
+import data.InvalidFormatException;
+import data.NullValueException;
+import data.ProductID;
+import medicalconsultation.FqUnit;
+import medicalconsultation.GuidelineParser;
+import medicalconsultation.TakingGuideline;
+import medicalconsultation.dayMoment;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Text format of the answers of the decision support AI.
+ * <p>
+ * An answer contains one suggestion per line; blank lines are ignored. Fields are separated by ';':
+ * <pre>
+ * ADDITION;productID;moment;duration;dose;frequency;unit;instructions
+ * MODIFICATION;productID;moment;duration;dose;frequency;unit;instructions
+ * ELIMINATION;productID
+ * </pre>
+ * where productID is the 12-digit UPC, moment a {@link dayMoment} name, unit a {@link FqUnit} name,
+ * and duration, dose and frequency decimal numbers. The instructions take the rest of the line,
+ * so they may contain ';'. For a modification only the dose is applied.
+ * Spaces around a line are ignored, so answers may use CRLF line breaks.
+ * <p>
+ * This is the format read by default by {@link DecisionMakingAI#parseSuggest(String)}.
+ */
+public final class SuggestionFormat {
+
+    private static final char SEPARATOR = ';';
+
+    // Cached copy of the suggestion types, since values() creates a new array on every call
+    private static final Suggestion.SuggType[] TYPES = Suggestion.SuggType.values();
+
+    private SuggestionFormat() {
+    }
+
+    /**
+     * Parses a whole answer.
+     *
+     * @param answer The text returned by the AI.
+     * @return The suggestions, in the order they appear.
+     * @throws NullValueException     If the answer is null.
+     * @throws InvalidFormatException If a line does not follow the format.
+     */
+    public static List<Suggestion> parse(CharSequence answer) throws InvalidFormatException, NullValueException {
+        if (answer == null) {
+            throw new NullValueException("La respuesta de la IA no puede ser nula.");
+        }
+        List<Suggestion> suggestions = new ArrayList<>();
+        int start = 0;
+        for (int i = 0; i <= answer.length(); i++) {
+            if (i == answer.length() || answer.charAt(i) == '\n') {
+                Suggestion sugg = parseLine(answer, start, i);
+                if (sugg != null) {
+                    suggestions.add(sugg);
+                }
+                start = i + 1;
+            }
+        }
+        return suggestions;
+    }
+
+    /**
+     * Writes suggestions in this format, so that {@link #parse(CharSequence)} gives them back.
+     * Line breaks inside the instructions are replaced by spaces.
+     *
+     * @param suggestions The suggestions to be written.
+     * @return The answer text, one line per suggestion.
+     */
+    public static String format(List<Suggestion> suggestions) {
+        StringBuilder answer = new StringBuilder();
+        for (Suggestion sugg : suggestions) {
+            answer.append(sugg.getType().name()).append(SEPARATOR).append(sugg.getProductID().getCode());
+            TakingGuideline tg = sugg.getTakingGuideline();
+            if (sugg.getType() != Suggestion.SuggType.ELIMINATION) {
+                String instructions = tg.getInstructions() == null ? "" : tg.getInstructions();
+                answer.append(SEPARATOR).append(tg.getdMoment().name())
+                        .append(SEPARATOR).append(tg.getDuration())
+                        .append(SEPARATOR).append(tg.getPosology().getDose())
+                        .append(SEPARATOR).append(tg.getPosology().getFreq())
+                        .append(SEPARATOR).append(tg.getPosology().getFreqUnit().name())
+                        .append(SEPARATOR).append(instructions.replace('\n', ' ').replace('\r', ' '));
+            }
+            answer.append('\n');
+        }
+        return answer.toString();
+    }
+
+    /**
+     * Parses one line of an answer.
+     * The line is scanned once, in place: apart from the resulting objects, nothing is allocated
+     * unless the line is invalid.
+     *
+     * @param text The text containing the line.
+     * @param from The index of the first character of the line.
+     * @param to   The index after the last character of the line (excluding the line break).
+     * @return The suggestion, or null if the line is blank.
+     * @throws InvalidFormatException If the line does not follow the format.
+     */
+    public static Suggestion parseLine(CharSequence text, int from, int to) throws InvalidFormatException {
+        // Surrounding spaces (and the '\r' of CRLF line breaks) are ignored
+        while (from < to && Character.isWhitespace(text.charAt(from))) {
+            from++;
+        }
+        while (to > from && Character.isWhitespace(text.charAt(to - 1))) {
+            to--;
+        }
+        if (from == to) {
+            return null;
+        }
+
+        int end = nextSeparator(text, from, to);
+        Suggestion.SuggType type = parseType(text, from, end);
+        if (type == null) {
+            throw invalid("Tipo de sugerencia desconocido", text, from, to);
+        }
+        if (end == to) {
+            throw invalid("La sugerencia no indica el producto", text, from, to);
+        }
+
+        int start = end + 1;
+        end = nextSeparator(text, start, to);
+        long code = ProductID.packCode(text, start, end);
+        if (code < 0) {
+            throw invalid("El ProductID debe contener exactamente 12 dígitos", text, from, to);
+        }
+        if (type == Suggestion.SuggType.ELIMINATION) {
+            if (end != to) {
+                throw invalid("Una eliminación solo indica el producto", text, from, to);
+            }
+            return new Suggestion(type, ProductID.fromPackedCode(code), null);
+        }
+
+        // moment;duration;dose;frequency;unit
+        dayMoment moment = null;
+        FqUnit unit = null;
+        float duration = Float.NaN;
+        float dose = Float.NaN;
+        float freq = Float.NaN;
+        for (int field = 0; field < 5; field++) {
+            if (end == to) {
+                throw invalid("La sugerencia no contiene todas las pautas", text, from, to);
+            }
+            start = end + 1;
+            end = nextSeparator(text, start, to);
+            switch (field) {
+                case 0 -> moment = GuidelineParser.parseDayMoment(text, start, end);
+                case 1 -> duration = GuidelineParser.parseFloat(text, start, end);
+                case 2 -> dose = GuidelineParser.parseFloat(text, start, end);
+                case 3 -> freq = GuidelineParser.parseFloat(text, start, end);
+                default -> unit = GuidelineParser.parseFqUnit(text, start, end);
+            }
+        }
+        if (end == to) {
+            throw invalid("La sugerencia no contiene todas las pautas", text, from, to);
+        }
+        if (moment == null || unit == null || Float.isNaN(duration) || Float.isNaN(dose) || Float.isNaN(freq)) {
+            throw invalid("Las pautas de la sugerencia son incorrectas", text, from, to);
+        }
+        // The instructions take the rest of the line
+        String instructions = text.subSequence(end + 1, to).toString();
+        return new Suggestion(type, ProductID.fromPackedCode(code),
+                new TakingGuideline(moment, duration, dose, freq, unit, instructions));
+    }
+
+    // --- Internal helpers ---
+
+    private static int nextSeparator(CharSequence text, int from, int to) {
+        int i = from;
+        while (i < to && text.charAt(i) != SEPARATOR) {
+            i++;
+        }
+        return i;
+    }
+
+    private static Suggestion.SuggType parseType(CharSequence text, int from, int to) {
+        for (Suggestion.SuggType type : TYPES) {
+            String name = type.name();
+            if (name.length() == to - from) {
+                int i = 0;
+                while (i < name.length() && name.charAt(i) == text.charAt(from + i)) {
+                    i++;
+                }
+                if (i == name.length()) {
+                    return type;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static InvalidFormatException invalid(String reason, CharSequence text, int from, int to) {
+        return new InvalidFormatException(reason + ": " + text.subSequence(from, to));
+    }
+}
@@ -4,6 +4,7 @@ import org.junit.Test;
 import org.junit.jupiter.api.DisplayName;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertThrows;
 
 /**
@@ -45,4 +46,17 @@ public class HealthCardIDTest {
         HealthCardID id = new HealthCardID(validCode);
         assertEquals(validCode, id.getPersonalID());
     }
-}
\ No newline at end of file
+
+    // TEST 4: INTERNING
+    @Test
+    @DisplayName("Debe devolver la misma instancia para el mismo código")
+    public void ofShouldReturnSharedInstance() throws Exception {
+        // Two lookups of the same CIP must share a single object
+        HealthCardID first = HealthCardID.of("ABCDE12345678901");
+        HealthCardID second = HealthCardID.of(new String("ABCDE12345678901"));
+
+        assertSame(first, second);
+        assertEquals(new HealthCardID("ABCDE12345678901"), first);
+        assertThrows(InvalidFormatException.class, () -> HealthCardID.of("A!C1234567890123"));
+    }
+}
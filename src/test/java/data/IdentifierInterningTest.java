@@ -0,0 +1,92 @@
+package data;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the canonical identifiers handed out by the {@code of} factories
+ * and for the format checks of {@link CodeFormat}.
+ */
+class IdentifierInterningTest {
+
+    /**
+     * Equal product codes share one instance, which is equal to one built with the constructor.
+     */
+    @Test
+    void testProductIDIsInterned() throws Exception {
+        ProductID first = ProductID.of("123456789012");
+
+        assertAll(
+                () -> assertSame(first, ProductID.of(new String("123456789012"))),
+                () -> assertEquals(new ProductID("123456789012"), first),
+                () -> assertNotSame(first, ProductID.of("123456789013")),
+                () -> assertThrows(NullValueException.class, () -> ProductID.of(null)),
+                () -> assertThrows(InvalidFormatException.class, () -> ProductID.of("12345"))
+        );
+    }
+
+    /**
+     * Equal prescription codes share one instance, and the factory validates like the constructor.
+     */
+    @Test
+    void testEPrescripCodeIsInterned() throws Exception {
+        ePrescripCode first = ePrescripCode.of("RX12345678");
+
+        assertAll(
+                () -> assertSame(first, ePrescripCode.of(new String("RX12345678"))),
+                () -> assertEquals(new ePrescripCode("RX12345678"), first),
+                () -> assertThrows(NullValueException.class, () -> ePrescripCode.of(null)),
+                () -> assertThrows(InvalidFormatException.class, () -> ePrescripCode.of("INVALID-ID"))
+        );
+    }
+
+    /**
+     * Prescription codes accept exactly 10 ASCII letters and digits, as the former regular expression did.
+     */
+    @Test
+    void testEPrescripCodeFormat() {
+        assertAll(
+                () -> assertEquals("aZ09bY18cX", new ePrescripCode("aZ09bY18cX").getCode()),
+                () -> assertThrows(InvalidFormatException.class, () -> new ePrescripCode("RX1234567")),
+                () -> assertThrows(InvalidFormatException.class, () -> new ePrescripCode("RX123456789")),
+                () -> assertThrows(InvalidFormatException.class, () -> new ePrescripCode("RX1234567Ñ")),
+                () -> assertThrows(InvalidFormatException.class, () -> new ePrescripCode("RX1234567٣")),
+                () -> assertThrows(InvalidFormatException.class, () -> new ePrescripCode("RX 1234567"))
+        );
+    }
+
+    /**
+     * Threads interning the same codes at the same time all receive the same instances.
+     */
+    @Test
+    void testConcurrentInterningGivesOneInstancePerCode() throws Exception {
+        int codes = 100;
+        List<Future<List<ProductID>>> results = new ArrayList<>();
+        try (ExecutorService threads = Executors.newFixedThreadPool(8)) {
+            for (int t = 0; t < 8; t++) {
+                results.add(threads.submit(() -> {
+                    List<ProductID> ids = new ArrayList<>();
+                    for (int i = 0; i < codes; i++) {
+                        ids.add(ProductID.of(String.format("%012d", 500_000 + i)));
+                    }
+                    return ids;
+                }));
+            }
+        }
+
+        List<ProductID> expected = results.get(0).get();
+        for (Future<List<ProductID>> result : results) {
+            List<ProductID> ids = result.get();
+            for (int i = 0; i < codes; i++) {
+                assertSame(expected.get(i), ids.get(i));
+            }
+        }
+    }
+}
@@ -42,4 +42,16 @@ public class ProductIDTest {
         // Check that the object holds the correct string
         assertEquals(validUPC, pid.getCode());
     }
-}
\ No newline at end of file
+
+    // TEST 4: PACKED FORM
+    @Test
+    @DisplayName("El código empaquetado conserva el ProductID")
+    public void packedCodeShouldRoundTrip() throws Exception {
+        // A code with leading zeros must survive the conversion to a number and back
+        ProductID pid = new ProductID("000456789012");
+
+        assertEquals(456789012L, pid.getPackedCode());
+        assertEquals(pid, ProductID.fromPackedCode(pid.getPackedCode()));
+        assertEquals("000456789012", ProductID.fromPackedCode(pid.getPackedCode()).getCode());
+    }
+}
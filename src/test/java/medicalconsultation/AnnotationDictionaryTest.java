@@ -0,0 +1,143 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the compacted storage of annotations: {@link AnnotationDictionary},
+ * {@link CompressedAnnotationList} and {@link MedicalHistory#compact}.
+ */
+class AnnotationDictionaryTest {
+
+    private static final List<String> PHRASES = List.of("Control TA", "Sin cambios", "Paciente estable",
+            "Se mantiene el tratamiento", "Buena adherencia al tratamiento");
+
+    private HealthCardID cip;
+    private AnnotationDictionary dictionary;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cip = new HealthCardID("ABCJ123456789012");
+        dictionary = new AnnotationDictionary();
+        dictionary.addPhrases(PHRASES);
+    }
+
+    /**
+     * A compacted history returns the same text and annotations, before and after adding more,
+     * and is still equal to the same history not compacted.
+     */
+    @Test
+    void testCompactedHistoryIsTransparent() throws Exception {
+        MedicalHistory plain = new MedicalHistory(cip, 7);
+        plain.addMedicalHistoryAnnotations("Control TA");
+        plain.addMedicalHistoryAnnotations("TA 150/95, se añade enalapril 10 mg.");
+        MedicalHistory compact = new MedicalHistory(plain);
+        compact.compact(dictionary);
+
+        plain.addMedicalHistoryAnnotations("Sin cambios");
+        compact.addMedicalHistoryAnnotations("Sin cambios");
+        MedicalHistory copy = new MedicalHistory(compact);
+
+        assertAll(
+                () -> assertTrue(compact.isCompact()),
+                () -> assertTrue(copy.isCompact()),
+                () -> assertEquals(plain.getHistory(), compact.getHistory()),
+                () -> assertEquals(plain.getAnnotations(), compact.getAnnotations()),
+                () -> assertEquals(List.of("Sin cambios"), compact.getLatestAnnotations(1)),
+                () -> assertEquals(plain, compact),
+                () -> assertEquals(plain.hashCode(), compact.hashCode()),
+                () -> assertEquals(plain, copy),
+                () -> assertEquals(1, dictionary.encode("Paciente estable").length)
+        );
+    }
+
+    /**
+     * Older annotations loaded after compacting are inserted in order, and words that no longer fit
+     * in a full dictionary are kept as text.
+     */
+    @Test
+    void testLoadedAnnotationsAndFullDictionary() throws Exception {
+        AnnotationDictionary small = new AnnotationDictionary(2, 1);
+        List<String> older = List.of("Niño con otitis", "Amoxicilina 8 días", "Revisión: oído sano ✓");
+        MedicalHistory history = new MedicalHistory(cip, 7, List.of("Sin cambios"), older.size(),
+                String.join("\n", older).length() + 1 + "Sin cambios".length(),
+                (String.join("\n", older) + "\nSin cambios").hashCode(),
+                (from, to) -> older.subList(from, to));
+        history.compact(small);
+
+        assertEquals(List.of("Revisión: oído sano ✓", "Sin cambios"), history.getLatestAnnotations(2));
+        assertEquals(String.join("\n", older) + "\nSin cambios", history.getHistory());
+        assertEquals(2, small.getEntryCount());
+    }
+
+    /**
+     * Words seen only once are kept as text; a word gets a code once it has been seen again.
+     */
+    @Test
+    void testWordsAreAddedOnceTheyRecur() throws Exception {
+        byte[] first = dictionary.encode("Peso 71 kg");
+        assertEquals(PHRASES.size(), dictionary.getEntryCount());
+
+        byte[] second = dictionary.encode("Peso 73 kg");
+        assertEquals(PHRASES.size() + 2, dictionary.getEntryCount());
+        byte[] third = dictionary.encode("Peso 73 kg");
+
+        assertAll(
+                () -> assertEquals(PHRASES.size() + 3, dictionary.getEntryCount()),
+                () -> assertTrue(second.length < first.length),
+                () -> assertTrue(third.length < second.length),
+                () -> assertEquals("Peso 71 kg", dictionary.decode(first, 0, first.length)),
+                () -> assertEquals("Peso 73 kg", dictionary.decode(second, 0, second.length)),
+                () -> assertEquals("Peso 73 kg", dictionary.decode(third, 0, third.length))
+        );
+    }
+
+    /**
+     * Memory of 20,000 histories of 25 annotations, written with standard phrases and a few
+     * variable values, compared with one String per annotation.
+     */
+    @Test
+    void testMemoryReductionOnSyntheticCorpus() throws Exception {
+        String[] variable = {"TA %d/%d, se mantiene enalapril %d mg.", "Glucemia basal %d mg/dl, HbA1c %d,%d%%.",
+                "Peso %d kg, talla 1%d cm, IMC %d.", "Dolor lumbar de %d días, se pauta ibuprofeno %d mg cada %d h."};
+        Random random = new Random(42);
+        long plainBytes = 0;
+        long compactBytes = 0;
+        for (int h = 0; h < 20_000; h++) {
+            List<String> annotations = new ArrayList<>();
+            for (int a = 0; a < 25; a++) {
+                annotations.add(random.nextInt(3) > 0 ? PHRASES.get(random.nextInt(PHRASES.size()))
+                        : String.format(variable[random.nextInt(variable.length)],
+                        40 + random.nextInt(120), random.nextInt(100), 1 + random.nextInt(20)));
+            }
+            plainBytes += 16 + 4L * annotations.size();
+            for (String annotation : annotations) {
+                plainBytes += stringFootprint(annotation);
+            }
+            CompressedAnnotationList compressed = new CompressedAnnotationList(dictionary, annotations);
+            compressed.trimToSize();
+            assertEquals(annotations, compressed);
+            compactBytes += compressed.getMemoryFootprint();
+        }
+        compactBytes += dictionary.getMemoryFootprint();
+
+        String report = "plain " + plainBytes / 1024 + " KiB, compact " + compactBytes / 1024 + " KiB, "
+                + dictionary.getEntryCount() + " dictionary entries";
+        assertTrue(compactBytes * 3 < plainBytes, report);
+    }
+
+    /** Heap used by a String (header, array header and characters, aligned to 8 bytes). */
+    private static long stringFootprint(String s) {
+        boolean latin1 = StandardCharsets.ISO_8859_1.newEncoder().canEncode(s);
+        long array = 16 + (latin1 ? s.length() : 2L * s.length());
+        return 24 + (array + 7) / 8 * 8;
+    }
+}
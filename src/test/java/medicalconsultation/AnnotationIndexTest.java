@@ -0,0 +1,174 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link AnnotationIndex}.
+ */
+class AnnotationIndexTest {
+
+    private AnnotationIndex index;
+    private HealthCardID ana;
+    private HealthCardID luis;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        index = new AnnotationIndex();
+        ana = new HealthCardID("ANAA123456789012");
+        luis = new HealthCardID("LUIS123456789012");
+    }
+
+    /**
+     * Term, phrase and prefix queries ignore case and accents, and can be limited to one patient.
+     * Annotations added after the history is attached are found as well.
+     */
+    @Test
+    void testQueriesOverAttachedHistories() throws Exception {
+        MedicalHistory first = new MedicalHistory(ana, 1);
+        first.addMedicalHistoryAnnotations("Tensión arterial elevada");
+        first.addMedicalHistoryAnnotations("Se inicia enalapril 10 mg");
+        first.setAnnotationIndex(index);
+        MedicalHistory second = new MedicalHistory(luis, 2);
+        second.setAnnotationIndex(index);
+        second.addMedicalHistoryAnnotations("Arterial: TENSION normal; mantener Enalapril");
+
+        assertAll(
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(ana, 0), new AnnotationIndex.Hit(luis, 0)),
+                        index.findTerm("tension")),
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(ana, 0)), index.findPhrase("tensión arterial")),
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(ana, 1)), index.findPhrase("enalapril 10 MG")),
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(luis, 0)), index.findPrefix("enal", luis)),
+                () -> assertEquals(2, index.findPrefix("enal").size()),
+                () -> assertTrue(index.findTerm("insulina").isEmpty()),
+                () -> assertTrue(index.findPhrase("arterial tension", ana).isEmpty())
+        );
+    }
+
+    /**
+     * Attaching a new copy of a history replaces what was indexed for the patient.
+     */
+    @Test
+    void testReplacedHistoryIsNotFound() throws Exception {
+        MedicalHistory old = new MedicalHistory(ana, 1);
+        old.addMedicalHistoryAnnotations("Sospecha de asma");
+        old.setAnnotationIndex(index);
+
+        MedicalHistory downloaded = new MedicalHistory(ana, 1);
+        downloaded.addMedicalHistoryAnnotations("Asma descartada");
+        downloaded.setAnnotationIndex(index);
+
+        assertEquals(List.of(new AnnotationIndex.Hit(ana, 0)), index.findTerm("asma"));
+        assertTrue(index.findTerm("sospecha").isEmpty());
+    }
+
+    /**
+     * Replacing histories over and over does not grow the index: removed annotations are dropped.
+     */
+    @Test
+    void testReplacedHistoriesAreCompacted() throws Exception {
+        List<String> history = List.of("Control de tensión", "Se ajusta enalapril 10 mg", "Paciente estable");
+        for (int i = 0; i < 2_000; i++) {
+            index.replace(ana, history);
+            index.replace(luis, List.of("Revisión " + i));
+        }
+        index.add(luis, 1, "Tensión arterial normal");
+
+        assertAll(
+                () -> assertTrue(index.getPostingBytes() < 10_000, "postings " + index.getPostingBytes()),
+                () -> assertTrue(index.getTermCount() < 500, "terms " + index.getTermCount()),
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(ana, 1)), index.findPhrase("enalapril 10")),
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(ana, 0), new AnnotationIndex.Hit(luis, 1)),
+                        index.findTerm("tension")),
+                () -> assertEquals(List.of(new AnnotationIndex.Hit(luis, 0)), index.findTerm("1999")),
+                () -> assertTrue(index.findTerm("1998").isEmpty())
+        );
+    }
+
+    /**
+     * A term that the tokenizer splits, such as an abbreviation with dots, is searched as a phrase.
+     */
+    @Test
+    void testSplitTermIsSearchedAsPhrase() throws Exception {
+        index.add(ana, 0, "T.A. 140/90 en consulta");
+        index.add(luis, 0, "Tratamiento: a demanda");
+
+        assertEquals(List.of(new AnnotationIndex.Hit(ana, 0)), index.findTerm("T.A."));
+        assertEquals(List.of(new AnnotationIndex.Hit(ana, 0)), index.findTerm("140/90", ana));
+    }
+
+    /**
+     * Hit counts and posting size over a corpus of 20,000 annotations of 200 patients.
+     */
+    @Test
+    void testQueriesOverACorpus() throws Exception {
+        HealthCardID[] patients = indexCorpus(20_000, 200);
+
+        assertAll("Corpus queries",
+                () -> assertEquals(2, index.findTerm("anafilaxia").size()),
+                () -> assertEquals(200, index.findPhrase("dosis 42 mg").size()),
+                () -> assertEquals(2, index.findPrefix("anafil").size()),
+                () -> assertEquals(100, index.findPhrase("dosis 42 mg", patients[42]).size()),
+                () -> assertTrue(index.getPostingBytes() < 64L * 20_000, index.getPostingBytes() + " bytes")
+        );
+    }
+
+    /**
+     * Query latency over a corpus of 1,000,000 annotations of 1,000 patients.
+     * Only run with -Dbenchmarks=true.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+    void testQueriesOverOneMillionAnnotations() throws Exception {
+        int total = 1_000_000;
+        HealthCardID[] patients = indexCorpus(total, 1_000);
+
+        long termNanos = time(() -> assertEquals(100, index.findTerm("anafilaxia").size()));
+        long phraseNanos = time(() -> assertEquals(10_000, index.findPhrase("dosis 42 mg").size()));
+        long prefixNanos = time(() -> assertEquals(100, index.findPrefix("anafil").size()));
+        long patientNanos = time(() -> assertEquals(1_000, index.findPhrase("dosis 42 mg", patients[42]).size()));
+
+        String report = "term " + termNanos / 1000 + " us, phrase " + phraseNanos / 1000 + " us, prefix "
+                + prefixNanos / 1000 + " us, patient phrase " + patientNanos / 1000 + " us, postings "
+                + index.getPostingBytes() / 1024 + " KiB";
+        assertTrue(termNanos < 50_000_000L && prefixNanos < 50_000_000L, report);
+        assertTrue(index.getPostingBytes() < 64L * total, report);
+    }
+
+    /**
+     * Indexes a synthetic corpus: annotation i belongs to patient i % patientCount, mentions the dose
+     * i % 100 and, once every 10,000 annotations, an anaphylaxis.
+     *
+     * @return The patients of the corpus.
+     */
+    private HealthCardID[] indexCorpus(int total, int patientCount) throws Exception {
+        String[] visits = {"rutina", "urgencia", "seguimiento", "revisión", "domicilio"};
+        HealthCardID[] patients = new HealthCardID[patientCount];
+        for (int p = 0; p < patients.length; p++) {
+            patients[p] = new HealthCardID(String.format("PACI%012d", p));
+        }
+        for (int i = 0; i < total; i++) {
+            String annotation = "Control de " + visits[i % visits.length] + ": paciente estable, dosis "
+                    + (i % 100) + " mg" + (i % 10_000 == 0 ? ", antecedente de anafilaxia" : "");
+            index.add(patients[i % patients.length], i / patients.length, annotation);
+        }
+        return patients;
+    }
+
+    /** @return The best time of several runs of the query, in nanoseconds. */
+    private static long time(Runnable query) {
+        long best = Long.MAX_VALUE;
+        for (int run = 0; run < 5; run++) {
+            long start = System.nanoTime();
+            query.run();
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        return best;
+    }
+}
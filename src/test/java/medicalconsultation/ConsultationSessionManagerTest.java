@@ -0,0 +1,121 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import data.ProductID;
+import medicalconsultation.doubles.DecisionMakingAIStub;
+import medicalconsultation.doubles.HealthNationalServiceStub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link ConsultationSessionManager}.
+ * Verifies that sessions are isolated from each other and can run concurrently.
+ */
+class ConsultationSessionManagerTest {
+
+    private ConsultationSessionManager manager;
+    private ProductID prodID;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        manager = new ConsultationSessionManager(new HealthNationalServiceStub(), new DecisionMakingAIStub());
+        prodID = new ProductID("123456789012");
+    }
+
+    /**
+     * The state of one session must not affect the state of another one.
+     */
+    @Test
+    void testSessionsAreIndependent() throws Exception {
+        long first = manager.openSession(new HealthCardID("ABCJ123456789012"), "Gripe");
+        long second = manager.openSession(new HealthCardID("ABCJ123456789013"), "Dolor");
+
+        manager.getSession(first).initMedicalPrescriptionEdition();
+
+        assertAll("Independent sessions",
+                () -> assertNotEquals(first, second),
+                () -> assertEquals(2, manager.getOpenSessions()),
+                () -> assertDoesNotThrow(() -> manager.getSession(second).initMedicalPrescriptionEdition()),
+                () -> assertThrows(ProceduralException.class, () -> manager.getSession(first).initMedicalPrescriptionEdition())
+        );
+    }
+
+    /**
+     * Closed or unknown sessions must be rejected.
+     */
+    @Test
+    void testClosedSessionIsNotAvailable() throws Exception {
+        long session = manager.openSession(new HealthCardID("ABCJ123456789012"), "Gripe");
+        manager.closeSession(session);
+
+        assertThrows(ProceduralException.class, () -> manager.getSession(session));
+        assertThrows(ProceduralException.class, () -> manager.closeSession(session));
+    }
+
+    /**
+     * Sessions abandoned without closing are discarded once they have been idle for too long.
+     */
+    @Test
+    void testIdleSessionsAreDiscarded() throws Exception {
+        AtomicLong now = new AtomicLong();
+        long timeout = Duration.ofMinutes(30).toNanos();
+        manager = new ConsultationSessionManager(new HealthNationalServiceStub(), new DecisionMakingAIStub(),
+                Duration.ofNanos(timeout), now::get);
+        long abandoned = manager.openSession(new HealthCardID("ABCJ123456789012"), "Gripe");
+        long active = manager.openSession(new HealthCardID("ABCJ123456789013"), "Dolor");
+
+        now.addAndGet(timeout / 2);
+        manager.getSession(active);
+        now.addAndGet(timeout / 2);
+
+        assertThrows(ProceduralException.class, () -> manager.getSession(abandoned));
+        assertDoesNotThrow(() -> manager.getSession(active));
+
+        now.addAndGet(timeout);
+        manager.openSession(new HealthCardID("ABCJ123456789014"), "Control");
+        assertEquals(1, manager.getOpenSessions());
+    }
+
+    /**
+     * Many complete consultations must be able to run at the same time on virtual threads.
+     */
+    @Test
+    void testConcurrentConsultations() throws Exception {
+        int consultations = 200;
+        List<Future<MedicalPrescription>> results = new ArrayList<>();
+
+        try (ExecutorService doctors = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int i = 0; i < consultations; i++) {
+                HealthCardID cip = new HealthCardID(String.format("ABCJ%012d", i));
+                results.add(doctors.submit(() -> {
+                    long session = manager.openSession(cip, "Control");
+                    ConsultationTerminal terminal = manager.getSession(session);
+                    terminal.initMedicalPrescriptionEdition();
+                    terminal.enterMedicineWithGuidelines(prodID,
+                            new String[]{"AFTERMEALS", "7", "1", "8", "HOUR", "Tomar con agua"});
+                    terminal.enterTreatmentEndingDate(new Date(System.currentTimeMillis() + 604800000L));
+                    terminal.stampeeSignature();
+                    MedicalPrescription sent = terminal.sendHistoryAndPrescription();
+                    manager.closeSession(session);
+                    return sent;
+                }));
+            }
+        }
+
+        for (int i = 0; i < consultations; i++) {
+            assertEquals(String.format("ABCJ%012d", i), results.get(i).get().getCip().getPersonalID());
+        }
+        assertEquals(0, manager.getOpenSessions());
+    }
+}
@@ -6,14 +6,22 @@ import data.NullValueException;
 import data.ProductID;
 import medicalconsultation.doubles.DecisionMakingAIStub;
 import medicalconsultation.doubles.HealthNationalServiceStub;
+import medicalconsultation.doubles.StreamingDecisionMakingAIStub;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import services.AnyCurrentPrescriptionException;
+import services.HealthNationalService;
+import services.Suggestion;
 
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CompletionException;
 
 import static org.hamcrest.CoreMatchers.*;
 import static org.hamcrest.MatcherAssert.assertThat;
 import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertDoesNotThrow;
 
 /**
  * Unit tests for the ConsultationTerminal controller.
@@ -94,6 +102,63 @@ class ConsultationTerminalTest {
         }, "The system should prevent adding a product that was already inserted by the AI suggestions");
     }
 
+    /**
+     * Suggestions streamed by the AI reach the listener one by one and
+     * are applied to the prescription once the answer has finished.
+     */
+    @Test
+    void testStreamedSuggestionsAreApplied() throws Exception {
+        terminal.setDecisionAI(new StreamingDecisionMakingAIStub(List.of(
+                "ADDITION;123456789012;AFTER",
+                "MEALS;10;1;8;HOUR;Instrucciones IA\nADDITION;000000000007;",
+                "BEFOREBREAKFAST;5;2;12;HOUR;Test\n"), 5));
+        terminal.initRevision(cip, "Gripe");
+        terminal.initMedicalPrescriptionEdition();
+
+        List<Suggestion> shown = new CopyOnWriteArrayList<>();
+        List<Suggestion> suggestions = terminal.askAIForSuggestStreaming("Tratamiento sugerido", shown::add).join();
+        terminal.extractGuidelinesFromSugg();
+
+        assertThat(suggestions.size(), is(2));
+        assertThat(shown, is(suggestions));
+        String[] instruc = {"AFTERMEALS", "10", "1", "8", "HOUR", "Instrucciones IA"};
+        assertThrows(ProductAlreadyInPrescriptionException.class, () ->
+                terminal.enterMedicineWithGuidelines(new ProductID("000000000007"), instruc));
+    }
+
+    /**
+     * An answer is applied once: extracting it again must not repeat its suggestions.
+     */
+    @Test
+    void testSuggestionsAreAppliedOnce() throws Exception {
+        terminal.initRevision(cip, "Gripe");
+        terminal.initMedicalPrescriptionEdition();
+        terminal.askAIForSuggest("Tratamiento sugerido");
+        terminal.extractGuidelinesFromSugg();
+
+        assertThrows(ProceduralException.class, () -> terminal.extractGuidelinesFromSugg());
+    }
+
+    /**
+     * A missing answer from an AI without streaming fails the suggestions instead of the terminal.
+     */
+    @Test
+    void testNullAnswerFailsTheSuggestions() throws Exception {
+        terminal.setDecisionAI(new DecisionMakingAIStub() {
+            @Override
+            public String getSuggestions(String prompt) {
+                return null;
+            }
+        });
+        terminal.initRevision(cip, "Gripe");
+        terminal.initMedicalPrescriptionEdition();
+
+        CompletionException e = assertThrows(CompletionException.class,
+                () -> terminal.askAIForSuggestStreaming("Tratamiento sugerido", sugg -> { }).join());
+        assertThat(e.getCause(), is(instanceOf(NullValueException.class)));
+        assertThrows(NullValueException.class, () -> terminal.extractGuidelinesFromSugg());
+    }
+
     /**
      * Verifies that the controller enforces the correct order of events.
      * Adding medicine without first entering "Edition Mode" must fail.
@@ -124,4 +189,58 @@ class ConsultationTerminalTest {
             terminal.enterTreatmentEndingDate(pastDate);
         }, "The system must validate that the treatment date is a future date");
     }
-}
\ No newline at end of file
+
+    /**
+     * Verifies that the asynchronous revision downloads both documents and
+     * leaves the terminal ready for prescription edition.
+     */
+    @Test
+    void testInitRevisionAsyncStartsRevision() throws Exception {
+        terminal.initRevisionAsync(cip, "Infección").join();
+
+        assertDoesNotThrow(() -> terminal.initMedicalPrescriptionEdition(),
+                "Once both downloads complete the revision must be started");
+    }
+
+    /**
+     * Validates that a failure in one of the parallel downloads is propagated with its
+     * original type and does not leave the terminal blocked.
+     */
+    @Test
+    void testInitRevisionAsyncPropagatesFailure() throws Exception {
+        HealthNationalServiceStub stub = new HealthNationalServiceStub();
+        terminal.setHns(new HealthNationalService() {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws IncorrectParametersException {
+                return stub.getMedicalHistory(cip);
+            }
+
+            @Override
+            public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness)
+                    throws AnyCurrentPrescriptionException {
+                throw new AnyCurrentPrescriptionException();
+            }
+
+            @Override
+            public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce,
+                                                                  String illness, MedicalPrescription mPresc) {
+                return stub.sendHistoryAndPrescription(cip, hce, illness, mPresc);
+            }
+
+            @Override
+            public MedicalPrescription generateTreatmCodeAndRegister(MedicalPrescription ePresc) {
+                return stub.generateTreatmCodeAndRegister(ePresc);
+            }
+        });
+
+        CompletionException error = assertThrows(CompletionException.class,
+                () -> terminal.initRevisionAsync(cip, "Gripe").join());
+        assertThat(error.getCause(), is(instanceOf(AnyCurrentPrescriptionException.class)));
+
+        // The terminal must accept a new revision after the failed one
+        terminal.setHns(new HealthNationalServiceStub());
+        terminal.initRevisionAsync(cip, "Gripe").join();
+        assertThrows(ProceduralException.class, () -> terminal.initRevision(cip, "Gripe"),
+                "A started revision must block a new one");
+    }
+}
@@ -0,0 +1,59 @@
+package medicalconsultation;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link GuidelineParser} class.
+ * Verifies that the non-throwing parser accepts the same values as the standard
+ * Java parsing methods and reports invalid input through its return values.
+ */
+public class GuidelineParserTest {
+
+    /**
+     * The decimal parser must return exactly the same float as Float.parseFloat.
+     */
+    @Test
+    void parseFloatShouldMatchStandardParser() {
+        Random random = new Random(7);
+        String[] fixed = {"0", "7", "500", "30.0", "-0.5", "+8", "0.1", "16777217", "1e3", " 12 ", "123456.789"};
+        for (String text : fixed) {
+            assertEquals(Float.parseFloat(text), GuidelineParser.parseFloat(text, 0, text.length()), text);
+        }
+        for (int i = 0; i < 10000; i++) {
+            String text = random.nextInt(100000) + "." + random.nextInt(1000);
+            assertEquals(Float.parseFloat(text), GuidelineParser.parseFloat(text, 0, text.length()), text);
+        }
+    }
+
+    /**
+     * Malformed numbers and unknown enum names must be reported without exceptions.
+     */
+    @Test
+    void invalidValuesShouldBeReportedByReturnValue() {
+        assertAll("Invalid values",
+                () -> assertTrue(Float.isNaN(GuidelineParser.parseFloat("7,5", 0, 3))),
+                () -> assertTrue(Float.isNaN(GuidelineParser.parseFloat("", 0, 0))),
+                () -> assertTrue(Float.isNaN(GuidelineParser.parseFloat("1e99", 0, 4))),
+                () -> assertNull(GuidelineParser.parseDayMoment("AFTER_MEALS", 0, 11)),
+                () -> assertNull(GuidelineParser.parseFqUnit("hour", 0, 4)),
+                () -> assertNull(GuidelineParser.parse(new String[]{"AFTERMEALS", "1", "1", "1", "HOUR"}))
+        );
+    }
+
+    /**
+     * Enum constants must be found inside a larger text without extracting substrings.
+     */
+    @Test
+    void enumLookupShouldWorkOnRanges() {
+        String text = "x;AFTERMEALS;WEEK;";
+
+        assertAll("Ranges",
+                () -> assertEquals(dayMoment.AFTERMEALS, GuidelineParser.parseDayMoment(text, 2, 12)),
+                () -> assertEquals(FqUnit.WEEK, GuidelineParser.parseFqUnit(text, 13, 17))
+        );
+    }
+}
@@ -0,0 +1,113 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link HistoryContextBuilder}.
+ * Verifies ordering, deduplication, the size budget and incremental updates.
+ */
+class HistoryContextBuilderTest {
+
+    private HealthCardID cip;
+    private MedicalHistory history;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cip = new HealthCardID("ABCJ123456789012");
+        history = new MedicalHistory(cip, 1);
+        history.addMedicalHistoryAnnotations("Hipertensión controlada");
+        history.addMedicalHistoryAnnotations("Alergia a penicilina\nHipertensión controlada");
+        history.addMedicalHistoryAnnotations("Gripe estacional");
+    }
+
+    /**
+     * Lines appear most recent first and only once, at their latest position.
+     */
+    @Test
+    void testRecentLinesFirstWithoutRepetitions() {
+        HistoryContextBuilder builder = new HistoryContextBuilder(1000, 10);
+
+        String prompt = builder.buildPrompt("¿Tratamiento?", history);
+
+        assertEquals("¿Tratamiento?\n\nHistorial clínico (más reciente primero):"
+                + "\nGripe estacional\nHipertensión controlada\nAlergia a penicilina", prompt);
+    }
+
+    /**
+     * Older lines are left out so the prompt never exceeds the budget.
+     */
+    @Test
+    void testPromptRespectsTheBudget() {
+        int budget = "¿Tratamiento?\n\nHistorial clínico (más reciente primero):\nGripe estacional".length() + 5;
+        HistoryContextBuilder builder = new HistoryContextBuilder(budget, 10);
+
+        String prompt = builder.buildPrompt("¿Tratamiento?", history);
+
+        assertTrue(prompt.length() <= budget);
+        assertTrue(prompt.endsWith("\nGripe estacional"));
+        assertEquals("x".repeat(budget + 1), builder.buildPrompt("x".repeat(budget + 1), history));
+    }
+
+    /**
+     * Only new annotations are processed, and a history that does not extend the summary is rebuilt.
+     */
+    @Test
+    void testSummaryIsUpdatedIncrementally() throws Exception {
+        HistoryContextBuilder builder = new HistoryContextBuilder(1000, 10);
+        builder.buildPrompt("a", history);
+        history.addMedicalHistoryAnnotations("Alergia a penicilina");
+
+        String prompt = builder.buildPrompt("a", history);
+        assertEquals(4, builder.getProcessedAnnotations(cip));
+        assertTrue(prompt.endsWith("\nAlergia a penicilina\nGripe estacional\nHipertensión controlada"));
+
+        MedicalHistory other = new MedicalHistory(cip, 1);
+        other.addMedicalHistoryAnnotations("Sin antecedentes");
+        assertTrue(builder.buildPrompt("a", other).endsWith(":\nSin antecedentes"));
+        assertEquals(1, builder.getProcessedAnnotations(cip));
+    }
+
+    /**
+     * Lines that can no longer fit in any prompt are dropped from the summary.
+     */
+    @Test
+    void testSummaryKeepsOnlyTheLinesThatFit() {
+        HistoryContextBuilder builder = new HistoryContextBuilder(100, 10);
+        for (int i = 0; i < 1000; i++) {
+            history.addMedicalHistoryAnnotations("Control número " + i);
+        }
+
+        String prompt = builder.buildPrompt("", history);
+
+        assertTrue(builder.getSummarizedLines(cip) < 10, "Lines kept: " + builder.getSummarizedLines(cip));
+        assertTrue(prompt.contains(":\nControl número 999\nControl número 998"));
+    }
+
+    /**
+     * A history downloaded by pages is summarized from its latest annotations, without loading older pages.
+     */
+    @Test
+    void testPagedHistoryIsSummarizedWithoutLoadingOlderPages() throws Exception {
+        List<String> latest = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            latest.add("Control número " + i);
+        }
+        MedicalHistory paged = new MedicalHistory(cip, 1, latest, 100_000, 3_000_000, 0, (from, to) -> {
+            throw new IOException("Página no disponible");
+        });
+        HistoryContextBuilder builder = new HistoryContextBuilder(100, 10);
+
+        assertTrue(builder.buildPrompt("", paged).contains(":\nControl número 39\n"));
+        paged.addMedicalHistoryAnnotations("Gripe estacional");
+        assertTrue(builder.buildPrompt("", paged).contains(":\nGripe estacional\nControl número 39\n"));
+        assertEquals(100_041, builder.getProcessedAnnotations(cip));
+    }
+}
@@ -112,4 +112,152 @@ class MedicalHistoryTest {
                 prescription.addLine(prodID, badInstructions)
         );
     }
+
+    /**
+     * Verifies that annotations are joined with line breaks and that empty or null
+     * annotations are ignored.
+     * * @throws Exception if the history cannot be created.
+     */
+    @Test
+    void testAddAnnotationsJoinsWithLineBreaks() throws Exception {
+        MedicalHistory history = new MedicalHistory(cip, 101);
+        history.addMedicalHistoryAnnotations("Control TA");
+        history.addMedicalHistoryAnnotations(null);
+        history.addMedicalHistoryAnnotations("");
+        history.addMedicalHistoryAnnotations("Sin cambios");
+
+        assertAll("Annotations",
+                () -> assertEquals("Control TA\nSin cambios", history.getHistory()),
+                () -> assertEquals(history.getHistory().length(), history.getHistoryLength()),
+                () -> assertEquals(2, history.getAnnotations().size())
+        );
+    }
+
+    /**
+     * Ensures that equality and hash codes depend on the history text and not on
+     * how it was split into annotations, and stay consistent with the materialized text.
+     * * @throws Exception if the histories cannot be created.
+     */
+    @Test
+    void testEqualsAndHashCodeFollowHistoryText() throws Exception {
+        MedicalHistory split = new MedicalHistory(cip, 101);
+        split.addMedicalHistoryAnnotations("Control TA");
+        split.addMedicalHistoryAnnotations("Sin cambios");
+
+        MedicalHistory joined = new MedicalHistory(cip, 101);
+        joined.addMedicalHistoryAnnotations("Control TA\nSin cambios");
+
+        MedicalHistory other = new MedicalHistory(cip, 101);
+        other.addMedicalHistoryAnnotations("Control TB");
+        other.addMedicalHistoryAnnotations("Sin cambios");
+
+        assertAll("Equality",
+                () -> assertEquals(split, joined),
+                () -> assertEquals(split.hashCode(), joined.hashCode()),
+                () -> assertNotEquals(split, other),
+                () -> assertEquals(java.util.Objects.hash(cip, 101, split.getHistory()), split.hashCode()),
+                () -> assertTrue(split.toString().contains("history='Control TA\nSin cambios'"))
+        );
+    }
+
+    /**
+     * Verifies that only the annotations added after the synchronization are reported as new,
+     * and that copies keep the version and the watermark.
+     * * @throws Exception if the history cannot be created.
+     */
+    @Test
+    void testAnnotationsSinceSync() throws Exception {
+        MedicalHistory history = new MedicalHistory(cip, 101);
+        history.addMedicalHistoryAnnotations("Control TA");
+        history.markSynchronized(4);
+        history.addMedicalHistoryAnnotations("Ajuste de dosis");
+        MedicalHistory copy = new MedicalHistory(history);
+
+        assertAll("Sync",
+                () -> assertEquals(java.util.List.of("Ajuste de dosis"), history.getAnnotationsSinceSync()),
+                () -> assertEquals(1, history.getSyncedAnnotationCount()),
+                () -> assertEquals(4, copy.getVersion()),
+                () -> assertEquals(history.getAnnotationsSinceSync(), copy.getAnnotationsSinceSync())
+        );
+    }
+
+    /**
+     * The text view has the same characters as the history text, without building it.
+     * * @throws Exception if the history cannot be created.
+     */
+    @Test
+    void testHistoryTextView() throws Exception {
+        MedicalHistory history = new MedicalHistory(cip, 101);
+        history.addMedicalHistoryAnnotations("Control TA");
+        history.addMedicalHistoryAnnotations("x");
+        history.addMedicalHistoryAnnotations("Sin cambios");
+        CharSequence text = history.getHistoryText();
+        String expected = "Control TA\nx\nSin cambios";
+
+        assertAll("Text view",
+                () -> assertEquals(expected.length(), text.length()),
+                () -> {
+                    for (int i = 0; i < expected.length(); i++) {
+                        assertEquals(expected.charAt(i), text.charAt(i), "char " + i);
+                    }
+                },
+                () -> assertEquals("TA\nx\nSin", text.subSequence(8, 16).toString()),
+                () -> assertEquals(expected, text.toString()),
+                () -> assertThrows(IndexOutOfBoundsException.class, () -> text.charAt(expected.length()))
+        );
+    }
+
+    /**
+     * Comparing and printing a lazy history never loads its older annotations, even if they cannot be loaded.
+     * * @throws Exception if the histories cannot be created.
+     */
+    @Test
+    void testLazyHistoryIsComparedAndPrintedWithoutLoading() throws Exception {
+        MedicalHistory.AnnotationLoader unreachable = (from, to) -> {
+            throw new java.io.IOException("SNS no disponible");
+        };
+        String text = "Control TA\nSin cambios";
+        MedicalHistory lazy = new MedicalHistory(cip, 101, java.util.List.of("Sin cambios"), 1,
+                text.length(), text.hashCode(), unreachable);
+        MedicalHistory full = new MedicalHistory(cip, 101);
+        full.addMedicalHistoryAnnotations("Control TA");
+        full.addMedicalHistoryAnnotations("Sin cambios");
+        MedicalHistory other = new MedicalHistory(cip, 101);
+        other.addMedicalHistoryAnnotations("Control TB");
+        other.addMedicalHistoryAnnotations("Sin cambios");
+
+        assertAll("Lazy history",
+                () -> assertEquals(lazy, full),
+                () -> assertEquals(full, lazy),
+                () -> assertNotEquals(lazy, other),
+                () -> assertEquals(full.hashCode(), lazy.hashCode()),
+                () -> assertTrue(lazy.toString().contains("annotations=2, notLoaded=1"), lazy.toString())
+        );
+    }
+
+    /**
+     * Histories synchronized with the same version are compared without loading their older annotations.
+     * * @throws Exception if the histories cannot be created.
+     */
+    @Test
+    void testEqualsDoesNotLoadSynchronizedHistories() throws Exception {
+        java.util.List<String> older = java.util.List.of("Control TA", "Sin cambios");
+        int[] loads = {0};
+        MedicalHistory.AnnotationLoader loader = (from, to) -> {
+            loads[0]++;
+            return older.subList(from, to);
+        };
+        String text = "Control TA\nSin cambios\nPaciente estable";
+        MedicalHistory first = new MedicalHistory(cip, 101, java.util.List.of("Paciente estable"), 2,
+                text.length(), text.hashCode(), loader);
+        MedicalHistory second = new MedicalHistory(cip, 101, java.util.List.of("Paciente estable"), 2,
+                text.length(), text.hashCode(), loader);
+        first.markSynchronized(7);
+        second.markSynchronized(7);
+        first.addMedicalHistoryAnnotations("Ajuste de dosis");
+        second.addMedicalHistoryAnnotations("Ajuste de dosis");
+
+        assertEquals(first, second);
+        assertEquals(0, loads[0]);
+    }
 }
@@ -3,6 +3,10 @@ package medicalconsultation;
 import data.*;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
+import services.Suggestion;
+
+import java.util.List;
+
 import static org.junit.jupiter.api.Assertions.*;
 
 /**
@@ -97,4 +101,75 @@ public class MedicalPrescriptionTest {
                 prescription.addLine(prodID, badInstructions)
         );
     }
+
+    /**
+     * Verifies that a structured guideline is added without parsing and that the
+     * prescription keeps its own copy of it.
+     */
+    @Test
+    void testAddStructuredLine() throws Exception {
+        TakingGuideline guideline = new TakingGuideline(dayMoment.AFTERMEALS, 10, 1, 8, FqUnit.HOUR, "IA");
+        prescription.addLine(prodID, guideline);
+        guideline.getPosology().setDose(99);
+
+        assertAll("Structured line",
+                () -> assertEquals(1.0f, prescription.getPrescriptionLines().get(prodID).getPosology().getDose()),
+                () -> assertThrows(ProductAlreadyInPrescriptionException.class, () -> prescription.addLine(prodID, guideline)),
+                () -> assertThrows(IncorrectTakingGuidelinesException.class,
+                        () -> prescription.addLine(new ProductID("000000000001"), (TakingGuideline) null))
+        );
+    }
+
+    /**
+     * Verifies that a batch of suggestions is applied in order, so a product added by the
+     * batch can be modified by a later suggestion of the same batch.
+     */
+    @Test
+    void testApplySuggestionsInOrder() throws Exception {
+        ProductID other = new ProductID("000000000002");
+        prescription.addLine(other, new String[]{"BEFORELUNCH", "1.0", "1.0", "1.0", "DAY", "Nota"});
+        TakingGuideline guideline = new TakingGuideline(dayMoment.AFTERMEALS, 10, 1, 8, FqUnit.HOUR, "IA");
+
+        prescription.applySuggestions(List.of(
+                new Suggestion(Suggestion.SuggType.ADDITION, prodID, guideline),
+                new Suggestion(Suggestion.SuggType.MODIFICATION, prodID,
+                        new TakingGuideline(dayMoment.AFTERMEALS, 10, 2, 8, FqUnit.HOUR, "IA")),
+                new Suggestion(Suggestion.SuggType.ELIMINATION, other, null)
+        ));
+
+        assertAll("Batch applied",
+                () -> assertEquals(1, prescription.getLineCount()),
+                () -> assertEquals(2.0f, prescription.getPrescriptionLines().get(prodID).getPosology().getDose())
+        );
+    }
+
+    /**
+     * Ensures that a failing suggestion leaves the prescription exactly as it was,
+     * even if earlier suggestions of the batch were valid.
+     */
+    @Test
+    void testApplySuggestionsIsAtomic() throws Exception {
+        ProductID missing = new ProductID("000000000003");
+        TakingGuideline guideline = new TakingGuideline(dayMoment.AFTERMEALS, 10, 1, 8, FqUnit.HOUR, "IA");
+
+        assertThrows(ProductNotInPrescriptionException.class, () -> prescription.applySuggestions(List.of(
+                new Suggestion(Suggestion.SuggType.ADDITION, prodID, guideline),
+                new Suggestion(Suggestion.SuggType.ELIMINATION, missing, null)
+        )));
+        assertEquals(0, prescription.getLineCount());
+    }
+
+    /**
+     * Adding and eliminating the same product in one batch is contradictory and must be rejected.
+     */
+    @Test
+    void testApplySuggestionsDetectsConflicts() {
+        TakingGuideline guideline = new TakingGuideline(dayMoment.AFTERMEALS, 10, 1, 8, FqUnit.HOUR, "IA");
+
+        assertThrows(ConflictingSuggestionsException.class, () -> prescription.applySuggestions(List.of(
+                new Suggestion(Suggestion.SuggType.ADDITION, prodID, guideline),
+                new Suggestion(Suggestion.SuggType.ELIMINATION, prodID, null)
+        )));
+        assertEquals(0, prescription.getLineCount());
+    }
 }
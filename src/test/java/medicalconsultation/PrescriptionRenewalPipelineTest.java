@@ -0,0 +1,192 @@
+package medicalconsultation;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import data.ProductID;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import services.AnyCurrentPrescriptionException;
+import services.LocalHealthNationalService;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the bulk renewal of prescriptions.
+ */
+class PrescriptionRenewalPipelineTest {
+
+    private static final String ILLNESS = "Hipertensión";
+    private static final long DAY_MILLIS = 24L * 60 * 60 * 1000;
+
+    private LocalHealthNationalService sns;
+    private ProductID product;
+    private Date nextYear;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sns = new LocalHealthNationalService(Duration.ofMillis(5));
+        product = new ProductID("123456789012");
+        nextYear = new Date(System.currentTimeMillis() + 365 * DAY_MILLIS);
+    }
+
+    /**
+     * Every patient gets a signed prescription with the new ending date and a treatment code.
+     */
+    @Test
+    void testRenewsEveryPatient() throws Exception {
+        List<PrescriptionRenewalPipeline.Request> requests = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            requests.add(new PrescriptionRenewalPipeline.Request(patient(i), ILLNESS, nextYear));
+        }
+        AtomicInteger reported = new AtomicInteger();
+
+        List<PrescriptionRenewalPipeline.Result> results = new PrescriptionRenewalPipeline(sns, 8)
+                .renew(requests, r -> reported.incrementAndGet());
+
+        assertEquals(50, reported.get());
+        for (int i = 0; i < results.size(); i++) {
+            PrescriptionRenewalPipeline.Result result = results.get(i);
+            assertTrue(result.isSuccessful(), () -> "Failed: " + result.getError());
+            assertSame(requests.get(i), result.getRequest());
+            assertEquals(nextYear, result.getPrescription().getEndDate());
+            assertNotNull(result.getPrescription().getEsign());
+            assertNotNull(result.getPrescription().getPrescCode());
+            assertEquals(1, result.getPrescription().getLineCount());
+        }
+    }
+
+    /**
+     * A failure only affects its own patient and is reported with its cause.
+     */
+    @Test
+    void testFailuresAreReportedPerPatient() throws Exception {
+        HealthCardID withoutPrescription = new HealthCardID("EEEE123456789012");
+        sns.registerPatient(new MedicalHistory(withoutPrescription, 1));
+        List<PrescriptionRenewalPipeline.Request> requests = List.of(
+                new PrescriptionRenewalPipeline.Request(patient(0), ILLNESS, nextYear),
+                new PrescriptionRenewalPipeline.Request(new HealthCardID("DDDD123456789012"), ILLNESS, nextYear),
+                new PrescriptionRenewalPipeline.Request(patient(1), ILLNESS, new Date(System.currentTimeMillis() - DAY_MILLIS)),
+                new PrescriptionRenewalPipeline.Request(withoutPrescription, ILLNESS, nextYear),
+                new PrescriptionRenewalPipeline.Request(patient(2), ILLNESS, nextYear));
+        List<PrescriptionRenewalPipeline.Result> failures = new ArrayList<>();
+
+        List<PrescriptionRenewalPipeline.Result> results = new PrescriptionRenewalPipeline(sns, 2)
+                .renew(requests, r -> {
+                    if (!r.isSuccessful()) {
+                        synchronized (failures) {
+                            failures.add(r);
+                        }
+                    }
+                });
+
+        assertAll(
+                () -> assertTrue(results.get(0).isSuccessful()),
+                () -> assertInstanceOf(HealthCardIDException.class, results.get(1).getError()),
+                () -> assertInstanceOf(IncorrectEndingDateException.class, results.get(2).getError()),
+                () -> assertInstanceOf(AnyCurrentPrescriptionException.class, results.get(3).getError()),
+                () -> assertNull(results.get(3).getPrescription()),
+                () -> assertTrue(results.get(4).isSuccessful()),
+                () -> assertEquals(3, failures.size())
+        );
+    }
+
+    /**
+     * No more renewals than the configured limit talk to the SNS at the same time.
+     */
+    @Test
+    void testConcurrencyIsBounded() throws Exception {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+        LocalHealthNationalService tracked = new LocalHealthNationalService(Duration.ofMillis(5)) {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws ConnectException, HealthCardIDException {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    return super.getMedicalHistory(cip);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+        sns = tracked;
+        List<PrescriptionRenewalPipeline.Request> requests = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            requests.add(new PrescriptionRenewalPipeline.Request(patient(i), ILLNESS, nextYear));
+        }
+
+        List<PrescriptionRenewalPipeline.Result> results = new PrescriptionRenewalPipeline(tracked, 3)
+                .renew(requests, r -> { });
+
+        assertTrue(results.stream().allMatch(PrescriptionRenewalPipeline.Result::isSuccessful));
+        assertTrue(maxInFlight.get() <= 3, "Max in flight: " + maxInFlight.get());
+    }
+
+    /**
+     * Interrupting the caller cancels the renewals waiting for the SNS instead of waiting for them.
+     */
+    @Test
+    void testInterruptCancelsRenewalsInProgress() throws Exception {
+        CountDownLatch downloading = new CountDownLatch(1);
+        CountDownLatch snsAnswers = new CountDownLatch(1);
+        LocalHealthNationalService hanging = new LocalHealthNationalService(Duration.ZERO) {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws ConnectException, HealthCardIDException {
+                downloading.countDown();
+                try {
+                    snsAnswers.await();
+                } catch (InterruptedException e) {
+                    throw new ConnectException("Interrumpido");
+                }
+                return super.getMedicalHistory(cip);
+            }
+        };
+        sns = hanging;
+        List<PrescriptionRenewalPipeline.Request> requests = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            requests.add(new PrescriptionRenewalPipeline.Request(patient(i), ILLNESS, nextYear));
+        }
+        List<PrescriptionRenewalPipeline.Result> reported = new CopyOnWriteArrayList<>();
+        AtomicReference<Exception> thrown = new AtomicReference<>();
+
+        Thread caller = Thread.ofVirtual().start(() -> {
+            try {
+                new PrescriptionRenewalPipeline(hanging, 2).renew(requests, reported::add);
+            } catch (Exception e) {
+                thrown.set(e);
+            }
+        });
+        downloading.await();
+        caller.interrupt();
+        boolean finished = caller.join(Duration.ofSeconds(5));
+        snsAnswers.countDown();
+
+        assertAll(
+                () -> assertTrue(finished),
+                () -> assertInstanceOf(InterruptedException.class, thrown.get()),
+                () -> assertTrue(reported.size() <= 2),
+                () -> assertTrue(reported.stream().noneMatch(PrescriptionRenewalPipeline.Result::isSuccessful))
+        );
+    }
+
+    /**
+     * Registers a patient with a current prescription that has one line.
+     */
+    private HealthCardID patient(int n) throws Exception {
+        HealthCardID cip = new HealthCardID(String.format("CCCC%012d", n));
+        sns.registerPatient(new MedicalHistory(cip, 1));
+        MedicalPrescription presc = new MedicalPrescription(cip, 1, ILLNESS);
+        presc.addLine(product, new String[]{"AFTERMEALS", "30", "1", "24", "HOUR", "Crónico"});
+        sns.registerPrescription(presc);
+        return cip;
+    }
+}
@@ -0,0 +1,72 @@
+package medicalconsultation;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link ProductLineMap} class.
+ * Verifies lookups, replacements and removals, including tables that grow and
+ * entries that share probe sequences.
+ */
+public class ProductLineMapTest {
+    private ProductLineMap map;
+    private TakingGuideline guideline;
+
+    /**
+     * Creates an empty map and a guideline to be stored in it.
+     */
+    @BeforeEach
+    void setUp() {
+        map = new ProductLineMap();
+        guideline = new TakingGuideline(dayMoment.AFTERMEALS, 10, 1, 8, FqUnit.HOUR, "Tomar con agua");
+    }
+
+    /**
+     * Verifies basic insertion, replacement and lookup of a product line.
+     */
+    @Test
+    void testPutGetAndReplace() {
+        TakingGuideline other = new TakingGuideline(guideline);
+
+        assertAll("Put and get",
+                () -> assertNull(map.put(123456789012L, guideline)),
+                () -> assertSame(guideline, map.get(123456789012L)),
+                () -> assertSame(guideline, map.put(123456789012L, other)),
+                () -> assertSame(other, map.get(123456789012L)),
+                () -> assertEquals(1, map.size()),
+                () -> assertNull(map.get(1L))
+        );
+    }
+
+    /**
+     * Compares the map against a HashMap over many random insertions and removals,
+     * so the table grows and removals have to shift colliding entries back.
+     */
+    @Test
+    void testBehavesLikeHashMap() {
+        Map<Long, TakingGuideline> expected = new HashMap<>();
+        Random random = new Random(42);
+
+        for (int i = 0; i < 20000; i++) {
+            long key = random.nextInt(2000);
+            if (random.nextBoolean()) {
+                TakingGuideline value = new TakingGuideline(guideline);
+                assertSame(expected.put(key, value), map.put(key, value));
+            } else {
+                assertSame(expected.remove(key), map.remove(key));
+            }
+        }
+
+        assertEquals(expected.size(), map.size());
+        for (Map.Entry<Long, TakingGuideline> entry : expected.entrySet()) {
+            assertSame(entry.getValue(), map.get(entry.getKey()));
+        }
+        map.forEach((value, key) -> assertSame(expected.get(key), value));
+    }
+}
@@ -0,0 +1,91 @@
+package medicalconsultation.doubles;
+
+import data.HealthCardID;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+import services.HistoryPage;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test Stub for the HealthNationalService whose patients have very long synthetic histories.
+ * * Every download takes a fixed round trip plus a transfer time proportional to the characters
+ * of the annotations sent, so the cost of opening a revision with the whole history or with
+ * only its latest page can be compared.
+ */
+public class LargeHistoryHealthNationalServiceStub extends HealthNationalServiceStub {
+
+    private final int annotationsPerPatient;
+    private final long roundTripNanos;
+    private final long nanosPerChar;
+    private final Map<HealthCardID, MedicalHistory> histories = new ConcurrentHashMap<>();
+
+    private final AtomicLong charsSent = new AtomicLong();
+    private final AtomicLong pageRequests = new AtomicLong();
+
+    /**
+     * @param annotationsPerPatient The number of annotations of every history.
+     * @param roundTrip             The fixed time of every request.
+     * @param nanosPerChar          The transfer time of each character of the annotations sent.
+     */
+    public LargeHistoryHealthNationalServiceStub(int annotationsPerPatient, Duration roundTrip, long nanosPerChar) {
+        this.annotationsPerPatient = annotationsPerPatient;
+        this.roundTripNanos = roundTrip.toNanos();
+        this.nanosPerChar = nanosPerChar;
+    }
+
+    @Override
+    public MedicalHistory getMedicalHistory(HealthCardID cip) throws IncorrectParametersException {
+        MedicalHistory history = historyOf(cip);
+        transfer(history.getHistoryLength());
+        return new MedicalHistory(history);
+    }
+
+    @Override
+    public HistoryPage getMedicalHistoryPage(HealthCardID cip, int before, int maxAnnotations)
+            throws IncorrectParametersException {
+        pageRequests.incrementAndGet();
+        HistoryPage page = HistoryPage.of(historyOf(cip), before, maxAnnotations);
+        long chars = 0;
+        for (String annotation : page.getAnnotations()) {
+            chars += annotation.length() + 1;
+        }
+        transfer(chars);
+        return page;
+    }
+
+    /** @return The characters of annotations sent so far. */
+    public long getCharsSent() {
+        return charsSent.get();
+    }
+
+    /** @return The number of pages requested so far. */
+    public long getPageRequests() {
+        return pageRequests.get();
+    }
+
+    private MedicalHistory historyOf(HealthCardID cip) throws IncorrectParametersException {
+        MedicalHistory history = histories.get(cip);
+        if (history == null) {
+            history = new MedicalHistory(cip, 12345);
+            for (int i = 0; i < annotationsPerPatient; i++) {
+                history.addMedicalHistoryAnnotations("Visita " + i + " (año " + (1990 + i / 400)
+                        + "): tensión 130/85, glucemia 110 mg/dl, sin cambios en el tratamiento.");
+            }
+            histories.put(cip, history);
+        }
+        return history;
+    }
+
+    private void transfer(long chars) {
+        charsSent.addAndGet(chars);
+        try {
+            Thread.sleep(Duration.ofNanos(roundTripNanos + chars * nanosPerChar));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
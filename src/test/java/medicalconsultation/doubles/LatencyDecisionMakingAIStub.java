@@ -0,0 +1,44 @@
+package medicalconsultation.doubles;
+
+import services.AIException;
+import services.DecisionMakingAI;
+
+import java.util.function.LongSupplier;
+
+/**
+ * Test Stub for the DecisionMakingAI interface that simulates the response time of a model.
+ * * Every answer takes the time drawn from the injected latency distribution, so the
+ * tail latency of the composite AIs can be measured without a real backend.
+ */
+public class LatencyDecisionMakingAIStub implements DecisionMakingAI {
+
+    private final LongSupplier latencyMillis;
+    private final String answer;
+
+    /**
+     * @param latencyMillis Draws the time each answer takes, in milliseconds.
+     * @param answer        The answer returned, in the SuggestionFormat; null makes every call fail.
+     */
+    public LatencyDecisionMakingAIStub(LongSupplier latencyMillis, String answer) {
+        this.latencyMillis = latencyMillis;
+        this.answer = answer;
+    }
+
+    @Override
+    public void initDecisionMakingAI() {
+        // No implementation needed for a basic stub
+    }
+
+    @Override
+    public String getSuggestions(String prompt) throws AIException {
+        try {
+            Thread.sleep(latencyMillis.getAsLong());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        if (answer == null) {
+            throw new AIException();
+        }
+        return answer;
+    }
+}
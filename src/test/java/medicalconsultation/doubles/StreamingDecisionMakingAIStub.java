@@ -0,0 +1,81 @@
+package medicalconsultation.doubles;
+
+import services.StreamingDecisionMakingAI;
+
+import java.util.List;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Test Stub for the StreamingDecisionMakingAI interface.
+ * * It streams a fixed answer split into the given chunks, waiting a configurable
+ * delay before each of them to simulate the generation time of a real model.
+ */
+public class StreamingDecisionMakingAIStub implements StreamingDecisionMakingAI {
+
+    private final List<String> chunks;
+    private final long delayMillis;
+
+    /**
+     * @param chunks      The pieces of the answer, in the order they are published.
+     * @param delayMillis The time waited before publishing each piece.
+     */
+    public StreamingDecisionMakingAIStub(List<String> chunks, long delayMillis) {
+        this.chunks = chunks;
+        this.delayMillis = delayMillis;
+    }
+
+    @Override
+    public void initDecisionMakingAI() {
+        // No implementation needed for a basic stub
+    }
+
+    /**
+     * @return The whole answer at once.
+     */
+    @Override
+    public String getSuggestions(String prompt) {
+        return String.join("", chunks);
+    }
+
+    /**
+     * Publishes the answer from a separate thread, respecting the demand of the subscriber.
+     */
+    @Override
+    public Flow.Publisher<String> streamSuggestions(String prompt) {
+        return subscriber -> {
+            AtomicLong demand = new AtomicLong();
+            AtomicBoolean cancelled = new AtomicBoolean();
+            subscriber.onSubscribe(new Flow.Subscription() {
+                @Override
+                public void request(long n) {
+                    demand.accumulateAndGet(n, (a, b) -> a + b < 0 ? Long.MAX_VALUE : a + b);
+                }
+
+                @Override
+                public void cancel() {
+                    cancelled.set(true);
+                }
+            });
+            Thread.ofVirtual().start(() -> {
+                try {
+                    for (String chunk : chunks) {
+                        Thread.sleep(delayMillis);
+                        while (demand.get() == 0 && !cancelled.get()) {
+                            Thread.onSpinWait();
+                        }
+                        if (cancelled.get()) {
+                            return;
+                        }
+                        demand.decrementAndGet();
+                        subscriber.onNext(chunk);
+                    }
+                    subscriber.onComplete();
+                } catch (InterruptedException e) {
+                    subscriber.onError(e);
+                }
+            });
+        };
+    }
+}
@@ -0,0 +1,143 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import data.ProductID;
+import medicalconsultation.ConsultationTerminal;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link AppointmentPrefetcher}.
+ */
+class AppointmentPrefetcherTest {
+
+    private static final String ILLNESS = "Diabetes";
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+
+    private LocalHealthNationalService sns;
+    private CachingHealthNationalService cache;
+    private AppointmentPrefetcher prefetcher;
+
+    @BeforeEach
+    void setUp() {
+        // Local SNS that records how many downloads run at the same time
+        sns = new LocalHealthNationalService(Duration.ofMillis(20)) {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws ConnectException, HealthCardIDException {
+                maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+                try {
+                    return super.getMedicalHistory(cip);
+                } finally {
+                    inFlight.decrementAndGet();
+                }
+            }
+        };
+        cache = new CachingHealthNationalService(sns, 100, Duration.ofMinutes(10));
+    }
+
+    @AfterEach
+    void tearDown() {
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+    }
+
+    /**
+     * The revision of a prefetched appointment does not contact the SNS again.
+     */
+    @Test
+    void testRevisionIsServedFromPrefetchedData() throws Exception {
+        HealthCardID cip = patient(1);
+        prefetcher = new AppointmentPrefetcher(cache, Duration.ofMillis(80), 2);
+        prefetcher.setAgenda(List.of(new AppointmentPrefetcher.Appointment(cip, ILLNESS,
+                Instant.now().plusMillis(100))));
+
+        awaitTrue(() -> prefetcher.getPrefetched() == 1);
+        long roundTrips = sns.getRoundTrips();
+
+        ConsultationTerminal terminal = new ConsultationTerminal();
+        terminal.setHns(cache);
+        terminal.initRevision(cip, ILLNESS);
+
+        assertAll(
+                () -> assertEquals(roundTrips, sns.getRoundTrips()),
+                () -> assertEquals(1, prefetcher.getServedFromPrefetch()),
+                () -> assertEquals(1.0, prefetcher.getPrefetchHitRatio()),
+                () -> assertEquals(0, prefetcher.getFailed())
+        );
+    }
+
+    /**
+     * Many appointments at the same time do not exceed the limit of simultaneous downloads.
+     */
+    @Test
+    void testConcurrentPrefetchesAreBounded() throws Exception {
+        List<AppointmentPrefetcher.Appointment> agenda = new ArrayList<>();
+        Instant soon = Instant.now().plusSeconds(60);
+        for (int i = 0; i < 20; i++) {
+            agenda.add(new AppointmentPrefetcher.Appointment(patient(i), ILLNESS, soon));
+        }
+        prefetcher = new AppointmentPrefetcher(cache, Duration.ofMinutes(5), 3);
+        prefetcher.setAgenda(agenda);
+
+        awaitTrue(() -> prefetcher.getPrefetched() == 20);
+
+        assertTrue(maxInFlight.get() <= 3, "Max in flight: " + maxInFlight.get());
+    }
+
+    /**
+     * Removing an appointment from the agenda cancels its pending prefetch.
+     */
+    @Test
+    void testRemovedAppointmentIsNotPrefetched() throws Exception {
+        AppointmentPrefetcher.Appointment kept =
+                new AppointmentPrefetcher.Appointment(patient(1), ILLNESS, Instant.now().plusMillis(150));
+        AppointmentPrefetcher.Appointment removed =
+                new AppointmentPrefetcher.Appointment(patient(2), ILLNESS, Instant.now().plusMillis(150));
+        prefetcher = new AppointmentPrefetcher(cache, Duration.ofMillis(50), 2);
+        prefetcher.setAgenda(List.of(kept, removed));
+        prefetcher.setAgenda(List.of(kept));
+
+        awaitTrue(() -> prefetcher.getPrefetched() == 1);
+        Thread.sleep(100);
+
+        assertAll(
+                () -> assertEquals(1, prefetcher.getPrefetched()),
+                () -> assertEquals(1, prefetcher.getCancelled()),
+                () -> assertEquals(2, sns.getRoundTrips())
+        );
+    }
+
+    private HealthCardID patient(int n) throws Exception {
+        HealthCardID cip = new HealthCardID(String.format("CCCC%012d", n));
+        sns.registerPatient(new MedicalHistory(cip, 1));
+        MedicalPrescription presc = new MedicalPrescription(cip, 1, ILLNESS);
+        presc.addLine(new ProductID("123456789012"), new String[]{"AFTERMEALS", "30", "1", "24", "HOUR", "x"});
+        sns.registerPrescription(presc);
+        return cip;
+    }
+
+    private static void awaitTrue(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(5).toNanos();
+        while (!condition.getAsBoolean()) {
+            assertTrue(System.nanoTime() < deadline, "Condition not reached in time");
+            Thread.sleep(5);
+        }
+    }
+}
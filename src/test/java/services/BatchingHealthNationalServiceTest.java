@@ -0,0 +1,159 @@
+package services;
+
+import data.DigitalSignature;
+import data.HealthCardID;
+import data.ProductID;
+import medicalconsultation.ConsultationTerminal;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link BatchingHealthNationalService} decorator.
+ * Verifies that concurrent submissions share round trips and that errors stay per item.
+ */
+class BatchingHealthNationalServiceTest {
+
+    private static final int SESSIONS = 40;
+
+    private LocalHealthNationalService sns;
+    private BatchingHealthNationalService batching;
+    private ExecutorService sessions;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sns = new LocalHealthNationalService(Duration.ofMillis(10));
+        for (int i = 0; i < SESSIONS; i++) {
+            sns.registerPatient(new MedicalHistory(cip(i), 1));
+        }
+        batching = new BatchingHealthNationalService(sns, 16, Duration.ofMillis(5));
+        sessions = Executors.newVirtualThreadPerTaskExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        batching.close();
+        sessions.shutdown();
+    }
+
+    /**
+     * Concurrent sessions are served with far fewer round trips than one per submission, and waiting
+     * for the batch window costs them little latency compared with sending each one on its own.
+     */
+    @Test
+    void testConcurrentSubmissionsShareRoundTrips() throws Exception {
+        long unbatched = sendConcurrently(sns);
+        long unbatchedTrips = sns.getRoundTrips();
+        long batched = sendConcurrently(batching);
+        long batchedTrips = sns.getRoundTrips() - unbatchedTrips;
+        String report = "Round trips: " + batchedTrips + " batched (" + batched / 1_000_000 + " ms) vs "
+                + unbatchedTrips + " unbatched (" + unbatched / 1_000_000 + " ms)";
+
+        assertEquals(SESSIONS, unbatchedTrips);
+        assertTrue(batchedTrips <= SESSIONS / 4, report);
+        // Loose bound: the window (5 ms) plus scheduling noise, far below one round trip per submission
+        assertTrue(batched <= unbatched + Duration.ofMillis(100).toNanos(), report);
+    }
+
+    /**
+     * An incomplete prescription fails only its own submission.
+     */
+    @Test
+    void testErrorsAreReportedPerItem() throws Exception {
+        MedicalPrescription incomplete = new MedicalPrescription(cip(1), 1, "Gripe");
+        Future<MedicalPrescription> good = sessions.submit(() ->
+                batching.sendHistoryAndPrescription(cip(0), new MedicalHistory(cip(0), 1), "Gripe", complete(0)));
+        Future<MedicalPrescription> bad = sessions.submit(() ->
+                batching.sendHistoryAndPrescription(cip(1), new MedicalHistory(cip(1), 1), "Gripe", incomplete));
+
+        assertNotNull(good.get().getPrescCode());
+        Exception e = assertThrows(Exception.class, bad::get);
+        assertInstanceOf(NotCompletedMedicalPrescription.class, e.getCause());
+    }
+
+    /**
+     * A lone submission is sent when its window elapses.
+     */
+    @Test
+    void testLoneSubmissionIsSentAfterTheWindow() throws Exception {
+        MedicalPrescription registered = batching.sendHistoryAndPrescription(
+                cip(2), new MedicalHistory(cip(2), 1), "Gripe", complete(2));
+
+        assertNotNull(registered.getPrescCode());
+        assertEquals(1, sns.getRoundTrips());
+    }
+
+    /**
+     * Terminals send whole histories to the batching service, so their consultations join the batches.
+     */
+    @Test
+    void testTerminalSubmissionsAreBatched() throws Exception {
+        List<Future<ConsultationTerminal>> opened = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            sns.registerPrescription(complete(i));
+            int patient = i;
+            opened.add(sessions.submit(() -> {
+                ConsultationTerminal terminal = new ConsultationTerminal();
+                terminal.setHns(batching);
+                terminal.initRevision(cip(patient), "Gripe");
+                terminal.enterMedicalAssessmentInHistory("Sin fiebre");
+                terminal.initMedicalPrescriptionEdition();
+                terminal.enterTreatmentEndingDate(new Date(System.currentTimeMillis() + 86_400_000L));
+                terminal.finishMedicalPrescriptionEdition();
+                terminal.stampeeSignature();
+                return terminal;
+            }));
+        }
+        List<Future<MedicalPrescription>> sent = new ArrayList<>();
+        for (Future<ConsultationTerminal> terminal : opened) {
+            sent.add(sessions.submit(terminal.get()::sendHistoryAndPrescription));
+        }
+        long downloadTrips = 2L * SESSIONS;
+        for (Future<MedicalPrescription> result : sent) {
+            assertNotNull(result.get().getPrescCode());
+        }
+
+        assertTrue(batching.supportsHistoryDeltas(), "Terminals send their deltas, which join the batch");
+        assertTrue(sns.getRoundTrips() - downloadTrips <= SESSIONS / 4,
+                "Round trips of the submissions: " + (sns.getRoundTrips() - downloadTrips));
+        assertEquals("Sin fiebre", sns.getMedicalHistory(cip(0)).getHistory());
+    }
+
+    private long sendConcurrently(HealthNationalService hns) throws Exception {
+        long start = System.nanoTime();
+        List<Future<MedicalPrescription>> results = new ArrayList<>();
+        for (int i = 0; i < SESSIONS; i++) {
+            int patient = i;
+            results.add(sessions.submit(() -> hns.sendHistoryAndPrescription(
+                    cip(patient), new MedicalHistory(cip(patient), 1), "Gripe", complete(patient))));
+        }
+        for (Future<MedicalPrescription> result : results) {
+            assertNotNull(result.get().getPrescCode());
+        }
+        return System.nanoTime() - start;
+    }
+
+    private static HealthCardID cip(int patient) throws Exception {
+        return new HealthCardID(String.format("BBBB%012d", patient));
+    }
+
+    private static MedicalPrescription complete(int patient) throws Exception {
+        MedicalPrescription presc = new MedicalPrescription(cip(patient), 1, "Gripe");
+        presc.addLine(new ProductID("123456789012"), new String[]{"AFTERMEALS", "10", "1", "8", "HOUR", "x"});
+        presc.setEndDate(new Date(System.currentTimeMillis() + 86_400_000L));
+        presc.setEsign(new DigitalSignature(new byte[]{1, 2, 3}));
+        return presc;
+    }
+}
@@ -0,0 +1,101 @@
+package services;
+
+import data.HealthCardID;
+import data.InvalidFormatException;
+import data.NullValueException;
+import data.ProductID;
+import medicalconsultation.MedicalPrescription;
+import medicalconsultation.doubles.DecisionMakingAIStub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link CachingDecisionMakingAI} decorator.
+ * Verifies prompt normalization, prescription-aware keys, expiration and metrics.
+ */
+class CachingDecisionMakingAITest {
+
+    /**
+     * Stub that counts the queries and parses, and takes 100 ns of the fake clock to answer.
+     */
+    private class CountingDecisionMakingAI extends DecisionMakingAIStub {
+        int queries;
+        int parses;
+
+        @Override
+        public String getSuggestions(String prompt) {
+            queries++;
+            now += 100;
+            return "Respuesta " + queries;
+        }
+
+        @Override
+        public List<Suggestion> parseSuggest(String aiAnswer) throws InvalidFormatException, NullValueException {
+            parses++;
+            return super.parseSuggest(aiAnswer);
+        }
+    }
+
+    private CountingDecisionMakingAI remote;
+    private CachingDecisionMakingAI cache;
+    private MedicalPrescription presc;
+    private long now;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        remote = new CountingDecisionMakingAI();
+        cache = new CachingDecisionMakingAI(remote, 10, Duration.ofMinutes(5), () -> now);
+        presc = new MedicalPrescription(new HealthCardID("ABCJ123456789012"), 1, "Gripe");
+    }
+
+    /**
+     * Prompts that only differ in case and spacing share the same answer.
+     */
+    @Test
+    void testNearIdenticalPromptsAreAnsweredFromCache() throws Exception {
+        String first = cache.getSuggestions("Tratamiento  para la gripe", presc);
+        String second = cache.getSuggestions(" tratamiento para la\tGRIPE ", presc);
+
+        assertAll(
+                () -> assertEquals(first, second),
+                () -> assertEquals(1, remote.queries),
+                () -> assertEquals(0.5, cache.getHitRatio()),
+                () -> assertEquals(Duration.ofNanos(100), cache.getSavedLatency())
+        );
+    }
+
+    /**
+     * Changing the prescription lines makes the cached answer unusable.
+     */
+    @Test
+    void testPrescriptionChangeMissesTheCache() throws Exception {
+        cache.getSuggestions("Tratamiento", presc);
+        presc.addLine(new ProductID("123456789012"), new String[]{"AFTERMEALS", "10", "1", "8", "HOUR", "x"});
+        cache.getSuggestions("Tratamiento", presc);
+
+        assertEquals(2, remote.queries);
+    }
+
+    /**
+     * Expired answers are requested again, and parsed answers are reused.
+     */
+    @Test
+    void testExpirationAndParsedAnswers() throws Exception {
+        String answer = cache.getSuggestions("Tratamiento", presc);
+        now += Duration.ofMinutes(6).toNanos();
+        cache.getSuggestions("Tratamiento", presc);
+
+        List<Suggestion> parsed = cache.parseSuggest(answer);
+        assertSame(parsed, cache.parseSuggest(answer));
+        assertAll(
+                () -> assertEquals(2, remote.queries),
+                () -> assertEquals(1, remote.parses),
+                () -> assertThrows(UnsupportedOperationException.class, () -> parsed.clear())
+        );
+    }
+}
@@ -0,0 +1,207 @@
+package services;
+
+import data.HealthCardID;
+import medicalconsultation.IncorrectParametersException;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import medicalconsultation.doubles.HealthNationalServiceStub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link CachingHealthNationalService} decorator.
+ * Verifies cache hits, expiration, eviction, invalidation and defensive copying.
+ */
+class CachingHealthNationalServiceTest {
+
+    /**
+     * Stub that counts how many times the SNS is actually contacted.
+     */
+    private static class CountingHealthNationalService extends HealthNationalServiceStub {
+        int historyDownloads;
+        int prescriptionDownloads;
+
+        @Override
+        public MedicalHistory getMedicalHistory(HealthCardID cip) throws IncorrectParametersException {
+            historyDownloads++;
+            return super.getMedicalHistory(cip);
+        }
+
+        @Override
+        public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness) {
+            prescriptionDownloads++;
+            return super.getMedicalPrescription(cip, illness);
+        }
+    }
+
+    private CountingHealthNationalService remote;
+    private CachingHealthNationalService cache;
+    private HealthCardID cip;
+    private long now;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        remote = new CountingHealthNationalService();
+        cache = new CachingHealthNationalService(remote, 2, Duration.ofMinutes(10), () -> now);
+        cip = new HealthCardID("ABCJ123456789012");
+    }
+
+    /**
+     * A second request for the same patient must be served without contacting the SNS.
+     */
+    @Test
+    void testSecondRequestIsServedFromCache() throws Exception {
+        cache.getMedicalHistory(cip);
+        cache.getMedicalHistory(cip);
+        cache.getMedicalPrescription(cip, "Gripe");
+        cache.getMedicalPrescription(cip, "Gripe");
+
+        assertAll("Hits",
+                () -> assertEquals(1, remote.historyDownloads),
+                () -> assertEquals(1, remote.prescriptionDownloads),
+                () -> assertEquals(2, cache.getHits()),
+                () -> assertEquals(2, cache.getMisses())
+        );
+    }
+
+    /**
+     * Annotations added during a session must not leak into the cached history.
+     */
+    @Test
+    void testCachedHistoryIsNotSharedWithSessions() throws Exception {
+        MedicalHistory session = cache.getMedicalHistory(cip);
+        session.addMedicalHistoryAnnotations("Anotación de la sesión");
+
+        assertEquals("", cache.getMedicalHistory(cip).getHistory());
+    }
+
+    /**
+     * Entries older than the time to live must be downloaded again.
+     */
+    @Test
+    void testExpiredEntriesAreDownloadedAgain() throws Exception {
+        cache.getMedicalHistory(cip);
+        now += Duration.ofMinutes(11).toNanos();
+        cache.getMedicalHistory(cip);
+
+        assertEquals(2, remote.historyDownloads);
+    }
+
+    /**
+     * Sending new data for a patient must invalidate everything cached for that patient.
+     */
+    @Test
+    void testSendingInvalidatesPatient() throws Exception {
+        MedicalHistory history = cache.getMedicalHistory(cip);
+        MedicalPrescription prescription = cache.getMedicalPrescription(cip, "Gripe");
+
+        cache.sendHistoryAndPrescription(cip, history, "Gripe", prescription);
+        cache.getMedicalHistory(cip);
+        cache.getMedicalPrescription(cip, "Gripe");
+
+        assertAll("Invalidation",
+                () -> assertEquals(2, remote.historyDownloads),
+                () -> assertEquals(2, remote.prescriptionDownloads)
+        );
+    }
+
+    /**
+     * The least recently used patient must be evicted when the cache is full.
+     */
+    @Test
+    void testLeastRecentlyUsedPatientIsEvicted() throws Exception {
+        HealthCardID second = new HealthCardID("ABCJ123456789013");
+        HealthCardID third = new HealthCardID("ABCJ123456789014");
+
+        cache.getMedicalHistory(cip);
+        cache.getMedicalHistory(second);
+        cache.getMedicalHistory(cip);
+        cache.getMedicalHistory(third);
+        cache.getMedicalHistory(cip);
+
+        assertAll("Eviction",
+                () -> assertEquals(3, remote.historyDownloads),
+                () -> assertEquals(1, cache.getEvictions())
+        );
+    }
+
+    /**
+     * A download that started before the patient was invalidated must not be cached.
+     */
+    @Test
+    void testDownloadOverlappingInvalidationIsNotCached() throws Exception {
+        CountDownLatch downloading = new CountDownLatch(1);
+        CountDownLatch invalidated = new CountDownLatch(1);
+        CountingHealthNationalService slow = new CountingHealthNationalService() {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws IncorrectParametersException {
+                MedicalHistory history = super.getMedicalHistory(cip);
+                if (historyDownloads == 1) {
+                    downloading.countDown();
+                    try {
+                        invalidated.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                return history;
+            }
+        };
+        CachingHealthNationalService racing = new CachingHealthNationalService(slow, 2, Duration.ofMinutes(10), () -> now);
+
+        Thread reader = Thread.ofVirtual().start(() -> {
+            try {
+                racing.getMedicalHistory(cip);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        downloading.await();
+        racing.invalidate(cip);
+        invalidated.countDown();
+        reader.join();
+        racing.getMedicalHistory(cip);
+
+        assertEquals(2, slow.historyDownloads);
+    }
+
+    /**
+     * Prefetched prescriptions evicted before their revision are forgotten.
+     */
+    @Test
+    void testEvictedPrefetchesAreForgotten() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            cache.prefetch(new HealthCardID(String.format("ABCJ%012d", i)), "Gripe");
+        }
+
+        assertEquals(2, cache.getPendingPrefetchCount());
+    }
+
+    /**
+     * Invalidating a patient drops all of its prescriptions and none of other patients,
+     * and evicted prescriptions leave the per-patient index.
+     */
+    @Test
+    void testInvalidationOnlyTouchesThePatient() throws Exception {
+        HealthCardID other = new HealthCardID("ABCJ123456789013");
+        cache.getMedicalPrescription(cip, "Gripe");
+        cache.getMedicalPrescription(other, "Gripe");
+
+        cache.invalidate(cip);
+        cache.getMedicalPrescription(other, "Gripe");
+        cache.getMedicalPrescription(cip, "Gripe");
+        for (int i = 0; i < 10; i++) {
+            cache.getMedicalPrescription(new HealthCardID(String.format("ABCJ%012d", i)), "Gripe");
+        }
+
+        assertAll("Invalidation by patient",
+                () -> assertEquals(13, remote.prescriptionDownloads),
+                () -> assertEquals(2, cache.getIndexedPatientCount())
+        );
+    }
+}
@@ -0,0 +1,178 @@
+package services;
+
+import data.ProductID;
+import medicalconsultation.doubles.LatencyDecisionMakingAIStub;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link HedgingDecisionMakingAI} composite.
+ * Verifies hedging against slow and failing backends, and the merging of answers.
+ */
+class HedgingDecisionMakingAITest {
+
+    private static final String ANSWER_A = "ADDITION;123456789012;AFTERMEALS;10;1;8;HOUR;A\n";
+    private static final String ANSWER_B = "ADDITION;123456789012;AFTERMEALS;5;2;12;HOUR;B\nELIMINATION;000000000007\n";
+
+    /**
+     * Latency distribution where 1 call in 20 is very slow.
+     */
+    private static LongSupplier heavyTail(long seed) {
+        Random random = new Random(seed);
+        return () -> random.nextInt(20) == 0 ? 200 : 2;
+    }
+
+    /**
+     * Hedging to a second backend removes most of the tail latency of the primary.
+     */
+    @Test
+    void testHedgingReducesTailLatency() throws Exception {
+        HedgingDecisionMakingAI single = new HedgingDecisionMakingAI(List.of(
+                new LatencyDecisionMakingAIStub(heavyTail(1), ANSWER_A)),
+                HedgingDecisionMakingAI.Mode.FIRST, 75, Duration.ofMillis(20));
+        HedgingDecisionMakingAI hedged = new HedgingDecisionMakingAI(List.of(
+                new LatencyDecisionMakingAIStub(heavyTail(1), ANSWER_A),
+                new LatencyDecisionMakingAIStub(heavyTail(2), ANSWER_A)),
+                HedgingDecisionMakingAI.Mode.FIRST, 75, Duration.ofMillis(20));
+
+        long singleP99 = p99(single, 100);
+        long hedgedP99 = p99(hedged, 100);
+
+        assertTrue(hedgedP99 < singleP99 / 2,
+                "p99 without hedging: " + singleP99 + " ns, with hedging: " + hedgedP99 + " ns");
+    }
+
+    /**
+     * A failing primary is replaced immediately by the next backend.
+     */
+    @Test
+    void testFailingPrimaryIsHedgedAtOnce() throws Exception {
+        HedgingDecisionMakingAI ai = new HedgingDecisionMakingAI(List.of(
+                new LatencyDecisionMakingAIStub(() -> 0, null),
+                new LatencyDecisionMakingAIStub(() -> 0, ANSWER_B)),
+                HedgingDecisionMakingAI.Mode.FIRST, 99, Duration.ofSeconds(10));
+
+        long start = System.nanoTime();
+        List<Suggestion> suggestions = ai.parseSuggest(ai.getSuggestions("Tratamiento"));
+
+        assertEquals(2, suggestions.size());
+        assertTrue(System.nanoTime() - start < Duration.ofSeconds(5).toNanos());
+    }
+
+    /**
+     * Merged answers keep one suggestion per type and product, preferring the primary.
+     */
+    @Test
+    void testMergeDeduplicatesByTypeAndProduct() throws Exception {
+        HedgingDecisionMakingAI ai = new HedgingDecisionMakingAI(List.of(
+                new LatencyDecisionMakingAIStub(() -> 20, ANSWER_A),
+                new LatencyDecisionMakingAIStub(() -> 0, ANSWER_B),
+                new LatencyDecisionMakingAIStub(() -> 0, null)),
+                HedgingDecisionMakingAI.Mode.MERGE, 99, Duration.ofMillis(1));
+
+        List<Suggestion> merged = ai.parseSuggest(ai.getSuggestions("Tratamiento"));
+
+        assertAll(
+                () -> assertEquals(2, merged.size()),
+                () -> assertEquals("A", merged.get(0).getTakingGuideline().getInstructions()),
+                () -> assertEquals(Suggestion.SuggType.ELIMINATION, merged.get(1).getType()),
+                () -> assertEquals(new ProductID("000000000007"), merged.get(1).getProductID())
+        );
+    }
+
+    /**
+     * Once an answer has been chosen, the backends still working on the prompt are interrupted.
+     */
+    @Test
+    void testLosingBackendsAreCancelled() throws Exception {
+        HangingDecisionMakingAI hanging = new HangingDecisionMakingAI();
+        HedgingDecisionMakingAI ai = new HedgingDecisionMakingAI(List.of(
+                hanging,
+                new LatencyDecisionMakingAIStub(() -> 0, ANSWER_A)),
+                HedgingDecisionMakingAI.Mode.FIRST, 99, Duration.ofMillis(10));
+
+        assertNotNull(ai.getSuggestions("Tratamiento"));
+        assertTrue(hanging.interrupted.await(1, TimeUnit.SECONDS), "The slow primary must be cancelled");
+    }
+
+    /**
+     * A primary that loses every race still feeds the hedging delay with the time it had been running.
+     */
+    @Test
+    void testLosingPrimaryRecordsItsElapsedTime() throws Exception {
+        Duration initialDelay = Duration.ofMillis(5);
+        HedgingDecisionMakingAI ai = new HedgingDecisionMakingAI(List.of(
+                new LatencyDecisionMakingAIStub(() -> 500, ANSWER_A),
+                new LatencyDecisionMakingAIStub(() -> 0, ANSWER_B)),
+                HedgingDecisionMakingAI.Mode.FIRST, 50, initialDelay);
+
+        for (int i = 0; i < 20; i++) {
+            ai.getSuggestions("Tratamiento");
+        }
+
+        assertTrue(ai.getHedgeDelayNanos() > initialDelay.toNanos(),
+                "Hedging delay: " + ai.getHedgeDelayNanos() + " ns");
+    }
+
+    /**
+     * A backend that does not answer in time is left out of the merge instead of blocking it.
+     */
+    @Test
+    void testMergeDoesNotWaitPastItsDeadline() throws Exception {
+        HangingDecisionMakingAI hanging = new HangingDecisionMakingAI();
+        HedgingDecisionMakingAI ai = new HedgingDecisionMakingAI(List.of(
+                hanging,
+                new LatencyDecisionMakingAIStub(() -> 0, ANSWER_B)),
+                HedgingDecisionMakingAI.Mode.MERGE, 99, Duration.ofMillis(1), Duration.ofMillis(100));
+
+        long start = System.nanoTime();
+        List<Suggestion> merged = ai.parseSuggest(ai.getSuggestions("Tratamiento"));
+
+        assertAll(
+                () -> assertTrue(System.nanoTime() - start < Duration.ofSeconds(2).toNanos()),
+                () -> assertEquals(2, merged.size()),
+                () -> assertTrue(hanging.interrupted.await(1, TimeUnit.SECONDS))
+        );
+    }
+
+    /**
+     * Backend that never answers until it is interrupted.
+     */
+    private static class HangingDecisionMakingAI extends LatencyDecisionMakingAIStub {
+        final CountDownLatch interrupted = new CountDownLatch(1);
+
+        HangingDecisionMakingAI() {
+            super(() -> 0, null);
+        }
+
+        @Override
+        public String getSuggestions(String prompt) throws AIException {
+            try {
+                Thread.sleep(Duration.ofMinutes(1));
+            } catch (InterruptedException e) {
+                interrupted.countDown();
+            }
+            throw new AIException("La IA no ha respondido.");
+        }
+    }
+
+    private static long p99(HedgingDecisionMakingAI ai, int calls) throws Exception {
+        long[] latencies = new long[calls];
+        for (int i = 0; i < calls; i++) {
+            long start = System.nanoTime();
+            ai.getSuggestions("Tratamiento");
+            latencies[i] = System.nanoTime() - start;
+        }
+        Arrays.sort(latencies);
+        return latencies[(int) Math.ceil(0.99 * calls) - 1];
+    }
+}
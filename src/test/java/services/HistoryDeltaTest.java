@@ -0,0 +1,152 @@
+package services;
+
+import data.HealthCardID;
+import data.HealthCardIDException;
+import data.ProductID;
+import medicalconsultation.ConsultationTerminal;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.net.ConnectException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the delta submission of medical histories.
+ */
+class HistoryDeltaTest {
+
+    private static final String ILLNESS = "EPOC";
+
+    private LocalHealthNationalService sns;
+    private HealthCardID cip;
+    private ProductID product;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sns = new LocalHealthNationalService(Duration.ZERO);
+        cip = new HealthCardID("CCCC123456789012");
+        product = new ProductID("123456789012");
+        MedicalHistory history = new MedicalHistory(cip, 7);
+        for (int i = 0; i < 500; i++) {
+            history.addMedicalHistoryAnnotations("Revisión " + i + ": saturación estable");
+        }
+        sns.registerPatient(history);
+        MedicalPrescription presc = new MedicalPrescription(cip, 7, ILLNESS);
+        presc.addLine(product, new String[]{"AFTERMEALS", "30", "1", "12", "HOUR", "Inhalador"});
+        sns.registerPrescription(presc);
+    }
+
+    /**
+     * A consultation only transmits its own annotations, and the SNS appends them to the history.
+     */
+    @Test
+    void testOnlyNewAnnotationsAreSent() throws Exception {
+        List<HistoryDelta> sent = new ArrayList<>();
+        HealthNationalService recording = new CachingHealthNationalService(sns, 10, Duration.ofMinutes(1)) {
+            @Override
+            public MedicalPrescription sendHistoryDeltaAndPrescription(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+                    throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+                    NotCompletedMedicalPrescription, HistoryVersionConflictException {
+                sent.add(delta);
+                return super.sendHistoryDeltaAndPrescription(delta, illness, mPresc);
+            }
+        };
+
+        consult(recording, "Sin agudizaciones");
+
+        MedicalHistory stored = sns.getMedicalHistory(cip);
+        assertAll(
+                () -> assertEquals(List.of("Sin agudizaciones"), sent.get(0).getAnnotations()),
+                () -> assertEquals(500, sent.get(0).getBaseAnnotationCount()),
+                () -> assertEquals(501, stored.getAnnotations().size()),
+                () -> assertEquals("Sin agudizaciones", stored.getAnnotations().get(500))
+        );
+    }
+
+    /**
+     * When two terminals edit the same history, the second submission is rejected and can be retried.
+     */
+    @Test
+    void testConcurrentEditIsDetected() throws Exception {
+        ConsultationTerminal first = open(sns, "Primera consulta");
+        ConsultationTerminal second = open(sns, "Segunda consulta");
+
+        first.sendHistoryAndPrescription();
+
+        assertThrows(HistoryVersionConflictException.class, second::sendHistoryAndPrescription);
+        assertEquals(501, sns.getMedicalHistory(cip).getAnnotations().size());
+    }
+
+    /**
+     * Services without a delta endpoint receive the whole history, and the terminal downloads nothing more.
+     */
+    @Test
+    void testWholeHistoryIsSentWithoutDeltaSupport() throws Exception {
+        AtomicInteger downloads = new AtomicInteger();
+        // Only the required methods are implemented, so deltas are not supported
+        HealthNationalService plain = new HealthNationalService() {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws ConnectException, HealthCardIDException {
+                downloads.incrementAndGet();
+                return sns.getMedicalHistory(cip);
+            }
+
+            @Override
+            public MedicalPrescription getMedicalPrescription(HealthCardID cip, String illness)
+                    throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException {
+                return sns.getMedicalPrescription(cip, illness);
+            }
+
+            @Override
+            public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce, String illness,
+                                                                  MedicalPrescription mPresc)
+                    throws ConnectException, HealthCardIDException, NotCompletedMedicalPrescription {
+                return sns.sendHistoryAndPrescription(cip, hce, illness, mPresc);
+            }
+
+            @Override
+            public MedicalPrescription generateTreatmCodeAndRegister(MedicalPrescription ePresc) throws ConnectException {
+                return sns.generateTreatmCodeAndRegister(ePresc);
+            }
+        };
+        consult(plain, "Vía por defecto");
+
+        assertAll(
+                () -> assertEquals(1, downloads.get()),
+                () -> assertEquals("Vía por defecto", sns.getMedicalHistory(cip).getAnnotations().get(500))
+        );
+
+        // Without a delta endpoint, a delta is applied to the downloaded history and sent whole
+        MedicalHistory extended = sns.getMedicalHistory(cip);
+        extended.addMedicalHistoryAnnotations("Delta aplicado");
+        plain.sendHistoryDeltaAndPrescription(HistoryDelta.of(extended), ILLNESS, sns.getMedicalPrescription(cip, ILLNESS));
+        assertEquals("Delta aplicado", sns.getMedicalHistory(cip).getAnnotations().get(501));
+    }
+
+    private void consult(HealthNationalService hns, String annotation) throws Exception {
+        open(hns, annotation).sendHistoryAndPrescription();
+    }
+
+    /**
+     * Opens a consultation that adds an annotation and leaves the renewed prescription signed.
+     */
+    private ConsultationTerminal open(HealthNationalService hns, String annotation) throws Exception {
+        ConsultationTerminal terminal = new ConsultationTerminal();
+        terminal.setHns(hns);
+        terminal.initRevision(cip, ILLNESS);
+        terminal.enterMedicalAssessmentInHistory(annotation);
+        terminal.initMedicalPrescriptionEdition();
+        terminal.enterTreatmentEndingDate(new Date(System.currentTimeMillis() + 30L * 24 * 60 * 60 * 1000));
+        terminal.finishMedicalPrescriptionEdition();
+        terminal.stampeeSignature();
+        return terminal;
+    }
+}
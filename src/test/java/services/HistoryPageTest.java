@@ -0,0 +1,123 @@
+package services;
+
+import data.HealthCardID;
+import data.ProductID;
+import medicalconsultation.ConsultationTerminal;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import medicalconsultation.doubles.LargeHistoryHealthNationalServiceStub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.io.UncheckedIOException;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the paged download of medical histories and the lazily loaded history.
+ */
+class HistoryPageTest {
+
+    private HealthCardID cip;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cip = new HealthCardID("CCCC123456789012");
+    }
+
+    /**
+     * Opening a revision with the latest page of a 20,000-annotation history is faster and
+     * transfers a small fraction of the data.
+     */
+    @Test
+    void testPagedRevisionOpensFaster() throws Exception {
+        LargeHistoryHealthNationalServiceStub sns =
+                new LargeHistoryHealthNationalServiceStub(20_000, Duration.ofMillis(2), 20);
+        sns.getMedicalHistory(cip);
+        long fullChars = sns.getCharsSent();
+
+        long fullNanos = openRevision(sns, 0);
+        long afterFull = sns.getCharsSent();
+        long pagedNanos = openRevision(sns, 20);
+        long pagedChars = sns.getCharsSent() - afterFull;
+
+        String timings = "full " + fullNanos / 1000 + " us, paged " + pagedNanos / 1000 + " us";
+        assertTrue(pagedNanos < fullNanos, timings);
+        assertTrue(pagedChars * 100 < fullChars, "Paged transfer: " + pagedChars + " of " + fullChars);
+    }
+
+    /**
+     * Older annotations are downloaded only when needed, and the loaded history equals the whole one.
+     */
+    @Test
+    void testOlderAnnotationsAreLoadedOnDemand() throws Exception {
+        LargeHistoryHealthNationalServiceStub sns =
+                new LargeHistoryHealthNationalServiceStub(1_000, Duration.ZERO, 0);
+        MedicalHistory lazy = sns.getLatestMedicalHistory(cip, 10);
+        MedicalHistory whole = sns.getMedicalHistory(cip);
+
+        lazy.addMedicalHistoryAnnotations("Nueva visita");
+        whole.addMedicalHistoryAnnotations("Nueva visita");
+        assertAll(
+                () -> assertEquals(1, sns.getPageRequests()),
+                () -> assertEquals(1_001, lazy.getAnnotationCount()),
+                () -> assertEquals(List.of("Nueva visita"), lazy.getAnnotationsSinceSync()),
+                () -> assertEquals(whole.getHistoryLength(), lazy.getHistoryLength()),
+                () -> assertEquals(whole.getLatestAnnotations(30), lazy.getLatestAnnotations(30))
+        );
+
+        assertEquals(whole, lazy);
+        assertEquals(whole.hashCode(), lazy.hashCode());
+        assertEquals(whole.getHistory(), lazy.getHistory());
+    }
+
+    /**
+     * A consultation on a lazy history sends its annotations without downloading the older ones,
+     * and loading pages of a history replaced meanwhile fails instead of mixing versions.
+     */
+    @Test
+    void testLazyHistoryWithDeltaSubmission() throws Exception {
+        LocalHealthNationalService sns = new LocalHealthNationalService(Duration.ZERO);
+        MedicalHistory history = new MedicalHistory(cip, 7);
+        for (int i = 0; i < 300; i++) {
+            history.addMedicalHistoryAnnotations("Anotación " + i);
+        }
+        sns.registerPatient(history);
+        MedicalPrescription presc = new MedicalPrescription(cip, 7, "Asma");
+        presc.addLine(new ProductID("123456789012"), new String[]{"AFTERMEALS", "30", "1", "12", "HOUR", "x"});
+        sns.registerPrescription(presc);
+
+        ConsultationTerminal terminal = new ConsultationTerminal();
+        terminal.setHns(sns);
+        terminal.setHistoryPageSize(25);
+        terminal.initRevision(cip, "Asma");
+        terminal.enterMedicalAssessmentInHistory("Control anual");
+        terminal.initMedicalPrescriptionEdition();
+        terminal.enterTreatmentEndingDate(new Date(System.currentTimeMillis() + 86_400_000L));
+        terminal.finishMedicalPrescriptionEdition();
+        terminal.stampeeSignature();
+        long roundTrips = sns.getRoundTrips();
+        terminal.sendHistoryAndPrescription();
+        assertEquals(roundTrips + 1, sns.getRoundTrips());
+
+        List<String> stored = sns.getMedicalHistory(cip).getAnnotations();
+        assertEquals(301, stored.size());
+        assertEquals("Control anual", stored.get(300));
+
+        MedicalHistory stale = sns.getLatestMedicalHistory(cip, 5);
+        sns.registerPatient(new MedicalHistory(cip, 7));
+        assertThrows(UncheckedIOException.class, stale::getAnnotations);
+    }
+
+    private static long openRevision(HealthNationalService sns, int pageSize) throws Exception {
+        ConsultationTerminal terminal = new ConsultationTerminal();
+        terminal.setHns(sns);
+        terminal.setHistoryPageSize(pageSize);
+        long start = System.nanoTime();
+        terminal.initRevision(new HealthCardID("CCCC123456789012"), "Hipertensión");
+        return System.nanoTime() - start;
+    }
+}
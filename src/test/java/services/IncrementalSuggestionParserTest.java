@@ -0,0 +1,115 @@
+package services;
+
+import data.InvalidFormatException;
+import data.ProductID;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link IncrementalSuggestionParser} and the {@link SuggestionFormat}.
+ * Verifies that suggestions are emitted as soon as their line is complete.
+ */
+class IncrementalSuggestionParserTest {
+
+    private static final String ADDITION = "ADDITION;123456789012;AFTERMEALS;10;1;8;HOUR;Con agua; sin masticar\n";
+    private static final String ELIMINATION = "ELIMINATION;000000000042\n";
+
+    /**
+     * A line split across chunks is only parsed once its line break arrives.
+     */
+    @Test
+    void testSuggestionsAreEmittedWhenTheirLineIsComplete() throws Exception {
+        List<Suggestion> received = new ArrayList<>();
+        IncrementalSuggestionParser parser = new IncrementalSuggestionParser(received::add);
+
+        parser.feed(ADDITION.substring(0, 30));
+        assertTrue(received.isEmpty());
+
+        parser.feed(ADDITION.substring(30) + ELIMINATION.substring(0, 5));
+        assertEquals(1, received.size());
+        Suggestion first = received.get(0);
+        assertAll(
+                () -> assertEquals(Suggestion.SuggType.ADDITION, first.getType()),
+                () -> assertEquals(new ProductID("123456789012"), first.getProductID()),
+                () -> assertEquals("Con agua; sin masticar", first.getTakingGuideline().getInstructions())
+        );
+
+        parser.feed(ELIMINATION.substring(5).strip());
+        List<Suggestion> all = parser.finish();
+        assertEquals(2, all.size());
+        assertEquals(new ProductID("000000000042"), all.get(1).getProductID());
+        assertEquals(all, received);
+    }
+
+    /**
+     * Streaming and parsing the whole answer at once must give the same suggestions.
+     */
+    @Test
+    void testStreamedAnswerMatchesWholeAnswer() throws Exception {
+        IncrementalSuggestionParser parser = new IncrementalSuggestionParser(sugg -> { });
+        parser.onSubscribe(new NoOpSubscription());
+        for (char c : (ADDITION + "\n" + ELIMINATION).toCharArray()) {
+            parser.onNext(String.valueOf(c));
+        }
+        parser.onComplete();
+
+        List<Suggestion> whole = SuggestionFormat.parse(ADDITION + ELIMINATION);
+        List<Suggestion> streamed = parser.getResult().join();
+        assertEquals(whole.size(), streamed.size());
+        for (int i = 0; i < whole.size(); i++) {
+            assertEquals(whole.get(i).getType(), streamed.get(i).getType());
+            assertEquals(whole.get(i).getProductID(), streamed.get(i).getProductID());
+        }
+        assertEquals(whole.get(0).getTakingGuideline().getPosology(), streamed.get(0).getTakingGuideline().getPosology());
+    }
+
+    /**
+     * A malformed line stops the stream and fails the result.
+     */
+    @Test
+    void testMalformedLineFailsTheResult() {
+        NoOpSubscription subscription = new NoOpSubscription();
+        IncrementalSuggestionParser parser = new IncrementalSuggestionParser(sugg -> { });
+        parser.onSubscribe(subscription);
+        parser.onNext("ADDITION;123456789012;NEVER;10;1;8;HOUR;x\n");
+
+        assertTrue(subscription.cancelled);
+        CompletionException e = assertThrows(CompletionException.class, () -> parser.getResult().join());
+        assertInstanceOf(InvalidFormatException.class, e.getCause());
+    }
+
+    /**
+     * A listener that fails stops the stream and fails the result instead of leaving it pending.
+     */
+    @Test
+    void testFailingListenerFailsTheResult() {
+        NoOpSubscription subscription = new NoOpSubscription();
+        IncrementalSuggestionParser parser = new IncrementalSuggestionParser(sugg -> {
+            throw new IllegalStateException("pantalla no disponible");
+        });
+        parser.onSubscribe(subscription);
+        parser.onNext(ADDITION);
+
+        assertTrue(subscription.cancelled);
+        CompletionException e = assertThrows(CompletionException.class, () -> parser.getResult().join());
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+    }
+
+    private static class NoOpSubscription implements java.util.concurrent.Flow.Subscription {
+        boolean cancelled;
+
+        @Override
+        public void request(long n) {
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+        }
+    }
+}
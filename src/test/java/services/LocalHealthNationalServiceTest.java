@@ -0,0 +1,154 @@
+package services;
+
+import data.DigitalSignature;
+import data.HealthCardID;
+import data.HealthCardIDException;
+import data.ProductID;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.condition.EnabledIfSystemProperty;
+
+import java.time.Duration;
+import java.util.AbstractCollection;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the bulk registration of the {@link LocalHealthNationalService}.
+ */
+class LocalHealthNationalServiceTest {
+
+    private LocalHealthNationalService sns;
+    private HealthCardID cip;
+    private ProductID product;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        sns = new LocalHealthNationalService(Duration.ZERO);
+        cip = new HealthCardID("CCCC123456789012");
+        product = new ProductID("123456789012");
+        sns.registerPatient(new MedicalHistory(cip, 1));
+    }
+
+    /**
+     * Prescriptions created on the fly get distinct codes in one round trip per chunk,
+     * including a last chunk that is not full.
+     */
+    @Test
+    void testBulkRegistrationTakesOneRoundTripPerChunk() {
+        assertBulkRegistration(3 * LocalHealthNationalService.BULK_CHUNK + 1);
+    }
+
+    /**
+     * 100,000 prescriptions, created on the fly, get distinct codes in a few round trips.
+     * Only run with -Dbenchmarks=true.
+     */
+    @Test
+    @EnabledIfSystemProperty(named = "benchmarks", matches = "true")
+    void testBulkRegistrationOf100kPrescriptions() {
+        assertBulkRegistration(100_000);
+    }
+
+    /**
+     * Invalid items are reported with their position while the others are registered.
+     */
+    @Test
+    void testPartialFailuresAreReported() throws Exception {
+        MedicalPrescription unsigned = new MedicalPrescription(cip, 1, "Gripe");
+        unsigned.addLine(product, new String[]{"AFTERMEALS", "10", "1", "8", "HOUR", "x"});
+        MedicalPrescription unknownPatient = signed(new HealthCardID("DDDD123456789012"));
+
+        List<SubmissionResult> results = sns.generateTreatmCodesAndRegister(
+                List.of(signed(cip), unsigned, unknownPatient, signed(cip))).collect(Collectors.toList());
+
+        assertAll(
+                () -> assertEquals(4, results.size()),
+                () -> assertTrue(results.get(0).isSuccessful()),
+                () -> assertInstanceOf(NotCompletedMedicalPrescription.class, results.get(1).getError()),
+                () -> assertInstanceOf(HealthCardIDException.class, results.get(2).getError()),
+                () -> assertEquals(2, results.get(2).getIndex()),
+                () -> assertTrue(results.get(3).isSuccessful()),
+                () -> assertEquals("L000000001", results.get(0).getPrescription().getPrescCode().getCode()),
+                () -> assertEquals("L000000002", results.get(3).getPrescription().getPrescCode().getCode(),
+                        "Invalid items must not take treatment codes")
+        );
+    }
+
+    /**
+     * Results are only produced as the stream is consumed.
+     */
+    @Test
+    void testResultsAreProducedLazily() {
+        assertEquals(10, sns.generateTreatmCodesAndRegister(generated(50_000)).limit(10).count());
+        assertEquals(1, sns.getRoundTrips());
+    }
+
+    private void assertBulkRegistration(int total) {
+        Set<String> codes = new HashSet<>();
+        long[] registered = new long[1];
+
+        long start = System.nanoTime();
+        sns.generateTreatmCodesAndRegister(generated(total))
+                .filter(SubmissionResult::isSuccessful)
+                .forEach(r -> {
+                    registered[0]++;
+                    codes.add(r.getPrescription().getPrescCode().getCode());
+                });
+        long elapsedMillis = (System.nanoTime() - start) / 1_000_000;
+
+        assertEquals(total, registered[0], "Registered in " + elapsedMillis + " ms");
+        assertEquals(total, codes.size());
+        assertEquals((total + LocalHealthNationalService.BULK_CHUNK - 1) / LocalHealthNationalService.BULK_CHUNK,
+                sns.getRoundTrips());
+    }
+
+    private MedicalPrescription signed(HealthCardID patient) throws Exception {
+        MedicalPrescription presc = new MedicalPrescription(patient, 1, "Renovación");
+        presc.addLine(product, new String[]{"AFTERMEALS", "30", "1", "24", "HOUR", "Crónico"});
+        presc.setEndDate(new Date(System.currentTimeMillis() + 86_400_000L));
+        presc.setEsign(new DigitalSignature(new byte[]{1}));
+        return presc;
+    }
+
+    /**
+     * Collection whose prescriptions are created while it is iterated, so they are never all in memory.
+     */
+    private AbstractCollection<MedicalPrescription> generated(int size) {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<MedicalPrescription> iterator() {
+                return new Iterator<>() {
+                    private int created;
+
+                    @Override
+                    public boolean hasNext() {
+                        return created < size;
+                    }
+
+                    @Override
+                    public MedicalPrescription next() {
+                        created++;
+                        try {
+                            return signed(cip);
+                        } catch (Exception e) {
+                            throw new IllegalStateException(e);
+                        }
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+}
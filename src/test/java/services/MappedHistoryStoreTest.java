@@ -0,0 +1,191 @@
+package services;
+
+import data.HealthCardID;
+import medicalconsultation.MedicalHistory;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link MappedHistoryStore}.
+ */
+class MappedHistoryStoreTest {
+
+    @TempDir
+    Path dir;
+
+    private HealthCardID cip;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cip = new HealthCardID("CCCC123456789012");
+    }
+
+    /**
+     * Annotations spread over several segments are read back after reopening the store.
+     */
+    @Test
+    void testAnnotationsSurviveReopeningAcrossSegments() throws Exception {
+        MedicalHistory history = new MedicalHistory(cip, 7);
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 128)) {
+            store.store(history);
+            for (int i = 0; i < 50; i++) {
+                String annotation = "Revisión " + i + ": tensión controlada";
+                history.addMedicalHistoryAnnotations(annotation);
+                store.append(cip, annotation);
+            }
+        }
+        assertTrue(segments().size() > 1);
+
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 128)) {
+            List<ByteBuffer> views = store.viewLastAnnotations(cip, 2);
+            assertAll(
+                    () -> assertEquals(history, store.load(cip)),
+                    () -> assertEquals(50, store.getAnnotationCount(cip)),
+                    () -> assertEquals(List.of("Revisión 48: tensión controlada", "Revisión 49: tensión controlada"),
+                            store.readLastAnnotations(cip, 2)),
+                    () -> assertTrue(views.get(1).isReadOnly()),
+                    () -> assertEquals("Revisión 49: tensión controlada",
+                            StandardCharsets.UTF_8.decode(views.get(1)).toString())
+            );
+        }
+    }
+
+    /**
+     * A page holds only its annotations, with the length and hash of the whole history, before and
+     * after reopening the store and after the history is replaced.
+     */
+    @Test
+    void testPagesCarryTheLengthAndHashOfTheWholeHistory() throws Exception {
+        MedicalHistory history = new MedicalHistory(cip, 7);
+        history.addMedicalHistoryAnnotations("Control TA");
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 128)) {
+            store.store(history);
+            for (int i = 0; i < 20; i++) {
+                history.addMedicalHistoryAnnotations("Revisión " + i);
+                store.append(cip, "Revisión " + i);
+            }
+            HistoryPage page = store.readPage(cip, 10, 3);
+            assertAll("Page of an open history",
+                    () -> assertEquals(List.of("Revisión 6", "Revisión 7", "Revisión 8"), page.getAnnotations()),
+                    () -> assertEquals(7, page.getFirstIndex()),
+                    () -> assertEquals(21, page.getTotalAnnotations()),
+                    () -> assertEquals(history.getHistoryLength(), page.getHistoryLength()),
+                    () -> assertEquals(history.getHistory().hashCode(), page.getHistoryHash())
+            );
+        }
+
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 128)) {
+            HistoryPage reopened = store.readPage(cip, HistoryPage.LATEST, 2);
+            assertEquals(List.of("Revisión 18", "Revisión 19"), reopened.getAnnotations());
+            assertEquals(history.getHistory().hashCode(), reopened.getHistoryHash());
+
+            MedicalHistory replaced = new MedicalHistory(cip, 7);
+            replaced.addMedicalHistoryAnnotations("Sin antecedentes");
+            store.store(replaced);
+            HistoryPage page = store.readPage(cip, HistoryPage.LATEST, 2);
+            assertEquals(replaced.getHistoryLength(), page.getHistoryLength());
+            assertEquals(replaced.getHistory().hashCode(), page.getHistoryHash());
+        }
+    }
+
+    /**
+     * A damaged last record is discarded on recovery, and the log can be extended again.
+     */
+    @Test
+    void testDamagedTailIsDiscarded() throws Exception {
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 4096)) {
+            store.store(new MedicalHistory(cip, 7));
+            store.append(cip, "Primera visita");
+            store.append(cip, "ZZZZZZZZ");
+        }
+        Path segment = segments().get(0);
+        byte[] content = Files.readAllBytes(segment);
+        int at = new String(content, StandardCharsets.ISO_8859_1).indexOf("ZZZZZZZZ");
+        content[at + 3] = 'Y';
+        Files.write(segment, content);
+
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 4096)) {
+            assertEquals(List.of("Primera visita"), store.load(cip).getAnnotations());
+            store.append(cip, "Segunda visita");
+        }
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 4096)) {
+            assertEquals(List.of("Primera visita", "Segunda visita"), store.load(cip).getAnnotations());
+        }
+    }
+
+    /**
+     * Compaction drops replaced histories and keeps the live one, also as the store of the local SNS.
+     */
+    @Test
+    void testCompactionKeepsOnlyTheLiveHistory() throws Exception {
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 256)) {
+            LocalHealthNationalService sns = new LocalHealthNationalService(Duration.ZERO);
+            sns.setHistoryStore(store);
+            MedicalHistory old = new MedicalHistory(cip, 7);
+            for (int i = 0; i < 40; i++) {
+                old.addMedicalHistoryAnnotations("Anotación antigua " + i);
+            }
+            sns.registerPatient(old);
+            MedicalHistory replacement = new MedicalHistory(cip, 8);
+            replacement.addMedicalHistoryAnnotations("Historial revisado");
+            sns.registerPatient(replacement);
+            int segmentsBefore = segments().size();
+
+            long reclaimed = store.compact(cip);
+
+            assertAll(
+                    () -> assertTrue(reclaimed > 0),
+                    () -> assertTrue(segments().size() < segmentsBefore),
+                    () -> assertEquals(replacement, sns.getMedicalHistory(cip))
+            );
+        }
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 256)) {
+            assertEquals(List.of("Historial revisado"), store.load(cip).getAnnotations());
+            assertEquals(8, store.load(cip).getMembShipNumb());
+        }
+    }
+
+    /**
+     * Only a bounded number of patients keep their segments mapped; closed patients are reopened on use.
+     */
+    @Test
+    void testOpenPatientsAreBounded() throws Exception {
+        try (MappedHistoryStore store = new MappedHistoryStore(dir, 256, 2)) {
+            for (int p = 0; p < 5; p++) {
+                MedicalHistory history = new MedicalHistory(new HealthCardID(String.format("PACI%012d", p)), 7);
+                history.addMedicalHistoryAnnotations("Primera visita " + p);
+                store.store(history);
+            }
+            ByteBuffer view = store.viewLastAnnotations(new HealthCardID("PACI000000000003"), 1).get(0);
+            store.append(new HealthCardID("PACI000000000000"), "Segunda visita 0");
+            store.compact(new HealthCardID("PACI000000000001"));
+
+            assertAll(
+                    () -> assertEquals(2, store.getOpenPatientCount()),
+                    () -> assertEquals(List.of("Primera visita 0", "Segunda visita 0"),
+                            store.readLastAnnotations(new HealthCardID("PACI000000000000"), 5)),
+                    () -> assertEquals(List.of("Primera visita 4"),
+                            store.readLastAnnotations(new HealthCardID("PACI000000000004"), 5)),
+                    () -> assertEquals("Primera visita 3", StandardCharsets.UTF_8.decode(view).toString()),
+                    () -> assertEquals(1, store.getAnnotationCount(new HealthCardID("PACI000000000001")))
+            );
+        }
+    }
+
+    private List<Path> segments() throws Exception {
+        try (Stream<Path> files = Files.list(dir.resolve(cip.getPersonalID()))) {
+            return files.sorted().toList();
+        }
+    }
+}
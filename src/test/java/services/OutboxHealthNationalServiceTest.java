@@ -0,0 +1,303 @@
+package services;
+
+import data.DigitalSignature;
+import data.HealthCardID;
+import data.HealthCardIDException;
+import data.ProductID;
+import medicalconsultation.ConsultationTerminal;
+import medicalconsultation.MedicalHistory;
+import medicalconsultation.MedicalPrescription;
+import medicalconsultation.ProceduralException;
+import medicalconsultation.doubles.HealthNationalServiceStub;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.net.ConnectException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link OutboxHealthNationalService} decorator.
+ * Verifies immediate return, retries while the SNS is unreachable, and replay after a restart.
+ */
+class OutboxHealthNationalServiceTest {
+
+    /**
+     * Stub that records delivered submissions and fails the first attempts, as a saturated SNS would.
+     */
+    private static class RecordingHealthNationalService extends HealthNationalServiceStub {
+        final List<Submission> delivered = new CopyOnWriteArrayList<>();
+        volatile int failuresLeft;
+
+        @Override
+        public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce,
+                                                              String illness, MedicalPrescription mPresc) {
+            if (failuresLeft > 0) {
+                failuresLeft--;
+                throw new IllegalStateException("SNS saturado");
+            }
+            delivered.add(new Submission(cip, hce, illness, mPresc));
+            return mPresc;
+        }
+    }
+
+    @TempDir
+    Path dir;
+
+    private Path logFile;
+    private HealthCardID cip;
+    private MedicalHistory history;
+    private MedicalPrescription prescription;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        logFile = dir.resolve("outbox.log");
+        cip = new HealthCardID("ABCJ123456789012");
+        history = new MedicalHistory(cip, 101);
+        history.addMedicalHistoryAnnotations("Control TA");
+        prescription = new MedicalPrescription(cip, 101, "Hipertensión");
+        prescription.addLine(new ProductID("123456789012"),
+                new String[]{"AFTERMEALS", "30.0", "1.0", "24.0", "HOUR", "Tomar con agua"});
+        prescription.setEsign(new DigitalSignature(new byte[]{1, 2, 3}));
+    }
+
+    /**
+     * The submission must return immediately and be delivered once the SNS recovers.
+     */
+    @Test
+    void testDeliversOnceAfterRetries() throws Exception {
+        RecordingHealthNationalService remote = new RecordingHealthNationalService();
+        remote.failuresLeft = 3;
+
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(
+                remote, logFile, Duration.ofMillis(1), Duration.ofMillis(5))) {
+            outbox.start();
+            MedicalPrescription result = outbox.sendHistoryAndPrescription(cip, history, "Hipertensión", prescription);
+            assertSame(prescription, result);
+
+            awaitDelivery(outbox);
+            assertEquals(1, remote.delivered.size());
+        }
+        assertEquals(0, Files.size(logFile), "A fully delivered log must be compacted");
+    }
+
+    /**
+     * Submissions logged before a restart must be replayed with all their data,
+     * ignoring a torn record at the end of the log.
+     */
+    @Test
+    void testReplaysPendingSubmissionsOnStartup() throws Exception {
+        RecordingHealthNationalService unreachable = new RecordingHealthNationalService();
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(unreachable, logFile)) {
+            // Never started: the submission stays in the log
+            outbox.sendHistoryAndPrescription(cip, history, "Hipertensión", prescription);
+        }
+        Files.write(logFile, new byte[]{1, 0, 0}, StandardOpenOption.APPEND);
+
+        RecordingHealthNationalService remote = new RecordingHealthNationalService();
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(remote, logFile)) {
+            assertEquals(1, outbox.getPendingCount());
+            outbox.start();
+            awaitDelivery(outbox);
+        }
+
+        Submission replayed = remote.delivered.get(0);
+        assertAll("Replayed submission",
+                () -> assertEquals(1, remote.delivered.size()),
+                () -> assertEquals(cip, replayed.getCip()),
+                () -> assertEquals("Hipertensión", replayed.getIllness()),
+                () -> assertEquals(history, replayed.getHistory()),
+                () -> assertEquals(1, replayed.getPrescription().getPrescriptionLines().size()),
+                () -> assertEquals(prescription.getEsign(), replayed.getPrescription().getEsign())
+        );
+    }
+
+    /**
+     * A submission whose answer was lost is sent again with the same identifier, and stored only once.
+     */
+    @Test
+    void testResentSubmissionIsStoredOnce() throws Exception {
+        LocalHealthNationalService sns = new LocalHealthNationalService(Duration.ZERO);
+        sns.registerPatient(new MedicalHistory(cip, 101));
+        prescription.setEndDate(new Date(System.currentTimeMillis() + 86_400_000L));
+        List<String> ids = new CopyOnWriteArrayList<>();
+        HealthNationalService lossy = new CachingHealthNationalService(sns, 10, Duration.ofMinutes(1)) {
+            @Override
+            public MedicalPrescription sendHistoryAndPrescriptionOnce(String submissionId, HealthCardID cip, MedicalHistory hce,
+                                                                      String illness, MedicalPrescription mPresc)
+                    throws ConnectException, HealthCardIDException, AnyCurrentPrescriptionException,
+                    NotCompletedMedicalPrescription {
+                ids.add(submissionId);
+                MedicalPrescription stored = super.sendHistoryAndPrescriptionOnce(submissionId, cip, hce, illness, mPresc);
+                if (ids.size() == 1) {
+                    throw new ConnectException("Respuesta perdida");
+                }
+                return stored;
+            }
+        };
+
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(
+                lossy, logFile, Duration.ofMillis(1), Duration.ofMillis(5))) {
+            outbox.start();
+            outbox.sendHistoryAndPrescription(cip, history, "Hipertensión", prescription);
+            awaitDelivery(outbox);
+        }
+        assertAll(
+                () -> assertEquals(2, ids.size()),
+                () -> assertEquals(ids.get(0), ids.get(1)),
+                () -> assertEquals(List.of("Control TA"), sns.getMedicalHistory(cip).getAnnotations()),
+                () -> assertEquals("L000000001", sns.getMedicalPrescription(cip, "Hipertensión").getPrescCode().getCode())
+        );
+    }
+
+    /**
+     * A submission that always fails with an unexpected error is rejected and does not block the next one.
+     */
+    @Test
+    void testFailingSubmissionDoesNotBlockTheRest() throws Exception {
+        RecordingHealthNationalService remote = new RecordingHealthNationalService() {
+            @Override
+            public MedicalPrescription sendHistoryAndPrescription(HealthCardID cip, MedicalHistory hce,
+                                                                  String illness, MedicalPrescription mPresc) {
+                if (hce.getAnnotations().contains("Dato dañado")) {
+                    throw new NullPointerException("Dato dañado");
+                }
+                return super.sendHistoryAndPrescription(cip, hce, illness, mPresc);
+            }
+        };
+        MedicalHistory damaged = new MedicalHistory(cip, 101);
+        damaged.addMedicalHistoryAnnotations("Dato dañado");
+
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(
+                remote, logFile, Duration.ofMillis(1), Duration.ofMillis(2))) {
+            outbox.start();
+            outbox.sendHistoryAndPrescription(cip, damaged, "Hipertensión", prescription);
+            outbox.sendHistoryAndPrescription(cip, history, "Hipertensión", prescription);
+            awaitDelivery(outbox);
+
+            assertEquals(1, outbox.getRejected().size());
+            assertEquals(damaged, outbox.getRejected().get(0).getHistory());
+        }
+        assertEquals(1, remote.delivered.size());
+        assertEquals(history, remote.delivered.get(0).getHistory());
+    }
+
+    /**
+     * Rejected submissions are still reported after a restart, once the log has been compacted.
+     */
+    @Test
+    void testRejectionsSurviveRestart() throws Exception {
+        RecordingHealthNationalService broken = new RecordingHealthNationalService();
+        broken.failuresLeft = Integer.MAX_VALUE;
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(
+                broken, logFile, Duration.ofMillis(1), Duration.ofMillis(2))) {
+            outbox.start();
+            outbox.sendHistoryAndPrescription(cip, history, "Hipertensión", prescription);
+            awaitDelivery(outbox);
+        }
+
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(new RecordingHealthNationalService(), logFile)) {
+            assertAll("Recovered rejection",
+                    () -> assertEquals(0, outbox.getPendingCount()),
+                    () -> assertEquals(1, outbox.getRejected().size()),
+                    () -> assertEquals(history, outbox.getRejected().get(0).getHistory())
+            );
+        }
+    }
+
+    /**
+     * A damaged record in the middle of the log is skipped and reported, and the submissions after it are kept.
+     */
+    @Test
+    void testDamagedRecordInTheMiddleIsSkipped() throws Exception {
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(new RecordingHealthNationalService(), logFile)) {
+            outbox.sendHistoryAndPrescription(cip, history, "Hipertensión", prescription);
+            outbox.sendHistoryAndPrescription(cip, history, "Gripe", prescription);
+        }
+        byte[] bytes = Files.readAllBytes(logFile);
+        // Inside the payload of the first record, past its 13-byte header
+        bytes[20] ^= 0x5A;
+        Files.write(logFile, bytes);
+
+        RecordingHealthNationalService remote = new RecordingHealthNationalService();
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(remote, logFile)) {
+            assertEquals(1, outbox.getDamagedRecordCount());
+            outbox.start();
+            awaitDelivery(outbox);
+        }
+        assertEquals(1, remote.delivered.size());
+        assertEquals("Gripe", remote.delivered.get(0).getIllness());
+    }
+
+    /**
+     * A consultation sent while the SNS is down reaches the log as a delta, without downloading the
+     * history again, and its annotations are appended once the SNS is back.
+     */
+    @Test
+    void testTerminalDeltaIsLoggedWhileSnsIsDown() throws Exception {
+        AtomicBoolean down = new AtomicBoolean();
+        LocalHealthNationalService sns = new LocalHealthNationalService(Duration.ZERO) {
+            @Override
+            public MedicalHistory getMedicalHistory(HealthCardID cip) throws ConnectException, HealthCardIDException {
+                checkUp();
+                return super.getMedicalHistory(cip);
+            }
+
+            @Override
+            public MedicalPrescription sendHistoryDeltaAndPrescription(HistoryDelta delta, String illness, MedicalPrescription mPresc)
+                    throws ConnectException, HealthCardIDException, NotCompletedMedicalPrescription, HistoryVersionConflictException {
+                checkUp();
+                return super.sendHistoryDeltaAndPrescription(delta, illness, mPresc);
+            }
+
+            private void checkUp() throws ConnectException {
+                if (down.get()) {
+                    throw new ConnectException("SNS caído");
+                }
+            }
+        };
+        sns.registerPatient(history);
+        sns.registerPrescription(prescription);
+
+        try (OutboxHealthNationalService outbox = new OutboxHealthNationalService(
+                sns, logFile, Duration.ofMillis(1), Duration.ofMillis(5))) {
+            ConsultationTerminal terminal = new ConsultationTerminal();
+            terminal.setHns(outbox);
+            terminal.initRevision(cip, "Hipertensión");
+            terminal.enterMedicalAssessmentInHistory("TA controlada");
+            terminal.initMedicalPrescriptionEdition();
+            terminal.enterTreatmentEndingDate(new Date(System.currentTimeMillis() + 86_400_000L));
+            terminal.finishMedicalPrescriptionEdition();
+            terminal.stampeeSignature();
+
+            down.set(true);
+            terminal.sendHistoryAndPrescription();
+            assertEquals(1, outbox.getPendingCount());
+            assertThrows(ProceduralException.class, terminal::sendHistoryAndPrescription);
+
+            down.set(false);
+            outbox.start();
+            awaitDelivery(outbox);
+        }
+        assertEquals(List.of("Control TA", "TA controlada"), sns.getMedicalHistory(cip).getAnnotations());
+    }
+
+    private static void awaitDelivery(OutboxHealthNationalService outbox) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (outbox.getPendingCount() > 0) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("El outbox no ha entregado los envíos a tiempo");
+            }
+            Thread.sleep(5);
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package services;
+
+import data.ePrescripCode;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link PrescripCodeAllocator}.
+ * Verifies uniqueness across threads, restarts and nodes.
+ */
+class PrescripCodeAllocatorTest {
+
+    @TempDir
+    Path dir;
+
+    /**
+     * Concurrent threads never receive the same code.
+     */
+    @Test
+    void testConcurrentAllocationsAreUnique() throws Exception {
+        Set<String> codes = ConcurrentHashMap.newKeySet();
+        int threads = 8;
+        int perThread = 50_000;
+        try (PrescripCodeAllocator allocator = new PrescripCodeAllocator(7, dir.resolve("node7.lease"), 1000);
+             ExecutorService pool = Executors.newFixedThreadPool(threads)) {
+            List<Future<?>> tasks = new ArrayList<>();
+            for (int t = 0; t < threads; t++) {
+                tasks.add(pool.submit(() -> {
+                    for (int i = 0; i < perThread; i++) {
+                        codes.add(allocator.allocate().getCode());
+                    }
+                }));
+            }
+            for (Future<?> task : tasks) {
+                task.get();
+            }
+        }
+        assertEquals(threads * perThread, codes.size());
+        assertTrue(codes.stream().allMatch(code -> code.startsWith("07")));
+    }
+
+    /**
+     * After a restart the allocator skips every code that might have been handed out.
+     */
+    @Test
+    void testRestartNeverReusesCodes() throws Exception {
+        Path lease = dir.resolve("node.lease");
+        Set<String> codes = new HashSet<>();
+        for (int run = 0; run < 3; run++) {
+            try (PrescripCodeAllocator allocator = new PrescripCodeAllocator(1, lease, 100)) {
+                for (int i = 0; i < 150; i++) {
+                    assertTrue(codes.add(allocator.allocate().getCode()));
+                }
+            }
+        }
+        assertEquals(450, codes.size());
+    }
+
+    /**
+     * Nodes with different identifiers produce disjoint codes; a damaged lease file is refused.
+     */
+    @Test
+    void testNodesAreDisjointAndDamagedLeaseIsRefused() throws Exception {
+        try (PrescripCodeAllocator a = new PrescripCodeAllocator(0, dir.resolve("a.lease"), 10);
+             PrescripCodeAllocator b = new PrescripCodeAllocator(PrescripCodeAllocator.MAX_NODES - 1, dir.resolve("b.lease"), 10)) {
+            ePrescripCode first = a.allocate();
+            assertEquals("0000000000", first.getCode());
+            assertEquals("zz00000000", b.allocate().getCode());
+        }
+        assertThrows(IllegalArgumentException.class,
+                () -> new PrescripCodeAllocator(PrescripCodeAllocator.MAX_NODES, dir.resolve("c.lease"), 10));
+
+        Files.write(dir.resolve("a.lease"), new byte[]{1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        assertThrows(IOException.class, () -> new PrescripCodeAllocator(0, dir.resolve("a.lease"), 10));
+    }
+
+    /**
+     * A lease write torn by a crash leaves the previous lease, and the allocator resumes after it.
+     */
+    @Test
+    void testTornLeaseWriteKeepsThePreviousLease() throws Exception {
+        Path lease = dir.resolve("torn.lease");
+        Set<String> codes = new HashSet<>();
+        try (PrescripCodeAllocator allocator = new PrescripCodeAllocator(3, lease, 100)) {
+            for (int i = 0; i < 150; i++) {
+                codes.add(allocator.allocate().getCode());
+            }
+        }
+        // The crash happened while the third lease was being written over the first slot
+        try (RandomAccessFile file = new RandomAccessFile(lease.toFile(), "rw")) {
+            file.seek(4);
+            file.write(new byte[]{(byte) 0xFF, (byte) 0xFF});
+        }
+
+        try (PrescripCodeAllocator allocator = new PrescripCodeAllocator(3, lease, 100)) {
+            for (int i = 0; i < 150; i++) {
+                assertTrue(codes.add(allocator.allocate().getCode()));
+            }
+        }
+    }
+}
@@ -0,0 +1,201 @@
+package services;
+
+import medicalconsultation.doubles.DecisionMakingAIStub;
+import medicalconsultation.doubles.StreamingDecisionMakingAIStub;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link ResilientDecisionMakingAI} decorator.
+ * Verifies deadlines, the circuit breaker and the bulkhead.
+ */
+class ResilientDecisionMakingAITest {
+
+    /**
+     * Stub whose answers can be made to fail or to wait for a signal.
+     */
+    private static class ControllableDecisionMakingAI extends DecisionMakingAIStub {
+        volatile boolean failing;
+        volatile CountDownLatch release;
+        volatile int queries;
+
+        @Override
+        public String getSuggestions(String prompt) {
+            queries++;
+            if (release != null) {
+                try {
+                    release.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            if (failing) {
+                throw new IllegalStateException("Servicio caído");
+            }
+            return super.getSuggestions(prompt);
+        }
+    }
+
+    private final ControllableDecisionMakingAI remote = new ControllableDecisionMakingAI();
+    private long now;
+
+    private ResilientDecisionMakingAI resilient(Duration timeout, int maxConcurrentCalls) {
+        return new ResilientDecisionMakingAI(remote, timeout, 2, Duration.ofSeconds(30), maxConcurrentCalls,
+                () -> now, Executors.newVirtualThreadPerTaskExecutor());
+    }
+
+    /**
+     * A call that exceeds its deadline fails with AIException instead of blocking the consultation.
+     */
+    @Test
+    void testSlowCallFailsAtItsDeadline() {
+        ResilientDecisionMakingAI ai = resilient(Duration.ofMillis(50), 4);
+        remote.release = new CountDownLatch(1);
+
+        long start = System.nanoTime();
+        assertThrows(AIException.class, () -> ai.getSuggestions("Tratamiento"));
+        long elapsed = System.nanoTime() - start;
+        remote.release.countDown();
+
+        assertAll(
+                () -> assertTrue(elapsed < Duration.ofSeconds(1).toNanos()),
+                () -> assertEquals(1, ai.getTimeouts())
+        );
+    }
+
+    /**
+     * After consecutive failures the backend is not contacted until the open period ends,
+     * and a successful probe closes the circuit again.
+     */
+    @Test
+    void testCircuitOpensAndRecoversAfterProbe() throws Exception {
+        ResilientDecisionMakingAI ai = resilient(Duration.ofSeconds(5), 4);
+        remote.failing = true;
+        assertThrows(AIException.class, () -> ai.getSuggestions("a"));
+        assertThrows(AIException.class, () -> ai.getSuggestions("b"));
+        assertTrue(ai.isCircuitOpen());
+
+        assertThrows(AIException.class, () -> ai.getSuggestions("c"));
+        assertEquals(2, remote.queries, "An open circuit must fail fast without contacting the AI");
+
+        now += Duration.ofSeconds(31).toNanos();
+        remote.failing = false;
+        assertNotNull(ai.getSuggestions("d"));
+        assertAll(
+                () -> assertFalse(ai.isCircuitOpen()),
+                () -> assertEquals(3, remote.queries),
+                () -> assertEquals(1, ai.getRejections())
+        );
+    }
+
+    /**
+     * Calls beyond the concurrency limit are rejected while the backend is busy.
+     */
+    @Test
+    void testBulkheadLimitsConcurrentCalls() throws Exception {
+        ResilientDecisionMakingAI ai = resilient(Duration.ofMillis(20), 1);
+        remote.release = new CountDownLatch(1);
+        assertThrows(AIException.class, () -> ai.getSuggestions("a"));
+
+        // The first call is still running on the backend, so it keeps its slot
+        assertThrows(AIException.class, () -> ai.getSuggestions("b"));
+        assertEquals(1, remote.queries);
+        assertEquals(1, ai.getRejections());
+        remote.release.countDown();
+    }
+
+    /**
+     * The outcome of a call started before the circuit opened must not decide the probe.
+     */
+    @Test
+    void testStaleOutcomesAreIgnored() {
+        CircuitBreaker breaker = new CircuitBreaker(1, Duration.ofSeconds(30).toNanos(), () -> now);
+        long slow = breaker.tryAcquire();
+        breaker.onFailure(breaker.tryAcquire());
+        now += Duration.ofSeconds(31).toNanos();
+        long probe = breaker.tryAcquire();
+
+        breaker.onSuccess(slow);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onFailure(slow);
+        assertEquals(CircuitBreaker.State.HALF_OPEN, breaker.getState());
+        breaker.onSuccess(probe);
+        assertEquals(CircuitBreaker.State.CLOSED, breaker.getState());
+    }
+
+    /**
+     * Answers of a streaming AI are streamed through the decorator, which frees the slot at the end.
+     */
+    @Test
+    void testStreamingAnswersAreDelegated() throws Exception {
+        StreamingDecisionMakingAIStub streaming = new StreamingDecisionMakingAIStub(List.of(
+                "ADDITION;123456789012;AFTER", "MEALS;10;1;8;HOUR;Con agua\nELIMINATION;000000000042\n"), 5);
+        ResilientDecisionMakingAI ai = new ResilientDecisionMakingAI(streaming, Duration.ofSeconds(5), 2,
+                Duration.ofSeconds(30), 1, () -> now, Executors.newVirtualThreadPerTaskExecutor());
+
+        for (int i = 0; i < 2; i++) {
+            IncrementalSuggestionParser parser = new IncrementalSuggestionParser(sugg -> { });
+            ai.streamSuggestions("Tratamiento").subscribe(parser);
+            assertEquals(2, parser.getResult().join().size());
+        }
+        assertEquals(0, ai.getRejections(), "The slot must be freed once the stream has ended");
+    }
+
+    /**
+     * A publisher takes its slot only when subscribed to, and a second subscription is refused
+     * without releasing the slot again.
+     */
+    @Test
+    void testStreamTakesItsSlotOnSubscription() throws Exception {
+        StreamingDecisionMakingAIStub streaming = new StreamingDecisionMakingAIStub(List.of(
+                "ADDITION;123456789012;AFTER", "MEALS;10;1;8;HOUR;Con agua\n"), 50);
+        ResilientDecisionMakingAI ai = new ResilientDecisionMakingAI(streaming, Duration.ofSeconds(5), 2,
+                Duration.ofSeconds(30), 1, () -> now, Executors.newVirtualThreadPerTaskExecutor());
+
+        // Never subscribed: it must not keep the only slot
+        ai.streamSuggestions("Tratamiento");
+        Flow.Publisher<String> publisher = ai.streamSuggestions("Tratamiento");
+        IncrementalSuggestionParser first = new IncrementalSuggestionParser(sugg -> { });
+        publisher.subscribe(first);
+        IncrementalSuggestionParser again = new IncrementalSuggestionParser(sugg -> { });
+        publisher.subscribe(again);
+        assertEquals(1, first.getResult().join().size());
+        CompletionException e = assertThrows(CompletionException.class, () -> again.getResult().join());
+        assertInstanceOf(IllegalStateException.class, e.getCause());
+
+        // Only one slot is left: of two overlapping streams, the second is refused
+        IncrementalSuggestionParser running = new IncrementalSuggestionParser(sugg -> { });
+        ai.streamSuggestions("Tratamiento").subscribe(running);
+        IncrementalSuggestionParser refused = new IncrementalSuggestionParser(sugg -> { });
+        ai.streamSuggestions("Tratamiento").subscribe(refused);
+        assertThrows(CompletionException.class, () -> refused.getResult().join());
+        assertEquals(1, running.getResult().join().size());
+        assertEquals(1, ai.getRejections());
+    }
+
+    /**
+     * A stream that stops sending chunks fails at the deadline and counts against the circuit.
+     */
+    @Test
+    void testStalledStreamFailsAtItsDeadline() throws Exception {
+        StreamingDecisionMakingAIStub stalled = new StreamingDecisionMakingAIStub(List.of("ADDITION;"), 60_000);
+        ResilientDecisionMakingAI ai = new ResilientDecisionMakingAI(stalled, Duration.ofMillis(50), 1,
+                Duration.ofSeconds(30), 1, () -> now, Executors.newVirtualThreadPerTaskExecutor());
+
+        IncrementalSuggestionParser parser = new IncrementalSuggestionParser(sugg -> { });
+        ai.streamSuggestions("Tratamiento").subscribe(parser);
+
+        CompletionException e = assertThrows(CompletionException.class, () -> parser.getResult().join());
+        assertInstanceOf(AIException.class, e.getCause());
+        assertEquals(1, ai.getTimeouts());
+        assertTrue(ai.isCircuitOpen());
+    }
+}
@@ -0,0 +1,73 @@
+package services;
+
+import data.InvalidFormatException;
+import data.ProductID;
+import medicalconsultation.FqUnit;
+import medicalconsultation.TakingGuideline;
+import medicalconsultation.dayMoment;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Test suite for the {@link SuggestionFormat} reference parser.
+ */
+class SuggestionFormatTest {
+
+    /**
+     * Every field of a line is read in place, including spaces and CRLF line breaks.
+     */
+    @Test
+    void testParseReadsEveryField() throws Exception {
+        List<Suggestion> suggestions = SuggestionFormat.parse(
+                "  MODIFICATION;000000000042;BEFORELUNCH;7.5;0.25;12;DAY;Con agua; en ayunas \r\n\r\nELIMINATION;123456789012");
+
+        assertEquals(2, suggestions.size());
+        TakingGuideline tg = suggestions.get(0).getTakingGuideline();
+        assertAll(
+                () -> assertEquals(Suggestion.SuggType.MODIFICATION, suggestions.get(0).getType()),
+                () -> assertEquals(new ProductID("000000000042"), suggestions.get(0).getProductID()),
+                () -> assertEquals(dayMoment.BEFORELUNCH, tg.getdMoment()),
+                () -> assertEquals(7.5f, tg.getDuration()),
+                () -> assertEquals(0.25f, tg.getPosology().getDose()),
+                () -> assertEquals(12f, tg.getPosology().getFreq()),
+                () -> assertEquals(FqUnit.DAY, tg.getPosology().getFreqUnit()),
+                () -> assertEquals("Con agua; en ayunas", tg.getInstructions()),
+                () -> assertEquals(Suggestion.SuggType.ELIMINATION, suggestions.get(1).getType())
+        );
+    }
+
+    /**
+     * Malformed lines are rejected with InvalidFormatException.
+     */
+    @Test
+    void testMalformedLinesAreRejected() {
+        assertAll(
+                () -> assertThrows(InvalidFormatException.class, () -> SuggestionFormat.parse("ADD;123456789012")),
+                () -> assertThrows(InvalidFormatException.class, () -> SuggestionFormat.parse("ELIMINATION;12345")),
+                () -> assertThrows(InvalidFormatException.class, () -> SuggestionFormat.parse("ELIMINATION;123456789012;x")),
+                () -> assertThrows(InvalidFormatException.class,
+                        () -> SuggestionFormat.parse("ADDITION;123456789012;AFTERMEALS;10;1;8;HOUR")),
+                () -> assertThrows(InvalidFormatException.class,
+                        () -> SuggestionFormat.parse("ADDITION;123456789012;AFTERMEALS;diez;1;8;HOUR;x"))
+        );
+    }
+
+    /**
+     * A large answer written by format() is read back unchanged.
+     */
+    @Test
+    void testLargeAnswerRoundTrip() throws Exception {
+        StringBuilder answer = new StringBuilder();
+        for (int i = 0; i < 10_000; i++) {
+            answer.append("ADDITION;").append(String.format("%012d", i))
+                    .append(";AFTERMEALS;").append(i % 30).append(".5;1;8;HOUR;Línea ").append(i).append('\n');
+        }
+        List<Suggestion> parsed = SuggestionFormat.parse(answer);
+
+        assertEquals(10_000, parsed.size());
+        assertEquals(answer.toString().replace(".5;1;8;", ".5;1.0;8.0;"), SuggestionFormat.format(parsed));
+    }
+}